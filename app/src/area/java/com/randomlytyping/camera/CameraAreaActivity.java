@@ -25,20 +25,24 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
+import android.widget.CompoundButton;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.TextView;
+import android.widget.ToggleButton;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by Huyen Tue Dao on 5/13/14.
  */
 public class CameraAreaActivity extends Activity implements View.OnClickListener,
-        View.OnTouchListener, Preview.PreviewListener {
+        View.OnTouchListener, CompoundButton.OnCheckedChangeListener, Preview.PreviewListener {
     /**
      * ID value for a particular camera (front or back) that was not found.
      */
@@ -49,6 +53,11 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
      */
     private static final String STATE_IS_FRONT_CAMERA = "isFrontCamera";
 
+    /**
+     * Whether pictures are taken from the preview without shutter lag.
+     */
+    private static final String STATE_IS_ZERO_SHUTTER_LAG = "isZeroShutterLag";
+
     /**
      * Class tag for logging.
      */
@@ -62,18 +71,37 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
     private ImageButton mCaptureButton;
 
     private ImageButton mSwitchButton;
+    private ToggleButton mZeroShutterLagToggle;
 
     private Preview mPreview;
 
     // Camera fields
-    private Camera mCamera;
+    private CameraController mCameraController;
+    private CameraCapabilityCache mCapabilityCache;
+    private CameraSource mCameraSource;
+    private int mCameraId = -1;
     private boolean mIsFrontCamera;
     private int mBackCameraId;
     private int mFrontCameraId;
 
+    // Preview frames
+    private volatile boolean mZeroShutterLag;
+    private volatile boolean mSoftwareFocus;
+
+    // Zero shutter lag
+    private final ZeroShutterLagCapture mZeroShutterLagCapture = new ZeroShutterLagCapture();
+    private long mShutterPressTime;
+
+    // Whether the camera stopped the preview to take the picture being shown.
+    private boolean mPreviewStoppedByPicture;
+
+    // Software focus feedback for cameras without focus areas
+    private final SharpnessMeter mSharpnessMeter = new SharpnessMeter();
+
     // Threading/runnables
     private long mHidePictureDelay;
     private Handler mHandler;
+    private final PictureDecoder mPictureDecoder = new PictureDecoder();
     private Runnable mHidePictureRunnable = new Runnable() {
         @Override
         public void run() {
@@ -102,9 +130,13 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
         // Grab references to camera-switching-related views.
         mSwitchButton = (ImageButton) findViewById(R.id.switch_button);
 
+        // Grab reference to the zero shutter lag toggle.
+        mZeroShutterLagToggle = (ToggleButton) findViewById(R.id.zero_shutter_lag_toggle);
+
         // Grab reference to the preview.
         mPreview = (Preview) findViewById(R.id.preview);
         mPreview.setListener(this);
+        mPreview.setShowLatency(BuildConfig.SHOW_LATENCY);
 
         /*
             If the device actually has a camera, set up the surface holder.
@@ -121,6 +153,13 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
                 mHidePictureDelay = getResources().getInteger(R.integer.picture_taken_show_duration);
                 mHandler = new Handler(Looper.getMainLooper());
 
+                // Open, start and release the camera off the UI thread.
+                mCameraController = CameraController.forIntent(getIntent());
+                mPreview.setCameraController(mCameraController);
+
+                // Load what each camera supported the last time it was opened.
+                mCapabilityCache = CameraCapabilityCache.getInstance(this);
+
                 // Get back-facing camera info.
                 mBackCameraId = findCameraId(false);
 
@@ -135,11 +174,21 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
                     mSwitchButton.setVisibility(View.GONE);
                 }
 
+                // Refocus when the touched area drifts out of focus on cameras without focus areas.
+                mSharpnessMeter.setListener(mSharpnessListener);
+
+                // Take pictures from the preview if that is what the user chose last time.
+                mZeroShutterLagToggle.setChecked(savedInstanceState != null
+                        && savedInstanceState.getBoolean(STATE_IS_ZERO_SHUTTER_LAG, false));
+                setZeroShutterLag(mZeroShutterLagToggle.isChecked());
+                mZeroShutterLagToggle.setOnCheckedChangeListener(this);
+
                 hideError();
             } else {
                 /*  Disable picture-taking button if there is no camera preview since we cannot take
                 pictures with the Camera if there is no preview. */
                 mCaptureButton.setEnabled(false);
+                mZeroShutterLagToggle.setEnabled(false);
 
                 showError(R.string.error_preview_surface_view_does_not_exist);
             }
@@ -174,6 +223,18 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
 
         // Save which camera is currently open to state.
         outState.putBoolean(STATE_IS_FRONT_CAMERA, mIsFrontCamera);
+        outState.putBoolean(STATE_IS_ZERO_SHUTTER_LAG, mZeroShutterLagToggle.isChecked());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Drop any picture still being decoded, then stop the camera thread.
+        mPictureDecoder.cancel();
+        if (mCameraController != null) {
+            mCameraController.quit();
+        }
     }
 
 
@@ -182,14 +243,15 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
     //
 
     /**
-     * Check whether the device actually has a camera.
+     * Check whether the device actually has a camera, or the activity was started with a synthetic
+     * one.
      *
      * @return True if the device has a camera, false otherwise.
      */
     private boolean hasCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA));
     }
 
     /**
@@ -199,82 +261,153 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
      */
     private boolean hasFrontCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT));
     }
 
     /**
-     * Returns the camera ID (an integer between 0 and {@link android.hardware.Camera#getNumberOfCameras()})
-     * for either the first front-facing or first back-facing camera.
+     * Returns the camera ID for either the first front-facing or first back-facing camera.
      *
      * @param front True to find the first front-facing camera; false to find the first back-facing
      *              camera.
      *
-     * @return The camera ID for the requested camera as an integer between between 0 and {@link
-     * android.hardware.Camera#getNumberOfCameras()} or -1 if there was no matching camera.
+     * @return The camera ID for the requested camera or -1 if there was no matching camera.
      */
     private int findCameraId(boolean front) {
-        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-        final int cameraCount = Camera.getNumberOfCameras();
-        /*  Iterate through 0…getNumberOfCameras - 1 to find the camera ID of the first front or
-        the first back camera. */
-        for (int i = 0; i < cameraCount; i++) {
-            Camera.getCameraInfo(i, cameraInfo);
-            if ((front && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT)
-                    || (!front && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_BACK)) {
-                return i;
-            }
-        }
-        return NO_CAMERA;
-    }
-
-    /**
-     * Returns a {@link android.hardware.Camera.CameraInfo} instance containing information on the
-     * currently open camera.
-     *
-     * @return A {@link android.hardware.Camera.CameraInfo} instance containing information on the
-     * currently open camera or `null` if no camera is open.
-     */
-    private Camera.CameraInfo getCameraInfo() {
-        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-        Camera.getCameraInfo(mIsFrontCamera ? mFrontCameraId : mBackCameraId, cameraInfo);
-        return cameraInfo;
+        return mCameraController.getSource().findCameraId(front);
     }
 
     /**
-     * Open the first back-facing camera and grab a {@link android.hardware.Camera} instance.
+     * Open the first back-facing camera and grab its {@link CameraSource}.
      */
     private void openCamera() {
-        if (mCamera != null) {
+        if (mCameraSource != null) {
             if (mPreview.isStarted()) {
                 mPreview.stop();
             }
-            mCamera.cancelAutoFocus();
-            mCamera.release();
+            mCameraController.cancelAutoFocus();
+            mPreview.setCameraSource(null);
+            mCameraSource = null;
         }
-        mCamera = Camera.open(mIsFrontCamera ? mFrontCameraId : mBackCameraId);
-        final Camera.CameraInfo cameraInfo = getCameraInfo();
-        mPreview.setCamera(mCamera, cameraInfo);
+        final int cameraId = mIsFrontCamera ? mFrontCameraId : mBackCameraId;
+        mCameraId = cameraId;
+
+        // Frames kept from the previous camera must not end up in a picture or a focus score.
+        mZeroShutterLagCapture.clear();
+        mSharpnessMeter.clearArea();
+
+        // Set up the controls from the cached capabilities while the camera is still opening.
+        if (mCameraController.getSource() instanceof HardwareCameraSource) {
+            mCapabilityCache.get(cameraId, mCapabilitiesCallback);
+        }
+
+        // The controller releases the previous camera before opening the requested one.
+        mCameraController.open(cameraId, mOpenCallback);
+    }
+
+    /**
+     * Callback for setting up the preview once the camera is open.
+     */
+    private final CameraController.OpenCallback mOpenCallback = new CameraController.OpenCallback() {
+        @Override
+        public void onCameraOpened(CameraSource source, int cameraId) {
+            mCameraSource = source;
+            setUpCamera(cameraId);
+        }
+
+        @Override
+        public void onCameraOpenFailed(int cameraId, RuntimeException error) {
+            showError(R.string.error_camera_not_opened);
+        }
+    };
+
+    /**
+     * Attaches the newly opened camera to the preview and sets up the controls it supports.
+     *
+     * @param cameraId The ID of the open camera.
+     */
+    private void setUpCamera(int cameraId) {
+        mPreview.setCameraSource(mCameraSource, cameraId);
         mPreview.start();
-        final Camera.Parameters parameters = mCamera.getParameters();
-        if (parameters.getMaxNumFocusAreas() > 0) {
-            mPreview.startFocusAreaSelection();
-            mPreview.setListener(this);
+        if (mCameraSource instanceof HardwareCameraSource) {
+            mCapabilityCache.get(mCameraController, cameraId, mCapabilitiesCallback);
         } else {
-            mPreview.stopFocusAreaSelection();
-            mPreview.setListener(null);
+            // A synthetic camera has no focus areas.
+            setUpControls(0);
         }
     }
 
     /**
-     * Close the camera and release the previously obtained {@link android.hardware.Camera} instance
-     * to make sure that other applications can grab the camera if needed.
+     * Callback for setting up the controls once the capabilities of the camera are known, unless
+     * another camera was requested in the meantime.
+     */
+    private final CameraCapabilityCache.Callback mCapabilitiesCallback =
+            new CameraCapabilityCache.Callback() {
+                @Override
+                public void onCapabilities(int cameraId, CameraCapabilities capabilities) {
+                    if (capabilities != null && cameraId == mCameraId) {
+                        setUpControls(capabilities.getMaxNumFocusAreas());
+                    }
+                }
+            };
+
+    /**
+     * Sets up the controls supported by a camera.
+     *
+     * @param maxNumFocusAreas The number of focus areas the camera supports.
+     */
+    private void setUpControls(int maxNumFocusAreas) {
+        /*  Without focus areas, touched areas are scored from the preview instead and the camera
+        refocuses as a whole when the area drifts out of focus. */
+        mSoftwareFocus = maxNumFocusAreas == 0;
+        if (!mSoftwareFocus) {
+            mSharpnessMeter.clearArea();
+        }
+        mPreview.startFocusAreaSelection();
+        mPreview.setListener(this);
+        updateFrameConsumer();
+    }
+
+    /**
+     * Receives preview frames only while something needs them.
+     */
+    private void updateFrameConsumer() {
+        mPreview.setFrameConsumer(mZeroShutterLag || mSoftwareFocus ? mFrameConsumer : null);
+    }
+
+    /**
+     * Consumer for scoring the touched area and keeping frames for zero shutter lag pictures.
+     */
+    private final FrameConsumer mFrameConsumer =
+            new FrameConsumer() {
+                @Override
+                public void onPreviewFrame(byte[] data, int width, int height,
+                                           FrameOwner owner) {
+                    if (mSoftwareFocus) {
+                        mSharpnessMeter.process(data, width, height);
+                    }
+                    if (mZeroShutterLag) {
+                        // Hands the frame back to its owner once copied.
+                        mZeroShutterLagCapture.onPreviewFrame(data, width, height, owner);
+                    } else {
+                        owner.release(data);
+                    }
+                }
+            };
+
+    /**
+     * Close the camera and release the previously obtained {@link CameraSource} to make sure that
+     * other applications can grab the camera if needed.
      */
     private void closeCamera() {
-        if (mCamera != null) {
-            mPreview.setCamera(null, null);
-            mCamera.release();
-            mCamera = null;
+        mCameraId = -1;
+        if (mCameraSource != null) {
+            mPreview.setCameraSource(null);
+            mCameraSource = null;
+        }
+        // Release on the camera thread; this also cancels any open request still pending.
+        if (mCameraController != null) {
+            mCameraController.release();
         }
     }
 
@@ -294,9 +427,36 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
     // Auto-focus
     //
 
-    private final Camera.AutoFocusCallback mAutoFocusCallback = new Camera.AutoFocusCallback() {
+    private final CameraSource.AutoFocusCallback mAutoFocusCallback =
+            new CameraSource.AutoFocusCallback() {
+                @Override
+                public void onAutoFocus(boolean success) {
+                    // Score the touched area against how sharp it is now.
+                    mSharpnessMeter.markFocused();
+                }
+            };
+
+    /**
+     * Listener for refocusing once the touched area drifts out of focus.
+     */
+    private final SharpnessMeter.Listener mSharpnessListener = new SharpnessMeter.Listener() {
         @Override
-        public void onAutoFocus(boolean success, Camera camera) {
+        public void onRefocusNeeded(float score, float referenceScore) {
+            Log.d(TAG, String.format("Focus area sharpness dropped from %.0f to %.0f",
+                    referenceScore, score));
+            mHandler.post(mRefocusRunnable);
+        }
+    };
+
+    /**
+     * Runnable for refocusing on the UI thread.
+     */
+    private final Runnable mRefocusRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCameraSource != null && mSoftwareFocus) {
+                mCameraController.autoFocus(mAutoFocusCallback);
+            }
         }
     };
 
@@ -305,27 +465,88 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
     // Picture taking
     //
 
+    /**
+     * Callback for showing a picture once it is decoded.
+     */
+    private final PictureDecoder.DecodeCallback mPictureDecodeCallback =
+            new PictureDecoder.DecodeCallback() {
+                @Override
+                public void onPictureDecoded(Bitmap bitmap) {
+                    if (bitmap != null) {
+                        showPicture(bitmap);
+                    } else {
+                        hidePictureTaken();
+                    }
+                }
+            };
+
     /**
      * Callback for retrieving JPEG data when a picture is taken.
      */
-    private final Camera.PictureCallback mJpegCallback = new Camera.PictureCallback() {
+    private final CameraSource.PictureCallback mJpegCallback = new CameraSource.PictureCallback() {
         @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            showPicture(CameraUtils.bitmapFromRawBytes(
+        public void onPictureTaken(byte[] data) {
+            // Decode off the camera thread and show the picture on the UI thread once done.
+            mPictureDecoder.decode(
                     data,
                     mPictureView.getWidth(),
-                    mPictureView.getHeight()
-            ));
+                    mPictureView.getHeight(),
+                    mPictureDecodeCallback
+            );
         }
     };
 
     /**
-     * Checks if the camera is open and takes a picture, retrieving JPEG data.
+     * Callback for showing a picture taken from the preview.
+     */
+    private final ZeroShutterLagCapture.CaptureCallback mZeroShutterLagCallback =
+            new ZeroShutterLagCapture.CaptureCallback() {
+                @Override
+                public void onCaptured(byte[] jpeg, long offsetMs) {
+                    Log.d(TAG, String.format("Zero shutter lag frame %d ms from press", offsetMs));
+                    if (jpeg != null) {
+                        mPictureDecoder.decode(
+                                jpeg,
+                                mPictureView.getWidth(),
+                                mPictureView.getHeight(),
+                                mPictureDecodeCallback
+                        );
+                    }
+                }
+            };
+
+    /**
+     * Starts or stops keeping preview frames for zero shutter lag pictures.
+     *
+     * @param enabled True to take pictures from the preview; false to take them with the camera.
+     */
+    private void setZeroShutterLag(boolean enabled) {
+        mZeroShutterLag = enabled;
+        if (!enabled) {
+            mZeroShutterLagCapture.clear();
+        }
+        updateFrameConsumer();
+    }
+
+    /**
+     * Takes a picture from the preview frame closest to the shutter press if zero shutter lag is
+     * on, or checks if the camera is open and takes a picture, retrieving JPEG data.
      */
     private void takePicture() {
-        if (mCamera != null) {
-            // Take picture and capture raw image data.
-            mCamera.takePicture(null, null, mJpegCallback);
+        if (mZeroShutterLagToggle.isChecked()) {
+            // Clicks without a touch (keyboard, accessibility) are taken as pressed right now.
+            final long pressTime = mShutterPressTime != 0
+                    ? mShutterPressTime
+                    : SystemClock.uptimeMillis();
+            mShutterPressTime = 0;
+            if (!mZeroShutterLagCapture.capture(pressTime,
+                    ZeroShutterLagCapture.DEFAULT_JPEG_QUALITY, mZeroShutterLagCallback)) {
+                Log.w(TAG, "No preview frame available for a zero shutter lag picture");
+            }
+        } else if (mCameraSource != null) {
+            // Take picture and capture raw image data. The camera stops the preview to do so.
+            mCameraController.takePicture(mJpegCallback);
+            mPreviewStoppedByPicture = true;
         }
     }
 
@@ -335,7 +556,7 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
     //
 
     /**
-     * Displays a picture taken with the {@link android.hardware.Camera} and hides the preview and
+     * Displays a picture taken with the {@link CameraSource} and hides the preview and
      * capture button.
      *
      * @param bitmap A {@link android.graphics.Bitmap} containing the picture taken.
@@ -352,7 +573,11 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
      * Hides any shown picture and shows the preview and capture button.
      */
     private void hidePictureTaken() {
-        mPreview.start();
+        // Pictures taken from the preview leave it running, so only restart it after the camera's.
+        if (mPreviewStoppedByPicture) {
+            mPreviewStoppedByPicture = false;
+            mPreview.start();
+        }
         mPictureView.setVisibility(View.INVISIBLE);
         mPreview.setVisibility(View.VISIBLE);
         mCaptureButton.setVisibility(View.VISIBLE);
@@ -397,6 +622,18 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
     }
 
 
+    //
+    // CompoundButton.OnCheckedChangeListener implementation
+    //
+
+    @Override
+    public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+        if (buttonView == mZeroShutterLagToggle) {
+            setZeroShutterLag(isChecked);
+        }
+    }
+
+
     //
     // View.OnTouchListener implementation
     //
@@ -406,7 +643,13 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
         if (v == mCaptureButton) {
             switch (event.getAction() & MotionEvent.ACTION_MASK) {
                 case MotionEvent.ACTION_DOWN:
-                    mCamera.autoFocus(mAutoFocusCallback);
+                    // The moment the user pressed the shutter, for zero shutter lag pictures.
+                    mShutterPressTime = event.getEventTime();
+                    /*  Focusing now would only blur the frames a zero shutter lag picture is taken
+                    from, so only focus ahead of a camera picture. */
+                    if (mCameraSource != null && !mZeroShutterLagToggle.isChecked()) {
+                        mCameraController.autoFocus(mAutoFocusCallback);
+                    }
                     return false;
             }
         }
@@ -420,30 +663,63 @@ public class CameraAreaActivity extends Activity implements View.OnClickListener
 
     @Override
     public void onAutoFocus() {
-        mCamera.autoFocus(mAutoFocusCallback);
+        if (mCameraSource != null) {
+            mCameraController.autoFocus(mAutoFocusCallback);
+        }
     }
 
     @Override
     public void onFocusAreaChange(Rect area) {
-        if (mCamera != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-            final Camera.Parameters parameters = mCamera.getParameters();
+        if (mCameraSource != null && mSoftwareFocus) {
+            // Focus the whole frame, then keep an eye on how sharp the touched area stays.
+            mSharpnessMeter.setArea(area.left, area.top, area.right, area.bottom);
+            mCameraController.autoFocus(mAutoFocusCallback);
+        } else if (mCameraSource instanceof HardwareCameraSource
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             ArrayList<Camera.Area> focusAreas = new ArrayList<Camera.Area>();
             focusAreas.add(new Camera.Area(area, 10));
-            parameters.setFocusAreas(focusAreas);
-            mCamera.setParameters(parameters);
-            mCamera.autoFocus(mAutoFocusCallback);
+            setCameraAreas(focusAreas, null);
         }
     }
 
     @Override
     public void onMeteringAreaChange(Rect area) {
-        if (mCamera != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-            final Camera.Parameters parameters = mCamera.getParameters();
+        // Camera areas are parameters of a real camera.
+        if (mCameraSource instanceof HardwareCameraSource
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             ArrayList<Camera.Area> meteringAreas = new ArrayList<Camera.Area>();
             meteringAreas.add(new Camera.Area(area, 10));
-            parameters.setMeteringAreas(meteringAreas);
-            mCamera.setParameters(parameters);
-            mCamera.autoFocus(mAutoFocusCallback);
+            setCameraAreas(null, meteringAreas);
         }
     }
+
+    /**
+     * Sets the focus or metering areas of the camera on the camera thread, where the camera's
+     * parameters are read and written, then focuses. The camera may have been released by the time
+     * the operation runs.
+     *
+     * @param focusAreas    The focus areas or null to keep them.
+     * @param meteringAreas The metering areas or null to keep them.
+     */
+    private void setCameraAreas(final List<Camera.Area> focusAreas,
+                                final List<Camera.Area> meteringAreas) {
+        mCameraController.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Camera camera = HardwareCameraSource.getCamera(mCameraController.getSource());
+                if (camera == null) {
+                    return;
+                }
+                final Camera.Parameters parameters = camera.getParameters();
+                if (focusAreas != null) {
+                    parameters.setFocusAreas(focusAreas);
+                }
+                if (meteringAreas != null) {
+                    parameters.setMeteringAreas(meteringAreas);
+                }
+                camera.setParameters(parameters);
+            }
+        });
+        mCameraController.autoFocus(mAutoFocusCallback);
+    }
 }
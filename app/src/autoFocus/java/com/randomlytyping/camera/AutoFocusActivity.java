@@ -17,15 +17,18 @@ package com.randomlytyping.camera;/*
 import android.app.Activity;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.hardware.Camera;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
+import android.widget.CompoundButton;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.TextView;
+import android.widget.ToggleButton;
 
 import com.randomlytyping.camera.PreviewSurface;
 
@@ -33,7 +36,7 @@ import com.randomlytyping.camera.PreviewSurface;
  * Created by Huyen Tue Dao on 5/11/14.
  */
 public class AutoFocusActivity extends Activity implements View.OnClickListener,
-        View.OnTouchListener {
+        View.OnTouchListener, CompoundButton.OnCheckedChangeListener {
     /**
      * ID value for a particular camera (front or back) that was not found.
      */
@@ -44,6 +47,17 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
      */
     private static final String STATE_IS_FRONT_CAMERA = "isFrontCamera";
 
+    /**
+     * Whether pictures are taken from the preview without shutter lag.
+     */
+    private static final String STATE_IS_ZERO_SHUTTER_LAG = "isZeroShutterLag";
+
+    /**
+     * Class tag for logging.
+     */
+    @SuppressWarnings("unused")
+    private static final String TAG = "AutoFocusActivity";
+
     // Views
     private PreviewSurface mPreview;
     private TextView mErrorTextView;
@@ -52,16 +66,24 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
     private ImageButton mCaptureButton;
 
     private ImageButton mSwitchButton;
+    private ToggleButton mZeroShutterLagToggle;
 
     // Camera fields
-    private Camera mCamera;
+    private CameraController mCameraController;
+    private CameraSource mCameraSource;
     private boolean mIsFrontCamera;
     private int mBackCameraId;
     private int mFrontCameraId;
 
+    // Zero shutter lag
+    private final ZeroShutterLagCapture mZeroShutterLagCapture = new ZeroShutterLagCapture();
+    private volatile boolean mZeroShutterLag;
+    private long mShutterPressTime;
+
     // Threading/runnables
     private long mHidePictureDelay;
     private Handler mHandler;
+    private final PictureDecoder mPictureDecoder = new PictureDecoder();
     private Runnable mHidePictureRunnable = new Runnable() {
         @Override
         public void run() {
@@ -81,7 +103,7 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
         setContentView(R.layout.activity_auto_focus);
 
         // Grab references to the SurfaceView for the preview and the TextView for display errors.
-        mPreview = (CameraPreview) findViewById(R.id.preview);
+        mPreview = (PreviewSurface) findViewById(R.id.preview);
         mErrorTextView = (TextView) findViewById(R.id.error_text);
 
         // Grab references to the picture-taking-related views.
@@ -91,6 +113,9 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
         // Grab references to camera-switching-related views.
         mSwitchButton = (ImageButton) findViewById(R.id.switch_button);
 
+        // Grab reference to the zero shutter lag toggle.
+        mZeroShutterLagToggle = (ToggleButton) findViewById(R.id.zero_shutter_lag_toggle);
+
         /*
             If the device actually has a camera, set up the surface holder.
             Otherwise, display an error message.
@@ -106,6 +131,10 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
                 mHidePictureDelay = getResources().getInteger(R.integer.picture_taken_show_duration);
                 mHandler = new Handler(Looper.getMainLooper());
 
+                // Open, start and release the camera off the UI thread.
+                mCameraController = CameraController.forIntent(getIntent());
+                mPreview.setCameraController(mCameraController);
+
                 // Get back-facing camera info.
                 mBackCameraId = findCameraId(false);
 
@@ -120,11 +149,21 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
                     mSwitchButton.setVisibility(View.GONE);
                 }
 
+                // Preview frames are kept for zero shutter lag pictures.
+                mPreview.setFrameConsumer(mFrameConsumer);
+
+                // Take pictures from the preview if that is what the user chose last time.
+                mZeroShutterLagToggle.setChecked(savedInstanceState != null
+                        && savedInstanceState.getBoolean(STATE_IS_ZERO_SHUTTER_LAG, false));
+                setZeroShutterLag(mZeroShutterLagToggle.isChecked());
+                mZeroShutterLagToggle.setOnCheckedChangeListener(this);
+
                 hideError();
             } else {
                 /*  Disable picture-taking button if there is no camera preview since we cannot take
                 pictures with the Camera if there is no preview. */
                 mCaptureButton.setEnabled(false);
+                mZeroShutterLagToggle.setEnabled(false);
 
                 showError(R.string.error_preview_surface_view_does_not_exist);
             }
@@ -158,6 +197,18 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
 
         // Save which camera is currently open to state.
         outState.putBoolean(STATE_IS_FRONT_CAMERA, mIsFrontCamera);
+        outState.putBoolean(STATE_IS_ZERO_SHUTTER_LAG, mZeroShutterLagToggle.isChecked());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Drop any picture still being decoded, then stop the camera thread.
+        mPictureDecoder.cancel();
+        if (mCameraController != null) {
+            mCameraController.quit();
+        }
     }
 
 
@@ -166,14 +217,15 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
     //
 
     /**
-     * Check whether the device actually has a camera.
+     * Check whether the device actually has a camera, or the activity was started with a synthetic
+     * one.
      *
      * @return True if the device has a camera, false otherwise.
      */
     private boolean hasCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA));
     }
 
     /**
@@ -183,33 +235,20 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
      */
     private boolean hasFrontCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT));
     }
 
     /**
-     * Returns the camera ID (an integer between 0 and {@link android.hardware.Camera#getNumberOfCameras()})
-     * for either the first front-facing or first back-facing camera.
+     * Returns the camera ID for either the first front-facing or first back-facing camera.
      *
      * @param front True to find the first front-facing camera; false to find the first back-facing
      *              camera.
      *
-     * @return The camera ID for the requested camera as an integer between between 0 and {@link
-     * android.hardware.Camera#getNumberOfCameras()} or -1 if there was no matching camera.
+     * @return The camera ID for the requested camera or -1 if there was no matching camera.
      */
     private int findCameraId(boolean front) {
-        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-        final int cameraCount = Camera.getNumberOfCameras();
-        /*  Iterate through 0…getNumberOfCameras - 1 to find the camera ID of the first front or
-        the first back camera. */
-        for (int i = 0; i < cameraCount; i++) {
-            Camera.getCameraInfo(i, cameraInfo);
-            if ((front && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT)
-                    || (!front && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_BACK)) {
-                return i;
-            }
-        }
-        return NO_CAMERA;
+        return mCameraController.getSource().findCameraId(front);
     }
 
     /**
@@ -219,38 +258,56 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
      * @return A {@link android.hardware.Camera.CameraInfo} instance containing
      * information on the currently open camera or `null` if no camera is open.
      */
-    private Camera.CameraInfo getCameraInfo()
-    {
-        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-        Camera.getCameraInfo(mIsFrontCamera ? mFrontCameraId : mBackCameraId, cameraInfo);
-        return cameraInfo;
-    }
 
     /**
-     * Open the first back-facing camera and grab a {@link android.hardware.Camera} instance.
+     * Open the first back-facing camera and grab its {@link CameraSource}.
      */
     private void openCamera() {
-        if (mCamera != null) {
-            mCamera.cancelAutoFocus();
-            mCamera.release();
+        if (mCameraSource != null) {
+            mCameraController.cancelAutoFocus();
+            mCameraSource = null;
+            mPreview.reset();
         }
-        mCamera = Camera.open(mIsFrontCamera ? mFrontCameraId : mBackCameraId);
-        final Camera.CameraInfo cameraInfo = getCameraInfo();
-        mCamera.setDisplayOrientation(cameraInfo.orientation);
-        mPreview.setCamera(mCamera, cameraInfo);
-        mPreview.start();
+
+        // Frames kept from the previous camera must not end up in a picture.
+        mZeroShutterLagCapture.clear();
+
+        // The controller releases the previous camera before opening the requested one.
+        mCameraController.open(mIsFrontCamera ? mFrontCameraId : mBackCameraId, mOpenCallback);
     }
 
     /**
-     * Close the camera and release the previously obtained {@link android.hardware.Camera} instance
-     * to make sure that other applications can grab the camera if needed.
+     * Callback for setting up the preview once the camera is open.
+     */
+    private final CameraController.OpenCallback mOpenCallback = new CameraController.OpenCallback() {
+        @Override
+        public void onCameraOpened(CameraSource source, int cameraId) {
+            mCameraSource = source;
+            mCameraController.setDisplayOrientation(source.getSensorOrientation());
+            mPreview.setCameraSource(mCameraSource, cameraId);
+            mPreview.start();
+        }
+
+        @Override
+        public void onCameraOpenFailed(int cameraId, RuntimeException error) {
+            showError(R.string.error_camera_not_opened);
+        }
+    };
+
+    /**
+     * Close the camera and release the previously obtained {@link CameraSource} to make sure that
+     * other applications can grab the camera if needed.
      */
     private void closeCamera() {
-        if (mCamera != null) {
-            mCamera.release();
-            mCamera = null;
+        if (mCameraSource != null) {
+            mCameraSource = null;
             mPreview.reset();
         }
+        mZeroShutterLagCapture.clear();
+        // Release on the camera thread; this also cancels any open request still pending.
+        if (mCameraController != null) {
+            mCameraController.release();
+        }
     }
 
     /**
@@ -269,39 +326,119 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
     // Auto-focus
     //
 
-    private final Camera.AutoFocusCallback mAutoFocusCallback = new Camera.AutoFocusCallback() {
-        @Override
-        public void onAutoFocus(boolean success, Camera camera) {
+    private final CameraSource.AutoFocusCallback mAutoFocusCallback =
+            new CameraSource.AutoFocusCallback() {
+                @Override
+                public void onAutoFocus(boolean success) {
+                }
+            };
 
-        }
-    };
+
+    //
+    // Preview frames
+    //
+
+    /**
+     * Consumer for keeping frames for zero shutter lag pictures.
+     */
+    private final FrameConsumer mFrameConsumer =
+            new FrameConsumer() {
+                @Override
+                public void onPreviewFrame(byte[] data, int width, int height,
+                                           FrameOwner owner) {
+                    if (mZeroShutterLag) {
+                        // Hands the frame back to its owner once copied.
+                        mZeroShutterLagCapture.onPreviewFrame(data, width, height, owner);
+                    } else {
+                        owner.release(data);
+                    }
+                }
+            };
 
 
     //
     // Picture taking
     //
 
+    /**
+     * Callback for showing a picture once it is decoded.
+     */
+    private final PictureDecoder.DecodeCallback mPictureDecodeCallback =
+            new PictureDecoder.DecodeCallback() {
+                @Override
+                public void onPictureDecoded(Bitmap bitmap) {
+                    if (bitmap != null) {
+                        showPicture(bitmap);
+                    } else {
+                        hidePictureTaken();
+                    }
+                }
+            };
+
     /**
      * Callback for retrieving JPEG data when a picture is taken.
      */
-    private final Camera.PictureCallback mJpegCallback = new Camera.PictureCallback() {
+    private final CameraSource.PictureCallback mJpegCallback = new CameraSource.PictureCallback() {
         @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            showPicture(CameraUtils.bitmapFromRawBytes(
+        public void onPictureTaken(byte[] data) {
+            // Decode off the camera thread and show the picture on the UI thread once done.
+            mPictureDecoder.decode(
                     data,
                     mPictureView.getWidth(),
-                    mPictureView.getHeight()
-            ));
+                    mPictureView.getHeight(),
+                    mPictureDecodeCallback
+            );
         }
     };
 
     /**
-     * Checks if the camera is open and takes a picture, retrieving JPEG data.
+     * Callback for showing a picture taken from the preview.
+     */
+    private final ZeroShutterLagCapture.CaptureCallback mZeroShutterLagCallback =
+            new ZeroShutterLagCapture.CaptureCallback() {
+                @Override
+                public void onCaptured(byte[] jpeg, long offsetMs) {
+                    Log.d(TAG, String.format("Zero shutter lag frame %d ms from press", offsetMs));
+                    if (jpeg != null) {
+                        mPictureDecoder.decode(
+                                jpeg,
+                                mPictureView.getWidth(),
+                                mPictureView.getHeight(),
+                                mPictureDecodeCallback
+                        );
+                    }
+                }
+            };
+
+    /**
+     * Starts or stops keeping preview frames for zero shutter lag pictures.
+     *
+     * @param enabled True to take pictures from the preview; false to take them with the camera.
+     */
+    private void setZeroShutterLag(boolean enabled) {
+        mZeroShutterLag = enabled;
+        if (!enabled) {
+            mZeroShutterLagCapture.clear();
+        }
+    }
+
+    /**
+     * Takes a picture from the preview frame closest to the shutter press if zero shutter lag is
+     * on, or checks if the camera is open and takes a picture, retrieving JPEG data.
      */
     private void takePicture() {
-        if (mCamera != null) {
-            // Take picture and capture raw image data.
-            mCamera.takePicture(null, null, mJpegCallback);
+        if (mZeroShutterLagToggle.isChecked()) {
+            final long pressTime = mShutterPressTime != 0
+                    ? mShutterPressTime
+                    : SystemClock.uptimeMillis();
+            mShutterPressTime = 0;
+            if (!mZeroShutterLagCapture.capture(pressTime,
+                    ZeroShutterLagCapture.DEFAULT_JPEG_QUALITY, mZeroShutterLagCallback)) {
+                Log.w(TAG, "No preview frame available for a zero shutter lag picture");
+            }
+        } else if (mCameraSource != null) {
+            // Take picture and capture JPEG data.
+            mCameraController.takePicture(mJpegCallback);
         }
     }
 
@@ -311,7 +448,7 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
     //
 
     /**
-     * Displays a picture taken with the {@link android.hardware.Camera} and hides the preview and
+     * Displays a picture taken with the {@link CameraSource} and hides the preview and
      * capture button.
      *
      * @param bitmap A {@link android.graphics.Bitmap} containing the picture taken.
@@ -370,6 +507,18 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
     }
 
 
+    //
+    // CompoundButton.OnCheckedChangeListener implementation
+    //
+
+    @Override
+    public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+        if (buttonView == mZeroShutterLagToggle) {
+            setZeroShutterLag(isChecked);
+        }
+    }
+
+
     //
     // View.OnTouchListener implementation
     //
@@ -378,7 +527,13 @@ public class AutoFocusActivity extends Activity implements View.OnClickListener,
     public boolean onTouch(View v, MotionEvent event) {
         switch (event.getAction() & MotionEvent.ACTION_MASK) {
             case MotionEvent.ACTION_DOWN:
-                mCamera.autoFocus(mAutoFocusCallback);
+                // The moment the user pressed the shutter, for zero shutter lag pictures.
+                mShutterPressTime = event.getEventTime();
+                /*  Focusing now would only blur the frames a zero shutter lag picture is taken
+                from, so only focus ahead of a camera picture. */
+                if (mCameraSource != null && !mZeroShutterLagToggle.isChecked()) {
+                    mCameraController.autoFocus(mAutoFocusCallback);
+                }
                 return true;
             case MotionEvent.ACTION_UP:
                 takePicture();
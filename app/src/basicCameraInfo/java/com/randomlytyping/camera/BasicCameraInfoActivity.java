@@ -19,7 +19,6 @@ package com.randomlytyping.camera;
 import android.app.Activity;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.hardware.Camera;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -63,7 +62,8 @@ public class BasicCameraInfoActivity extends Activity implements SurfaceHolder.C
 
     // Camera fields
     private SurfaceHolder mSurfaceHolder;
-    private Camera mCamera;
+    private CameraController mCameraController;
+    private CameraSource mCameraSource;
 
     private boolean mIsFrontCamera;
     private int mBackCameraId;
@@ -75,6 +75,7 @@ public class BasicCameraInfoActivity extends Activity implements SurfaceHolder.C
     // Threading/runnables
     private long mHidePictureDelay;
     private Handler mHandler;
+    private final PictureDecoder mPictureDecoder = new PictureDecoder();
     private Runnable mHidePictureRunnable = new Runnable() {
         @Override
         public void run() {
@@ -129,6 +130,9 @@ public class BasicCameraInfoActivity extends Activity implements SurfaceHolder.C
                     mSurfaceHolder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
                 }
 
+                // Open, start and release the camera off the UI thread.
+                mCameraController = CameraController.forIntent(getIntent());
+
                 /*  Initialize fields for executing code on the UI thread. We are using this for
                 hiding the preview of a taken picture after a short delay. */
                 mHidePictureDelay = getResources().getInteger(R.integer.picture_taken_show_duration);
@@ -168,11 +172,8 @@ public class BasicCameraInfoActivity extends Activity implements SurfaceHolder.C
 
         // If there is a hardware camera then open it and start setting up the preview surface.
         if (mPreviewSurface != null && hasCamera()) {
+            // The preview starts once the camera is open if the surface has already been created.
             openCamera();
-            // If the surface has already been created, then start the preview.
-            if (canStartPreview) {
-                startPreview();
-            }
         }
     }
 
@@ -192,20 +193,32 @@ public class BasicCameraInfoActivity extends Activity implements SurfaceHolder.C
         outState.putBoolean(STATE_IS_FRONT_CAMERA, mIsFrontCamera);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Drop any picture still being decoded, then stop the camera thread.
+        mPictureDecoder.cancel();
+        if (mCameraController != null) {
+            mCameraController.quit();
+        }
+    }
+
 
     //
     // Camera setup
     //
 
     /**
-     * Check whether the device actually has a camera.
+     * Check whether the device actually has a camera, or the activity was started with a synthetic
+     * one.
      *
      * @return True if the device has a camera, false otherwise.
      */
     private boolean hasCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA));
     }
 
     /**
@@ -215,53 +228,59 @@ public class BasicCameraInfoActivity extends Activity implements SurfaceHolder.C
      */
     private boolean hasFrontCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT));
     }
 
     /**
-     * Returns the camera ID (an integer between 0 and {@link android.hardware.Camera#getNumberOfCameras()})
-     * for either the first front-facing or first back-facing camera.
+     * Returns the camera ID for either the first front-facing or first back-facing camera.
      *
      * @param front True to find the first front-facing camera; false to find the first back-facing
      *              camera.
      *
-     * @return The camera ID for the requested camera as an integer between between 0 and {@link
-     * android.hardware.Camera#getNumberOfCameras()} or -1 if there was no matching camera.
+     * @return The camera ID for the requested camera or -1 if there was no matching camera.
      */
     private int findCameraId(boolean front) {
-        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-        final int cameraCount = Camera.getNumberOfCameras();
-        /*  Iterate through 0…getNumberOfCameras - 1 to find the camera ID of the first front or
-        the first back camera. */
-        for (int i = 0; i < cameraCount; i++) {
-            Camera.getCameraInfo(i, cameraInfo);
-            if ((front && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT)
-                    || (!front && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_BACK)) {
-                return i;
-            }
-        }
-        return NO_CAMERA;
+        return mCameraController.getSource().findCameraId(front);
     }
 
     /**
-     * Open the first back-facing camera and grab a {@link android.hardware.Camera} instance.
+     * Open the first back-facing camera and grab its {@link CameraSource}.
      */
     private void openCamera() {
-        if (mCamera != null) {
-            mCamera.release();
-        }
-        mCamera = Camera.open(mIsFrontCamera ? mFrontCameraId : mBackCameraId);
+        mCameraSource = null;
+        // The controller releases the previous camera before opening the requested one.
+        mCameraController.open(mIsFrontCamera ? mFrontCameraId : mBackCameraId, mOpenCallback);
     }
 
     /**
-     * Close the camera and release the previously obtained {@link android.hardware.Camera} instance
-     * to make sure that other applications can grab the camera if needed.
+     * Callback for starting the preview once the camera is open.
+     */
+    private final CameraController.OpenCallback mOpenCallback = new CameraController.OpenCallback() {
+        @Override
+        public void onCameraOpened(CameraSource source, int cameraId) {
+            mCameraSource = source;
+            // If the surface has already been created, then start the preview.
+            if (canStartPreview) {
+                startPreview();
+            }
+        }
+
+        @Override
+        public void onCameraOpenFailed(int cameraId, RuntimeException error) {
+            showError(R.string.error_camera_not_opened);
+        }
+    };
+
+    /**
+     * Close the camera and release the previously obtained {@link CameraSource} to make sure that
+     * other applications can grab the camera if needed.
      */
     private void closeCamera() {
-        if (mCamera != null) {
-            mCamera.release();
-            mCamera = null;
+        mCameraSource = null;
+        // Release on the camera thread; this also cancels any open request still pending.
+        if (mCameraController != null) {
+            mCameraController.release();
         }
     }
 
@@ -272,8 +291,8 @@ public class BasicCameraInfoActivity extends Activity implements SurfaceHolder.C
     private void switchCamera() {
         if (mFrontCameraId != NO_CAMERA) {
             mIsFrontCamera = !mIsFrontCamera;
+            // The preview for the new camera starts once it is open.
             openCamera();
-            startPreview();
         }
     }
 
@@ -281,32 +300,59 @@ public class BasicCameraInfoActivity extends Activity implements SurfaceHolder.C
      * Starts the camera preview using our already-created surface.
      */
     private void startPreview() {
-        if (mCamera != null) {
-            try {
-                mCamera.setPreviewDisplay(mSurfaceHolder);
-                mCamera.startPreview();
-            } catch (IOException e) {
-                showError(R.string.error_preview_not_started);
-            }
+        if (mCameraSource != null) {
+            mCameraController.startPreview(mSurfaceHolder, mStartPreviewCallback);
         }
     }
 
+    /**
+     * Callback for showing an error if the preview could not be started.
+     */
+    private final CameraController.StartPreviewCallback mStartPreviewCallback =
+            new CameraController.StartPreviewCallback() {
+                @Override
+                public void onPreviewStarted() {
+                }
+
+                @Override
+                public void onPreviewFailed(IOException error) {
+                    showError(R.string.error_preview_not_started);
+                }
+            };
+
 
     //
     // Picture taking
     //
 
+    /**
+     * Callback for showing a picture once it is decoded.
+     */
+    private final PictureDecoder.DecodeCallback mPictureDecodeCallback =
+            new PictureDecoder.DecodeCallback() {
+                @Override
+                public void onPictureDecoded(Bitmap bitmap) {
+                    if (bitmap != null) {
+                        showPicture(bitmap);
+                    } else {
+                        hidePictureTaken();
+                    }
+                }
+            };
+
     /**
      * Callback for retrieving JPEG data when a picture is taken.
      */
-    private final Camera.PictureCallback mJpegCallback = new Camera.PictureCallback() {
+    private final CameraSource.PictureCallback mJpegCallback = new CameraSource.PictureCallback() {
         @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            showPicture(CameraUtils.bitmapFromRawBytes(
+        public void onPictureTaken(byte[] data) {
+            // Decode off the camera thread and show the picture on the UI thread once done.
+            mPictureDecoder.decode(
                     data,
                     mPictureView.getWidth(),
-                    mPictureView.getHeight()
-            ));
+                    mPictureView.getHeight(),
+                    mPictureDecodeCallback
+            );
         }
     };
 
@@ -314,9 +360,9 @@ public class BasicCameraInfoActivity extends Activity implements SurfaceHolder.C
      * Checks if the camera is open and takes a picture, retrieving JPEG data.
      */
     private void takePicture() {
-        if (mCamera != null) {
-            // Take picture and capture raw image data.
-            mCamera.takePicture(null, null, mJpegCallback);
+        if (mCameraSource != null) {
+            // Take picture and capture JPEG data.
+            mCameraController.takePicture(mJpegCallback);
         }
     }
 
@@ -326,7 +372,7 @@ public class BasicCameraInfoActivity extends Activity implements SurfaceHolder.C
     //
 
     /**
-     * Displays a picture taken with the {@link android.hardware.Camera} and hides the preview and
+     * Displays a picture taken with the {@link CameraSource} and hides the preview and
      * capture button.
      *
      * @param bitmap A {@link android.graphics.Bitmap} containing the picture taken.
@@ -391,9 +437,9 @@ public class BasicCameraInfoActivity extends Activity implements SurfaceHolder.C
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        // If the surface is destroyed, stop the camera preview.
-        if (mCamera != null) {
-            mCamera.stopPreview();
+        // If the surface is destroyed, stop the camera preview before it is gone.
+        if (mCameraSource != null) {
+            mCameraController.stopPreviewNow();
         }
 
         canStartPreview = false;
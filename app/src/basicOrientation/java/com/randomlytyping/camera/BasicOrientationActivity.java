@@ -19,7 +19,6 @@ package com.randomlytyping.camera;
 import android.app.Activity;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.hardware.Camera;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -59,7 +58,8 @@ public class BasicOrientationActivity extends Activity implements View.OnClickLi
     private ImageButton mSwitchButton;
 
     // Camera fields
-    private Camera mCamera;
+    private CameraController mCameraController;
+    private CameraSource mCameraSource;
 
     private boolean mIsFrontCamera;
     private int mBackCameraId;
@@ -68,6 +68,7 @@ public class BasicOrientationActivity extends Activity implements View.OnClickLi
     // Threading/runnables
     private long mHidePictureDelay;
     private Handler mHandler;
+    private final PictureDecoder mPictureDecoder = new PictureDecoder();
     private Runnable mHidePictureRunnable = new Runnable() {
         @Override
         public void run() {
@@ -111,6 +112,10 @@ public class BasicOrientationActivity extends Activity implements View.OnClickLi
                 hiding the preview of a taken picture after a short delay. */
                 mHidePictureDelay = getResources().getInteger(R.integer.picture_taken_show_duration);
                 mHandler = new Handler(Looper.getMainLooper());
+
+                // Open, start and release the camera off the UI thread.
+                mCameraController = CameraController.forIntent(getIntent());
+                mPreview.setCameraController(mCameraController);
                 mCaptureButton.setOnClickListener(this);
 
                 // Get back-facing camera info.
@@ -166,20 +171,32 @@ public class BasicOrientationActivity extends Activity implements View.OnClickLi
         outState.putBoolean(STATE_IS_FRONT_CAMERA, mIsFrontCamera);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Drop any picture still being decoded, then stop the camera thread.
+        mPictureDecoder.cancel();
+        if (mCameraController != null) {
+            mCameraController.quit();
+        }
+    }
+
 
     //
     // Camera setup
     //
 
     /**
-     * Check whether the device actually has a camera.
+     * Check whether the device actually has a camera, or the activity was started with a synthetic
+     * one.
      *
      * @return True if the device has a camera, false otherwise.
      */
     private boolean hasCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA));
     }
 
     /**
@@ -189,72 +206,66 @@ public class BasicOrientationActivity extends Activity implements View.OnClickLi
      */
     private boolean hasFrontCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT));
     }
 
     /**
-     * Returns the camera ID (an integer between 0 and {@link android.hardware.Camera#getNumberOfCameras()})
-     * for either the first front-facing or first back-facing camera.
+     * Returns the camera ID for either the first front-facing or first back-facing camera.
      *
      * @param front True to find the first front-facing camera; false to find the first back-facing
      *              camera.
      *
-     * @return The camera ID for the requested camera as an integer between between 0 and {@link
-     * android.hardware.Camera#getNumberOfCameras()} or -1 if there was no matching camera.
+     * @return The camera ID for the requested camera or -1 if there was no matching camera.
      */
     private int findCameraId(boolean front) {
-        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-        final int cameraCount = Camera.getNumberOfCameras();
-        /*  Iterate through 0…getNumberOfCameras - 1 to find the camera ID of the first front or
-        the first back camera. */
-        for (int i = 0; i < cameraCount; i++) {
-            Camera.getCameraInfo(i, cameraInfo);
-            if ((front && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT)
-                    || (!front && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_BACK)) {
-                return i;
-            }
-        }
-        return NO_CAMERA;
+        return mCameraController.getSource().findCameraId(front);
     }
 
+
     /**
-     * Returns a {@link android.hardware.Camera.CameraInfo} instance containing information on the
-     * currently open camera.
-     *
-     * @return A {@link android.hardware.Camera.CameraInfo} instance containing information on the
-     * currently open camera or `null` if no camera is open.
+     * Open the first back-facing camera and grab its {@link CameraSource}.
      */
-    private Camera.CameraInfo getCameraInfo() {
-        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-        Camera.getCameraInfo(mIsFrontCamera ? mFrontCameraId : mBackCameraId, cameraInfo);
-        return cameraInfo;
+    private void openCamera() {
+        if (mCameraSource != null) {
+            mCameraSource = null;
+            mPreview.reset();
+        }
+
+        // The controller releases the previous camera before opening the requested one.
+        mCameraController.open(mIsFrontCamera ? mFrontCameraId : mBackCameraId, mOpenCallback);
     }
 
     /**
-     * Open the first back-facing camera and grab a {@link android.hardware.Camera} instance.
+     * Callback for setting up the preview once the camera is open.
      */
-    private void openCamera() {
-        if (mCamera != null) {
-            mCamera.release();
+    private final CameraController.OpenCallback mOpenCallback = new CameraController.OpenCallback() {
+        @Override
+        public void onCameraOpened(CameraSource source, int cameraId) {
+            mCameraSource = source;
+            mPreview.setCameraSource(mCameraSource, cameraId);
+            mPreview.start();
         }
 
-        mCamera = Camera.open(mIsFrontCamera ? mFrontCameraId : mBackCameraId);
-        final Camera.CameraInfo cameraInfo = getCameraInfo();
-        mPreview.setCamera(mCamera, cameraInfo);
-        mPreview.start();
-    }
+        @Override
+        public void onCameraOpenFailed(int cameraId, RuntimeException error) {
+            showError(R.string.error_camera_not_opened);
+        }
+    };
 
     /**
-     * Close the camera and release the previously obtained {@link android.hardware.Camera} instance
-     * to make sure that other applications can grab the camera if needed.
+     * Close the camera and release the previously obtained {@link CameraSource} to make sure that
+     * other applications can grab the camera if needed.
      */
     private void closeCamera() {
-        if (mCamera != null) {
-            mCamera.release();
-            mCamera = null;
+        if (mCameraSource != null) {
+            mCameraSource = null;
             mPreview.reset();
         }
+        // Release on the camera thread; this also cancels any open request still pending.
+        if (mCameraController != null) {
+            mCameraController.release();
+        }
     }
 
     /**
@@ -273,17 +284,34 @@ public class BasicOrientationActivity extends Activity implements View.OnClickLi
     // Picture taking
     //
 
+    /**
+     * Callback for showing a picture once it is decoded.
+     */
+    private final PictureDecoder.DecodeCallback mPictureDecodeCallback =
+            new PictureDecoder.DecodeCallback() {
+                @Override
+                public void onPictureDecoded(Bitmap bitmap) {
+                    if (bitmap != null) {
+                        showPicture(bitmap);
+                    } else {
+                        hidePictureTaken();
+                    }
+                }
+            };
+
     /**
      * Callback for retrieving JPEG data when a picture is taken.
      */
-    private final Camera.PictureCallback mJpegCallback = new Camera.PictureCallback() {
+    private final CameraSource.PictureCallback mJpegCallback = new CameraSource.PictureCallback() {
         @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            showPicture(CameraUtils.bitmapFromRawBytes(
+        public void onPictureTaken(byte[] data) {
+            // Decode off the camera thread and show the picture on the UI thread once done.
+            mPictureDecoder.decode(
                     data,
                     mPictureView.getWidth(),
-                    mPictureView.getHeight()
-            ));
+                    mPictureView.getHeight(),
+                    mPictureDecodeCallback
+            );
         }
     };
 
@@ -291,9 +319,9 @@ public class BasicOrientationActivity extends Activity implements View.OnClickLi
      * Checks if the camera is open and takes a picture, retrieving JPEG data.
      */
     private void takePicture() {
-        if (mCamera != null) {
-            // Take picture and capture raw image data.
-            mCamera.takePicture(null, null, mJpegCallback);
+        if (mCameraSource != null) {
+            // Take picture and capture JPEG data.
+            mCameraController.takePicture(mJpegCallback);
         }
     }
 
@@ -303,7 +331,7 @@ public class BasicOrientationActivity extends Activity implements View.OnClickLi
     //
 
     /**
-     * Displays a picture taken with the {@link android.hardware.Camera} and hides the preview and
+     * Displays a picture taken with the {@link CameraSource} and hides the preview and
      * capture button.
      *
      * @param bitmap A {@link android.graphics.Bitmap} containing the picture taken.
@@ -51,6 +51,12 @@ public class BasicParametersActivity extends Activity
      */
     private static final String STATE_IS_FRONT_CAMERA = "isFrontCamera";
 
+    /**
+     * Fraction of clipped shadows or highlights above which exposure compensation is stepped to
+     * recover them.
+     */
+    private static final float CLIPPING_THRESHOLD = 0.02f;
+
     // Views
     private PreviewSurface mPreview;
     private TextView mErrorTextView;
@@ -67,7 +73,12 @@ public class BasicParametersActivity extends Activity
     private ImageButton mSceneButton;
 
     // Camera fields
-    private Camera mCamera;
+    private CameraController mCameraController;
+    private CameraCapabilityCache mCapabilityCache;
+    private CameraCapabilities mCapabilities;
+    private ParameterTransaction mParameters;
+    private final LumaStatistics mLumaStatistics = new LumaStatistics();
+    private CameraSource mCameraSource;
 
     private boolean mIsFrontCamera;
     private int mBackCameraId;
@@ -76,6 +87,7 @@ public class BasicParametersActivity extends Activity
     // Threading/runnables
     private long mHidePictureDelay;
     private Handler mHandler;
+    private final PictureDecoder mPictureDecoder = new PictureDecoder();
     private Runnable mHidePictureRunnable = new Runnable() {
         @Override
         public void run() {
@@ -127,8 +139,19 @@ public class BasicParametersActivity extends Activity
                 hiding the preview of a taken picture after a short delay. */
                 mHidePictureDelay = getResources().getInteger(R.integer.picture_taken_show_duration);
                 mHandler = new Handler(Looper.getMainLooper());
+
+                // Open, start and release the camera off the UI thread.
+                mCameraController = CameraController.forIntent(getIntent());
+                mPreview.setCameraController(mCameraController);
                 mCaptureButton.setOnClickListener(this);
 
+                // Batch parameter edits so that quick taps do not stall the preview.
+                mCapabilityCache = CameraCapabilityCache.getInstance(this);
+                mParameters = new ParameterTransaction(mCameraController);
+
+                // Measure the preview so that exposure compensation is not stepped blindly.
+                mPreview.setFrameConsumer(mLumaStatistics);
+
                 // Get back-facing camera info.
                 mBackCameraId = findCameraId(false);
 
@@ -167,32 +190,8 @@ public class BasicParametersActivity extends Activity
 
         // If there is a hardware camera then open it and start setting up the preview surface.
         if (mPreview != null && hasCamera()) {
+            // The parameter controls are set up once the camera is open.
             openCamera();
-
-            // Setup the zoom button.
-            final Camera.Parameters parameters = mCamera.getParameters();
-            if (parameters.isZoomSupported()) {
-                mZoomButton.setOnClickListener(this);
-            } else {
-                mZoomButton.setEnabled(false);
-                mZoomButton.setVisibility(View.GONE);
-            }
-
-            final List<String> supportedWhiteBalance = parameters.getSupportedWhiteBalance();
-            if (supportedWhiteBalance != null) {
-                mWhiteBalanceButton.setOnClickListener(this);
-            } else {
-                mWhiteBalanceButton.setEnabled(false);
-                mWhiteBalanceButton.setVisibility(View.GONE);
-            }
-
-            final List<String> supportedSceneModes = parameters.getSupportedSceneModes();
-            if (supportedSceneModes != null) {
-                mSceneButton.setOnClickListener(this);
-            } else {
-                mSceneButton.setEnabled(false);
-                mSceneButton.setVisibility(View.GONE);
-            }
         }
     }
 
@@ -212,20 +211,32 @@ public class BasicParametersActivity extends Activity
         outState.putBoolean(STATE_IS_FRONT_CAMERA, mIsFrontCamera);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Drop any picture still being decoded, then stop the camera thread.
+        mPictureDecoder.cancel();
+        if (mCameraController != null) {
+            mCameraController.quit();
+        }
+    }
+
 
     //
     // Camera setup
     //
 
     /**
-     * Check whether the device actually has a camera.
+     * Check whether the device actually has a camera, or the activity was started with a synthetic
+     * one.
      *
      * @return True if the device has a camera, false otherwise.
      */
     private boolean hasCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA));
     }
 
     /**
@@ -235,72 +246,139 @@ public class BasicParametersActivity extends Activity
      */
     private boolean hasFrontCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT));
     }
 
     /**
-     * Returns the camera ID (an integer between 0 and {@link android.hardware.Camera#getNumberOfCameras()})
-     * for either the first front-facing or first back-facing camera.
+     * Returns the camera ID for either the first front-facing or first back-facing camera.
      *
      * @param front True to find the first front-facing camera; false to find the first back-facing
      *              camera.
      *
-     * @return The camera ID for the requested camera as an integer between between 0 and {@link
-     * android.hardware.Camera#getNumberOfCameras()} or -1 if there was no matching camera.
+     * @return The camera ID for the requested camera or -1 if there was no matching camera.
      */
     private int findCameraId(boolean front) {
-        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-        final int cameraCount = Camera.getNumberOfCameras();
-        /*  Iterate through 0…getNumberOfCameras - 1 to find the camera ID of the first front or
-        the first back camera. */
-        for (int i = 0; i < cameraCount; i++) {
-            Camera.getCameraInfo(i, cameraInfo);
-            if ((front && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT)
-                    || (!front && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_BACK)) {
-                return i;
-            }
+        return mCameraController.getSource().findCameraId(front);
+    }
+
+
+    /**
+     * Open the first back-facing camera and grab its {@link CameraSource}.
+     */
+    private void openCamera() {
+        if (mCameraSource != null) {
+            mParameters.detach();
+            mCapabilities = null;
+            mCameraSource = null;
+            mPreview.reset();
         }
-        return NO_CAMERA;
+        // The controller releases the previous camera before opening the requested one.
+        mCameraController.open(mIsFrontCamera ? mFrontCameraId : mBackCameraId, mOpenCallback);
     }
 
     /**
-     * Returns a {@link android.hardware.Camera.CameraInfo} instance containing information on the
-     * currently open camera.
+     * Callback for setting up the preview once the camera is open.
+     */
+    private final CameraController.OpenCallback mOpenCallback = new CameraController.OpenCallback() {
+        @Override
+        public void onCameraOpened(CameraSource source, int cameraId) {
+            mCameraSource = source;
+            mPreview.setCameraSource(mCameraSource, cameraId);
+            mPreview.setPreviewStateChangeListener(BasicParametersActivity.this);
+            mPreview.start();
+            // Only a real camera has parameters; a synthetic one runs with the controls hidden.
+            if (source instanceof HardwareCameraSource) {
+                readParameters(cameraId);
+            } else {
+                setUpParameterControls();
+            }
+        }
+
+        @Override
+        public void onCameraOpenFailed(int cameraId, RuntimeException error) {
+            showError(R.string.error_camera_not_opened);
+        }
+    };
+
+    /**
+     * Reads the capabilities and current parameters of the open camera on the camera thread, then
+     * attaches them and sets up the controls on the main thread unless the camera was closed in
+     * the meantime.
      *
-     * @return A {@link android.hardware.Camera.CameraInfo} instance containing information on the
-     * currently open camera or `null` if no camera is open.
+     * @param cameraId The ID of the open camera.
      */
-    private Camera.CameraInfo getCameraInfo() {
-        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-        Camera.getCameraInfo(mIsFrontCamera ? mFrontCameraId : mBackCameraId, cameraInfo);
-        return cameraInfo;
+    private void readParameters(final int cameraId) {
+        mCameraController.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Camera camera = HardwareCameraSource.getCamera(mCameraController.getSource());
+                if (camera == null) {
+                    return;
+                }
+                final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+                Camera.getCameraInfo(cameraId, cameraInfo);
+                final CameraCapabilities capabilities =
+                        mCapabilityCache.get(camera, cameraId, cameraInfo);
+                final Camera.Parameters parameters = camera.getParameters();
+                camera.setZoomChangeListener(BasicParametersActivity.this);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Camera operations are ordered, so a reopened camera cannot be open yet.
+                        if (mCameraSource == null) {
+                            return;
+                        }
+                        mCapabilities = capabilities;
+                        mParameters.attach(camera, parameters);
+                        setUpParameterControls();
+                    }
+                });
+            }
+        });
     }
 
     /**
-     * Open the first back-facing camera and grab a {@link android.hardware.Camera} instance.
+     * Sets up the controls for the camera parameters that the open camera supports.
      */
-    private void openCamera() {
-        if (mCamera != null) {
-            mCamera.release();
+    private void setUpParameterControls() {
+        if (mCapabilities != null && mCapabilities.isZoomSupported()) {
+            mZoomButton.setOnClickListener(this);
+        } else {
+            mZoomButton.setEnabled(false);
+            mZoomButton.setVisibility(View.GONE);
+        }
+
+        if (mCapabilities != null && !mCapabilities.getWhiteBalanceModes().isEmpty()) {
+            mWhiteBalanceButton.setOnClickListener(this);
+        } else {
+            mWhiteBalanceButton.setEnabled(false);
+            mWhiteBalanceButton.setVisibility(View.GONE);
+        }
+
+        if (mCapabilities != null && !mCapabilities.getSceneModes().isEmpty()) {
+            mSceneButton.setOnClickListener(this);
+        } else {
+            mSceneButton.setEnabled(false);
+            mSceneButton.setVisibility(View.GONE);
         }
-        mCamera = Camera.open(mIsFrontCamera ? mFrontCameraId : mBackCameraId);
-        mCamera.setZoomChangeListener(this);
-        mPreview.setCamera(mCamera, getCameraInfo());
-        mPreview.setPreviewStateChangeListener(this);
-        mPreview.start();
     }
 
     /**
-     * Close the camera and release the previously obtained {@link android.hardware.Camera} instance
-     * to make sure that other applications can grab the camera if needed.
+     * Close the camera and release the previously obtained {@link CameraSource} to make sure that
+     * other applications can grab the camera if needed.
      */
     private void closeCamera() {
-        if (mCamera != null) {
-            mCamera.release();
-            mCamera = null;
+        if (mCameraSource != null) {
+            mParameters.detach();
+            mCapabilities = null;
+            mCameraSource = null;
             mPreview.reset();
         }
+        // Release on the camera thread; this also cancels any open request still pending.
+        if (mCameraController != null) {
+            mCameraController.release();
+        }
     }
 
     /**
@@ -324,92 +402,126 @@ public class BasicParametersActivity extends Activity
      * Toggles the flash mode.
      */
     private void toggleFlashMode() {
-        if (mCamera != null) {
-            final Camera.Parameters parameters = mCamera.getParameters();
-            final String flashMode = parameters.getFlashMode();
-            final List<String> supportedFlashModes = parameters.getSupportedFlashModes();
-            parameters.setFlashMode(supportedFlashModes.get(
-                    (supportedFlashModes.indexOf(flashMode) + 1) % supportedFlashModes.size()
-            ));
-            mCamera.setParameters(parameters);
+        if (mCapabilities != null) {
+            mParameters.setFlashMode(
+                    nextMode(mCapabilities.getFlashModes(), mParameters.getFlashMode()));
         }
     }
 
+    /**
+     * Steps exposure compensation down if the preview clips highlights or up if it clips shadows,
+     * stopping at the limit in that direction. Otherwise cycles through the exposure compensation
+     * steps.
+     */
     private void toggleExposureCompensation() {
-        if (mCamera != null) {
-            final Camera.Parameters parameters = mCamera.getParameters();
-            final int minExposureCompensation = parameters.getMinExposureCompensation();
-            final int maxExposureCompensation = parameters.getMaxExposureCompensation();
-            int exposureCompensation = parameters.getExposureCompensation();
-            exposureCompensation++;
-            if (exposureCompensation > maxExposureCompensation) {
-                exposureCompensation = minExposureCompensation;
+        if (mCapabilities != null) {
+            final int min = mCapabilities.getMinExposureCompensation();
+            final int max = mCapabilities.getMaxExposureCompensation();
+            final int current = mParameters.getExposureCompensation();
+
+            int step = 0;
+            final LumaStatistics.Snapshot statistics = mLumaStatistics.getSnapshot();
+            if (statistics != null) {
+                Log.d(TAG, String.format("Preview luma: %s", statistics));
+                final float highlights = statistics.getHighlightClipping();
+                final float shadows = statistics.getShadowClipping();
+                if (highlights > CLIPPING_THRESHOLD && highlights >= shadows) {
+                    step = -1;
+                } else if (shadows > CLIPPING_THRESHOLD) {
+                    step = 1;
+                }
             }
-            parameters.setExposureCompensation(exposureCompensation);
-            mCamera.setParameters(parameters);
+
+            int exposureCompensation;
+            if (step != 0) {
+                // Stepping past the limit would cycle to the opposite end and clip even more.
+                exposureCompensation = Math.max(min, Math.min(max, current + step));
+            } else {
+                exposureCompensation = current + 1;
+                if (exposureCompensation > max) {
+                    exposureCompensation = min;
+                }
+            }
+            mParameters.setExposureCompensation(exposureCompensation);
         }
     }
 
     private void toggleColorEffect() {
-        if (mCamera != null) {
-            final Camera.Parameters parameters = mCamera.getParameters();
-            final String colorEffect = parameters.getColorEffect();
-            final List<String> supportedColorEffects = parameters.getSupportedColorEffects();
-            parameters.setColorEffect(supportedColorEffects.get(
-                    (supportedColorEffects.indexOf(colorEffect) + 1) % supportedColorEffects.size()
-            ));
-            mCamera.setParameters(parameters);
+        if (mCapabilities != null) {
+            mParameters.setColorEffect(
+                    nextMode(mCapabilities.getColorEffects(), mParameters.getColorEffect()));
         }
     }
 
     private void toggleZoom() {
-        if (mCamera != null) {
-            final Camera.Parameters parameters = mCamera.getParameters();
-            parameters.setZoom((parameters.getZoom() + 1) % parameters.getMaxZoom());
-            mCamera.setParameters(parameters);
+        if (mCapabilities != null) {
+            mParameters.setZoom((mParameters.getZoom() + 1) % mCapabilities.getMaxZoom());
         }
     }
 
     private void toggleWhiteBalance() {
-        if (mCamera != null) {
-            final Camera.Parameters parameters = mCamera.getParameters();
-            final String whiteBalance = parameters.getWhiteBalance();
-            final List<String> supportedWhiteBalance = parameters.getSupportedWhiteBalance();
-            parameters.setWhiteBalance(supportedWhiteBalance.get(
-                    (supportedWhiteBalance.indexOf(whiteBalance) + 1) % supportedWhiteBalance.size()
-            ));
-            mCamera.setParameters(parameters);
+        if (mCapabilities != null) {
+            mParameters.setWhiteBalance(
+                    nextMode(mCapabilities.getWhiteBalanceModes(), mParameters.getWhiteBalance()));
         }
     }
 
     private void toggleScene() {
-        if (mCamera != null) {
-            final Camera.Parameters parameters = mCamera.getParameters();
-            final String scene = parameters.getSceneMode();
-            final List<String> supportedSceneModes = parameters.getSupportedSceneModes();
-            parameters.setSceneMode(supportedSceneModes.get(
-                    (supportedSceneModes.indexOf(scene) + 1) % supportedSceneModes.size()
-            ));
-            mCamera.setParameters(parameters);
+        if (mCapabilities != null) {
+            mParameters.setSceneMode(
+                    nextMode(mCapabilities.getSceneModes(), mParameters.getSceneMode()));
         }
     }
 
+    /**
+     * Returns the mode that follows the current one in a list of supported modes, wrapping around
+     * at the end of the list.
+     *
+     * @param supportedModes The supported modes.
+     * @param mode           The current mode.
+     *
+     * @return The next mode or the current mode if no mode is supported.
+     */
+    private static String nextMode(List<String> supportedModes, String mode) {
+        if (supportedModes.isEmpty()) {
+            return mode;
+        }
+        return supportedModes.get((supportedModes.indexOf(mode) + 1) % supportedModes.size());
+    }
+
 
     //
     // Picture taking
     //
 
+    /**
+     * Callback for showing a picture once it is decoded.
+     */
+    private final PictureDecoder.DecodeCallback mPictureDecodeCallback =
+            new PictureDecoder.DecodeCallback() {
+                @Override
+                public void onPictureDecoded(Bitmap bitmap) {
+                    if (bitmap != null) {
+                        showPicture(bitmap);
+                    } else {
+                        hidePictureTaken();
+                    }
+                }
+            };
+
     /**
      * Callback for retrieving JPEG data when a picture is taken.
      */
-    private final Camera.PictureCallback mJpegCallback = new Camera.PictureCallback() {
+    private final CameraSource.PictureCallback mJpegCallback = new CameraSource.PictureCallback() {
         @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            showPicture(CameraUtils.bitmapFromRawBytes(
+        public void onPictureTaken(byte[] data) {
+            // Decode off the camera thread and show the picture on the UI thread once done.
+            mPictureDecoder.decode(
                     data,
                     mPictureView.getWidth(),
-                    mPictureView.getHeight()
-            ));
+                    mPictureView.getHeight(),
+                    mPictureDecodeCallback
+            );
         }
     };
 
@@ -417,9 +529,9 @@ public class BasicParametersActivity extends Activity
      * Checks if the camera is open and takes a picture, retrieving JPEG data.
      */
     private void takePicture() {
-        if (mCamera != null) {
-            // Take picture and capture raw image data.
-            mCamera.takePicture(null, null, mJpegCallback);
+        if (mCameraSource != null) {
+            // Take picture and capture JPEG data.
+            mCameraController.takePicture(mJpegCallback);
         }
     }
 
@@ -429,7 +541,7 @@ public class BasicParametersActivity extends Activity
     //
 
     /**
-     * Displays a picture taken with the {@link android.hardware.Camera} and hides the preview and
+     * Displays a picture taken with the {@link CameraSource} and hides the preview and
      * capture button.
      *
      * @param bitmap A {@link android.graphics.Bitmap} containing the picture taken.
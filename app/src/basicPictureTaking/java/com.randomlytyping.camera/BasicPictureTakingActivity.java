@@ -19,9 +19,9 @@ package com.randomlytyping.camera;
 import android.app.Activity;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.hardware.Camera;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
@@ -32,18 +32,23 @@ import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.Override;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 
 /**
  * The BasicPictureTakingActivity class demonstrates simple picture taking with the {@link
  * android.hardware.Camera}. Along with actually taking the picture, the BasicPictureTakingActivity
- * may display the taken picture to the user for a brief period of time.
+ * may display the taken picture to the user for a brief period of time. Long-pressing the capture
+ * button takes a burst of pictures instead.
  * <p/>
  * Created by Huyen Tue Dao on 04/28/14.
  */
 public class BasicPictureTakingActivity extends Activity implements SurfaceHolder.Callback,
-        View.OnClickListener {
+        View.OnClickListener, View.OnLongClickListener {
 
     /**
      * Class tag for logging.
@@ -51,6 +56,16 @@ public class BasicPictureTakingActivity extends Activity implements SurfaceHolde
     @SuppressWarnings("unused")
     private static final String TAG = "BasicPictureTakingActivity";
 
+    /**
+     * Number of pictures that may be waiting to be written before picture taking is paused.
+     */
+    private static final int CAPTURE_QUEUE_CAPACITY = 3;
+
+    /**
+     * Largest number of pictures synced to storage together.
+     */
+    private static final int CAPTURE_FSYNC_BATCH_SIZE = 3;
+
     // Views
     private SurfaceView mPreviewSurface;
     private TextView mErrorTextView;
@@ -60,7 +75,8 @@ public class BasicPictureTakingActivity extends Activity implements SurfaceHolde
 
     // Camera fields
     private SurfaceHolder mSurfaceHolder;
-    private Camera mCamera;
+    private CameraController mCameraController;
+    private CameraSource mCameraSource;
 
     // Flags
     private boolean canStartPreview;
@@ -68,6 +84,13 @@ public class BasicPictureTakingActivity extends Activity implements SurfaceHolde
     // Threading/runnables
     private long mHidePictureDelay;
     private Handler mHandler;
+    private final PictureDecoder mPictureDecoder = new PictureDecoder();
+    private CaptureSink mCaptureSink;
+    private BurstCapture mBurstCapture;
+    private int mBurstShotCount;
+    private long mBurstMinShotInterval;
+    private final SimpleDateFormat mCaptureNameFormat =
+            new SimpleDateFormat("'IMG_'yyyyMMdd_HHmmss_SSS'.jpg'", Locale.US);
     private Runnable mHidePictureRunnable = new Runnable() {
         @Override
         public void run() {
@@ -119,11 +142,25 @@ public class BasicPictureTakingActivity extends Activity implements SurfaceHolde
                     mSurfaceHolder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
                 }
 
+                // Open, start and release the camera off the UI thread.
+                mCameraController = CameraController.forIntent(getIntent());
+
                 /*  Initialize fields for executing code on the UI thread. We are using this for
                 hiding the preview of a taken picture after a short delay. */
                 mHidePictureDelay = getResources().getInteger(R.integer.picture_taken_show_duration);
                 mHandler = new Handler(Looper.getMainLooper());
                 mCaptureButton.setOnClickListener(this);
+                mCaptureButton.setOnLongClickListener(this);
+
+                // Save taken pictures on a writer thread.
+                mCaptureSink = new CaptureSink(getCaptureDirectory(), CAPTURE_QUEUE_CAPACITY,
+                        CaptureSink.FSYNC_BATCHED, CAPTURE_FSYNC_BATCH_SIZE, mCaptureSinkListener);
+
+                // Bursts run on the camera thread.
+                mBurstCapture = new BurstCapture(mCameraController, mBurstListener);
+                mBurstShotCount = getResources().getInteger(R.integer.burst_shot_count);
+                mBurstMinShotInterval =
+                        getResources().getInteger(R.integer.burst_min_shot_interval);
 
                 hideError();
             } else {
@@ -144,11 +181,8 @@ public class BasicPictureTakingActivity extends Activity implements SurfaceHolde
 
         // If there is a hardware camera then open it and start setting up the preview surface.
         if (mPreviewSurface != null && hasCamera()) {
+            // The preview starts once the camera is open if the surface has already been created.
             openCamera();
-            // If the surface has already been created, then start the preview.
-            if (canStartPreview) {
-                startPreview();
-            }
         }
     }
 
@@ -160,39 +194,80 @@ public class BasicPictureTakingActivity extends Activity implements SurfaceHolde
         closeCamera();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Drop any picture still being decoded, then stop the camera thread.
+        mPictureDecoder.cancel();
+        if (mCaptureSink != null) {
+            // Pictures already taken are still written.
+            mCaptureSink.close();
+        }
+        if (mCameraController != null) {
+            mCameraController.quit();
+        }
+    }
+
 
     //
     // Camera setup
     //
 
     /**
-     * Check whether the device actually has a camera.
+     * Check whether the device actually has a camera, or the activity was started with a synthetic
+     * one.
      *
      * @return True if the device has a camera, false otherwise.
      */
     private boolean hasCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA));
     }
 
     /**
-     * Open the first back-facing camera and grab a {@link android.hardware.Camera} instance.
+     * Open the first back-facing camera and grab its {@link CameraSource}.
      */
     private void openCamera() {
-        if (mCamera == null) {
-            mCamera = Camera.open();
+        if (mCameraSource == null) {
+            mCameraController.open(mOpenCallback);
         }
     }
 
     /**
-     * Close the camera and release the previously obtained {@link android.hardware.Camera} instance
-     * to make sure that other applications can grab the camera if needed.
+     * Callback for starting the preview once the camera is open.
+     */
+    private final CameraController.OpenCallback mOpenCallback = new CameraController.OpenCallback() {
+        @Override
+        public void onCameraOpened(CameraSource source, int cameraId) {
+            mCameraSource = source;
+            // If the surface has already been created, then start the preview.
+            if (canStartPreview) {
+                startPreview();
+            }
+        }
+
+        @Override
+        public void onCameraOpenFailed(int cameraId, RuntimeException error) {
+            showError(R.string.error_camera_not_opened);
+        }
+    };
+
+    /**
+     * Close the camera and release the previously obtained {@link CameraSource} to make sure that
+     * other applications can grab the camera if needed.
      */
     private void closeCamera() {
-        if (mCamera != null) {
-            mCamera.release();
-            mCamera = null;
+        mCameraSource = null;
+        // Stop any burst before the camera goes away.
+        if (mBurstCapture != null && mBurstCapture.isRunning()) {
+            mBurstCapture.cancel();
+            updateCaptureButton();
+        }
+        // Release on the camera thread; this also cancels any open request still pending.
+        if (mCameraController != null) {
+            mCameraController.release();
         }
     }
 
@@ -200,60 +275,178 @@ public class BasicPictureTakingActivity extends Activity implements SurfaceHolde
      * Starts the camera preview using our already-created surface.
      */
     private void startPreview() {
-        if (mCamera != null) {
-            try {
-                mCamera.setPreviewDisplay(mSurfaceHolder);
-                mCamera.startPreview();
-            } catch (IOException e) {
-                showError(R.string.error_preview_not_started);
-            }
+        if (mCameraSource != null) {
+            mCameraController.startPreview(mSurfaceHolder, mStartPreviewCallback);
         }
     }
 
+    /**
+     * Callback for showing an error if the preview could not be started.
+     */
+    private final CameraController.StartPreviewCallback mStartPreviewCallback =
+            new CameraController.StartPreviewCallback() {
+                @Override
+                public void onPreviewStarted() {
+                }
+
+                @Override
+                public void onPreviewFailed(IOException error) {
+                    showError(R.string.error_preview_not_started);
+                }
+            };
+
 
     //
     // Picture taking
     //
 
+    /**
+     * Callback for showing a picture once it is decoded.
+     */
+    private final PictureDecoder.DecodeCallback mPictureDecodeCallback =
+            new PictureDecoder.DecodeCallback() {
+                @Override
+                public void onPictureDecoded(Bitmap bitmap) {
+                    if (bitmap != null) {
+                        showPicture(bitmap);
+                    } else {
+                        hidePictureTaken();
+                    }
+                }
+            };
+
     /**
      * Callback for retrieving JPEG data when a picture is taken.
      */
-    private final Camera.PictureCallback mJpegCallback = new Camera.PictureCallback() {
+    private final CameraSource.PictureCallback mJpegCallback = new CameraSource.PictureCallback() {
         @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
+        public void onPictureTaken(byte[] data) {
             Log.d(TAG, String.format("JPEG Callback"));
+            final String name = mCaptureNameFormat.format(new Date());
+            if (!mCaptureSink.submit(name, data)) {
+                Log.w(TAG, String.format("Dropped %s, too many pictures waiting to be saved",
+                        name));
+            }
             if (BuildConfig.SHOW_PICTURE) {
-                showPicture(CameraUtils.bitmapFromRawBytes(
+                // Decode off the camera thread and show the picture on the UI thread once done.
+                mPictureDecoder.decode(
                         data,
                         mPictureView.getWidth(),
-                        mPictureView.getHeight()
-                ));
+                        mPictureView.getHeight(),
+                        mPictureDecodeCallback
+                );
             }
         }
     };
 
+    /**
+     * Listener for logging saved pictures and pausing picture taking while the capture queue is
+     * full.
+     */
+    private final CaptureSink.Listener mCaptureSinkListener = new CaptureSink.Listener() {
+        @Override
+        public void onCaptureWritten(File file, CaptureSink.WriteStats stats) {
+            Log.d(TAG, String.format("Saved %s: %s", file.getName(), stats));
+        }
+
+        @Override
+        public void onCaptureFailed(String name, IOException error) {
+            Log.e(TAG, String.format("Could not save %s", name), error);
+        }
+
+        @Override
+        public void onBackpressureChanged(boolean full) {
+            mHandler.post(mUpdateCaptureButtonRunnable);
+        }
+    };
+
+    /**
+     * Runnable for updating the capture button from other threads.
+     */
+    private final Runnable mUpdateCaptureButtonRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateCaptureButton();
+        }
+    };
+
+    /**
+     * Enables the capture button unless the capture queue is full or a burst is running.
+     */
+    private void updateCaptureButton() {
+        mCaptureButton.setEnabled(!mCaptureSink.isFull() && !mBurstCapture.isRunning());
+    }
+
+    /**
+     * Returns the directory taken pictures are saved to: the app's pictures directory on external
+     * storage, or internal storage if external storage is not available.
+     */
+    private File getCaptureDirectory() {
+        final File directory = getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+        return directory != null
+                ? directory
+                : new File(getFilesDir(), Environment.DIRECTORY_PICTURES);
+    }
+
     /**
      * Checks if the camera is open and takes a picture, retrieving JPEG data.
      */
     private void takePicture() {
-        if (mCamera != null) {
+        if (mCameraSource != null && !mCaptureSink.isFull() && !mBurstCapture.isRunning()) {
             // Take picture and capture JPEG image data.
-            mCamera.takePicture(null, new Camera.PictureCallback() {
-                @Override
-                public void onPictureTaken(byte[] data, Camera camera) {
-                    Log.d(TAG, String.format("onPictureTaken:RAW DATA?"));
-                }
-            }, mJpegCallback);
+            mCameraController.takePicture(mJpegCallback);
         }
     }
 
 
+    //
+    // Burst capture
+    //
+
+    /**
+     * Checks if the camera is open and starts a burst of pictures, which are saved but not shown.
+     */
+    private void takeBurst() {
+        if (mCameraSource != null && !mCaptureSink.isFull() && !mBurstCapture.isRunning()) {
+            mBurstCapture.start(mBurstShotCount, mBurstMinShotInterval);
+            updateCaptureButton();
+        }
+    }
+
+    /**
+     * Listener for saving and timing burst shots.
+     */
+    private final BurstCapture.Listener mBurstListener = new BurstCapture.Listener() {
+        @Override
+        public boolean onBurstShot(int index, byte[] data, long shotToShotNanos,
+                                   long captureNanos) {
+            Log.d(TAG, String.format("Burst shot %d: shot-to-shot %.1f ms, capture %.1f ms",
+                    index, shotToShotNanos / 1e6, captureNanos / 1e6));
+            final String name = mCaptureNameFormat.format(new Date());
+            if (!mCaptureSink.submit(name, data)) {
+                Log.w(TAG, String.format("Dropped %s, too many pictures waiting to be saved",
+                        name));
+                return false;
+            }
+            // Pause the burst rather than drop the next shot.
+            return !mCaptureSink.isFull();
+        }
+
+        @Override
+        public void onBurstFinished(int shotCount, long elapsedNanos) {
+            Log.d(TAG, String.format("Burst of %d shots in %.1f ms",
+                    shotCount, elapsedNanos / 1e6));
+            updateCaptureButton();
+        }
+    };
+
+
     //
     // Show/hide picture taken
     //
 
     /**
-     * Displays a picture taken with the {@link android.hardware.Camera} and hides the preview and
+     * Displays a picture taken with the {@link CameraSource} and hides the preview and
      * capture button.
      *
      * @param bitmap A {@link android.graphics.Bitmap} containing the picture taken.
@@ -318,9 +511,9 @@ public class BasicPictureTakingActivity extends Activity implements SurfaceHolde
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        // If the surface is destroyed, stop the camera preview.
-        if (mCamera != null) {
-            mCamera.stopPreview();
+        // If the surface is destroyed, stop the camera preview before it is gone.
+        if (mCameraSource != null) {
+            mCameraController.stopPreviewNow();
         }
 
         canStartPreview = false;
@@ -335,4 +528,15 @@ public class BasicPictureTakingActivity extends Activity implements SurfaceHolde
     public void onClick(View v) {
         takePicture();
     }
+
+
+    //
+    // View.OnLongClickListener implementation
+    //
+
+    @Override
+    public boolean onLongClick(View v) {
+        takeBurst();
+        return true;
+    }
 }
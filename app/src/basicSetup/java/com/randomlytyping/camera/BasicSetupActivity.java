@@ -18,7 +18,6 @@ package com.randomlytyping.camera;
 
 import android.app.Activity;
 import android.content.pm.PackageManager;
-import android.hardware.Camera;
 import android.os.Build;
 import android.os.Bundle;
 import android.view.SurfaceHolder;
@@ -42,7 +41,8 @@ public class BasicSetupActivity extends Activity implements SurfaceHolder.Callba
 
     // Camera fields
     private SurfaceHolder mSurfaceHolder;
-    private Camera mCamera;
+    private CameraController mCameraController;
+    private CameraSource mCameraSource;
 
     // Flags
     private boolean canStartPreview;
@@ -87,6 +87,9 @@ public class BasicSetupActivity extends Activity implements SurfaceHolder.Callba
                     mSurfaceHolder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
                 }
 
+                // Open, start and release the camera off the UI thread.
+                mCameraController = CameraController.forIntent(getIntent());
+
                 hideError();
             } else {
                 showError(R.string.error_preview_surface_view_does_not_exist);
@@ -102,11 +105,8 @@ public class BasicSetupActivity extends Activity implements SurfaceHolder.Callba
 
         // If there is a hardware camera then open it and start setting up the preview surface.
         if (mPreviewSurface != null && hasCamera()) {
+            // The preview starts once the camera is open if the surface has already been created.
             openCamera();
-            // If the surface has already been created, then start the preview.
-            if (canStartPreview) {
-                startPreview();
-            }
         }
     }
 
@@ -118,39 +118,70 @@ public class BasicSetupActivity extends Activity implements SurfaceHolder.Callba
         closeCamera();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Stop the camera thread.
+        if (mCameraController != null) {
+            mCameraController.quit();
+        }
+    }
+
 
     //
     // Camera setup
     //
 
     /**
-     * Check whether the device actually has a camera.
+     * Check whether the device actually has a camera, or the activity was started with a synthetic
+     * one.
      *
      * @return True if the device has a camera, false otherwise.
      */
     private boolean hasCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA));
     }
 
     /**
-     * Open the first back-facing camera and grab a {@link android.hardware.Camera} instance.
+     * Open the first back-facing camera and grab its {@link CameraSource}.
      */
     private void openCamera() {
-        if (mCamera == null) {
-            mCamera = Camera.open();
+        if (mCameraSource == null) {
+            mCameraController.open(mOpenCallback);
         }
     }
 
     /**
-     * Close the camera and release the previously obtained {@link android.hardware.Camera} instance
-     * to make sure that other applications can grab the camera if needed.
+     * Callback for starting the preview once the camera is open.
+     */
+    private final CameraController.OpenCallback mOpenCallback = new CameraController.OpenCallback() {
+        @Override
+        public void onCameraOpened(CameraSource source, int cameraId) {
+            mCameraSource = source;
+            // If the surface has already been created, then start the preview.
+            if (canStartPreview) {
+                startPreview();
+            }
+        }
+
+        @Override
+        public void onCameraOpenFailed(int cameraId, RuntimeException error) {
+            showError(R.string.error_camera_not_opened);
+        }
+    };
+
+    /**
+     * Close the camera and release the previously obtained {@link CameraSource} to make sure that
+     * other applications can grab the camera if needed.
      */
     private void closeCamera() {
-        if (mCamera != null) {
-            mCamera.release();
-            mCamera = null;
+        mCameraSource = null;
+        // Release on the camera thread; this also cancels any open request still pending.
+        if (mCameraController != null) {
+            mCameraController.release();
         }
     }
 
@@ -158,16 +189,26 @@ public class BasicSetupActivity extends Activity implements SurfaceHolder.Callba
      * Starts the camera preview using our already-created surface.
      */
     private void startPreview() {
-        if (mCamera != null) {
-            try {
-                mCamera.setPreviewDisplay(mSurfaceHolder);
-                mCamera.startPreview();
-            } catch (IOException e) {
-                showError(R.string.error_preview_not_started);
-            }
+        if (mCameraSource != null) {
+            mCameraController.startPreview(mSurfaceHolder, mStartPreviewCallback);
         }
     }
 
+    /**
+     * Callback for showing an error if the preview could not be started.
+     */
+    private final CameraController.StartPreviewCallback mStartPreviewCallback =
+            new CameraController.StartPreviewCallback() {
+                @Override
+                public void onPreviewStarted() {
+                }
+
+                @Override
+                public void onPreviewFailed(IOException error) {
+                    showError(R.string.error_preview_not_started);
+                }
+            };
+
 
     //
     // Show/hide error text
@@ -211,9 +252,9 @@ public class BasicSetupActivity extends Activity implements SurfaceHolder.Callba
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        // If the surface is destroyed, stop the camera preview.
-        if (mCamera != null) {
-            mCamera.stopPreview();
+        // If the surface is destroyed, stop the camera preview before it is gone.
+        if (mCameraSource != null) {
+            mCameraController.stopPreviewNow();
         }
 
         canStartPreview = false;
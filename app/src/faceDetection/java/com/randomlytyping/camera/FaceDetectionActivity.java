@@ -32,6 +32,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by Huyen Tue Dao on 5/13/14.
@@ -69,15 +70,23 @@ public class FaceDetectionActivity extends Activity implements View.OnClickListe
     private ImageButton mFaceDetectionButton;
 
     // Camera fields
-    private Camera mCamera;
+    private CameraController mCameraController;
+    private CameraCapabilityCache mCapabilityCache;
+    private CameraSource mCameraSource;
+    private int mCameraId = -1;
     private boolean mIsFrontCamera;
     private int mBackCameraId;
     private int mFrontCameraId;
     private boolean mFaceDetectionActive;
 
+    // Face detection in preview frames for cameras that cannot detect faces themselves
+    private final SoftwareFaceDetection mSoftwareFaceDetection = new SoftwareFaceDetection();
+    private boolean mIsSoftwareFaceDetection;
+
     // Threading/runnables
     private long mHidePictureDelay;
     private Handler mHandler;
+    private final PictureDecoder mPictureDecoder = new PictureDecoder();
     private Runnable mHidePictureRunnable = new Runnable() {
         @Override
         public void run() {
@@ -112,6 +121,7 @@ public class FaceDetectionActivity extends Activity implements View.OnClickListe
         // Grab reference to the preview.
         mPreview = (Preview) findViewById(R.id.preview);
         mPreview.setListener(this);
+        mPreview.setShowLatency(BuildConfig.SHOW_LATENCY);
 
         /*
             If the device actually has a camera, set up the surface holder.
@@ -128,6 +138,13 @@ public class FaceDetectionActivity extends Activity implements View.OnClickListe
                 mHidePictureDelay = getResources().getInteger(R.integer.picture_taken_show_duration);
                 mHandler = new Handler(Looper.getMainLooper());
 
+                // Open, start and release the camera off the UI thread.
+                mCameraController = CameraController.forIntent(getIntent());
+                mPreview.setCameraController(mCameraController);
+
+                // Load what each camera supported the last time it was opened.
+                mCapabilityCache = CameraCapabilityCache.getInstance(this);
+
                 // Get back-facing camera info.
                 mBackCameraId = findCameraId(false);
 
@@ -145,6 +162,7 @@ public class FaceDetectionActivity extends Activity implements View.OnClickListe
                 // Get previous state of face detection.
                 mFaceDetectionActive = savedInstanceState != null
                         && savedInstanceState.getBoolean(STATE_FACE_DETECTION_ACTIVE, false);
+                mSoftwareFaceDetection.setListener(mSoftwareFaceDetectionListener);
 
                 hideError();
             } else {
@@ -188,20 +206,32 @@ public class FaceDetectionActivity extends Activity implements View.OnClickListe
         outState.putBoolean(STATE_FACE_DETECTION_ACTIVE, mFaceDetectionActive);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Drop any picture still being decoded, then stop the camera thread.
+        mPictureDecoder.cancel();
+        if (mCameraController != null) {
+            mCameraController.quit();
+        }
+    }
+
 
     //
     // Camera setup
     //
 
     /**
-     * Check whether the device actually has a camera.
+     * Check whether the device actually has a camera, or the activity was started with a synthetic
+     * one.
      *
      * @return True if the device has a camera, false otherwise.
      */
     private boolean hasCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA));
     }
 
     /**
@@ -211,93 +241,165 @@ public class FaceDetectionActivity extends Activity implements View.OnClickListe
      */
     private boolean hasFrontCamera() {
         final PackageManager packageManager = getPackageManager();
-        return packageManager != null
-                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT);
+        return CameraController.isSynthetic(getIntent()) || (packageManager != null
+                && packageManager.hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT));
     }
 
     /**
-     * Returns the camera ID (an integer between 0 and {@link android.hardware.Camera#getNumberOfCameras()})
-     * for either the first front-facing or first back-facing camera.
+     * Returns the camera ID for either the first front-facing or first back-facing camera.
      *
      * @param front True to find the first front-facing camera; false to find the first back-facing
      *              camera.
      *
-     * @return The camera ID for the requested camera as an integer between between 0 and {@link
-     * android.hardware.Camera#getNumberOfCameras()} or -1 if there was no matching camera.
+     * @return The camera ID for the requested camera or -1 if there was no matching camera.
      */
     private int findCameraId(boolean front) {
-        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-        final int cameraCount = Camera.getNumberOfCameras();
-        /*  Iterate through 0…getNumberOfCameras - 1 to find the camera ID of the first front or
-        the first back camera. */
-        for (int i = 0; i < cameraCount; i++) {
-            Camera.getCameraInfo(i, cameraInfo);
-            if ((front && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT)
-                    || (!front && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_BACK)) {
-                return i;
+        return mCameraController.getSource().findCameraId(front);
+    }
+
+    /**
+     * Open the first back-facing camera and grab its {@link CameraSource}.
+     */
+    private void openCamera() {
+        if (mCameraSource != null) {
+            if (mPreview.isStarted()) {
+                mPreview.stop();
             }
+            mCameraController.cancelAutoFocus();
+            mPreview.setCameraSource(null);
+            mCameraSource = null;
         }
-        return NO_CAMERA;
+        final int cameraId = mIsFrontCamera ? mFrontCameraId : mBackCameraId;
+        mCameraId = cameraId;
+
+        // Faces found in frames from the previous camera must not be shown.
+        mSoftwareFaceDetection.reset();
+
+        // Set up the controls from the cached capabilities while the camera is still opening.
+        if (mCameraController.getSource() instanceof HardwareCameraSource) {
+            mCapabilityCache.get(cameraId, mCapabilitiesCallback);
+        }
+
+        // The controller releases the previous camera before opening the requested one.
+        mCameraController.open(cameraId, mOpenCallback);
     }
 
     /**
-     * Returns a {@link android.hardware.Camera.CameraInfo} instance containing information on the
-     * currently open camera.
+     * Callback for setting up the preview once the camera is open.
+     */
+    private final CameraController.OpenCallback mOpenCallback = new CameraController.OpenCallback() {
+        @Override
+        public void onCameraOpened(CameraSource source, int cameraId) {
+            mCameraSource = source;
+            setUpCamera(cameraId);
+        }
+
+        @Override
+        public void onCameraOpenFailed(int cameraId, RuntimeException error) {
+            showError(R.string.error_camera_not_opened);
+        }
+    };
+
+    /**
+     * Attaches the newly opened camera to the preview and sets up the controls it supports.
      *
-     * @return A {@link android.hardware.Camera.CameraInfo} instance containing information on the
-     * currently open camera or `null` if no camera is open.
+     * @param cameraId The ID of the open camera.
      */
-    private Camera.CameraInfo getCameraInfo() {
-        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-        Camera.getCameraInfo(mIsFrontCamera ? mFrontCameraId : mBackCameraId, cameraInfo);
-        return cameraInfo;
+    private void setUpCamera(int cameraId) {
+        mPreview.setCameraSource(mCameraSource, cameraId);
+        mPreview.start();
+        final int maxNumDetectedFaces = mCameraSource.getMaxNumDetectedFaces();
+        if (mCameraSource instanceof HardwareCameraSource) {
+            mCapabilityCache.get(mCameraController, cameraId, mCapabilitiesCallback);
+        } else {
+            // A synthetic camera has no focus areas but detects the faces it draws.
+            setUpControls(0, maxNumDetectedFaces);
+        }
+        if (maxNumDetectedFaces > 0 && mFaceDetectionActive) {
+            /*  Face detection can only start once the preview is running, so it is queued behind
+            the preview start on the camera thread. */
+            mCameraController.startFaceDetection();
+        }
     }
 
     /**
-     * Open the first back-facing camera and grab a {@link android.hardware.Camera} instance.
+     * Callback for setting up the controls once the capabilities of the camera are known, unless
+     * another camera was requested in the meantime.
      */
-    private void openCamera() {
-        if (mCamera != null) {
-            if (mPreview.isStarted()) {
-                mPreview.stop();
-            }
-            mCamera.cancelAutoFocus();
-            mCamera.release();
-        }
-        mCamera = Camera.open(mIsFrontCamera ? mFrontCameraId : mBackCameraId);
-        final Camera.CameraInfo cameraInfo = getCameraInfo();
-        mPreview.setCamera(mCamera, cameraInfo);
-        mPreview.start();
-        final Camera.Parameters parameters = mCamera.getParameters();
-        if (parameters.getMaxNumFocusAreas() > 0) {
+    private final CameraCapabilityCache.Callback mCapabilitiesCallback =
+            new CameraCapabilityCache.Callback() {
+                @Override
+                public void onCapabilities(int cameraId, CameraCapabilities capabilities) {
+                    if (capabilities != null && cameraId == mCameraId) {
+                        setUpControls(capabilities.getMaxNumFocusAreas(),
+                                capabilities.getMaxNumDetectedFaces());
+                    }
+                }
+            };
+
+    /**
+     * Sets up the controls supported by a camera.
+     *
+     * @param maxNumFocusAreas    The number of focus areas the camera supports.
+     * @param maxNumDetectedFaces The number of faces the camera can detect, or 0 if faces are
+     *                            detected in its preview frames instead.
+     */
+    private void setUpControls(int maxNumFocusAreas, int maxNumDetectedFaces) {
+        if (maxNumFocusAreas > 0) {
             mPreview.startFocusAreaSelection();
             mPreview.setListener(this);
         } else {
             mPreview.stopFocusAreaSelection();
             mPreview.setListener(null);
         }
-        if (parameters.getMaxNumDetectedFaces() > 0) {
-            mFaceDetectionButton.setVisibility(View.VISIBLE);
-            mFaceDetectionButton.setEnabled(true);
-            mFaceDetectionButton.setOnClickListener(this);
-            if (mFaceDetectionActive) {
-                mCamera.startFaceDetection();
-            }
+        // Cameras that cannot detect faces get faces detected in their preview frames instead.
+        mIsSoftwareFaceDetection = maxNumDetectedFaces == 0;
+        mPreview.setMaxNumDetectedFaces(mIsSoftwareFaceDetection
+                ? mSoftwareFaceDetection.getMaxFaces() : maxNumDetectedFaces);
+        mFaceDetectionButton.setVisibility(View.VISIBLE);
+        mFaceDetectionButton.setEnabled(true);
+        mFaceDetectionButton.setOnClickListener(this);
+        updateSoftwareFaceDetection();
+    }
+
+    /**
+     * Starts or stops detecting faces in preview frames, depending on whether face detection is
+     * active and the camera cannot detect faces itself.
+     */
+    private void updateSoftwareFaceDetection() {
+        if (mIsSoftwareFaceDetection && mFaceDetectionActive) {
+            mSoftwareFaceDetection.setFrameRotation(mPreview.getFrameRotation());
+            mPreview.setFrameConsumer(mSoftwareFaceDetection);
+            mPreview.startFaceDetection();
         } else {
-            mFaceDetectionButton.setVisibility(View.GONE);
-            mFaceDetectionButton.setEnabled(false);
+            mPreview.setFrameConsumer(null);
         }
     }
 
     /**
-     * Close the camera and release the previously obtained {@link android.hardware.Camera} instance
-     * to make sure that other applications can grab the camera if needed.
+     * Listener for showing faces detected in preview frames.
+     */
+    private final SoftwareFaceDetection.Listener mSoftwareFaceDetectionListener =
+            new SoftwareFaceDetection.Listener() {
+                @Override
+                public void onFacesDetected(int count, float[] rects, int[] scores) {
+                    mPreview.onFaceDetection(count, rects, scores);
+                }
+            };
+
+    /**
+     * Close the camera and release the previously obtained {@link CameraSource} to make sure that
+     * other applications can grab the camera if needed.
      */
     private void closeCamera() {
-        if (mCamera != null) {
-            mPreview.setCamera(null, null);
-            mCamera.release();
-            mCamera = null;
+        mCameraId = -1;
+        if (mCameraSource != null) {
+            mPreview.setCameraSource(null);
+            mCameraSource = null;
+        }
+        // Release on the camera thread; this also cancels any open request still pending.
+        if (mCameraController != null) {
+            mCameraController.release();
         }
     }
 
@@ -317,28 +419,46 @@ public class FaceDetectionActivity extends Activity implements View.OnClickListe
     // Auto-focus
     //
 
-    private final Camera.AutoFocusCallback mAutoFocusCallback = new Camera.AutoFocusCallback() {
-        @Override
-        public void onAutoFocus(boolean success, Camera camera) {
-        }
-    };
+    private final CameraSource.AutoFocusCallback mAutoFocusCallback =
+            new CameraSource.AutoFocusCallback() {
+                @Override
+                public void onAutoFocus(boolean success) {
+                }
+            };
 
 
     //
     // Picture taking
     //
 
+    /**
+     * Callback for showing a picture once it is decoded.
+     */
+    private final PictureDecoder.DecodeCallback mPictureDecodeCallback =
+            new PictureDecoder.DecodeCallback() {
+                @Override
+                public void onPictureDecoded(Bitmap bitmap) {
+                    if (bitmap != null) {
+                        showPicture(bitmap);
+                    } else {
+                        hidePictureTaken();
+                    }
+                }
+            };
+
     /**
      * Callback for retrieving JPEG data when a picture is taken.
      */
-    private final Camera.PictureCallback mJpegCallback = new Camera.PictureCallback() {
+    private final CameraSource.PictureCallback mJpegCallback = new CameraSource.PictureCallback() {
         @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            showPicture(CameraUtils.bitmapFromRawBytes(
+        public void onPictureTaken(byte[] data) {
+            // Decode off the camera thread and show the picture on the UI thread once done.
+            mPictureDecoder.decode(
                     data,
                     mPictureView.getWidth(),
-                    mPictureView.getHeight()
-            ));
+                    mPictureView.getHeight(),
+                    mPictureDecodeCallback
+            );
         }
     };
 
@@ -346,9 +466,9 @@ public class FaceDetectionActivity extends Activity implements View.OnClickListe
      * Checks if the camera is open and takes a picture, retrieving JPEG data.
      */
     private void takePicture() {
-        if (mCamera != null) {
-            // Take picture and capture raw image data.
-            mCamera.takePicture(null, null, mJpegCallback);
+        if (mCameraSource != null) {
+            // Take picture and capture JPEG data.
+            mCameraController.takePicture(mJpegCallback);
         }
     }
 
@@ -358,7 +478,7 @@ public class FaceDetectionActivity extends Activity implements View.OnClickListe
     //
 
     /**
-     * Displays a picture taken with the {@link android.hardware.Camera} and hides the preview and
+     * Displays a picture taken with the {@link CameraSource} and hides the preview and
      * capture button.
      *
      * @param bitmap A {@link android.graphics.Bitmap} containing the picture taken.
@@ -417,14 +537,21 @@ public class FaceDetectionActivity extends Activity implements View.OnClickListe
         } else if (v == mCaptureButton) {
             takePicture();
         } else if (v == mFaceDetectionButton) {
+            /*  The button can be shown from cached capabilities before the camera is open; face
+            detection then starts once the camera is set up. */
             mFaceDetectionActive = !mFaceDetectionActive;
             if (mFaceDetectionActive) {
-                mCamera.startFaceDetection();
+                if (mCameraSource != null && !mIsSoftwareFaceDetection) {
+                    mCameraController.startFaceDetection();
+                }
                 mPreview.startFaceDetection();
             } else {
-                mCamera.stopFaceDetection();
+                if (mCameraSource != null && !mIsSoftwareFaceDetection) {
+                    mCameraController.stopFaceDetection();
+                }
                 mPreview.stopFaceDetection();
             }
+            updateSoftwareFaceDetection();
         }
     }
 
@@ -438,7 +565,9 @@ public class FaceDetectionActivity extends Activity implements View.OnClickListe
         if (v == mCaptureButton) {
             switch (event.getAction() & MotionEvent.ACTION_MASK) {
                 case MotionEvent.ACTION_DOWN:
-                    mCamera.autoFocus(mAutoFocusCallback);
+                    if (mCameraSource != null) {
+                        mCameraController.autoFocus(mAutoFocusCallback);
+                    }
                     return false;
             }
         }
@@ -452,30 +581,60 @@ public class FaceDetectionActivity extends Activity implements View.OnClickListe
 
     @Override
     public void onAutoFocus() {
-        mCamera.autoFocus(mAutoFocusCallback);
+        if (mCameraSource != null) {
+            mCameraController.autoFocus(mAutoFocusCallback);
+        }
     }
 
     @Override
     public void onFocusAreaChange(Rect area) {
-        if (mCamera != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-            final Camera.Parameters parameters = mCamera.getParameters();
+        // Camera areas are parameters of a real camera.
+        if (mCameraSource instanceof HardwareCameraSource
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             ArrayList<Camera.Area> focusAreas = new ArrayList<Camera.Area>();
             focusAreas.add(new Camera.Area(area, 10));
-            parameters.setFocusAreas(focusAreas);
-            mCamera.setParameters(parameters);
-            mCamera.autoFocus(mAutoFocusCallback);
+            setCameraAreas(focusAreas, null);
         }
     }
 
     @Override
     public void onMeteringAreaChange(Rect area) {
-        if (mCamera != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-            final Camera.Parameters parameters = mCamera.getParameters();
+        // Camera areas are parameters of a real camera.
+        if (mCameraSource instanceof HardwareCameraSource
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             ArrayList<Camera.Area> meteringAreas = new ArrayList<Camera.Area>();
             meteringAreas.add(new Camera.Area(area, 10));
-            parameters.setMeteringAreas(meteringAreas);
-            mCamera.setParameters(parameters);
-            mCamera.autoFocus(mAutoFocusCallback);
+            setCameraAreas(null, meteringAreas);
         }
     }
+
+    /**
+     * Sets the focus or metering areas of the camera on the camera thread, where the camera's
+     * parameters are read and written, then focuses. The camera may have been released by the time
+     * the operation runs.
+     *
+     * @param focusAreas    The focus areas or null to keep them.
+     * @param meteringAreas The metering areas or null to keep them.
+     */
+    private void setCameraAreas(final List<Camera.Area> focusAreas,
+                                final List<Camera.Area> meteringAreas) {
+        mCameraController.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Camera camera = HardwareCameraSource.getCamera(mCameraController.getSource());
+                if (camera == null) {
+                    return;
+                }
+                final Camera.Parameters parameters = camera.getParameters();
+                if (focusAreas != null) {
+                    parameters.setFocusAreas(focusAreas);
+                }
+                if (meteringAreas != null) {
+                    parameters.setMeteringAreas(meteringAreas);
+                }
+                camera.setParameters(parameters);
+            }
+        });
+        mCameraController.autoFocus(mAutoFocusCallback);
+    }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The BurstCapture class takes a series of pictures with the {@link CameraSource} of a {@link
+ * CameraController} as fast as the camera allows, or no faster than a given rate.
+ * <p/>
+ * The whole burst runs on the camera thread of the controller: as soon as the JPEG of one shot
+ * arrives, the preview is restarted (taking a picture stops it), the JPEG is handed to the {@link
+ * Listener} and the next shot is requested, without a round trip through the main thread. The
+ * listener must therefore hand the JPEG off quickly, for instance to a {@link CaptureSink}.
+ */
+public class BurstCapture {
+    /**
+     * Class tag for logging.
+     */
+    @SuppressWarnings("unused")
+    private static final String TAG = "BurstCapture";
+
+    /**
+     * Minimum shot interval that takes shots as fast as the camera allows.
+     */
+    public static final long NO_RATE_LIMIT = 0;
+
+    // Camera thread and delivery
+    private final CameraController mCameraController;
+    private final Handler mMainHandler;
+    private final Listener mListener;
+
+    /**
+     * Incremented every time a burst is started or cancelled, so that a cancelled burst takes no
+     * more shots and reports nothing.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    // Main thread state
+    private boolean mRunning;
+
+    // Camera thread state
+    private CameraSource mSource;
+    private int mBurstGeneration;
+    private int mShotCount;
+    private int mTakenCount;
+    private long mMinIntervalNanos;
+    private long mBurstStartTime;
+    private long mLastShotTime;
+    private long mRequestTime;
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor.
+     *
+     * @param cameraController The controller whose camera thread owns the camera.
+     * @param listener         Notified of every shot and of the end of each burst.
+     */
+    public BurstCapture(CameraController cameraController, Listener listener) {
+        mCameraController = cameraController;
+        mListener = listener;
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+
+    //
+    // Controlling the burst
+    //
+
+    /**
+     * Starts a burst with the open camera of the controller. Must be called on the main thread
+     * while the preview is running.
+     *
+     * @param shotCount     The number of pictures to take.
+     * @param minIntervalMs The shortest time between two shot requests in milliseconds, or {@link
+     *                      #NO_RATE_LIMIT}.
+     */
+    public void start(final int shotCount, final long minIntervalMs) {
+        final int generation = mGeneration.incrementAndGet();
+        mRunning = true;
+        mCameraController.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration.get()) {
+                    return;
+                }
+                mSource = mCameraController.getSource();
+                mBurstGeneration = generation;
+                mShotCount = Math.max(shotCount, 1);
+                mTakenCount = 0;
+                mMinIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(minIntervalMs, 0));
+                mBurstStartTime = System.nanoTime();
+                mLastShotTime = mBurstStartTime;
+                takeNextShot();
+            }
+        });
+    }
+
+    /**
+     * Stops the running burst, if any, after its current shot. Must be called on the main thread,
+     * and before the camera is released.
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+        mRunning = false;
+    }
+
+    /**
+     * @return Whether a burst is running. Must be called on the main thread.
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+
+    //
+    // Camera thread
+    //
+
+    /**
+     * Requests the next shot. Called on the camera thread.
+     */
+    private void takeNextShot() {
+        if (mBurstGeneration != mGeneration.get()) {
+            return;
+        }
+        mRequestTime = System.nanoTime();
+        try {
+            mSource.takePicture(mJpegCallback);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not take picture", e);
+            finish();
+        }
+    }
+
+    /**
+     * Callback for handing each JPEG to the camera thread, since a source other than a hardware
+     * camera delivers it on a thread of its own.
+     */
+    private final CameraSource.PictureCallback mJpegCallback = new CameraSource.PictureCallback() {
+        @Override
+        public void onPictureTaken(final byte[] data) {
+            final long now = System.nanoTime();
+            mCameraController.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onShot(data, now);
+                }
+            });
+        }
+    };
+
+    /**
+     * Restarts the preview, hands off the JPEG data and requests the next shot. Called on the
+     * camera thread.
+     *
+     * @param data    The JPEG data.
+     * @param arrival When the JPEG arrived, in {@link System#nanoTime()} time.
+     */
+    private void onShot(byte[] data, long arrival) {
+        final long shotToShotNanos = arrival - mLastShotTime;
+        final long captureNanos = arrival - mRequestTime;
+        mLastShotTime = arrival;
+        final int index = mTakenCount++;
+
+        /*  Restart the preview first since the camera cannot take the next shot without it. The
+        restart is queued on the camera thread ahead of the next shot. */
+        mCameraController.restartPreview();
+
+        if (mBurstGeneration != mGeneration.get()) {
+            return;
+        }
+        final boolean more = mListener.onBurstShot(index, data, shotToShotNanos, captureNanos);
+        if (!more || mTakenCount >= mShotCount) {
+            finish();
+            return;
+        }
+
+        // Rate limit from request to request so that slow shots do not add to the interval.
+        final int generation = mBurstGeneration;
+        final Runnable nextShot = new Runnable() {
+            @Override
+            public void run() {
+                // A later burst may have started while this one was cancelled and waiting.
+                if (generation == mBurstGeneration) {
+                    takeNextShot();
+                }
+            }
+        };
+        final long delayNanos = mRequestTime + mMinIntervalNanos - System.nanoTime();
+        if (delayNanos > 0) {
+            mCameraController.executeDelayed(nextShot, TimeUnit.NANOSECONDS.toMillis(delayNanos));
+        } else {
+            mCameraController.execute(nextShot);
+        }
+    }
+
+    /**
+     * Ends the burst and reports it on the main thread. Called on the camera thread.
+     */
+    private void finish() {
+        final int generation = mBurstGeneration;
+        final int takenCount = mTakenCount;
+        final long elapsedNanos = System.nanoTime() - mBurstStartTime;
+        mSource = null;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration.get()) {
+                    mRunning = false;
+                    mListener.onBurstFinished(takenCount, elapsedNanos);
+                }
+            }
+        });
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for callbacks about a burst.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the camera thread with the JPEG data of each shot. Should return quickly since
+         * the next shot is not requested until it does.
+         *
+         * @param index           The index of the shot within the burst.
+         * @param data            The JPEG data.
+         * @param shotToShotNanos Time since the previous shot's JPEG arrived, or since the burst
+         *                        was started for the first shot.
+         * @param captureNanos    Time from requesting the shot until its JPEG arrived.
+         *
+         * @return True to carry on with the burst; false to end it early.
+         */
+        boolean onBurstShot(int index, byte[] data, long shotToShotNanos, long captureNanos);
+
+        /**
+         * Called on the main thread when a burst ends, unless it was cancelled.
+         *
+         * @param shotCount    The number of pictures taken.
+         * @param elapsedNanos Time from the start of the burst until its last JPEG arrived.
+         */
+        void onBurstFinished(int shotCount, long elapsedNanos);
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import android.hardware.Camera;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The CameraCapabilities class is an immutable snapshot of what a camera supports, taken from its
+ * {@link android.hardware.Camera.CameraInfo} and {@link android.hardware.Camera.Parameters}.
+ * <p/>
+ * Snapshots are cached by {@link CameraCapabilityCache} so that controls can be set up without
+ * opening the camera or round tripping its parameters.
+ */
+public final class CameraCapabilities {
+
+    // Camera info
+    private final int mCameraId;
+    private final int mFacing;
+    private final int mOrientation;
+
+    // Sizes, packed as width/height pairs
+    private final int[] mPreviewSizes;
+    private final int[] mPictureSizes;
+
+    // Areas and faces
+    private final int mMaxNumFocusAreas;
+    private final int mMaxNumMeteringAreas;
+    private final int mMaxNumDetectedFaces;
+
+    // Zoom and exposure
+    private final boolean mZoomSupported;
+    private final int mMaxZoom;
+    private final int mMinExposureCompensation;
+    private final int mMaxExposureCompensation;
+
+    // Modes; empty if the setting is not supported
+    private final List<String> mFlashModes;
+    private final List<String> mColorEffects;
+    private final List<String> mWhiteBalanceModes;
+    private final List<String> mSceneModes;
+
+
+    //
+    // Constructors/Factories
+    //
+
+    private CameraCapabilities(int cameraId, int facing, int orientation,
+                               int[] previewSizes, int[] pictureSizes,
+                               int maxNumFocusAreas, int maxNumMeteringAreas,
+                               int maxNumDetectedFaces,
+                               boolean zoomSupported, int maxZoom,
+                               int minExposureCompensation, int maxExposureCompensation,
+                               List<String> flashModes, List<String> colorEffects,
+                               List<String> whiteBalanceModes, List<String> sceneModes) {
+        mCameraId = cameraId;
+        mFacing = facing;
+        mOrientation = orientation;
+        mPreviewSizes = previewSizes;
+        mPictureSizes = pictureSizes;
+        mMaxNumFocusAreas = maxNumFocusAreas;
+        mMaxNumMeteringAreas = maxNumMeteringAreas;
+        mMaxNumDetectedFaces = maxNumDetectedFaces;
+        mZoomSupported = zoomSupported;
+        mMaxZoom = maxZoom;
+        mMinExposureCompensation = minExposureCompensation;
+        mMaxExposureCompensation = maxExposureCompensation;
+        mFlashModes = flashModes;
+        mColorEffects = colorEffects;
+        mWhiteBalanceModes = whiteBalanceModes;
+        mSceneModes = sceneModes;
+    }
+
+    /**
+     * Takes a snapshot of an open camera's capabilities.
+     *
+     * @param cameraId   The ID of the camera.
+     * @param cameraInfo A {@link android.hardware.Camera.CameraInfo} containing information on the
+     *                   camera.
+     * @param parameters The {@link android.hardware.Camera.Parameters} of the open camera.
+     *
+     * @return A snapshot of the camera's capabilities.
+     */
+    public static CameraCapabilities fromParameters(int cameraId, Camera.CameraInfo cameraInfo,
+                                                    Camera.Parameters parameters) {
+        return new CameraCapabilities(
+                cameraId,
+                cameraInfo.facing,
+                cameraInfo.orientation,
+                packSizes(parameters.getSupportedPreviewSizes()),
+                packSizes(parameters.getSupportedPictureSizes()),
+                parameters.getMaxNumFocusAreas(),
+                parameters.getMaxNumMeteringAreas(),
+                parameters.getMaxNumDetectedFaces(),
+                parameters.isZoomSupported(),
+                parameters.getMaxZoom(),
+                parameters.getMinExposureCompensation(),
+                parameters.getMaxExposureCompensation(),
+                copyModes(parameters.getSupportedFlashModes()),
+                copyModes(parameters.getSupportedColorEffects()),
+                copyModes(parameters.getSupportedWhiteBalance()),
+                copyModes(parameters.getSupportedSceneModes())
+        );
+    }
+
+    /**
+     * Reads a snapshot written with {@link #write(java.io.DataOutput)}.
+     *
+     * @param in The input to read from.
+     *
+     * @return The snapshot read.
+     *
+     * @throws IOException If the snapshot could not be read.
+     */
+    static CameraCapabilities read(DataInput in) throws IOException {
+        return new CameraCapabilities(
+                in.readInt(),
+                in.readInt(),
+                in.readInt(),
+                readSizes(in),
+                readSizes(in),
+                in.readInt(),
+                in.readInt(),
+                in.readInt(),
+                in.readBoolean(),
+                in.readInt(),
+                in.readInt(),
+                in.readInt(),
+                readModes(in),
+                readModes(in),
+                readModes(in),
+                readModes(in)
+        );
+    }
+
+    /**
+     * Writes the snapshot in a compact binary format.
+     *
+     * @param out The output to write to.
+     *
+     * @throws IOException If the snapshot could not be written.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(mCameraId);
+        out.writeInt(mFacing);
+        out.writeInt(mOrientation);
+        writeSizes(out, mPreviewSizes);
+        writeSizes(out, mPictureSizes);
+        out.writeInt(mMaxNumFocusAreas);
+        out.writeInt(mMaxNumMeteringAreas);
+        out.writeInt(mMaxNumDetectedFaces);
+        out.writeBoolean(mZoomSupported);
+        out.writeInt(mMaxZoom);
+        out.writeInt(mMinExposureCompensation);
+        out.writeInt(mMaxExposureCompensation);
+        writeModes(out, mFlashModes);
+        writeModes(out, mColorEffects);
+        writeModes(out, mWhiteBalanceModes);
+        writeModes(out, mSceneModes);
+    }
+
+
+    //
+    // Getters
+    //
+
+    public int getCameraId() {
+        return mCameraId;
+    }
+
+    public boolean isFrontFacing() {
+        return mFacing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+    }
+
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    public int getPreviewSizeCount() {
+        return mPreviewSizes.length / 2;
+    }
+
+    public int getPreviewWidth(int index) {
+        return mPreviewSizes[2 * index];
+    }
+
+    public int getPreviewHeight(int index) {
+        return mPreviewSizes[2 * index + 1];
+    }
+
+    public int getPictureSizeCount() {
+        return mPictureSizes.length / 2;
+    }
+
+    public int getPictureWidth(int index) {
+        return mPictureSizes[2 * index];
+    }
+
+    public int getPictureHeight(int index) {
+        return mPictureSizes[2 * index + 1];
+    }
+
+    public int getMaxNumFocusAreas() {
+        return mMaxNumFocusAreas;
+    }
+
+    public int getMaxNumMeteringAreas() {
+        return mMaxNumMeteringAreas;
+    }
+
+    public int getMaxNumDetectedFaces() {
+        return mMaxNumDetectedFaces;
+    }
+
+    public boolean isZoomSupported() {
+        return mZoomSupported;
+    }
+
+    public int getMaxZoom() {
+        return mMaxZoom;
+    }
+
+    public int getMinExposureCompensation() {
+        return mMinExposureCompensation;
+    }
+
+    public int getMaxExposureCompensation() {
+        return mMaxExposureCompensation;
+    }
+
+    public List<String> getFlashModes() {
+        return mFlashModes;
+    }
+
+    public List<String> getColorEffects() {
+        return mColorEffects;
+    }
+
+    public List<String> getWhiteBalanceModes() {
+        return mWhiteBalanceModes;
+    }
+
+    public List<String> getSceneModes() {
+        return mSceneModes;
+    }
+
+
+    //
+    // Helpers
+    //
+
+    private static int[] packSizes(List<Camera.Size> sizes) {
+        if (sizes == null) {
+            return new int[0];
+        }
+        final int[] packed = new int[sizes.size() * 2];
+        for (int i = 0; i < sizes.size(); i++) {
+            final Camera.Size size = sizes.get(i);
+            packed[2 * i] = size.width;
+            packed[2 * i + 1] = size.height;
+        }
+        return packed;
+    }
+
+    private static List<String> copyModes(List<String> modes) {
+        if (modes == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<String>(modes));
+    }
+
+    private static int[] readSizes(DataInput in) throws IOException {
+        final int[] sizes = new int[in.readUnsignedShort() * 2];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = in.readUnsignedShort();
+        }
+        return sizes;
+    }
+
+    private static void writeSizes(DataOutput out, int[] sizes) throws IOException {
+        out.writeShort(sizes.length / 2);
+        for (int size : sizes) {
+            out.writeShort(size);
+        }
+    }
+
+    private static List<String> readModes(DataInput in) throws IOException {
+        final int count = in.readUnsignedByte();
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        final List<String> modes = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            modes.add(in.readUTF());
+        }
+        return Collections.unmodifiableList(modes);
+    }
+
+    private static void writeModes(DataOutput out, List<String> modes) throws IOException {
+        out.writeByte(modes.size());
+        for (String mode : modes) {
+            out.writeUTF(mode);
+        }
+    }
+}
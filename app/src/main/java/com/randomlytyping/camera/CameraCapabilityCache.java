@@ -0,0 +1,377 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import android.content.Context;
+import android.hardware.Camera;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CameraCapabilityCache class keeps one {@link CameraCapabilities} snapshot per camera ID and
+ * persists them to app-private storage so that they survive process restarts.
+ * <p/>
+ * A snapshot is taken the first time a camera is opened and never changes afterwards. The whole
+ * cache is discarded when {@link android.os.Build#FINGERPRINT} changes, since an OS update can
+ * change what the camera driver reports.
+ * <p/>
+ * The cache file is read and written on a single background thread, in the order the work was
+ * requested, so that no caller ever waits for storage. Until the file is loaded {@link #get(int)}
+ * simply finds nothing; {@link #get(int, Callback)} waits for the load instead. Snapshots are
+ * taken on the camera thread with {@link #get(CameraController, int, Callback)}.
+ */
+public class CameraCapabilityCache {
+    /**
+     * Class tag for logging.
+     */
+    @SuppressWarnings("unused")
+    private static final String TAG = "CameraCapabilityCache";
+
+    /**
+     * Name of the cache file in the app's files directory.
+     */
+    private static final String FILE_NAME = "camera_capabilities.bin";
+
+    /**
+     * Marks the start of a cache file ("CAPS").
+     */
+    private static final int MAGIC = 0x43415053;
+
+    /**
+     * Version of the cache file format. Bump whenever {@link CameraCapabilities#write(java.io.DataOutput)}
+     * changes.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Name of the storage thread.
+     */
+    private static final String THREAD_NAME = "CameraCapabilityCache";
+
+    /**
+     * Time the storage thread stays alive once it runs out of work.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 5;
+
+    // Singleton
+    private static CameraCapabilityCache sInstance;
+
+    // Storage
+    private final File mFile;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Snapshots by camera ID
+    private final SparseArray<CameraCapabilities> mCapabilities =
+            new SparseArray<CameraCapabilities>();
+
+
+    //
+    // Constructors/Factories
+    //
+
+    private CameraCapabilityCache(File file) {
+        mFile = file;
+        mExecutor = new ThreadPoolExecutor(
+                1, 1,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, THREAD_NAME);
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the application-wide cache, starting to load it from storage in the background the
+     * first time it is requested.
+     *
+     * @param context A {@link android.content.Context} used to locate the app's files directory.
+     *
+     * @return The application-wide cache.
+     */
+    public static synchronized CameraCapabilityCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CameraCapabilityCache(
+                    new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+            sInstance.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sInstance.load();
+                }
+            });
+        }
+        return sInstance;
+    }
+
+
+    //
+    // Cache access
+    //
+
+    /**
+     * Returns the snapshot of a camera's capabilities.
+     *
+     * @param cameraId The ID of the camera.
+     *
+     * @return The cached snapshot or null if the camera was never opened since the cache was last
+     * invalidated, or the cache file is still being loaded.
+     */
+    public synchronized CameraCapabilities get(int cameraId) {
+        return mCapabilities.get(cameraId);
+    }
+
+    /**
+     * Looks up the snapshot of a camera's capabilities once the cache file is loaded.
+     *
+     * @param cameraId The ID of the camera.
+     * @param callback The callback receiving the snapshot, or null if there is none, on the main
+     *                 thread.
+     */
+    public void get(final int cameraId, final Callback callback) {
+        // The load is the first task of the storage thread, so this runs after it.
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deliver(cameraId, get(cameraId), callback);
+            }
+        });
+    }
+
+    /**
+     * Returns the snapshot of a camera the controller opened, taking it on the camera thread and
+     * persisting it in the background if it is not cached yet.
+     *
+     * @param controller The {@link CameraController} that opened the camera.
+     * @param cameraId   The ID of the open camera.
+     * @param callback   The callback receiving the snapshot on the main thread. It is not called if
+     *                   the controller's camera is not a hardware camera or was released.
+     */
+    public void get(final CameraController controller, final int cameraId,
+                    final Callback callback) {
+        final CameraCapabilities cached = get(cameraId);
+        if (cached != null) {
+            deliver(cameraId, cached, callback);
+            return;
+        }
+        controller.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Camera camera = HardwareCameraSource.getCamera(controller.getSource());
+                if (camera != null) {
+                    final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+                    Camera.getCameraInfo(cameraId, cameraInfo);
+                    deliver(cameraId, get(camera, cameraId, cameraInfo), callback);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the snapshot of an open camera's capabilities, taking it and persisting it in the
+     * background if it is not cached yet. {@link android.hardware.Camera#getParameters()} is only
+     * called on a cache miss, so this must be called on the thread the camera is used on.
+     *
+     * @param camera     The open {@link android.hardware.Camera}.
+     * @param cameraId   The ID of the open camera.
+     * @param cameraInfo A {@link android.hardware.Camera.CameraInfo} containing information on the
+     *                   open camera.
+     *
+     * @return The snapshot of the camera's capabilities.
+     */
+    public CameraCapabilities get(Camera camera, int cameraId, Camera.CameraInfo cameraInfo) {
+        final CameraCapabilities cached = get(cameraId);
+        if (cached != null) {
+            return cached;
+        }
+        // Talk to the camera outside the lock so that lookups from the main thread never wait.
+        final CameraCapabilities capabilities = CameraCapabilities.fromParameters(cameraId,
+                cameraInfo, camera.getParameters());
+        synchronized (this) {
+            if (mCapabilities.get(cameraId) == null) {
+                mCapabilities.put(cameraId, capabilities);
+                mExecutor.execute(mSaveRunnable);
+            }
+            return mCapabilities.get(cameraId);
+        }
+    }
+
+    /**
+     * Posts a snapshot to a callback on the main thread.
+     */
+    private void deliver(final int cameraId, final CameraCapabilities capabilities,
+                         final Callback callback) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onCapabilities(cameraId, capabilities);
+            }
+        });
+    }
+
+
+    //
+    // Persistence
+    //
+
+    /**
+     * Loads every snapshot from the cache file on the storage thread, discarding the file if it is
+     * unreadable, was written by another version of the format or on another OS build. Snapshots
+     * taken while the file was loading win over the loaded ones.
+     */
+    private void load() {
+        final SparseArray<CameraCapabilities> loaded = new SparseArray<CameraCapabilities>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC
+                    || in.readInt() != VERSION
+                    || !Build.FINGERPRINT.equals(in.readUTF())) {
+                Log.d(TAG, "Discarding stale camera capability cache.");
+                mFile.delete();
+                return;
+            }
+            final int count = in.readUnsignedByte();
+            for (int i = 0; i < count; i++) {
+                final CameraCapabilities capabilities = CameraCapabilities.read(in);
+                loaded.put(capabilities.getCameraId(), capabilities);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read camera capability cache.", e);
+            loaded.clear();
+            mFile.delete();
+        } finally {
+            closeQuietly(in);
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < loaded.size(); i++) {
+                if (mCapabilities.get(loaded.keyAt(i)) == null) {
+                    mCapabilities.put(loaded.keyAt(i), loaded.valueAt(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Runnable for saving the cache on the storage thread.
+     */
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    /**
+     * Writes every snapshot to a temporary file on the storage thread and swaps it in for the
+     * cache file so that a partially written cache is never read back.
+     */
+    private void save() {
+        // Snapshots are immutable, so only the list of them needs the lock.
+        final CameraCapabilities[] snapshots;
+        synchronized (this) {
+            snapshots = new CameraCapabilities[mCapabilities.size()];
+            for (int i = 0; i < snapshots.length; i++) {
+                snapshots[i] = mCapabilities.valueAt(i);
+            }
+        }
+
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeByte(snapshots.length);
+            for (CameraCapabilities snapshot : snapshots) {
+                snapshot.write(out);
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(mFile)) {
+                throw new IOException("Could not rename " + tempFile + " to " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write camera capability cache.", e);
+            tempFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for a callback to be invoked on the main thread with the snapshot of a
+     * camera's capabilities.
+     */
+    public interface Callback {
+
+        /**
+         * Called on the main thread with the snapshot of a camera's capabilities.
+         *
+         * @param cameraId     The ID of the camera.
+         * @param capabilities The snapshot or null if the camera is not cached.
+         */
+        void onCapabilities(int cameraId, CameraCapabilities capabilities);
+    }
+}
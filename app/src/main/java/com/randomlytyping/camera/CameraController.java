@@ -0,0 +1,548 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CameraController class runs the operations of a {@link CameraSource} that can block for a
+ * long time (opening, starting and stopping the preview, releasing) on a single dedicated
+ * {@link android.os.HandlerThread} so that the UI thread keeps rendering while the camera works.
+ * <p/>
+ * Operations are queued in the order they are requested and results are posted back to the main
+ * thread through callbacks. All public methods are meant to be called from the main thread.
+ * Opening and releasing go through a {@link CameraSession}, which drops the results of superseded
+ * open requests.
+ * <p/>
+ * The source is a {@link HardwareCameraSource} unless the controller is created with another one,
+ * such as a {@link SyntheticCameraSource} selected with {@link #EXTRA_SYNTHETIC_CAMERA}. The
+ * preview of a hardware camera is displayed by the camera itself; the frames of any other source
+ * are drawn by a {@link SurfaceFrameRenderer}.
+ * <p/>
+ * Because the camera is opened on the camera thread, callbacks of a hardware source (picture,
+ * auto-focus, face detection, preview frames) are delivered on the camera thread as well and must
+ * post any UI work back to the main thread.
+ */
+public class CameraController {
+    /**
+     * Class tag for logging.
+     */
+    @SuppressWarnings("unused")
+    private static final String TAG = "CameraController";
+
+    /**
+     * Name of the camera thread.
+     */
+    private static final String THREAD_NAME = "CameraThread";
+
+    /**
+     * How long {@link #stopPreviewNow()} waits for the camera thread before giving up, in
+     * milliseconds.
+     */
+    private static final long STOP_PREVIEW_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * Camera ID that requests the first back-facing camera, mirroring {@link
+     * android.hardware.Camera#open()}.
+     */
+    public static final int DEFAULT_CAMERA = CameraSession.DEFAULT_CAMERA;
+
+    /**
+     * Boolean intent extra that makes {@link #forIntent(android.content.Intent)} create a
+     * controller over a {@link SyntheticCameraSource}, so the activity runs without a camera, e.g.
+     * {@code adb shell am start -n <activity> --ez com.randomlytyping.camera.extra.SYNTHETIC_CAMERA
+     * true}.
+     */
+    public static final String EXTRA_SYNTHETIC_CAMERA =
+            "com.randomlytyping.camera.extra.SYNTHETIC_CAMERA";
+
+    // Threading
+    private final HandlerThread mCameraThread;
+    private final Handler mCameraHandler;
+    private final Handler mMainHandler;
+
+    // Camera (only accessed on the camera thread)
+    private final CameraSource mSource;
+    private final CameraSession mSession;
+    private final SurfaceFrameRenderer mRenderer = new SurfaceFrameRenderer();
+    private final FrameDispatcher mDefaultFrames = new FrameDispatcher();
+    private FrameDispatcher mFrames;
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Starts the camera thread and controls the device's cameras.
+     */
+    public CameraController() {
+        this(new HardwareCameraSource());
+    }
+
+    /**
+     * Constructor. Starts the camera thread.
+     *
+     * @param source The {@link CameraSource} to control.
+     */
+    public CameraController(CameraSource source) {
+        mSource = source;
+        mCameraThread = new HandlerThread(THREAD_NAME);
+        mCameraThread.start();
+        mCameraHandler = new Handler(mCameraThread.getLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mSession = new CameraSession(source, asExecutor(mCameraHandler), asExecutor(mMainHandler)) {
+            @Override
+            protected void releaseSource() {
+                if (mSource.isOpen()) {
+                    super.releaseSource();
+                    mRenderer.setSurface(null);
+                    mFrames = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a controller for an activity, over a {@link SyntheticCameraSource} if the intent
+     * that started it sets {@link #EXTRA_SYNTHETIC_CAMERA}, or over the device's cameras
+     * otherwise.
+     *
+     * @param intent The {@link android.content.Intent} that started the activity.
+     *
+     * @return A new CameraController.
+     */
+    public static CameraController forIntent(Intent intent) {
+        return isSynthetic(intent)
+                ? new CameraController(new SyntheticCameraSource())
+                : new CameraController();
+    }
+
+    /**
+     * @param intent The {@link android.content.Intent} that started an activity.
+     *
+     * @return Whether the intent asks for a {@link SyntheticCameraSource}, which needs no camera.
+     */
+    public static boolean isSynthetic(Intent intent) {
+        return intent != null && intent.getBooleanExtra(EXTRA_SYNTHETIC_CAMERA, false);
+    }
+
+
+    //
+    // Getters/Setters
+    //
+
+    /**
+     * @return The {@link CameraSource} the controller opens. Only use it for the operations the
+     * controller does not cover.
+     */
+    public CameraSource getSource() {
+        return mSource;
+    }
+
+
+    //
+    // Camera operations
+    //
+
+    /**
+     * Opens the first back-facing camera on the camera thread.
+     *
+     * @param callback The callback notified on the main thread when the camera is open or failed
+     *                 to open.
+     *
+     * @see #open(int, OpenCallback)
+     */
+    public void open(OpenCallback callback) {
+        open(DEFAULT_CAMERA, callback);
+    }
+
+    /**
+     * Opens a camera on the camera thread, releasing any camera previously opened by this
+     * controller first.
+     *
+     * @param requestedCameraId The ID of the camera to open or {@link #DEFAULT_CAMERA} to open the
+     *                          first back-facing camera.
+     * @param callback          The callback notified on the main thread when the camera is open
+     *                          or failed to open.
+     */
+    public void open(int requestedCameraId, final OpenCallback callback) {
+        mSession.open(requestedCameraId, new CameraSession.OpenCallback() {
+            @Override
+            public void onCameraOpened(CameraSource source, int cameraId) {
+                callback.onCameraOpened(source, cameraId);
+            }
+
+            @Override
+            public void onCameraOpenFailed(int cameraId, RuntimeException error) {
+                Log.e(TAG, String.format("Could not open camera %d", cameraId), error);
+                callback.onCameraOpenFailed(cameraId, error);
+            }
+        });
+    }
+
+    /**
+     * Displays the preview of the open camera on a surface and starts it on the camera thread.
+     *
+     * @param holder   The {@link android.view.SurfaceHolder} the preview is displayed on.
+     * @param callback The callback notified on the main thread when the preview started or failed
+     *                 to start. May be null.
+     *
+     * @see #startPreview(android.view.SurfaceHolder, FrameDispatcher, StartPreviewCallback)
+     */
+    public void startPreview(SurfaceHolder holder, StartPreviewCallback callback) {
+        startPreview(holder, mDefaultFrames, callback);
+    }
+
+    /**
+     * Displays the preview of the open camera on a surface and starts it on the camera thread.
+     *
+     * @param holder   The {@link android.view.SurfaceHolder} the preview is displayed on.
+     * @param frames   The {@link FrameDispatcher} preview frames are delivered to. Its source and
+     *                 display are set by the controller.
+     * @param callback The callback notified on the main thread when the preview started or failed
+     *                 to start. May be null.
+     */
+    public void startPreview(final SurfaceHolder holder, final FrameDispatcher frames,
+                             final StartPreviewCallback callback) {
+        final int generation = mSession.getGeneration();
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mSource.isOpen()) {
+                    return;
+                }
+                try {
+                    if (mSource instanceof HardwareCameraSource) {
+                        ((HardwareCameraSource) mSource).setPreviewDisplay(holder);
+                        frames.setDisplay(null);
+                    } else {
+                        mRenderer.setSurface(holder);
+                        frames.setDisplay(mRenderer);
+                    }
+                } catch (final IOException e) {
+                    if (callback != null) {
+                        mSession.postIfCurrent(generation, new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onPreviewFailed(e);
+                            }
+                        });
+                    }
+                    return;
+                }
+                mFrames = frames;
+                frames.setSource(mSource);
+                mSource.setFrameCallback(frames);
+                startSourcePreview();
+                if (callback != null) {
+                    mSession.postIfCurrent(generation, new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onPreviewStarted();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Restarts the preview of the open camera on the camera thread without changing its preview
+     * display, such as after a picture was taken.
+     */
+    public void restartPreview() {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSource.isOpen() && mFrames != null) {
+                    mSource.stopPreview();
+                    startSourcePreview();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the preview of the open camera on the camera thread.
+     */
+    public void stopPreview() {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSource.stopPreview();
+            }
+        });
+    }
+
+    /**
+     * Stops the preview of the open camera and stops drawing on its surface before returning, for
+     * when the surface is about to be destroyed. Waits for the operations queued before it, but no
+     * longer than {@link #STOP_PREVIEW_TIMEOUT_MILLIS}, and not at all once the camera thread quit.
+     */
+    public void stopPreviewNow() {
+        mRenderer.setSurface(null);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final boolean posted = mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mSource.stopPreview();
+                } finally {
+                    stopped.countDown();
+                }
+            }
+        });
+        if (!posted) {
+            return;
+        }
+        try {
+            if (!stopped.await(STOP_PREVIEW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for the preview to stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Changes the size of preview frames on the camera thread. The preview size can only change
+     * while the preview is stopped, so a running preview is stopped first and restarted with the
+     * new size.
+     *
+     * @param width   The width in pixels, one of the supported preview sizes.
+     * @param height  The height in pixels, one of the supported preview sizes.
+     * @param restart Whether the preview is running and must be restarted.
+     */
+    public void setPreviewSize(final int width, final int height, final boolean restart) {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mSource.isOpen()) {
+                    return;
+                }
+                if (restart) {
+                    mSource.stopPreview();
+                }
+                mSource.setPreviewSize(width, height);
+                if (restart && mFrames != null) {
+                    startSourcePreview();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the clockwise rotation of the preview on the display on the camera thread.
+     *
+     * @param degrees The rotation in degrees: 0, 90, 180 or 270. For front-facing cameras, the
+     *                preview is mirrored before it is rotated.
+     */
+    public void setDisplayOrientation(final int degrees) {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mSource.isOpen()) {
+                    return;
+                }
+                if (mSource instanceof HardwareCameraSource) {
+                    ((HardwareCameraSource) mSource).setDisplayOrientation(degrees);
+                } else {
+                    mRenderer.setDisplayOrientation(degrees, mSource.isFrontFacing());
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts focusing on the camera thread.
+     *
+     * @param callback The callback notified once focusing is done, on the camera thread for a
+     *                 hardware camera.
+     */
+    public void autoFocus(final CameraSource.AutoFocusCallback callback) {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSource.isOpen()) {
+                    mSource.autoFocus(callback);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels focusing in progress on the camera thread.
+     */
+    public void cancelAutoFocus() {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSource.isOpen()) {
+                    mSource.cancelAutoFocus();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts detecting faces on the camera thread, after the preview started.
+     */
+    public void startFaceDetection() {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSource.isOpen()) {
+                    mSource.startFaceDetection();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops detecting faces on the camera thread.
+     */
+    public void stopFaceDetection() {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSource.isOpen()) {
+                    mSource.stopFaceDetection();
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes a picture on the camera thread. The preview stops once the picture is taken.
+     *
+     * @param callback The callback receiving the JPEG, on the camera thread for a hardware camera.
+     */
+    public void takePicture(final CameraSource.PictureCallback callback) {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSource.isOpen()) {
+                    mSource.takePicture(callback);
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases the open camera on the camera thread so that other applications can use it. Any
+     * pending open request is superseded and its callback will not be called.
+     */
+    public void release() {
+        mSession.release();
+    }
+
+    /**
+     * Runs an arbitrary camera operation on the camera thread after every previously requested
+     * operation.
+     *
+     * @param operation The operation to run.
+     */
+    public void execute(Runnable operation) {
+        mCameraHandler.post(operation);
+    }
+
+    /**
+     * Runs an arbitrary camera operation on the camera thread after a delay.
+     *
+     * @param operation   The operation to run.
+     * @param delayMillis The delay in milliseconds.
+     */
+    public void executeDelayed(Runnable operation, long delayMillis) {
+        mCameraHandler.postDelayed(operation, delayMillis);
+    }
+
+    /**
+     * Releases the open camera and stops the camera thread once every pending operation ran. The
+     * controller cannot be used after calling this method.
+     */
+    public void quit() {
+        release();
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCameraThread.getLooper().quit();
+            }
+        });
+    }
+
+    /**
+     * Starts the preview of the open camera, telling the frame dispatcher first. Must be called on
+     * the camera thread while the preview is stopped.
+     */
+    private void startSourcePreview() {
+        mFrames.onPreviewStarted(mSource.getPreviewWidth(), mSource.getPreviewHeight());
+        mSource.startPreview();
+    }
+
+    /**
+     * Wraps a handler into an executor posting to it.
+     */
+    private static Executor asExecutor(final Handler handler) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for callbacks to be invoked on the main thread when a camera open
+     * request completes.
+     */
+    public interface OpenCallback extends CameraSession.OpenCallback {
+    }
+
+    /**
+     * Interface definition for callbacks to be invoked when a start preview request completes.
+     */
+    public interface StartPreviewCallback {
+
+        /**
+         * Called on the main thread when the camera preview started.
+         */
+        void onPreviewStarted();
+
+        /**
+         * Called on the main thread when the preview display could not be set.
+         *
+         * @param error The error thrown by {@link android.hardware.Camera#setPreviewDisplay(android.view.SurfaceHolder)}.
+         */
+        void onPreviewFailed(IOException error);
+    }
+}
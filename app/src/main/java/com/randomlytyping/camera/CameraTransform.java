@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.hardware.Camera;
+
+/**
+ * The CameraTransform class maps between camera sensor coordinates, which range from (-1000, -1000)
+ * to (1000, 1000) as used by {@link android.hardware.Camera.Area} and {@link
+ * android.hardware.Camera.Face}, and view coordinates.
+ * <p/>
+ * The forward (sensor to view) and inverse (view to sensor) matrices, kept by a {@link
+ * SensorTransform}, are only rebuilt when the view bounds, display orientation or camera facing
+ * change, so mapping never allocates. Faces are
+ * mapped in bulk into caller-owned arrays.
+ * <p/>
+ * Methods are synchronized so that the transform can be shared between the camera thread, which
+ * receives face detection callbacks, and the main thread, which handles touches.
+ */
+public class CameraTransform {
+    /**
+     * Number of floats per face in the rect array passed to
+     * {@link #mapFaces(android.hardware.Camera.Face[], int, float[], float[])}.
+     */
+    public static final int FACE_RECT_STRIDE = FaceModel.RECT_STRIDE;
+
+    /**
+     * Number of floats per face in the landmark array passed to
+     * {@link #mapFaces(android.hardware.Camera.Face[], int, float[], float[])}: left eye, right eye
+     * and mouth x/y pairs.
+     */
+    public static final int FACE_LANDMARK_STRIDE = FaceModel.LANDMARK_STRIDE;
+
+    // Transform math, shared with plain JVM code
+    private final SensorTransform mTransform = new SensorTransform();
+
+    // Scratch space for mapping single points.
+    private final float[] mPoint = new float[2];
+
+
+    //
+    // Transform setup
+    //
+
+    /**
+     * Updates the transform, rebuilding its matrices only if an input changed.
+     *
+     * @param bounds             The view bounds the sensor coordinates are mapped onto.
+     * @param displayOrientation The clockwise rotation of the preview on the display in degrees.
+     * @param frontFacing        Whether the camera is front-facing, in which case the preview is
+     *                           mirrored.
+     *
+     * @return True if the matrices were rebuilt; false if nothing changed.
+     */
+    public synchronized boolean update(Rect bounds, int displayOrientation, boolean frontFacing) {
+        return mTransform.update(bounds.left, bounds.top, bounds.width(), bounds.height(),
+                displayOrientation, frontFacing);
+    }
+
+    /**
+     * @return Whether the transform was set up with non-empty bounds.
+     */
+    public synchronized boolean isValid() {
+        return mTransform.isValid();
+    }
+
+
+    //
+    // Mapping
+    //
+
+    /**
+     * Maps view coordinates to sensor coordinates in place.
+     *
+     * @param points The points to map as x/y pairs.
+     */
+    public synchronized void mapViewToSensor(float[] points) {
+        mTransform.mapViewToSensor(points);
+    }
+
+    /**
+     * Maps sensor coordinates to view coordinates in place.
+     *
+     * @param points The points to map as x/y pairs.
+     */
+    public synchronized void mapSensorToView(float[] points) {
+        mTransform.mapSensorToView(points);
+    }
+
+    /**
+     * Maps a point in sensor coordinates to view coordinates in place.
+     *
+     * @param point The point to map.
+     */
+    public synchronized void mapSensorToView(Point point) {
+        mPoint[0] = point.x;
+        mPoint[1] = point.y;
+        mTransform.mapSensorToView(mPoint);
+        point.x = Math.round(mPoint[0]);
+        point.y = Math.round(mPoint[1]);
+    }
+
+    /**
+     * Maps detected faces to view coordinates into caller-owned arrays, leaving the faces
+     * untouched. Rects are normalized so that left <= right and top <= bottom whatever the
+     * rotation or mirroring.
+     *
+     * @param faces     The detected faces in sensor coordinates.
+     * @param count     The number of faces to map.
+     * @param rects     Receives {@link #FACE_RECT_STRIDE} floats per face: left, top, right and
+     *                  bottom.
+     * @param landmarks Receives {@link #FACE_LANDMARK_STRIDE} floats per face: left eye, right eye
+     *                  and mouth x/y pairs, or {@link Float#NaN} if the camera does not report
+     *                  landmarks. May be null to skip landmarks.
+     */
+    public synchronized void mapFaces(Camera.Face[] faces, int count, float[] rects,
+                                      float[] landmarks) {
+        for (int i = 0; i < count; i++) {
+            final Rect rect = faces[i].rect;
+            final int offset = i * FACE_RECT_STRIDE;
+            rects[offset] = rect.left;
+            rects[offset + 1] = rect.top;
+            rects[offset + 2] = rect.right;
+            rects[offset + 3] = rect.bottom;
+        }
+        mapFaceRects(rects, count);
+
+        if (landmarks == null) {
+            return;
+        }
+        boolean hasLandmarks = false;
+        for (int i = 0; i < count; i++) {
+            final Camera.Face face = faces[i];
+            final int offset = i * FACE_LANDMARK_STRIDE;
+            // If the left eye exists, then all facial features are supported and they all exist.
+            if (face.leftEye != null) {
+                landmarks[offset] = face.leftEye.x;
+                landmarks[offset + 1] = face.leftEye.y;
+                landmarks[offset + 2] = face.rightEye.x;
+                landmarks[offset + 3] = face.rightEye.y;
+                landmarks[offset + 4] = face.mouth.x;
+                landmarks[offset + 5] = face.mouth.y;
+                hasLandmarks = true;
+            } else {
+                for (int j = 0; j < FACE_LANDMARK_STRIDE; j++) {
+                    landmarks[offset + j] = Float.NaN;
+                }
+            }
+        }
+        if (hasLandmarks) {
+            // NaN coordinates map to NaN, so faces without landmarks stay marked as such.
+            mTransform.mapSensorToView(landmarks, 0, landmarks, 0, count * 3);
+        }
+    }
+
+    /**
+     * Maps face rects from sensor to view coordinates in place, such as those of faces detected in
+     * preview frames rather than by the camera. Rects are normalized so that left <= right and
+     * top <= bottom whatever the rotation or mirroring.
+     *
+     * @param rects {@link #FACE_RECT_STRIDE} floats per face: left, top, right and bottom.
+     * @param count The number of faces to map.
+     */
+    public synchronized void mapFaceRects(float[] rects, int count) {
+        mTransform.mapSensorToView(rects, 0, rects, 0, count * 2);
+        for (int i = 0; i < count; i++) {
+            final int offset = i * FACE_RECT_STRIDE;
+            if (rects[offset] > rects[offset + 2]) {
+                swap(rects, offset, offset + 2);
+            }
+            if (rects[offset + 1] > rects[offset + 3]) {
+                swap(rects, offset + 1, offset + 3);
+            }
+        }
+    }
+
+    private static void swap(float[] values, int i, int j) {
+        final float value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+}
@@ -18,9 +18,11 @@ package com.randomlytyping.camera;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.Rect;
+import android.hardware.Camera;
+
+import java.util.List;
 
 /**
  * The CameraUtils class contains several static utility methods for working with the hardware
@@ -37,6 +39,12 @@ public class CameraUtils {
     @SuppressWarnings("unused")
     private static final String TAG = "CameraUtils";
 
+    /**
+     * Transform shared by the static coordinate methods. Only rebuilt when its inputs change, so
+     * repeated calls with the same bounds and orientation do not allocate.
+     */
+    private static final CameraTransform sTransform = new CameraTransform();
+
     /**
      * Creates a {@link android.graphics.Bitmap} from raw image byte data. This will usually come
      * from a {@link android.hardware.Camera.PictureCallback} returning byte data from the {@link
@@ -50,64 +58,122 @@ public class CameraUtils {
      * width and height.
      */
     public static Bitmap bitmapFromRawBytes(byte[] data, int width, int height) {
-        /*  Decode the dimensions of the bitmap data so we can determine a sample size that fits the
-        requested width and height. */
         final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeByteArray(data, 0, data.length, options);
-        final int actualWidth = options.outWidth;
-        final int actualHeight = options.outHeight;
-
-        // Calculate the sample size as power of 2 that will satisfy the requested width and height.
-        int inSampleSize = 1;
-        if (actualWidth > width || actualHeight > height) {
-            int shift = 0;
-            while ((actualWidth >> shift + 1) > width && (actualHeight >> shift + 1) > height) {
-                shift++;
-            }
-            if (shift > 0) {
-                inSampleSize <<= shift;
-            }
+
+        /*  Read the dimensions of the bitmap data straight from the JPEG header so we can determine
+        a sample size that fits the requested width and height. Fall back to a bounds decode if the
+        data is not a JPEG the parser understands. */
+        final JpegHeaderParser.Header header = new JpegHeaderParser.Header();
+        final int actualWidth;
+        final int actualHeight;
+        if (JpegHeaderParser.parse(data, 0, data.length, header)) {
+            // The stored size, like a bounds decode, since the decoded bitmap is not rotated.
+            actualWidth = header.getWidth();
+            actualHeight = header.getHeight();
+        } else {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            actualWidth = options.outWidth;
+            actualHeight = options.outHeight;
         }
 
         /*  Reset BitmapFactory options to actually decode the byte array at the calculated sample
         size. */
-        options.inSampleSize = inSampleSize;
+        options.inSampleSize = calculateSampleSize(actualWidth, actualHeight, width, height);
         options.inJustDecodeBounds = false;
         return BitmapFactory.decodeByteArray(data, 0, data.length, options);
     }
 
+    /**
+     * Calculates the largest power-of-2 sample size that keeps a decoded image at least as large as
+     * the requested width or height.
+     *
+     * @param actualWidth  The width of the encoded image.
+     * @param actualHeight The height of the encoded image.
+     * @param width        The requested width.
+     * @param height       The requested height.
+     *
+     * @return The sample size to pass to {@link android.graphics.BitmapFactory.Options#inSampleSize}.
+     *
+     * @see CameraMath#calculateSampleSize(int, int, int, int)
+     */
+    public static int calculateSampleSize(int actualWidth, int actualHeight, int width, int height) {
+        return CameraMath.calculateSampleSize(actualWidth, actualHeight, width, height);
+    }
 
+    /**
+     * Reads the preview FPS range a camera is configured with. Cameras that report no range are
+     * assumed to run at their fastest supported range.
+     *
+     * @param parameters The camera's {@link android.hardware.Camera.Parameters}.
+     * @param range      Receives the minimum and maximum frame rates, scaled by 1000, at {@link
+     *                   android.hardware.Camera.Parameters#PREVIEW_FPS_MIN_INDEX} and {@link
+     *                   android.hardware.Camera.Parameters#PREVIEW_FPS_MAX_INDEX}.
+     *
+     * @return True if a range was found; false if the camera reports neither a current nor a
+     * supported range.
+     */
+    public static boolean getPreviewFpsRange(Camera.Parameters parameters, int[] range) {
+        parameters.getPreviewFpsRange(range);
+        if (range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] > 0) {
+            return true;
+        }
+        // Supported ranges are sorted by their maximum, then their minimum.
+        final List<int[]> supportedRanges = parameters.getSupportedPreviewFpsRange();
+        if (supportedRanges == null || supportedRanges.isEmpty()) {
+            return false;
+        }
+        final int[] fastest = supportedRanges.get(supportedRanges.size() - 1);
+        range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] =
+                fastest[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+        range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] =
+                fastest[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+        return true;
+    }
+
+
+    /**
+     * Maps view coordinates to camera sensor coordinates in place.
+     *
+     * @param coordinates          The points to map as x/y pairs.
+     * @param viewCoordinatesRange The view bounds the sensor coordinates are mapped onto.
+     * @param displayOrientation   The clockwise rotation of the preview on the display in degrees.
+     * @param frontFacing          Whether the camera is front-facing.
+     *
+     * @see CameraTransform#mapViewToSensor(float[])
+     */
     public static void getSensorCoordinates(float[] coordinates, Rect viewCoordinatesRange,
                                             int displayOrientation, boolean frontFacing) {
-        final Matrix matrix = new Matrix();
-        matrix.setTranslate(-viewCoordinatesRange.left, -viewCoordinatesRange.top);
-        matrix.postScale(frontFacing ? -1 : 1, 1);
-        matrix.postScale(2000f / viewCoordinatesRange.width(), 2000f / viewCoordinatesRange.height());
-        matrix.postTranslate(-1000f, -1000f);
-        matrix.postRotate(-displayOrientation);
-        matrix.mapPoints(coordinates);
+        synchronized (sTransform) {
+            sTransform.update(viewCoordinatesRange, displayOrientation, frontFacing);
+            sTransform.mapViewToSensor(coordinates);
+        }
     }
 
+    /**
+     * Maps a point in camera sensor coordinates to view coordinates in place.
+     *
+     * @see CameraTransform#mapSensorToView(android.graphics.Point)
+     */
     public static void getViewCoordinates(Point coordinates, int displayOrientation,
                                           boolean frontFacing, Rect viewCoordinatesRange) {
-        float[] coordinateArray = {coordinates.x, coordinates.y};
-        getViewCoordinates(coordinateArray, displayOrientation, frontFacing,
-                viewCoordinatesRange);
-        coordinates.x = Math.round(coordinateArray[0]);
-        coordinates.y = Math.round(coordinateArray[1]);
+        synchronized (sTransform) {
+            sTransform.update(viewCoordinatesRange, displayOrientation, frontFacing);
+            sTransform.mapSensorToView(coordinates);
+        }
     }
 
+    /**
+     * Maps camera sensor coordinates to view coordinates in place.
+     *
+     * @see CameraTransform#mapSensorToView(float[])
+     */
     public static void getViewCoordinates(float[] coordinates, int displayOrientation,
                                           boolean frontFacing, Rect viewCoordinatesRange) {
-        final Matrix matrix = new Matrix();
-        matrix.setScale(frontFacing ? -1 : 1, 1);
-        matrix.postRotate(displayOrientation);
-        final int width = viewCoordinatesRange.width();
-        final int height = viewCoordinatesRange.height();
-        matrix.postScale(width / 2000f, height / 2000f);
-        matrix.postTranslate(width * 0.5f, height * 0.5f);
-        matrix.mapPoints(coordinates);
+        synchronized (sTransform) {
+            sTransform.update(viewCoordinatesRange, displayOrientation, frontFacing);
+            sTransform.mapSensorToView(coordinates);
+        }
     }
 
 
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import android.hardware.Camera;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The HardwareCameraSource class is the {@link CameraSource} backed by an {@link
+ * android.hardware.Camera}, the counterpart of {@link SyntheticCameraSource} on a device.
+ * <p/>
+ * Preview frames go through a {@link PreviewFrameRing}, so frames released with {@link
+ * #releaseFrame(byte[])} go straight back to the camera. Opening, the first frame, auto-focus and
+ * the shutter are timed by the shared {@link LatencyTracer}.
+ * <p/>
+ * Callbacks are delivered on the thread that opened the camera if it has a {@link
+ * android.os.Looper}, or on the main thread otherwise.
+ * <p/>
+ * The operations a synthetic source has no use for, such as the preview display and faces with
+ * landmarks, are only available on this class; {@link #getCamera(CameraSource)} reaches the
+ * {@link android.hardware.Camera} itself for features the source does not cover.
+ */
+public class HardwareCameraSource implements CameraSource, FrameConsumer,
+        Camera.FaceDetectionListener {
+    /**
+     * Class tag for logging.
+     */
+    @SuppressWarnings("unused")
+    private static final String TAG = "HardwareCameraSource";
+
+    // Camera
+    private final Camera.CameraInfo mCameraInfo = new Camera.CameraInfo();
+    private Camera mCamera;
+    private int[] mSupportedPreviewSizes;
+    private int mWidth;
+    private int mHeight;
+    private volatile int[] mFpsRange;
+    private boolean mPreviewRunning;
+
+    // Frames
+    private final PreviewFrameRing mRing = new PreviewFrameRing();
+    private volatile FrameCallback mFrameCallback;
+
+    // Faces
+    private volatile FaceCallback mFaceCallback;
+    private volatile Camera.FaceDetectionListener mFaceDetectionListener;
+    private float[] mFaceRects = new float[0];
+    private int[] mFaceScores = new int[0];
+
+    // Tracing
+    private final LatencyTracer mTracer = LatencyTracer.getInstance();
+
+
+    //
+    // Getters/Setters
+    //
+
+    /**
+     * @return The open {@link android.hardware.Camera}, for the operations the source does not
+     * cover, or null if it is not open.
+     */
+    public Camera getCamera() {
+        return mCamera;
+    }
+
+    /**
+     * Returns the {@link android.hardware.Camera} behind a source, for features that only a real
+     * camera has.
+     *
+     * @param source A {@link CameraSource} or null.
+     *
+     * @return The open {@link android.hardware.Camera} if {@code source} is an open
+     * HardwareCameraSource; null otherwise.
+     */
+    public static Camera getCamera(CameraSource source) {
+        return source instanceof HardwareCameraSource
+                ? ((HardwareCameraSource) source).getCamera()
+                : null;
+    }
+
+    /**
+     * Sets the clockwise rotation of the preview on the display.
+     *
+     * @param degrees The rotation in degrees: 0, 90, 180 or 270.
+     */
+    public void setDisplayOrientation(int degrees) {
+        checkOpen();
+        mCamera.setDisplayOrientation(degrees);
+    }
+
+    /**
+     * Sets a listener receiving the faces exactly as the camera detects them, with their landmarks.
+     * While it is set, the {@link FaceCallback} is not called.
+     *
+     * @param listener The {@link android.hardware.Camera.FaceDetectionListener} or null.
+     */
+    public void setFaceDetectionListener(Camera.FaceDetectionListener listener) {
+        mFaceDetectionListener = listener;
+    }
+
+    /**
+     * Sets the surface the preview is displayed on. Most cameras only deliver frames while the
+     * preview is displayed.
+     *
+     * @param holder The {@link android.view.SurfaceHolder} or null.
+     *
+     * @throws IOException If the surface is unavailable.
+     */
+    public void setPreviewDisplay(SurfaceHolder holder) throws IOException {
+        checkOpen();
+        mCamera.setPreviewDisplay(holder);
+    }
+
+
+    //
+    // CameraSource implementation: lifecycle
+    //
+
+    @Override
+    public int findCameraId(boolean frontFacing) {
+        final int facing = frontFacing
+                ? Camera.CameraInfo.CAMERA_FACING_FRONT
+                : Camera.CameraInfo.CAMERA_FACING_BACK;
+        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+        final int cameraCount = Camera.getNumberOfCameras();
+        for (int i = 0; i < cameraCount; i++) {
+            Camera.getCameraInfo(i, cameraInfo);
+            if (cameraInfo.facing == facing) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void open(int cameraId) {
+        if (mCamera != null) {
+            throw new RuntimeException("The camera is already open.");
+        }
+        mTracer.begin(LatencyTracer.OPEN);
+        try {
+            mCamera = Camera.open(cameraId);
+        } catch (RuntimeException e) {
+            mTracer.cancel(LatencyTracer.OPEN);
+            throw e;
+        }
+        mTracer.end(LatencyTracer.OPEN);
+        Camera.getCameraInfo(cameraId, mCameraInfo);
+
+        final Camera.Parameters parameters = mCamera.getParameters();
+        final Camera.Size size = parameters.getPreviewSize();
+        mWidth = size.width;
+        mHeight = size.height;
+        final List<Camera.Size> sizes = parameters.getSupportedPreviewSizes();
+        mSupportedPreviewSizes = new int[sizes.size() * 2];
+        for (int i = 0; i < sizes.size(); i++) {
+            mSupportedPreviewSizes[i * 2] = sizes.get(i).width;
+            mSupportedPreviewSizes[i * 2 + 1] = sizes.get(i).height;
+        }
+        updateFpsRange(parameters);
+        final int maxFaces = parameters.getMaxNumDetectedFaces();
+        if (mFaceScores.length != maxFaces) {
+            mFaceRects = new float[maxFaces * FaceModel.RECT_STRIDE];
+            mFaceScores = new int[maxFaces];
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mCamera == null) {
+            return;
+        }
+        // Results still pending will never arrive.
+        for (int i = 0; i < LatencyTracer.OPERATION_COUNT; i++) {
+            mTracer.cancel(i);
+        }
+        stopPreview();
+        mCamera.release();
+        mCamera = null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mCamera != null;
+    }
+
+    @Override
+    public boolean isFrontFacing() {
+        return mCameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+    }
+
+    @Override
+    public int getSensorOrientation() {
+        return mCameraInfo.orientation;
+    }
+
+
+    //
+    // CameraSource implementation: preview
+    //
+
+    @Override
+    public int[] getSupportedPreviewSizes() {
+        checkOpen();
+        return mSupportedPreviewSizes;
+    }
+
+    @Override
+    public void setPreviewSize(int width, int height) {
+        checkOpen();
+        final Camera.Parameters parameters = mCamera.getParameters();
+        parameters.setPreviewSize(width, height);
+        mCamera.setParameters(parameters);
+        mWidth = width;
+        mHeight = height;
+        updateFpsRange(parameters);
+    }
+
+    @Override
+    public int getPreviewWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getPreviewHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public boolean getPreviewFpsRange(int[] range) {
+        checkOpen();
+        // Read from the last parameters the source had in hand, so no thread waits for the camera.
+        final int[] fpsRange = mFpsRange;
+        if (fpsRange == null) {
+            return false;
+        }
+        range[0] = fpsRange[0];
+        range[1] = fpsRange[1];
+        return true;
+    }
+
+    @Override
+    public void setFrameCallback(FrameCallback callback) {
+        mFrameCallback = callback;
+    }
+
+    @Override
+    public void startPreview() {
+        checkOpen();
+        if (mPreviewRunning) {
+            return;
+        }
+        mRing.setConsumer(this);
+        mRing.attach(mCamera, mWidth, mHeight);
+        mTracer.begin(LatencyTracer.FIRST_FRAME);
+        mCamera.startPreview();
+        mPreviewRunning = true;
+    }
+
+    @Override
+    public void stopPreview() {
+        if (mCamera == null) {
+            return;
+        }
+        mTracer.cancel(LatencyTracer.FIRST_FRAME);
+        mCamera.stopPreview();
+        mRing.detach();
+        mPreviewRunning = false;
+    }
+
+    @Override
+    public void releaseFrame(byte[] frame) {
+        mRing.release(frame);
+    }
+
+
+    //
+    // CameraSource implementation: focus and capture
+    //
+
+    @Override
+    public void autoFocus(final AutoFocusCallback callback) {
+        checkOpen();
+        mTracer.begin(LatencyTracer.AUTO_FOCUS);
+        mCamera.autoFocus(new Camera.AutoFocusCallback() {
+            @Override
+            public void onAutoFocus(boolean success, Camera camera) {
+                mTracer.end(LatencyTracer.AUTO_FOCUS);
+                callback.onAutoFocus(success);
+            }
+        });
+    }
+
+    @Override
+    public void cancelAutoFocus() {
+        checkOpen();
+        mCamera.cancelAutoFocus();
+        mTracer.cancel(LatencyTracer.AUTO_FOCUS);
+    }
+
+    @Override
+    public void takePicture(final PictureCallback callback) {
+        checkOpen();
+        mTracer.begin(LatencyTracer.SHUTTER);
+        mCamera.takePicture(null, null, new Camera.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] data, Camera camera) {
+                mTracer.end(LatencyTracer.SHUTTER);
+                callback.onPictureTaken(data);
+            }
+        });
+        // The camera stops the preview by itself once the picture is taken.
+        mRing.detach();
+        mPreviewRunning = false;
+    }
+
+
+    //
+    // CameraSource implementation: face detection
+    //
+
+    @Override
+    public int getMaxNumDetectedFaces() {
+        return mFaceScores.length;
+    }
+
+    @Override
+    public void setFaceCallback(FaceCallback callback) {
+        mFaceCallback = callback;
+    }
+
+    @Override
+    public void startFaceDetection() {
+        checkOpen();
+        mCamera.setFaceDetectionListener(this);
+        mCamera.startFaceDetection();
+    }
+
+    @Override
+    public void stopFaceDetection() {
+        checkOpen();
+        mCamera.stopFaceDetection();
+        mCamera.setFaceDetectionListener(null);
+    }
+
+
+    //
+    // FrameConsumer implementation
+    //
+
+    @Override
+    public void onPreviewFrame(byte[] data, int width, int height, FrameOwner owner) {
+        final FrameCallback callback = mFrameCallback;
+        if (callback != null) {
+            callback.onFrame(data, width, height, System.nanoTime());
+        } else {
+            owner.release(data);
+        }
+    }
+
+
+    //
+    // FaceDetectionListener implementation
+    //
+
+    @Override
+    public void onFaceDetection(Camera.Face[] faces, Camera camera) {
+        final Camera.FaceDetectionListener listener = mFaceDetectionListener;
+        if (listener != null) {
+            listener.onFaceDetection(faces, camera);
+            return;
+        }
+        final FaceCallback callback = mFaceCallback;
+        if (callback == null) {
+            return;
+        }
+        final int count = Math.min(faces.length, mFaceScores.length);
+        for (int i = 0; i < count; i++) {
+            final int offset = i * FaceModel.RECT_STRIDE;
+            mFaceRects[offset] = faces[i].rect.left;
+            mFaceRects[offset + 1] = faces[i].rect.top;
+            mFaceRects[offset + 2] = faces[i].rect.right;
+            mFaceRects[offset + 3] = faces[i].rect.bottom;
+            mFaceScores[i] = faces[i].score;
+        }
+        callback.onFacesDetected(count, mFaceRects, mFaceScores);
+    }
+
+
+    //
+    // Helpers
+    //
+
+    /**
+     * Keeps the frame rate range of parameters that were just read or applied.
+     */
+    private void updateFpsRange(Camera.Parameters parameters) {
+        final int[] fpsRange = new int[2];
+        mFpsRange = CameraUtils.getPreviewFpsRange(parameters, fpsRange) ? fpsRange : null;
+    }
+
+    private void checkOpen() {
+        if (mCamera == null) {
+            throw new IllegalStateException("The camera is not open.");
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The ParameterTransaction class batches edits to the user-facing {@link
+ * android.hardware.Camera.Parameters} (flash, exposure compensation, color effect, zoom, white
+ * balance and scene mode) of an open camera.
+ * <p/>
+ * The transaction keeps a typed shadow copy of the values last applied to the camera, so reading
+ * a value or making an edit never calls {@link android.hardware.Camera#getParameters()}. Edits
+ * made within one apply interval are merged, edits that end up back at the applied value are
+ * dropped, and whatever is left is applied with a single {@link
+ * android.hardware.Camera#setParameters(android.hardware.Camera.Parameters)} on the camera thread.
+ * <p/>
+ * All public methods are meant to be called from the main thread.
+ */
+public class ParameterTransaction {
+    /**
+     * Class tag for logging.
+     */
+    @SuppressWarnings("unused")
+    private static final String TAG = "ParameterTransaction";
+
+    /**
+     * Default minimum time between two applies, about one preview frame at 30 fps.
+     */
+    public static final long DEFAULT_APPLY_INTERVAL_MS = 33;
+
+    // Edit flags
+    private static final int FLASH_MODE = 1;
+    private static final int EXPOSURE_COMPENSATION = 1 << 1;
+    private static final int COLOR_EFFECT = 1 << 2;
+    private static final int ZOOM = 1 << 3;
+    private static final int WHITE_BALANCE = 1 << 4;
+    private static final int SCENE_MODE = 1 << 5;
+
+    // Threading
+    private final CameraController mCameraController;
+    private final Handler mMainHandler;
+    private final long mApplyInterval;
+    private boolean mApplyScheduled;
+    private long mLastApplyTime;
+
+    // Camera
+    private Camera mCamera;
+
+    // Shadow copy of the applied values and the values including pending edits.
+    private final Values mApplied = new Values();
+    private final Values mPending = new Values();
+    private int mDirty;
+
+    // Stats
+    private int mEditCount;
+    private int mApplyCount;
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Applies edits at most every {@link #DEFAULT_APPLY_INTERVAL_MS}.
+     *
+     * @param cameraController The {@link CameraController} whose thread applies the edits.
+     */
+    public ParameterTransaction(CameraController cameraController) {
+        this(cameraController, DEFAULT_APPLY_INTERVAL_MS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param cameraController The {@link CameraController} whose thread applies the edits.
+     * @param applyInterval    The minimum time between two applies in milliseconds.
+     */
+    public ParameterTransaction(CameraController cameraController, long applyInterval) {
+        mCameraController = cameraController;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mApplyInterval = applyInterval;
+    }
+
+
+    //
+    // Camera attach/detach
+    //
+
+    /**
+     * Starts editing the parameters of a newly opened camera, discarding any edits still pending
+     * for the previous one.
+     *
+     * @param camera     The open {@link android.hardware.Camera}.
+     * @param parameters The current {@link android.hardware.Camera.Parameters} of the camera, used
+     *                   to fill the shadow copy.
+     */
+    public void attach(Camera camera, Camera.Parameters parameters) {
+        detach();
+        mCamera = camera;
+        mApplied.read(parameters);
+        mPending.set(mApplied);
+    }
+
+    /**
+     * Stops editing the current camera. Pending edits are discarded.
+     */
+    public void detach() {
+        mMainHandler.removeCallbacks(mApplyRunnable);
+        mApplyScheduled = false;
+        mDirty = 0;
+        mCamera = null;
+    }
+
+
+    //
+    // Getters
+    //
+
+    /**
+     * @return The flash mode including pending edits.
+     */
+    public String getFlashMode() {
+        return mPending.flashMode;
+    }
+
+    /**
+     * @return The exposure compensation index including pending edits.
+     */
+    public int getExposureCompensation() {
+        return mPending.exposureCompensation;
+    }
+
+    /**
+     * @return The color effect including pending edits.
+     */
+    public String getColorEffect() {
+        return mPending.colorEffect;
+    }
+
+    /**
+     * @return The zoom value including pending edits.
+     */
+    public int getZoom() {
+        return mPending.zoom;
+    }
+
+    /**
+     * @return The white balance including pending edits.
+     */
+    public String getWhiteBalance() {
+        return mPending.whiteBalance;
+    }
+
+    /**
+     * @return The scene mode including pending edits.
+     */
+    public String getSceneMode() {
+        return mPending.sceneMode;
+    }
+
+    /**
+     * @return The number of edits requested since the transaction was created.
+     */
+    public int getEditCount() {
+        return mEditCount;
+    }
+
+    /**
+     * @return The number of {@link android.hardware.Camera#setParameters(android.hardware.Camera.Parameters)}
+     * calls made since the transaction was created.
+     */
+    public int getApplyCount() {
+        return mApplyCount;
+    }
+
+
+    //
+    // Edits
+    //
+
+    public void setFlashMode(String flashMode) {
+        mPending.flashMode = flashMode;
+        edit(FLASH_MODE, equal(flashMode, mApplied.flashMode));
+    }
+
+    public void setExposureCompensation(int exposureCompensation) {
+        mPending.exposureCompensation = exposureCompensation;
+        edit(EXPOSURE_COMPENSATION, exposureCompensation == mApplied.exposureCompensation);
+    }
+
+    public void setColorEffect(String colorEffect) {
+        mPending.colorEffect = colorEffect;
+        edit(COLOR_EFFECT, equal(colorEffect, mApplied.colorEffect));
+    }
+
+    public void setZoom(int zoom) {
+        mPending.zoom = zoom;
+        edit(ZOOM, zoom == mApplied.zoom);
+    }
+
+    public void setWhiteBalance(String whiteBalance) {
+        mPending.whiteBalance = whiteBalance;
+        edit(WHITE_BALANCE, equal(whiteBalance, mApplied.whiteBalance));
+    }
+
+    public void setSceneMode(String sceneMode) {
+        mPending.sceneMode = sceneMode;
+        edit(SCENE_MODE, equal(sceneMode, mApplied.sceneMode));
+    }
+
+    /**
+     * Records an edit and schedules an apply if anything differs from the applied values.
+     *
+     * @param flag      The flag of the edited value.
+     * @param unchanged Whether the edited value equals the applied value.
+     */
+    private void edit(int flag, boolean unchanged) {
+        if (mCamera == null) {
+            return;
+        }
+        mEditCount++;
+        if (unchanged) {
+            mDirty &= ~flag;
+        } else {
+            mDirty |= flag;
+        }
+        if (mDirty == 0) {
+            mMainHandler.removeCallbacks(mApplyRunnable);
+            mApplyScheduled = false;
+        } else if (!mApplyScheduled) {
+            mApplyScheduled = true;
+            final long applyTime = Math.max(SystemClock.uptimeMillis(),
+                    mLastApplyTime + mApplyInterval);
+            mMainHandler.postAtTime(mApplyRunnable, applyTime);
+        }
+    }
+
+
+    //
+    // Apply
+    //
+
+    private final Runnable mApplyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            apply();
+        }
+    };
+
+    /**
+     * Hands the pending edits to the camera thread and marks them as applied. If the camera rejects
+     * them, the applied values are read back from the camera so the shadow copy never claims
+     * values the camera does not have.
+     */
+    private void apply() {
+        mApplyScheduled = false;
+        if (mCamera == null || mDirty == 0) {
+            return;
+        }
+        final Camera camera = mCamera;
+        final Values edits = new Values();
+        edits.set(mPending);
+        final int dirty = mDirty;
+        mApplied.set(mPending);
+        mDirty = 0;
+        mLastApplyTime = SystemClock.uptimeMillis();
+        mApplyCount++;
+
+        mCameraController.execute(new Runnable() {
+            @Override
+            public void run() {
+                /*  Start from the camera's parameters rather than the shadow copy so that settings
+                owned by other classes, like the preview size, are not reverted. */
+                try {
+                    final Camera.Parameters parameters = camera.getParameters();
+                    edits.write(parameters, dirty);
+                    camera.setParameters(parameters);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Could not apply camera parameters.", e);
+                    // The edits were marked as applied, so find out what the camera kept.
+                    readBack(camera);
+                    return;
+                }
+                if ((dirty & SCENE_MODE) != 0) {
+                    // Scene modes can override other settings, so resync the shadow copy.
+                    readBack(camera);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the values back from the camera and resyncs the shadow copy with them on the main
+     * thread. Must be called on the camera thread.
+     *
+     * @param camera The {@link android.hardware.Camera} to read the values from.
+     */
+    private void readBack(final Camera camera) {
+        final Values values = new Values();
+        try {
+            values.read(camera.getParameters());
+        } catch (RuntimeException e) {
+            // The camera was released; the next camera is attached with its own values.
+            Log.w(TAG, "Could not read back camera parameters.", e);
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                resync(camera, values);
+            }
+        });
+    }
+
+    /**
+     * Replaces the applied values with values read back from the camera, keeping pending edits.
+     * Edits the camera rejected are dropped rather than retried.
+     */
+    private void resync(Camera camera, Values values) {
+        if (camera != mCamera) {
+            return;
+        }
+        final int dirty = mDirty;
+        final Values pending = new Values();
+        pending.set(mPending);
+        mApplied.set(values);
+        mPending.set(values);
+        mDirty = 0;
+        pending.replay(this, dirty);
+    }
+
+
+    //
+    // Helpers
+    //
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Typed set of the values a transaction edits.
+     */
+    private static class Values {
+        String flashMode;
+        int exposureCompensation;
+        String colorEffect;
+        int zoom;
+        String whiteBalance;
+        String sceneMode;
+
+        void set(Values values) {
+            flashMode = values.flashMode;
+            exposureCompensation = values.exposureCompensation;
+            colorEffect = values.colorEffect;
+            zoom = values.zoom;
+            whiteBalance = values.whiteBalance;
+            sceneMode = values.sceneMode;
+        }
+
+        void read(Camera.Parameters parameters) {
+            flashMode = parameters.getFlashMode();
+            exposureCompensation = parameters.getExposureCompensation();
+            colorEffect = parameters.getColorEffect();
+            zoom = parameters.getZoom();
+            whiteBalance = parameters.getWhiteBalance();
+            sceneMode = parameters.getSceneMode();
+        }
+
+        void write(Camera.Parameters parameters, int dirty) {
+            // Scene mode goes first since it can reset the other settings.
+            if ((dirty & SCENE_MODE) != 0) {
+                parameters.setSceneMode(sceneMode);
+            }
+            if ((dirty & FLASH_MODE) != 0) {
+                parameters.setFlashMode(flashMode);
+            }
+            if ((dirty & EXPOSURE_COMPENSATION) != 0) {
+                parameters.setExposureCompensation(exposureCompensation);
+            }
+            if ((dirty & COLOR_EFFECT) != 0) {
+                parameters.setColorEffect(colorEffect);
+            }
+            if ((dirty & ZOOM) != 0) {
+                parameters.setZoom(zoom);
+            }
+            if ((dirty & WHITE_BALANCE) != 0) {
+                parameters.setWhiteBalance(whiteBalance);
+            }
+        }
+
+        void replay(ParameterTransaction transaction, int dirty) {
+            if ((dirty & SCENE_MODE) != 0) {
+                transaction.setSceneMode(sceneMode);
+            }
+            if ((dirty & FLASH_MODE) != 0) {
+                transaction.setFlashMode(flashMode);
+            }
+            if ((dirty & EXPOSURE_COMPENSATION) != 0) {
+                transaction.setExposureCompensation(exposureCompensation);
+            }
+            if ((dirty & COLOR_EFFECT) != 0) {
+                transaction.setColorEffect(colorEffect);
+            }
+            if ((dirty & ZOOM) != 0) {
+                transaction.setZoom(zoom);
+            }
+            if ((dirty & WHITE_BALANCE) != 0) {
+                transaction.setWhiteBalance(whiteBalance);
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The PictureDecoder class decodes pictures taken with the {@link android.hardware.Camera} on a
+ * background thread and posts the resulting {@link android.graphics.Bitmap} to the main thread.
+ * <p/>
+ * Decoding a full-resolution JPEG takes long enough to stall whichever thread does it, so
+ * decodes run on a single low-priority thread with room for one queued decode. A new picture
+ * supersedes any decode of an older picture: the older decode is dropped if it has not started,
+ * and its bitmap is recycled instead of delivered if it has. A picture that cannot be decoded is
+ * delivered as null, so that the caller can go back to the preview.
+ */
+public class PictureDecoder {
+    /**
+     * Class tag for logging.
+     */
+    private static final String TAG = "PictureDecoder";
+
+    /**
+     * Name of the decode thread.
+     */
+    private static final String THREAD_NAME = "PictureDecoder";
+
+    /**
+     * Number of decodes that can wait while another decode runs.
+     */
+    private static final int MAX_QUEUED_DECODES = 1;
+
+    /**
+     * Time the decode thread stays alive once it runs out of work.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 5;
+
+    // Shared decode thread, created on first use.
+    private static ThreadPoolExecutor sExecutor;
+
+    // Delivery
+    private final Handler mMainHandler;
+
+    /**
+     * Incremented every time a picture is submitted or decodes are cancelled, so that only the
+     * latest picture is ever delivered.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Decoded pictures are delivered on the main thread.
+     */
+    public PictureDecoder() {
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+
+    //
+    // Decoding
+    //
+
+    /**
+     * Decodes a JPEG in the background at a size that fits a target size. May be called from any
+     * thread, typically from a {@link android.hardware.Camera.PictureCallback}.
+     *
+     * @param data     The JPEG data.
+     * @param width    The width the picture is shown at.
+     * @param height   The height the picture is shown at.
+     * @param callback The callback notified on the main thread with the decoded picture, or null
+     *                 if it could not be decoded, unless a newer picture is submitted or decodes
+     *                 are cancelled first.
+     */
+    public void decode(final byte[] data, final int width, final int height,
+                       final DecodeCallback callback) {
+        final int generation = mGeneration.incrementAndGet();
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration.get()) {
+                    return;
+                }
+                final Bitmap bitmap = CameraUtils.bitmapFromRawBytes(data, width, height);
+                if (bitmap == null) {
+                    Log.w(TAG, String.format("Could not decode a %d byte picture.", data.length));
+                } else if (generation != mGeneration.get()) {
+                    bitmap.recycle();
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration.get()) {
+                            callback.onPictureDecoded(bitmap);
+                        } else if (bitmap != null) {
+                            // Superseded while waiting for the main thread.
+                            bitmap.recycle();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Cancels every pending decode. Should be called before the callback's owner goes away.
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Returns the shared decode executor, creating it on first use. The executor keeps at most
+     * {@link #MAX_QUEUED_DECODES} decodes waiting and drops the oldest one when another arrives.
+     */
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(
+                    1, 1,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_QUEUED_DECODES),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, THREAD_NAME);
+                        }
+                    },
+                    new ThreadPoolExecutor.DiscardOldestPolicy());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for a callback to be invoked when a picture is decoded.
+     */
+    public interface DecodeCallback {
+
+        /**
+         * Called on the main thread when a picture is decoded.
+         *
+         * @param bitmap The decoded picture, or null if the picture could not be decoded.
+         */
+        void onPictureDecoded(Bitmap bitmap);
+    }
+}
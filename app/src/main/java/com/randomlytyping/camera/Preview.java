@@ -20,9 +20,9 @@ import android.content.Context;
 import android.graphics.Rect;
 import android.hardware.Camera;
 import android.os.Build;
-import android.os.Handler;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.Display;
 import android.view.MotionEvent;
 import android.view.Surface;
@@ -32,7 +32,6 @@ import android.view.ViewGroup;
 import android.view.WindowManager;
 
 import java.io.IOException;
-import java.util.List;
 
 /**
  * Created by Huyen Tue Dao on 5/11/14.
@@ -45,9 +44,10 @@ public class Preview extends ViewGroup implements SurfaceHolder.Callback, Camera
     private static final String TAG = "Preview";
 
     /**
-     * Delay from last face detected update before it is determined there is "no face detected".
+     * Number of faces the face model holds if {@link #setMaxNumDetectedFaces(int)} was not called
+     * before face detection started.
      */
-    private static final long NO_FACE_DETECTED_DELAY = 80;
+    private static final int DEFAULT_MAX_NUM_DETECTED_FACES = 8;
 
 
     //
@@ -61,8 +61,8 @@ public class Preview extends ViewGroup implements SurfaceHolder.Callback, Camera
 
     /**
      * Indicates that there surface has not yet been created or has been destroyed and so the camera
-     * preview cannot be started or stopped yet. There may be a {@link android.hardware.Camera}
-     * associated with the surface at this point.
+     * preview cannot be started or stopped yet. There may be a {@link CameraSource} associated with
+     * the surface at this point.
      */
     public static final int PREVIEW_STATE_NO_SURFACE = 0;
 
@@ -105,21 +105,42 @@ public class Preview extends ViewGroup implements SurfaceHolder.Callback, Camera
      */
     public static final int CAMERA_AREA_HEIGHT_MINIMUM_DP = 48;
 
+    /**
+     * Preview size selections shared by every Preview so they survive activity recreation.
+     */
+    private static final PreviewSizeSelector sPreviewSizeSelector = new PreviewSizeSelector();
+
 
     // Views
     private SurfaceView mSurfaceView;
     private PreviewOverlay mOverlay;
 
     // Camera
-    private Camera mCamera;
-    private Camera.CameraInfo mCameraInfo;
-    private Camera.Size mPreviewSize;
+    private CameraSource mSource;
+    private int mCameraId;
+    private boolean mFrontFacing;
+    private int mSensorOrientation;
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+    private CameraController mController;
+    private final CameraController.StartPreviewCallback mStartPreviewCallback =
+            new CameraController.StartPreviewCallback() {
+                @Override
+                public void onPreviewStarted() {
+                }
+
+                @Override
+                public void onPreviewFailed(IOException error) {
+                    mState = PREVIEW_STATE_ERROR;
+                }
+            };
 
     // Preview state
     private int mState;
 
     // Overlay
     private Rect mOverlayBounds;
+    private final CameraTransform mTransform = new CameraTransform();
 
     // Metering area
     private boolean mMeteringAreaActive;
@@ -129,12 +150,22 @@ public class Preview extends ViewGroup implements SurfaceHolder.Callback, Camera
     private int mFocusAreaWidth;
     private int mFocusAreaHeight;
 
+    // Preview frames
+    private final FrameDispatcher mFrames = new FrameDispatcher();
+    private final FrameRateMonitor mFrameRateMonitor = new FrameRateMonitor();
+    private final int[] mFpsRange = new int[2];
+    private volatile TraceRecorder mTraceRecorder;
+
     // Face detection
-    private Handler mFaceDetectionHandler;
-    private Runnable mFaceDetectionRunnable = new Runnable() {
+    private final Object mFaceLock = new Object();
+    private FaceModel mFaceModel;
+    private float[] mFaceRects;
+    private float[] mFaceLandmarks;
+    private int[] mFaceScores;
+    private final CameraSource.FaceCallback mFaceCallback = new CameraSource.FaceCallback() {
         @Override
-        public void run() {
-            mOverlay.setFaces(null);
+        public void onFacesDetected(int count, float[] rects, int[] scores) {
+            onFaceDetection(count, rects, scores);
         }
     };
 
@@ -143,8 +174,18 @@ public class Preview extends ViewGroup implements SurfaceHolder.Callback, Camera
 
     // References
     private Display mDisplay;
+    private int mDisplayRotation;
     private int mDisplayOrientation;
 
+    // Preview configuration, used to skip reconfiguring the camera when nothing changed.
+    private CameraSource mConfiguredSource;
+    private int mConfiguredWidth;
+    private int mConfiguredHeight;
+    private int mConfiguredOrientation;
+    private int mParameterRoundTrips;
+    private int mParameterRoundTripsSaved;
+    private int mParameterRoundTripsSavedSinceChange;
+
 
     //
     // Constructors/Initialization
@@ -177,6 +218,8 @@ public class Preview extends ViewGroup implements SurfaceHolder.Callback, Camera
      * @param context The current context.
      */
     private void init(Context context) {
+        mFrames.setFrameRateMonitor(mFrameRateMonitor);
+
         // Create and add the SurfaceView and overlay.
         addView(mSurfaceView = new SurfaceView(context));
         addView(mOverlay = new PreviewOverlay(context));
@@ -230,58 +273,114 @@ public class Preview extends ViewGroup implements SurfaceHolder.Callback, Camera
     }
 
     /**
-     * Sets the {@link android.hardware.Camera} instance that will utilize the PreviewView to
-     * display its preview.
+     * Sets the {@link CameraSource} that will utilize the PreviewView to display its preview.
      *
-     * @param camera     The {@link android.hardware.Camera} that will utilize the PreviewView to
-     *                   display its preview.
-     * @param cameraInfo A {@link android.hardware.Camera.CameraInfo} containing information on the
-     *                   passed {@code camera}.
-     */
-    public void setCamera(Camera camera, Camera.CameraInfo cameraInfo) {
-        // Only set the camera if we only have one of the two to maintain consistency.
-        if (camera == null ^ cameraInfo == null) {
-            return;
-        }
-        mCamera = camera;
-        mCameraInfo = cameraInfo;
+     * @param source The open {@link CameraSource} or null.
+     */
+    public void setCameraSource(CameraSource source) {
+        setCameraSource(source, PreviewSizeSelector.NO_CAMERA_ID);
+    }
 
-        // Rotate preview to adjust for device rotation.
-        if (mCamera != null) {
-            // Counter-clockwise rotation of screen in degrees.
-            final int degrees;
-            switch (mDisplay.getRotation()) {
-                case Surface.ROTATION_90:
-                    degrees = 90;
-                    break;
-                case Surface.ROTATION_180:
-                    degrees = 180;
-                    break;
-                case Surface.ROTATION_270:
-                    degrees = 270;
-                    break;
-                case Surface.ROTATION_0:
-                default:
-                    degrees = 0;
-                    break;
+    /**
+     * Sets the {@link CameraSource} that will utilize the PreviewView to display its preview. The
+     * preview is started, stopped and configured through the {@link CameraController} that opened
+     * the source, which must be set first.
+     *
+     * @param source   The open {@link CameraSource} or null.
+     * @param cameraId The ID of the open camera, used to remember the preview size selected for
+     *                 each camera.
+     */
+    public void setCameraSource(CameraSource source, int cameraId) {
+        // Stop delivering preview frames and faces from the previous camera.
+        if (source != mSource) {
+            if (mSource instanceof HardwareCameraSource) {
+                ((HardwareCameraSource) mSource).setFaceDetectionListener(null);
+            } else if (mSource != null) {
+                mSource.setFaceCallback(null);
             }
+            mFrameRateMonitor.reset();
+            mPreviewWidth = 0;
+            mPreviewHeight = 0;
+        }
+        mSource = source;
+        mCameraId = cameraId;
 
-            if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-                mDisplayOrientation = (cameraInfo.orientation + degrees) % 360;
-                // Compensation for mirroring of front cameras.
-                mDisplayOrientation = (360 - mDisplayOrientation) % 360;
-            } else {  // back-facing
-                mDisplayOrientation = (cameraInfo.orientation - degrees + 360) % 360;
-            }
-            mCamera.setDisplayOrientation(mDisplayOrientation);
+        // Rotate preview to adjust for device rotation.
+        if (mSource != null) {
+            mFrontFacing = mSource.isFrontFacing();
+            mSensorOrientation = mSource.getSensorOrientation();
+            updateDisplayOrientation();
             if (mState > PREVIEW_STATE_READY) {
                 updatePreviewSize(getWidth(), getHeight());
             }
-            mCamera.setFaceDetectionListener(this);
+            // Faces detected by a real camera come with landmarks.
+            if (mSource instanceof HardwareCameraSource) {
+                ((HardwareCameraSource) mSource).setFaceDetectionListener(this);
+            } else {
+                mSource.setFaceCallback(mFaceCallback);
+            }
+        } else {
+            mConfiguredSource = null;
         }
         requestLayout();
     }
 
+    /**
+     * Rotates the camera preview to adjust for the current display rotation.
+     */
+    private void updateDisplayOrientation() {
+        // Counter-clockwise rotation of screen in degrees.
+        final int degrees;
+        switch (mDisplay.getRotation()) {
+            case Surface.ROTATION_90:
+                degrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                degrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                degrees = 270;
+                break;
+            case Surface.ROTATION_0:
+            default:
+                degrees = 0;
+                break;
+        }
+
+        if (mFrontFacing) {
+            mDisplayOrientation = (mSensorOrientation + degrees) % 360;
+            // Compensation for mirroring of front cameras.
+            mDisplayOrientation = (360 - mDisplayOrientation) % 360;
+        } else {  // back-facing
+            mDisplayOrientation = (mSensorOrientation - degrees + 360) % 360;
+        }
+        mController.setDisplayOrientation(mDisplayOrientation);
+        mDisplayRotation = mDisplay.getRotation();
+    }
+
+    /**
+     * Returns the clockwise rotation that makes preview frames upright on the display. Unlike the
+     * display orientation, this does not compensate for the mirroring of front-facing cameras.
+     *
+     * @return The rotation in degrees: 0, 90, 180 or 270.
+     */
+    public int getFrameRotation() {
+        if (mSource != null && mFrontFacing) {
+            return (360 - mDisplayOrientation) % 360;
+        }
+        return mDisplayOrientation;
+    }
+
+    /**
+     * Sets the {@link CameraController} used to start, stop and configure the camera preview off
+     * the UI thread.
+     *
+     * @param controller The {@link CameraController} that opens the camera.
+     */
+    public void setCameraController(CameraController controller) {
+        mController = controller;
+    }
+
     /**
      * Register a set of callbacks to be invoked when the user interacts with the viewfinder.
      *
@@ -292,94 +391,160 @@ public class Preview extends ViewGroup implements SurfaceHolder.Callback, Camera
         this.mListener = listener;
     }
 
+    /**
+     * Sets a listener notified of how long each overlay draw took.
+     *
+     * @param listener The {@link PreviewOverlay.DrawListener} or null to stop timing draws.
+     */
+    public void setOverlayDrawListener(PreviewOverlay.DrawListener listener) {
+        mOverlay.setDrawListener(listener);
+    }
+
+    /**
+     * Shows or hides a panel with the percentiles of the camera latencies timed by the shared
+     * {@link LatencyTracer}.
+     *
+     * @param showLatency True to show the panel; false to hide it.
+     */
+    public void setShowLatency(boolean showLatency) {
+        mOverlay.setLatencyTracer(showLatency ? LatencyTracer.getInstance() : null);
+    }
+
+    /**
+     * @return The {@link FrameRateMonitor} every preview frame is reported to, for the frame rate,
+     * jitter and gaps of the preview.
+     */
+    public FrameRateMonitor getFrameRateMonitor() {
+        return mFrameRateMonitor;
+    }
+
+    /**
+     * Sets the recorder the preview frames, preview size and detected faces are appended to, so that the session can be
+     * replayed with a {@link TraceReplayer}.
+     *
+     * @param traceRecorder The {@link TraceRecorder} or null to stop recording.
+     */
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        mTraceRecorder = traceRecorder;
+        mFrames.setTraceRecorder(traceRecorder);
+    }
+
+    /**
+     * Sets a consumer for the camera preview frames. Frames come from the buffers of the {@link
+     * CameraSource}, sized for the current preview size, so that no buffers are allocated while the
+     * preview runs.
+     *
+     * @param consumer The {@link FrameConsumer} that will receive preview frames or null to stop
+     *                 receiving preview frames. Frames keep flowing without a consumer so that the
+     *                 {@link FrameRateMonitor} sees them.
+     */
+    public void setFrameConsumer(FrameConsumer consumer) {
+        mFrames.setConsumer(consumer);
+    }
+
     //
     // Camera preview start/stop and setup.
     //
 
     public void start() {
-        if (mCamera != null && (mState >= PREVIEW_STATE_READY)) {
-            /*
-                Try setting up the surface to be the passed Camera's preview display. If for
-            some reason it errors, then change the state of the surface to indicate this.
-             */
-            try {
-                mCamera.setPreviewDisplay(mSurfaceView.getHolder());
-            } catch (IOException e) {
-                mState = PREVIEW_STATE_ERROR;
-                return;
-            }
-
-            // Actually start the camera preview and update the state variable.
-            mCamera.startPreview();
+        if (mSource != null && (mState >= PREVIEW_STATE_READY)) {
+            /*  Start the preview on the camera thread. If setting the preview display fails, the
+            callback changes the state of the surface to indicate this. */
+            mController.startPreview(mSurfaceView.getHolder(), mFrames, mStartPreviewCallback);
             mState = PREVIEW_STATE_STARTED;
         }
     }
 
     public void stop() {
-        if (mCamera != null) {
+        if (mSource != null) {
             // If there is a valid camera then stop its preview and update the state variable.
-            mCamera.stopPreview();
+            mController.stopPreview();
             mState = PREVIEW_STATE_STOPPED;
+            if (mFrameRateMonitor.getFrameCount() > 0) {
+                Log.d(TAG, String.format("Preview pacing: %s", mFrameRateMonitor));
+            }
         }
     }
 
+    /**
+     * @return The number of times the supported preview sizes and frame rate were read to
+     * configure the preview size.
+     */
+    public int getParameterRoundTrips() {
+        return mParameterRoundTrips;
+    }
+
+    /**
+     * @return The number of preview size configurations skipped because a layout pass did not
+     * change the surface size, display rotation or camera.
+     */
+    public int getParameterRoundTripsSaved() {
+        return mParameterRoundTripsSaved;
+    }
+
+    /**
+     * Configures the camera preview size for a surface size. The camera is only reconfigured if the
+     * surface size, the display rotation or the camera changed since the last configuration, so
+     * layout passes that change nothing do not read the camera configuration again.
+     *
+     * @param width  The width of the preview surface.
+     * @param height The height of the preview surface.
+     */
     private void updatePreviewSize(int width, int height) {
-        if (mCamera == null) {
+        if (mSource == null) {
             return;
         }
 
-        final Camera.Parameters parameters = mCamera.getParameters();
-        final List<Camera.Size> supportedPreviewSizes = parameters.getSupportedPreviewSizes();
-        final boolean landscape = width > height;
-        Camera.Size previewSize = findBestMatchingPreview(
-                supportedPreviewSizes,
-                width,
-                height,
-                landscape
-        );
-        if (previewSize == null) {
-            previewSize = landscape
-                    ? findLargestPreview(supportedPreviewSizes, width, height)
-                    : findLargestPreview(supportedPreviewSizes, height, width);
-        }
-        if (previewSize != null) {
-            parameters.setPreviewSize(previewSize.width, previewSize.height);
-            mCamera.setParameters(parameters);
+        // Pick up display rotations that happened without the camera being set again.
+        if (mDisplay.getRotation() != mDisplayRotation) {
+            updateDisplayOrientation();
         }
-        mPreviewSize = previewSize;
-    }
 
-    private Camera.Size findBestMatchingPreview(List<Camera.Size> previewSizes,
-                                                float surfaceWidth, float surfaceHeight,
-                                                boolean landscape) {
-        if (!landscape) {
-            final float swap = surfaceWidth;
-            surfaceWidth = surfaceHeight;
-            surfaceHeight = swap;
+        if (mSource == mConfiguredSource
+                && width == mConfiguredWidth
+                && height == mConfiguredHeight
+                && mDisplayOrientation == mConfiguredOrientation) {
+            mParameterRoundTripsSaved++;
+            mParameterRoundTripsSavedSinceChange++;
+            return;
         }
-        final float surfaceAspectRatio = surfaceWidth / surfaceHeight;
-        float delta = 0.01f;
-        while (delta < 1f) {
-            for (Camera.Size size : previewSizes) {
-                final float previewAspectRatio = (float) size.width / (float) size.height;
-                final float difference = Math.abs(surfaceAspectRatio - previewAspectRatio);
-                if (size.width < surfaceWidth && size.height < surfaceHeight && difference < 0.1) {
-                    return size;
-                }
-            }
-            delta *= 10f;
+        mConfiguredSource = mSource;
+        mConfiguredWidth = width;
+        mConfiguredHeight = height;
+        mConfiguredOrientation = mDisplayOrientation;
+
+        final int[] sizes = mSource.getSupportedPreviewSizes();
+        int index = sPreviewSizeSelector.getSelection(mCameraId, width, height,
+                mDisplayOrientation);
+        if (index == PreviewSizeSelector.NO_SIZE || index * 2 >= sizes.length) {
+            index = sPreviewSizeSelector.select(mCameraId, width, height, mDisplayOrientation,
+                    sizes);
+        }
+        mParameterRoundTrips++;
+
+        // Gaps are measured against the frame rate the camera is configured for.
+        if (mSource.getPreviewFpsRange(mFpsRange)) {
+            mFrameRateMonitor.setFpsRange(mFpsRange[0], mFpsRange[1]);
         }
-        return null;
-    }
 
-    private Camera.Size findLargestPreview(List<Camera.Size> previewSizes,
-                                           float surfaceWidth, float surfaceHeight) {
-        for (Camera.Size size : previewSizes) {
-            if (size.width < surfaceWidth && size.height < surfaceHeight) {
-                return size;
+        if (index != PreviewSizeSelector.NO_SIZE) {
+            final int previewWidth = sizes[index * 2];
+            final int previewHeight = sizes[index * 2 + 1];
+            // Only reconfigure the camera if the preview size actually changes.
+            if (previewWidth != mSource.getPreviewWidth()
+                    || previewHeight != mSource.getPreviewHeight()) {
+                mController.setPreviewSize(previewWidth, previewHeight,
+                        mState == PREVIEW_STATE_STARTED);
             }
+            mPreviewWidth = previewWidth;
+            mPreviewHeight = previewHeight;
         }
-        return null;
+
+        Log.d(TAG, String.format(
+                "Configured preview for %dx%d at %d degrees; %d layout passes skipped the "
+                        + "parameter round trip since the last change.",
+                width, height, mDisplayOrientation, mParameterRoundTripsSavedSinceChange));
+        mParameterRoundTripsSavedSinceChange = 0;
     }
 
 
@@ -405,9 +570,29 @@ public class Preview extends ViewGroup implements SurfaceHolder.Callback, Camera
         mMeteringAreaActive = false;
     }
 
+    /**
+     * Sizes the face model for the number of faces the camera can detect. Storage is allocated
+     * here, never on the face detection callback path.
+     *
+     * @param maxNumDetectedFaces The maximum number of faces the camera detects, as returned by
+     *                            {@link android.hardware.Camera.Parameters#getMaxNumDetectedFaces()}.
+     */
+    public void setMaxNumDetectedFaces(int maxNumDetectedFaces) {
+        synchronized (mFaceLock) {
+            if (mFaceModel != null && mFaceScores.length == maxNumDetectedFaces) {
+                return;
+            }
+            mFaceModel = new FaceModel(maxNumDetectedFaces);
+            mFaceRects = new float[maxNumDetectedFaces * CameraTransform.FACE_RECT_STRIDE];
+            mFaceLandmarks = new float[maxNumDetectedFaces * CameraTransform.FACE_LANDMARK_STRIDE];
+            mFaceScores = new int[maxNumDetectedFaces];
+        }
+        mOverlay.setFaceModel(mFaceModel);
+    }
+
     public void startFaceDetection() {
-        if (mFaceDetectionHandler == null) {
-            mFaceDetectionHandler = new Handler(Looper.getMainLooper());
+        if (mFaceModel == null) {
+            setMaxNumDetectedFaces(DEFAULT_MAX_NUM_DETECTED_FACES);
         }
         mOverlay.setShowFaceBounds(true);
         invalidate();
@@ -415,19 +600,28 @@ public class Preview extends ViewGroup implements SurfaceHolder.Callback, Camera
 
     public void stopFaceDetection() {
         mOverlay.setShowFaceBounds(false);
-        mOverlay.setFaces(null);
+        if (mFaceModel != null) {
+            mFaceModel.clear(SystemClock.uptimeMillis());
+        }
         invalidate();
     }
 
+    /**
+     * Brings the sensor/view transform up to date. The transform only rebuilds its matrices if the
+     * overlay bounds, display orientation or camera facing changed since the last call.
+     */
+    private void updateTransform() {
+        mTransform.update(mOverlayBounds, mDisplayOrientation, mFrontFacing);
+    }
+
     private Rect getAreaAt(float x, float y, int areaWidth, int areaHeight) {
         if (mOverlayBounds.width() == 0 || mOverlayBounds.height() == 0) {
             throw new IllegalArgumentException("Trying to create camera area from 0-dimensioned preview area.");
         }
 
         float[] coordinates = {x, y};
-        CameraUtils.getSensorCoordinates(
-                coordinates, mOverlayBounds,
-                mDisplayOrientation, mCameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT);
+        updateTransform();
+        mTransform.mapViewToSensor(coordinates);
 
         final float halfAreaWidth = areaWidth * 0.5f;
         final float halfAreaHeight = areaHeight * 0.5f;
@@ -480,9 +674,9 @@ public class Preview extends ViewGroup implements SurfaceHolder.Callback, Camera
 
         updatePreviewSize(width, height);
 
-        if (mPreviewSize != null) {
-            int previewWidth = mPreviewSize.width;
-            int previewHeight = mPreviewSize.height;
+        if (mPreviewWidth > 0) {
+            int previewWidth = mPreviewWidth;
+            int previewHeight = mPreviewHeight;
             if (width < height) {
                 final int swap = previewWidth;
                 previewWidth = previewHeight;
@@ -542,20 +736,18 @@ public class Preview extends ViewGroup implements SurfaceHolder.Callback, Camera
 
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-        if (mCamera != null) {
-            mState = PREVIEW_STATE_STOPPED;
-            mCamera.stopPreview();
-
-            mCamera.startPreview();
+        if (mSource != null) {
+            mController.restartPreview();
             mState = PREVIEW_STATE_STARTED;
         }
     }
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        // If the surface is destroyed, stop the camera preview.
-        if (mCamera != null) {
-            mCamera.stopPreview();
+        /*  If the surface is destroyed, stop the camera preview. This happens synchronously even
+        with a camera controller since the surface is gone as soon as this callback returns. */
+        if (mSource != null) {
+            mController.stopPreviewNow();
         }
 
         mState = PREVIEW_STATE_NO_SURFACE;
@@ -568,52 +760,92 @@ public class Preview extends ViewGroup implements SurfaceHolder.Callback, Camera
 
     @Override
     public void onFaceDetection(Camera.Face[] faces, Camera camera) {
+        /*  Faces are copied into the face model, which the overlay checks against the time of the
+        last detection when drawing, so there is nothing to clear once faces stop being detected. */
         if (faces.length > 0) {
-
-            // Remove callbacks that check whether no more faces are being detected.
-            mFaceDetectionHandler.removeCallbacks(mFaceDetectionRunnable);
-
-            final boolean frontFacing = mCameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
-            for (Camera.Face face : faces) {
-                float[] faceCoordinates = {face.rect.left, face.rect.top, face.rect.right, face.rect.bottom};
-                CameraUtils.getViewCoordinates(faceCoordinates, mDisplayOrientation, frontFacing,
-                        mOverlayBounds);
-                final float x1, x2, y1, y2;
-                if (faceCoordinates[0] < faceCoordinates[2]) {
-                    x1 = faceCoordinates[0];
-                    x2 = faceCoordinates[2];
-                } else {
-                    x1 = faceCoordinates[2];
-                    x2 = faceCoordinates[0];
+            synchronized (mFaceLock) {
+                if (mFaceModel == null) {
+                    return;
                 }
-                if (faceCoordinates[1] < faceCoordinates[3]) {
-                    y1 = faceCoordinates[1];
-                    y2 = faceCoordinates[3];
-                } else {
-                    y1 = faceCoordinates[3];
-                    y2 = faceCoordinates[1];
+                final int count = Math.min(faces.length, mFaceScores.length);
+                final TraceRecorder traceRecorder = mTraceRecorder;
+                if (traceRecorder != null) {
+                    // The face arrays hold the sensor coordinates until they are mapped.
+                    for (int i = 0; i < count; i++) {
+                        final int offset = i * CameraTransform.FACE_RECT_STRIDE;
+                        mFaceRects[offset] = faces[i].rect.left;
+                        mFaceRects[offset + 1] = faces[i].rect.top;
+                        mFaceRects[offset + 2] = faces[i].rect.right;
+                        mFaceRects[offset + 3] = faces[i].rect.bottom;
+                        mFaceScores[i] = faces[i].score;
+                    }
+                    traceRecorder.recordFaces(count, mFaceRects, mFaceScores, System.nanoTime());
                 }
-                face.rect.left = Math.round(x1);
-                face.rect.top = Math.round(y1);
-                face.rect.right = Math.round(x2);
-                face.rect.bottom = Math.round(y2);
-
-                /*  If the left eye coordinate exists, then all facial features are supported and
-                they all exist. */
-                if (face.leftEye != null) {
-                    CameraUtils.getViewCoordinates(face.leftEye, mDisplayOrientation, frontFacing,
-                            mOverlayBounds);
-                    CameraUtils.getViewCoordinates(face.rightEye, mDisplayOrientation, frontFacing,
-                            mOverlayBounds);
-                    CameraUtils.getViewCoordinates(face.mouth, mDisplayOrientation, frontFacing,
-                            mOverlayBounds);
+                updateTransform();
+                mTransform.mapFaces(faces, count, mFaceRects, mFaceLandmarks);
+                for (int i = 0; i < count; i++) {
+                    mFaceScores[i] = faces[i].score;
                 }
+                publishMappedFaces(count, mFaceLandmarks);
             }
-            mOverlay.setFaces(faces);
-            mFaceDetectionHandler.postDelayed(mFaceDetectionRunnable, NO_FACE_DETECTED_DELAY);
         }
     }
 
+    /**
+     * Shows faces detected in preview frames rather than by the camera, such as by {@link
+     * SoftwareFaceDetection}, exactly as faces passed to {@link #onFaceDetection(
+     * android.hardware.Camera.Face[], android.hardware.Camera)}. May be called from any thread.
+     *
+     * @param count  The number of faces.
+     * @param rects  {@link CameraTransform#FACE_RECT_STRIDE} floats per face in {@link
+     *               android.hardware.Camera.Face#rect} coordinates. Left untouched.
+     * @param scores The score of each face, 1 to 100.
+     */
+    public void onFaceDetection(int count, float[] rects, int[] scores) {
+        if (count > 0) {
+            synchronized (mFaceLock) {
+                if (mFaceModel == null || mSource == null) {
+                    return;
+                }
+                count = Math.min(count, mFaceScores.length);
+                System.arraycopy(rects, 0, mFaceRects, 0,
+                        count * CameraTransform.FACE_RECT_STRIDE);
+                System.arraycopy(scores, 0, mFaceScores, 0, count);
+                final TraceRecorder traceRecorder = mTraceRecorder;
+                if (traceRecorder != null) {
+                    traceRecorder.recordFaces(count, mFaceRects, mFaceScores, System.nanoTime());
+                }
+                updateTransform();
+                mTransform.mapFaceRects(mFaceRects, count);
+                publishMappedFaces(count, null);
+            }
+        }
+    }
+
+    /**
+     * Publishes the faces mapped into the face arrays and redraws them. Must be called while
+     * holding the face lock.
+     *
+     * @param count     The number of faces.
+     * @param landmarks The mapped landmarks or null if there are none.
+     */
+    private void publishMappedFaces(int count, float[] landmarks) {
+        float left = Float.MAX_VALUE;
+        float top = Float.MAX_VALUE;
+        float right = -Float.MAX_VALUE;
+        float bottom = -Float.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            final int offset = i * CameraTransform.FACE_RECT_STRIDE;
+            left = Math.min(left, mFaceRects[offset]);
+            top = Math.min(top, mFaceRects[offset + 1]);
+            right = Math.max(right, mFaceRects[offset + 2]);
+            bottom = Math.max(bottom, mFaceRects[offset + 3]);
+        }
+        mFaceModel.publish(count, mFaceRects, landmarks, mFaceScores, SystemClock.uptimeMillis());
+        // Only redraw the area covered by the old and new faces.
+        mOverlay.invalidateFaces(left, top, right, bottom);
+    }
+
 
     //
     // Interface definitions
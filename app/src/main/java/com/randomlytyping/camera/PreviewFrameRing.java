@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+
+/**
+ * The PreviewFrameRing class delivers camera preview frames to a {@link FrameConsumer} through
+ * {@link android.hardware.Camera#setPreviewCallbackWithBuffer(android.hardware.Camera.PreviewCallback)}.
+ * <p/>
+ * The ring owns a fixed set of NV21 buffers sized for the current preview size. Every buffer is
+ * handed to the {@link android.hardware.Camera} up front and is only handed back to it once the
+ * consumer releases the frame, so no buffers are allocated while the preview is running. If the
+ * consumer holds on to every buffer, the camera simply drops frames until one is released.
+ * <p/>
+ * The ring tracks which buffers the consumer still holds, so attaching again while frames are held
+ * only queues the free buffers and a held frame is queued exactly once, when it is released. The
+ * ring may be attached on one thread while frames are released on another.
+ * <p/>
+ * {@link HardwareCameraSource} delivers its frames through a ring; the rest of the app receives
+ * them from the source through a {@link FrameDispatcher}.
+ */
+public class PreviewFrameRing implements Camera.PreviewCallback, FrameOwner {
+    /**
+     * Class tag for logging.
+     */
+    @SuppressWarnings("unused")
+    private static final String TAG = "PreviewFrameRing";
+
+    /**
+     * Default number of buffers in the ring: one being filled by the camera, one being processed
+     * and one spare so the camera does not stall while the consumer finishes.
+     */
+    public static final int DEFAULT_BUFFER_COUNT = 3;
+
+    // Buffers (guarded by this)
+    private final byte[][] mBuffers;
+    private final boolean[] mHeld;
+    private int mFrameSize;
+
+    // Camera (guarded by this)
+    private Camera mCamera;
+    private int mWidth;
+    private int mHeight;
+
+    // Consumer
+    private volatile FrameConsumer mConsumer;
+
+    // Tracing
+    private final LatencyTracer mTracer = LatencyTracer.getInstance();
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Creates a ring with {@link #DEFAULT_BUFFER_COUNT} buffers.
+     */
+    public PreviewFrameRing() {
+        this(DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bufferCount The number of preview buffers in the ring. Must be at least 1.
+     */
+    public PreviewFrameRing(int bufferCount) {
+        if (bufferCount < 1) {
+            throw new IllegalArgumentException("A preview frame ring needs at least one buffer.");
+        }
+        mBuffers = new byte[bufferCount][];
+        mHeld = new boolean[bufferCount];
+    }
+
+
+    //
+    // Getters/Setters
+    //
+
+    /**
+     * Sets the consumer that receives preview frames.
+     *
+     * @param consumer The {@link FrameConsumer} that will receive preview frames or null to
+     *                 return every frame to the camera as soon as it arrives.
+     */
+    public void setConsumer(FrameConsumer consumer) {
+        mConsumer = consumer;
+    }
+
+    /**
+     * @return Whether the ring is currently attached to a {@link android.hardware.Camera}.
+     */
+    public synchronized boolean isAttached() {
+        return mCamera != null;
+    }
+
+    /**
+     * @return The width of the frames delivered by the ring.
+     */
+    public synchronized int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return The height of the frames delivered by the ring.
+     */
+    public synchronized int getHeight() {
+        return mHeight;
+    }
+
+
+    //
+    // Camera attach/detach
+    //
+
+    /**
+     * Hands the ring's free buffers to a {@link android.hardware.Camera} and registers the ring as
+     * its buffered preview callback. Buffers the consumer still holds are queued when they are
+     * released. Buffers are only reallocated if the preview size changed since the last time the
+     * ring was attached, in which case frames still held are dropped when released.
+     * <p/>
+     * Should be called before {@link android.hardware.Camera#startPreview()}.
+     *
+     * @param camera The {@link android.hardware.Camera} that will fill the buffers.
+     * @param width  The width of the camera preview in pixels.
+     * @param height The height of the camera preview in pixels.
+     */
+    public synchronized void attach(Camera camera, int width, int height) {
+        final int frameSize = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        if (frameSize != mFrameSize || mBuffers[0] == null) {
+            for (int i = 0; i < mBuffers.length; i++) {
+                mBuffers[i] = new byte[frameSize];
+                mHeld[i] = false;
+            }
+            mFrameSize = frameSize;
+        }
+        mCamera = camera;
+        mWidth = width;
+        mHeight = height;
+
+        /*  Removing the callback clears the buffers the camera still has queued, so queue every
+        buffer the consumer does not hold. */
+        camera.setPreviewCallbackWithBuffer(null);
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (!mHeld[i]) {
+                camera.addCallbackBuffer(mBuffers[i]);
+            }
+        }
+        camera.setPreviewCallbackWithBuffer(this);
+    }
+
+    /**
+     * Unregisters the ring from its {@link android.hardware.Camera}, which also takes back every
+     * buffer queued with it. Frames released after detaching are kept by the ring until it is
+     * attached again.
+     */
+    public synchronized void detach() {
+        if (mCamera != null) {
+            mCamera.setPreviewCallbackWithBuffer(null);
+            mCamera = null;
+        }
+    }
+
+
+    //
+    // Frame recycling
+    //
+
+    /**
+     * Returns a frame to the camera so that it can be filled again, or keeps it free until the
+     * ring is attached again if it is detached. Releasing a frame that is not held does nothing.
+     *
+     * @param frame A frame previously delivered to
+     *              {@link FrameConsumer#onPreviewFrame(byte[], int, int, FrameOwner)}.
+     */
+    @Override
+    public synchronized void release(byte[] frame) {
+        final int index = indexOf(frame);
+        if (index < 0 || !mHeld[index]) {
+            return;
+        }
+        mHeld[index] = false;
+        if (mCamera != null) {
+            mCamera.addCallbackBuffer(frame);
+        }
+    }
+
+    /**
+     * Finds a frame in the current set of buffers. Frames from before the buffers were last
+     * reallocated have the wrong size and must not go back to the camera. Must be called while
+     * holding the ring's lock.
+     *
+     * @param frame The frame to find.
+     *
+     * @return The index of the frame in the ring or -1 if it is not one of the ring's buffers.
+     */
+    private int indexOf(byte[] frame) {
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mBuffers[i] == frame) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    //
+    // Camera.PreviewCallback implementation
+    //
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if (data == null) {
+            return;
+        }
+        final int width;
+        final int height;
+        synchronized (this) {
+            final int index = indexOf(data);
+            if (index < 0) {
+                return;
+            }
+            // The consumer holds the frame until it releases it.
+            mHeld[index] = true;
+            width = mWidth;
+            height = mHeight;
+        }
+        mTracer.end(LatencyTracer.FIRST_FRAME);
+        final FrameConsumer consumer = mConsumer;
+        if (consumer != null) {
+            consumer.onPreviewFrame(data, width, height, this);
+        } else {
+            release(data);
+        }
+    }
+
+}
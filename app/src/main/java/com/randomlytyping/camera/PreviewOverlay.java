@@ -18,46 +18,110 @@ package com.randomlytyping.camera;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
-import android.hardware.Camera;
+import android.os.SystemClock;
 import android.text.TextPaint;
 import android.util.AttributeSet;
 import android.view.View;
 
 /**
  * Created by Huyen Tue Dao on 5/27/14.
+ * <p/>
+ * Drawing allocates nothing per frame: face scores come from a table of preformatted strings, the
+ * thirds grid is rendered once into a cached bitmap, and face updates only invalidate the area
+ * covered by the old and new faces. The latency panel is only formatted again when new latencies
+ * were recorded.
  */
 public class PreviewOverlay extends View {
+    /**
+     * Time in milliseconds after the last face detection before it is determined there is "no face
+     * detected".
+     */
+    private static final long NO_FACE_DETECTED_DELAY = 80;
+
+    /**
+     * Highest face score reported by {@link android.hardware.Camera.Face#score}.
+     */
+    private static final int MAX_FACE_SCORE = 100;
+
+    /**
+     * Time in milliseconds between checks for new latencies while the latency panel is shown.
+     */
+    private static final long LATENCY_REFRESH_INTERVAL = 500;
+
+    /**
+     * Face scores 0 through {@link #MAX_FACE_SCORE}, formatted once.
+     */
+    private static final String[] SCORE_STRINGS = new String[MAX_FACE_SCORE + 1];
+
+    static {
+        for (int i = 0; i <= MAX_FACE_SCORE; i++) {
+            SCORE_STRINGS[i] = Integer.toString(i);
+        }
+    }
 
     // Thirds grid
     private boolean mShowGrid;
     private int mGridLineWidth;
     private int mGridBorderOffset;
-    private int mFirstX;
-    private int mFirstY;
-    private int mSecondX;
-    private int mSecondY;
-    private int mThirdX;
-    private int mThirdY;
     private Paint mGridLinePaint;
+    private Bitmap mGridBitmap;
 
     // Faces
     private boolean mShowFaceBounds;
     private boolean mShowFaceScore;
-    private Camera.Face[] mFaces;
+    private FaceModel mFaceModel;
+    private long mFaceExpiryInvalidateTime;
     private int mFaceBorderWidth;
     private int mFaceTextOffsetX;
     private int mFaceTextOffsetY;
+    private int mFaceBoundsPadding;
     private TextPaint mFacePaint;
 
+    // Latency panel
+    private LatencyTracer mLatencyTracer;
+    private long mLatencyRecordCount;
+    private long mLatencyInvalidateTime;
+    private final String[] mLatencyLines = new String[LatencyTracer.OPERATION_COUNT];
+    private final Rect mLatencyBounds = new Rect();
+    private TextPaint mLatencyPaint;
+    private Paint mLatencyBackgroundPaint;
+    private int mLatencyPadding;
+    private int mLatencyLineHeight;
+    private float mLatencyBaselineOffset;
+
+    // Dirty areas
+    private final Rect mDrawnFaceBounds = new Rect();
+    private final Rect mPendingFaceBounds = new Rect();
+    private final Rect mDirtyBounds = new Rect();
+    private boolean mInvalidateFacesPosted;
+    private final Runnable mInvalidateFacesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mPendingFaceBounds) {
+                mDirtyBounds.set(mPendingFaceBounds);
+                mPendingFaceBounds.setEmpty();
+                mInvalidateFacesPosted = false;
+            }
+            mDirtyBounds.union(mDrawnFaceBounds);
+            if (!mDirtyBounds.isEmpty()) {
+                invalidate(mDirtyBounds);
+            }
+        }
+    };
+
+    // Instrumentation
+    private DrawListener mDrawListener;
+
 
     //
     // Constructors/Initialization
     //
-    
+
     /**
      * Constructor.
      *
@@ -107,8 +171,22 @@ public class PreviewOverlay extends View {
         mFaceTextOffsetX = Math.round(Math.abs(mFacePaint.getFontMetrics().ascent));
         mFaceTextOffsetY = 2 * mFaceTextOffsetX;
 
+        // Pad face bounds so dirty areas cover the border and a score drawn in a small face.
+        mFaceBoundsPadding = paintBorderWidth + mFaceTextOffsetY
+                + (int) Math.ceil(mFacePaint.measureText(SCORE_STRINGS[MAX_FACE_SCORE]));
+
         // Show face score by default.
         mShowFaceScore = true;
+
+        // Set up latency panel paints.
+        mLatencyPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        mLatencyPaint.setColor(Color.WHITE);
+        mLatencyPaint.setTextSize(Math.round(density * 12));
+        mLatencyBackgroundPaint = new Paint();
+        mLatencyBackgroundPaint.setColor(0x99000000);
+        mLatencyPadding = Math.round(density * 4);
+        mLatencyLineHeight = (int) Math.ceil(mLatencyPaint.getFontSpacing());
+        mLatencyBaselineOffset = -mLatencyPaint.getFontMetrics().ascent;
     }
 
     /**
@@ -132,59 +210,257 @@ public class PreviewOverlay extends View {
         invalidate();
     }
 
-    public void setFaces(Camera.Face[] faces) {
-        mFaces = faces;
+    /**
+     * Sets the model holding the detected faces to draw.
+     *
+     * @param faceModel The {@link FaceModel} whose faces are in view coordinates or null to stop
+     *                  drawing faces.
+     */
+    public void setFaceModel(FaceModel faceModel) {
+        mFaceModel = faceModel;
+        invalidate();
+    }
+
+    /**
+     * Redraws the faces after a new detection was published to the face model, invalidating only
+     * the area covered by the new faces and the faces currently drawn. May be called from any
+     * thread since face detection callbacks arrive on the thread that opened the camera.
+     *
+     * @param left   The left edge of the new faces' bounds in view coordinates.
+     * @param top    The top edge of the new faces' bounds in view coordinates.
+     * @param right  The right edge of the new faces' bounds in view coordinates.
+     * @param bottom The bottom edge of the new faces' bounds in view coordinates.
+     */
+    public void invalidateFaces(float left, float top, float right, float bottom) {
+        synchronized (mPendingFaceBounds) {
+            mPendingFaceBounds.union(
+                    (int) left - mFaceBoundsPadding,
+                    (int) top - mFaceBoundsPadding,
+                    (int) Math.ceil(right) + mFaceBoundsPadding,
+                    (int) Math.ceil(bottom) + mFaceBoundsPadding);
+            if (mInvalidateFacesPosted) {
+                return;
+            }
+            mInvalidateFacesPosted = true;
+        }
+        post(mInvalidateFacesRunnable);
+    }
+
+    /**
+     * Sets the tracer whose latency percentiles are shown in a panel in the top left corner.
+     *
+     * @param latencyTracer The {@link LatencyTracer} or null to hide the panel.
+     */
+    public void setLatencyTracer(LatencyTracer latencyTracer) {
+        mLatencyTracer = latencyTracer;
+        // Format the lines on the next draw.
+        mLatencyRecordCount = -1;
         invalidate();
     }
 
+    /**
+     * Sets a listener notified of how long each draw took.
+     *
+     * @param drawListener The {@link DrawListener} or null to stop timing draws.
+     */
+    public void setDrawListener(DrawListener drawListener) {
+        mDrawListener = drawListener;
+    }
+
+
     //
     // View overrides
     //
 
     @Override
-    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
-        if (changed && mShowGrid) {
-            final int width = right - left;
-            final int height = bottom - top;
-
-            mFirstX = left + Math.round(width / 3f);
-            mFirstY = top + Math.round(height / 3f);
-            mSecondX = left + Math.round(width * 2f / 3f);
-            mSecondY = left + Math.round(height * 2f / 3f);
-            mThirdX = right - mGridBorderOffset;
-            mThirdY = bottom - mGridBorderOffset;
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        // The grid is redrawn at the new size the next time it is shown.
+        if (mGridBitmap != null) {
+            mGridBitmap.recycle();
+            mGridBitmap = null;
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        if (mGridBitmap != null) {
+            mGridBitmap.recycle();
+            mGridBitmap = null;
         }
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
+        final DrawListener drawListener = mDrawListener;
+        final long startTime = drawListener != null ? System.nanoTime() : 0;
+
         // Draw the thirds grid if enabled.
         if (mShowGrid) {
-            final int width = canvas.getWidth();
-            canvas.drawLine(mGridBorderOffset, mGridBorderOffset, width, mGridBorderOffset, mGridLinePaint);
-            canvas.drawLine(mGridBorderOffset, mFirstY, width, mFirstY, mGridLinePaint);
-            canvas.drawLine(mGridBorderOffset, mSecondY, width, mSecondY, mGridLinePaint);
-            canvas.drawLine(mGridBorderOffset, mThirdY, width, mThirdY, mGridLinePaint);
-            final int height = canvas.getHeight();
-            canvas.drawLine(mGridBorderOffset, mGridBorderOffset, mGridBorderOffset, height, mGridLinePaint);
-            canvas.drawLine(mFirstX, mGridBorderOffset, mFirstX, height, mGridLinePaint);
-            canvas.drawLine(mSecondX, mGridBorderOffset, mSecondX, height, mGridLinePaint);
-            canvas.drawLine(mThirdX, mGridBorderOffset, mThirdX, height, mGridLinePaint);
+            if (mGridBitmap == null) {
+                mGridBitmap = createGridBitmap(getWidth(), getHeight());
+            }
+            if (mGridBitmap != null) {
+                canvas.drawBitmap(mGridBitmap, 0, 0, null);
+            }
         }
-        if (mShowFaceBounds && mFaces != null) {
-            for (Camera.Face face: mFaces) {
-                final Rect faceBounds = face.rect;
-                final int x = faceBounds.left;
-                final int y = faceBounds.top;
-                if (mShowFaceScore) {
-                    canvas.drawRect(x, y, faceBounds.right, faceBounds.bottom, mFacePaint);
-                    canvas.drawText(
-                            String.format("%d", face.score),
-                            x + mFaceTextOffsetX, y + mFaceTextOffsetY,
-                            mFacePaint
-                    );
+
+        mDrawnFaceBounds.setEmpty();
+        final FaceModel faceModel = mFaceModel;
+        if (mShowFaceBounds && faceModel != null) {
+            // Take the latest detection, then skip it if no detection arrived for a while.
+            faceModel.swap();
+            final long timestamp = faceModel.getTimestamp();
+            final long expiryTime = timestamp + NO_FACE_DETECTED_DELAY;
+            final long now = SystemClock.uptimeMillis();
+            if (timestamp != FaceModel.NO_TIMESTAMP && now < expiryTime) {
+                final int count = faceModel.getFaceCount();
+                for (int i = 0; i < count; i++) {
+                    final float x = faceModel.getLeft(i);
+                    final float y = faceModel.getTop(i);
+                    final float right = faceModel.getRight(i);
+                    final float bottom = faceModel.getBottom(i);
+                    if (mShowFaceScore) {
+                        canvas.drawRect(x, y, right, bottom, mFacePaint);
+                        canvas.drawText(
+                                getScoreString(faceModel.getScore(i)),
+                                x + mFaceTextOffsetX, y + mFaceTextOffsetY,
+                                mFacePaint
+                        );
+                    }
+                    mDrawnFaceBounds.union(
+                            (int) x - mFaceBoundsPadding,
+                            (int) y - mFaceBoundsPadding,
+                            (int) Math.ceil(right) + mFaceBoundsPadding,
+                            (int) Math.ceil(bottom) + mFaceBoundsPadding);
+                }
+                /*  Redraw once the faces expire in case no further detection arrives, keeping at most
+                one such redraw pending. */
+                if (count > 0 && mFaceExpiryInvalidateTime <= now) {
+                    mFaceExpiryInvalidateTime = expiryTime;
+                    postInvalidateDelayed(expiryTime - now,
+                            mDrawnFaceBounds.left, mDrawnFaceBounds.top,
+                            mDrawnFaceBounds.right, mDrawnFaceBounds.bottom);
                 }
             }
         }
+
+        final LatencyTracer latencyTracer = mLatencyTracer;
+        if (latencyTracer != null) {
+            drawLatencyPanel(canvas, latencyTracer);
+        }
+
+        if (drawListener != null) {
+            drawListener.onOverlayDrawn(System.nanoTime() - startTime);
+        }
+    }
+
+
+    //
+    // Drawing helpers
+    //
+
+    /**
+     * Renders the thirds grid into a bitmap the size of the view.
+     *
+     * @param width  The width of the view.
+     * @param height The height of the view.
+     *
+     * @return The grid bitmap or null if the view has no size yet.
+     */
+    private Bitmap createGridBitmap(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+
+        final int firstX = Math.round(width / 3f);
+        final int firstY = Math.round(height / 3f);
+        final int secondX = Math.round(width * 2f / 3f);
+        final int secondY = Math.round(height * 2f / 3f);
+        final int thirdX = width - mGridBorderOffset;
+        final int thirdY = height - mGridBorderOffset;
+
+        canvas.drawLine(mGridBorderOffset, mGridBorderOffset, width, mGridBorderOffset, mGridLinePaint);
+        canvas.drawLine(mGridBorderOffset, firstY, width, firstY, mGridLinePaint);
+        canvas.drawLine(mGridBorderOffset, secondY, width, secondY, mGridLinePaint);
+        canvas.drawLine(mGridBorderOffset, thirdY, width, thirdY, mGridLinePaint);
+        canvas.drawLine(mGridBorderOffset, mGridBorderOffset, mGridBorderOffset, height, mGridLinePaint);
+        canvas.drawLine(firstX, mGridBorderOffset, firstX, height, mGridLinePaint);
+        canvas.drawLine(secondX, mGridBorderOffset, secondX, height, mGridLinePaint);
+        canvas.drawLine(thirdX, mGridBorderOffset, thirdX, height, mGridLinePaint);
+        return bitmap;
+    }
+
+    /**
+     * Draws the latency percentiles, formatting them again only if new latencies were recorded,
+     * and schedules the next check for new latencies unless one is already pending.
+     */
+    private void drawLatencyPanel(Canvas canvas, LatencyTracer latencyTracer) {
+        final long recordCount = latencyTracer.getRecordCount();
+        if (recordCount != mLatencyRecordCount) {
+            mLatencyRecordCount = recordCount;
+            float width = 0;
+            for (int i = 0; i < mLatencyLines.length; i++) {
+                mLatencyLines[i] = latencyTracer.format(i);
+                width = Math.max(width, mLatencyPaint.measureText(mLatencyLines[i]));
+            }
+            final int oldRight = mLatencyBounds.right;
+            final int oldBottom = mLatencyBounds.bottom;
+            mLatencyBounds.set(0, 0, (int) Math.ceil(width) + 2 * mLatencyPadding,
+                    mLatencyLines.length * mLatencyLineHeight + 2 * mLatencyPadding);
+            // Clear what a wider panel left behind, such as after the tracer was reset.
+            if (oldRight > mLatencyBounds.right || oldBottom > mLatencyBounds.bottom) {
+                invalidate(0, 0, oldRight, oldBottom);
+            }
+        }
+
+        canvas.drawRect(mLatencyBounds, mLatencyBackgroundPaint);
+        for (int i = 0; i < mLatencyLines.length; i++) {
+            canvas.drawText(mLatencyLines[i], mLatencyPadding,
+                    mLatencyPadding + i * mLatencyLineHeight + mLatencyBaselineOffset,
+                    mLatencyPaint);
+        }
+        // Other redraws, such as for faces, must not pile up further checks.
+        final long now = SystemClock.uptimeMillis();
+        if (mLatencyInvalidateTime <= now) {
+            mLatencyInvalidateTime = now + LATENCY_REFRESH_INTERVAL;
+            postInvalidateDelayed(LATENCY_REFRESH_INTERVAL, mLatencyBounds.left,
+                    mLatencyBounds.top, mLatencyBounds.right, mLatencyBounds.bottom);
+        }
+    }
+
+    /**
+     * Returns the preformatted string for a face score.
+     *
+     * @param score A face score, clamped to 0 through {@link #MAX_FACE_SCORE}.
+     *
+     * @return The score as a string.
+     */
+    private static String getScoreString(int score) {
+        return SCORE_STRINGS[Math.max(0, Math.min(score, MAX_FACE_SCORE))];
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for a callback to be invoked after the overlay draws, used to measure
+     * the cost of the overlay.
+     */
+    public interface DrawListener {
+
+        /**
+         * Called on the main thread at the end of {@link PreviewOverlay#onDraw(android.graphics.Canvas)}.
+         *
+         * @param drawTimeNanos The time spent drawing the overlay in nanoseconds.
+         */
+        void onOverlayDrawn(long drawTimeNanos);
     }
 }
@@ -17,9 +17,9 @@
 package com.randomlytyping.camera;
 
 import android.content.Context;
-import android.hardware.Camera;
 import android.os.Build;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.Display;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -27,7 +27,6 @@ import android.view.SurfaceView;
 import android.view.WindowManager;
 
 import java.io.IOException;
-import java.util.List;
 
 /**
  * Created by Huyen Tue Dao on 5/6/14.
@@ -40,6 +39,11 @@ public class PreviewSurface extends SurfaceView implements SurfaceHolder.Callbac
     @SuppressWarnings("unused")
     private static final String TAG = "PreviewSurface";
 
+    /**
+     * Preview size selections shared by every PreviewSurface so they survive activity recreation.
+     */
+    private static final PreviewSizeSelector sPreviewSizeSelector = new PreviewSizeSelector();
+
 
     //
     // Camera preview state constants
@@ -52,8 +56,8 @@ public class PreviewSurface extends SurfaceView implements SurfaceHolder.Callbac
 
     /**
      * Indicates that there surface has not yet been created or has been destroyed and so the camera
-     * preview cannot be started or stopped yet. There may be a {@link android.hardware.Camera}
-     * associated with the PreviewSurface at this point.
+     * preview cannot be started or stopped yet. There may be a {@link CameraSource} associated
+     * with the PreviewSurface at this point.
      */
     public static final int PREVIEW_STATE_NO_SURFACE = 0;
 
@@ -81,9 +85,24 @@ public class PreviewSurface extends SurfaceView implements SurfaceHolder.Callbac
     //
 
     // Camera
-    private Camera mCamera;
-    private Camera.CameraInfo mCameraInfo;
-    private Camera.Size mPreviewSize;
+    private CameraSource mSource;
+    private int mCameraId;
+    private CameraController mController;
+    private final FrameDispatcher mFrames = new FrameDispatcher();
+    private final FrameRateMonitor mFrameRateMonitor = new FrameRateMonitor();
+    private final int[] mFpsRange = new int[2];
+    private final CameraController.StartPreviewCallback mStartPreviewCallback =
+            new CameraController.StartPreviewCallback() {
+                @Override
+                public void onPreviewStarted() {
+                    notifyPreviewStart();
+                }
+
+                @Override
+                public void onPreviewFailed(IOException error) {
+                    mState = PREVIEW_STATE_ERROR;
+                }
+            };
 
     // Preview state
     private int mState;
@@ -123,6 +142,8 @@ public class PreviewSurface extends SurfaceView implements SurfaceHolder.Callbac
      * Initialization helper for constructors.
      */
     private void init(Context context) {
+        mFrames.setFrameRateMonitor(mFrameRateMonitor);
+
         final SurfaceHolder holder = getHolder();
 
         /*
@@ -163,26 +184,88 @@ public class PreviewSurface extends SurfaceView implements SurfaceHolder.Callbac
     }
 
     /**
-     * Sets the {@link android.hardware.Camera} instance that will utilize the PreviewView to
-     * display its preview.
+     * Sets the {@link CameraSource} that will utilize the PreviewView to display its preview.
+     *
+     * @param source The open {@link CameraSource} or null.
+     */
+    public void setCameraSource(CameraSource source) {
+        setCameraSource(source, PreviewSizeSelector.NO_CAMERA_ID);
+    }
+
+    /**
+     * Sets the {@link CameraSource} that will utilize the PreviewView to display its preview. The
+     * preview is started, stopped and configured through the {@link CameraController} that opened
+     * the source, which must be set first.
      *
-     * @param camera            The {@link android.hardware.Camera} that will utilize the
-     *                          PreviewView to display its preview.
-     * @param cameraInfo        A {@link android.hardware.Camera.CameraInfo} containing information
-     *                          on the passed {@code camera}.
+     * @param source   The open {@link CameraSource} or null.
+     * @param cameraId The ID of the open camera, used to remember the preview size selected for
+     *                 each camera.
      */
-    public void setCamera(Camera camera, Camera.CameraInfo cameraInfo) {
-        // Only set the camera if we only have one of the two to maintain consistency.
-        if (camera == null ^ cameraInfo == null) {
-            return;
+    public void setCameraSource(CameraSource source, int cameraId) {
+        if (source != mSource) {
+            mFrameRateMonitor.reset();
         }
-        mCamera = camera;
-        mCameraInfo = cameraInfo;
+        mSource = source;
+        mCameraId = cameraId;
+    }
+
+    /**
+     * Sets the {@link CameraController} used to start, stop and configure the camera preview off
+     * the UI thread.
+     *
+     * @param controller The {@link CameraController} that opens the camera.
+     */
+    public void setCameraController(CameraController controller) {
+        mController = controller;
+    }
+
+    /**
+     * @return The {@link FrameRateMonitor} every preview frame is reported to, for the frame rate,
+     * jitter and gaps of the preview.
+     */
+    public FrameRateMonitor getFrameRateMonitor() {
+        return mFrameRateMonitor;
+    }
+
+    /**
+     * Sets the recorder the preview frames and preview size are appended to, so that the session can be
+     * replayed with a {@link TraceReplayer}.
+     *
+     * @param traceRecorder The {@link TraceRecorder} or null to stop recording.
+     */
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        mFrames.setTraceRecorder(traceRecorder);
+    }
+
+    /**
+     * Sets a consumer for the camera preview frames. Frames come from the buffers of the {@link
+     * CameraSource}, sized for the current preview size, so that no buffers are allocated while the
+     * preview runs.
+     *
+     * @param consumer The {@link FrameConsumer} that will receive preview frames or null to stop
+     *                 receiving preview frames. Frames keep flowing without a consumer so that the
+     *                 {@link FrameRateMonitor} sees them.
+     */
+    public void setFrameConsumer(FrameConsumer consumer) {
+        mFrames.setConsumer(consumer);
     }
 
     public void updatePreviewOrientation() {
+        if (mSource != null) {
+            updatePreviewOrientation(mSource);
+        }
+    }
+
+    /**
+     * Rotates the preview of a camera to match the current display rotation.
+     *
+     * @param source The {@link CameraSource} to rotate the preview of.
+     *
+     * @return The clockwise rotation of the preview in degrees.
+     */
+    private int updatePreviewOrientation(CameraSource source) {
         if (mDefaultDisplay == null) {
-            return;
+            return 0;
         }
         int degrees = 0;
         switch (mDefaultDisplay.getRotation()) {
@@ -201,13 +284,14 @@ public class PreviewSurface extends SurfaceView implements SurfaceHolder.Callbac
         }
 
         int result;
-        if (mCameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            result = (mCameraInfo.orientation + degrees) % 360;
+        if (source.isFrontFacing()) {
+            result = (source.getSensorOrientation() + degrees) % 360;
             result = (360 - result) % 360;
         } else {
-            result = (mCameraInfo.orientation - degrees + 360) % 360;
+            result = (source.getSensorOrientation() - degrees + 360) % 360;
         }
-        mCamera.setDisplayOrientation(result);
+        mController.setDisplayOrientation(result);
+        return result;
     }
 
 
@@ -223,61 +307,36 @@ public class PreviewSurface extends SurfaceView implements SurfaceHolder.Callbac
      * Resets the camera preview by removing the open camera and its information.
      */
     public void reset() {
-        setCamera(null, null);
+        setCameraSource(null);
     }
 
-    private void updatePreviewSize(int width, int height) {
-        if (mCamera == null) {
-            return;
-        }
-
-        final Camera.Parameters parameters = mCamera.getParameters();
-        final List<Camera.Size> supportedPreviewSizes = parameters.getSupportedPreviewSizes();
-        final boolean landscape = width > height;
-        Camera.Size previewSize = findBestMatchingPreview(
-                supportedPreviewSizes,
-                width,
-                height,
-                landscape
-        );
-        if (previewSize == null) {
-            previewSize = landscape
-                    ? findLargestPreview(supportedPreviewSizes, width, height)
-                    : findLargestPreview(supportedPreviewSizes, height, width);
+    /**
+     * Selects the preview size of a camera for a surface size and applies it, restarting the
+     * preview.
+     *
+     * @param source      The {@link CameraSource} to configure.
+     * @param cameraId    The ID of the open camera.
+     * @param width       The width of the surface.
+     * @param height      The height of the surface.
+     * @param orientation The clockwise rotation of the preview in degrees.
+     */
+    private void updatePreviewSize(CameraSource source, int cameraId, int width, int height,
+                                   int orientation) {
+        final int[] sizes = source.getSupportedPreviewSizes();
+        int index = sPreviewSizeSelector.getSelection(cameraId, width, height, orientation);
+        if (index == PreviewSizeSelector.NO_SIZE || index * 2 >= sizes.length) {
+            index = sPreviewSizeSelector.select(cameraId, width, height, orientation, sizes);
         }
-        mPreviewSize = previewSize;
-            parameters.setPreviewSize(previewSize.width, previewSize.height);
-        mCamera.setParameters(parameters);
-    }
-
-    private Camera.Size findBestMatchingPreview(List<Camera.Size> previewSizes,
-                                                float surfaceWidth, float surfaceHeight,
-                                                boolean landscape) {
-        final float surfaceAspectRatio = landscape
-                ? surfaceWidth / surfaceHeight
-                : surfaceHeight / surfaceWidth;
-        float delta = 0.01f;
-        while (delta < 1f) {
-            for (Camera.Size size : previewSizes) {
-                final float previewAspectRatio =  (float) size.width / (float) size.height;
-                final float difference = Math.abs(surfaceAspectRatio - previewAspectRatio);
-                if (size.width < surfaceWidth && size.height < surfaceHeight && difference < 0.1) {
-                    return size;
-                }
-            }
-            delta *= 10f;
+        if (index != PreviewSizeSelector.NO_SIZE) {
+            mController.setPreviewSize(sizes[index * 2], sizes[index * 2 + 1], true);
+        } else {
+            mController.restartPreview();
         }
-        return null;
-    }
 
-    private Camera.Size findLargestPreview(List<Camera.Size> previewSizes,
-                                           float surfaceWidth, float surfaceHeight) {
-        for (Camera.Size size : previewSizes) {
-            if (size.width < surfaceWidth && size.height < surfaceHeight) {
-                return size;
-            }
+        // Gaps are measured against the frame rate the camera is configured for.
+        if (source.getPreviewFpsRange(mFpsRange)) {
+            mFrameRateMonitor.setFpsRange(mFpsRange[0], mFpsRange[1]);
         }
-        return null;
     }
 
 
@@ -286,35 +345,32 @@ public class PreviewSurface extends SurfaceView implements SurfaceHolder.Callbac
     //
 
     public void start() {
-        if (mCamera != null && (mState >= PREVIEW_STATE_READY)) {
-            /*
-                Try setting up the PreviewSurface to be the passed Camera's preview display. If for
-            some reason it errors, then change the state of the PreviewSurface to indicate this.
-             */
-            try {
-                mCamera.setPreviewDisplay(getHolder());
-            } catch (IOException e) {
-                mState = PREVIEW_STATE_ERROR;
-                return;
-            }
-
-            // Actually start the camera preview and update the state variable.
-            mCamera.startPreview();
+        if (mSource != null && (mState >= PREVIEW_STATE_READY)) {
+            /*  Start the preview on the camera thread. The callback notifies the listener or
+            changes the state of the PreviewSurface if setting the preview display fails. */
+            mController.startPreview(getHolder(), mFrames, mStartPreviewCallback);
             mState = PREVIEW_STATE_STARTED;
+        }
+    }
 
-            /*  If there is a listener for the preview state change, then notify it that the preview
-            started. */
-            if (mPreviewStateChangeListener != null) {
-                mPreviewStateChangeListener.onPreviewStart();
-            }
+    /**
+     * If there is a listener for the preview state change, then notify it that the preview
+     * started.
+     */
+    private void notifyPreviewStart() {
+        if (mPreviewStateChangeListener != null) {
+            mPreviewStateChangeListener.onPreviewStart();
         }
     }
 
     public void stop() {
-        if (mCamera != null) {
+        if (mSource != null) {
             // If there is a valid camera then stop its preview and update the state variable.
-            mCamera.stopPreview();
+            mController.stopPreview();
             mState = PREVIEW_STATE_STOPPED;
+            if (mFrameRateMonitor.getFrameCount() > 0) {
+                Log.d(TAG, String.format("Preview pacing: %s", mFrameRateMonitor));
+            }
 
 
             /*  If there is a listener for the preview state change, then notify it that the preview
@@ -338,23 +394,21 @@ public class PreviewSurface extends SurfaceView implements SurfaceHolder.Callbac
 
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-        if (mCamera != null) {
-            mState = PREVIEW_STATE_STOPPED;
-            mCamera.stopPreview();
-
-            updatePreviewOrientation();
-            updatePreviewSize(getMeasuredWidth(), getMeasuredHeight());
-
-            mCamera.startPreview();
+        if (mSource != null) {
+            // Reconfigured on the camera thread after any pending camera operations.
+            final int orientation = updatePreviewOrientation(mSource);
+            updatePreviewSize(mSource, mCameraId, getMeasuredWidth(), getMeasuredHeight(),
+                    orientation);
             mState = PREVIEW_STATE_STARTED;
         }
     }
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        // If the surface is destroyed, stop the camera preview.
-        if (mCamera != null) {
-            mCamera.stopPreview();
+        /*  If the surface is destroyed, stop the camera preview. This happens synchronously even
+        with a camera controller since the surface is gone as soon as this callback returns. */
+        if (mSource != null) {
+            mController.stopPreviewNow();
         }
 
         mState = PREVIEW_STATE_NO_SURFACE;
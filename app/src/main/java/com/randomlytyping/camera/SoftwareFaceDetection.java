@@ -0,0 +1,307 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The SoftwareFaceDetection class runs a {@link CascadeFaceDetector} on preview frames, for
+ * cameras that cannot detect faces themselves.
+ * <p/>
+ * As a {@link FrameConsumer}, it downscales a frame with a {@link
+ * FrameDownscaler} only when the detector is idle and due, hands every camera buffer straight
+ * back, and detects faces on a background thread. The rate adapts to the device: after each
+ * detection, the next one waits long enough that the detector thread is busy at most {@link
+ * #DEFAULT_DUTY_CYCLE} of the time. Frames are therefore skipped by the detector, never held back
+ * from the camera, so detection never drops preview frames.
+ */
+public class SoftwareFaceDetection implements FrameConsumer {
+    /**
+     * Class tag for logging.
+     */
+    @SuppressWarnings("unused")
+    private static final String TAG = "SoftwareFaceDetection";
+
+    /**
+     * Default largest number of faces reported.
+     */
+    public static final int DEFAULT_MAX_FACES = 5;
+
+    /**
+     * Largest width and height of the frames faces are detected in. A face must be at least
+     * {@link CascadeFaceDetector#WINDOW_SIZE} pixels wide at this size to be found.
+     */
+    public static final int DEFAULT_DETECTION_SIZE = 160;
+
+    /**
+     * Default fraction of the time the detector thread may be busy.
+     */
+    public static final float DEFAULT_DUTY_CYCLE = 0.5f;
+
+    /**
+     * Shortest time between the starts of two detections, so that fast devices do not detect
+     * faces more often than the overlay can show them.
+     */
+    private static final long MIN_INTERVAL_MS = 66;
+
+    /**
+     * Name of the detector thread.
+     */
+    private static final String THREAD_NAME = "SoftwareFaceDetection";
+
+    /**
+     * Time the detector thread stays alive once it runs out of work.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 5;
+
+    // Shared detector thread, created on first use.
+    private static ThreadPoolExecutor sExecutor;
+
+    // Detection, touched only by the detector thread once a frame is handed over
+    private final FrameDownscaler mDownscaler;
+    private final CascadeFaceDetector mDetector = new CascadeFaceDetector();
+    private final int mMaxFaces;
+    private final float[] mRects;
+    private final int[] mScores;
+
+    // Frame handed to the detector thread, guarded by mBusy
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+    private byte[] mFrame;
+    private int mFrameWidth;
+    private int mFrameHeight;
+    private int mFrameRotation;
+    private int mFrameGeneration;
+
+    // Configuration
+    private volatile int mRotation;
+    private volatile float mDutyCycle = DEFAULT_DUTY_CYCLE;
+    private volatile Listener mListener;
+
+    // Rate
+    private volatile long mNextDetectionTime;
+    private volatile long mLastDetectionNanos;
+
+    /**
+     * Incremented by {@link #reset()}, so that faces found in a frame from a previous camera are
+     * never reported.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /**
+     * Detects faces in the frame handed over in {@link #mFrame}.
+     */
+    private final Runnable mDetectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            detect();
+        }
+    };
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Reports up to {@link #DEFAULT_MAX_FACES} faces.
+     */
+    public SoftwareFaceDetection() {
+        this(DEFAULT_MAX_FACES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxFaces The largest number of faces reported.
+     */
+    public SoftwareFaceDetection(int maxFaces) {
+        mMaxFaces = Math.max(maxFaces, 1);
+        mRects = new float[mMaxFaces * FaceModel.RECT_STRIDE];
+        mScores = new int[mMaxFaces];
+        // A single buffer is enough since a frame is only downscaled while the detector is idle.
+        mDownscaler = new FrameDownscaler(DEFAULT_DETECTION_SIZE, DEFAULT_DETECTION_SIZE, 1);
+    }
+
+
+    //
+    // Getters/Setters
+    //
+
+    /**
+     * @return The largest number of faces reported.
+     */
+    public int getMaxFaces() {
+        return mMaxFaces;
+    }
+
+    /**
+     * Sets the clockwise rotation that makes preview frames upright on the display, as returned
+     * by {@link Preview#getFrameRotation()}. Faces are only found upright.
+     *
+     * @param rotation The rotation in degrees: 0, 90, 180 or 270.
+     */
+    public void setFrameRotation(int rotation) {
+        mRotation = rotation;
+    }
+
+    /**
+     * Sets the fraction of the time the detector thread may be busy. Lower values leave more of
+     * the CPU to the rest of the app at the cost of slower face tracking.
+     *
+     * @param dutyCycle The fraction, greater than 0 and at most 1.
+     */
+    public void setDutyCycle(float dutyCycle) {
+        mDutyCycle = Math.min(Math.max(dutyCycle, 0.05f), 1);
+    }
+
+    /**
+     * Sets the listener notified of detected faces.
+     *
+     * @param listener The {@link Listener} or null.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return How long the last detection took in nanoseconds, excluding downscaling.
+     */
+    public long getLastDetectionNanos() {
+        return mLastDetectionNanos;
+    }
+
+    /**
+     * Drops the detection in progress, if any. Should be called when the camera changes.
+     */
+    public void reset() {
+        mGeneration.incrementAndGet();
+        mNextDetectionTime = 0;
+    }
+
+
+    //
+    // Detection
+    //
+
+    /**
+     * Runs on the detector thread.
+     */
+    private void detect() {
+        final long start = System.nanoTime();
+        final int count = mDetector.detect(mFrame, mFrameWidth, mFrameHeight, mFrameRotation,
+                mRects, mScores, mMaxFaces);
+        final long elapsed = System.nanoTime() - start;
+        mDownscaler.release(mFrame);
+        mFrame = null;
+
+        // Wait long enough after this detection to stay within the duty cycle.
+        final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(elapsed);
+        final long interval = (long) (elapsedMs / mDutyCycle);
+        mNextDetectionTime = SystemClock.uptimeMillis() - elapsedMs
+                + Math.max(interval, MIN_INTERVAL_MS);
+        mLastDetectionNanos = elapsed;
+
+        final Listener listener = mListener;
+        if (listener != null && mFrameGeneration == mGeneration.get()) {
+            listener.onFacesDetected(count, mRects, mScores);
+        }
+        mBusy.set(false);
+    }
+
+    /**
+     * Returns the shared detector executor, creating it on first use.
+     */
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(
+                    1, 1,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, THREAD_NAME);
+                        }
+                    });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+
+    //
+    // FrameConsumer implementation
+    //
+
+    @Override
+    public void onPreviewFrame(byte[] data, int width, int height, FrameOwner owner) {
+        byte[] frame = null;
+        if (SystemClock.uptimeMillis() >= mNextDetectionTime && mBusy.compareAndSet(false, true)) {
+            frame = mDownscaler.downscale(data, width, height);
+            if (frame == null) {
+                mBusy.set(false);
+            }
+        }
+        // The camera gets its buffer back before detection even starts.
+        owner.release(data);
+
+        if (frame != null) {
+            mFrame = frame;
+            mFrameWidth = mDownscaler.getOutputWidth();
+            mFrameHeight = mDownscaler.getOutputHeight();
+            mFrameRotation = mRotation;
+            mFrameGeneration = mGeneration.get();
+            getExecutor().execute(mDetectRunnable);
+        }
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for a callback to be invoked when faces are detected.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the detector thread after every detection, including those that found no
+         * face. The arrays are reused by the next detection.
+         *
+         * @param count  The number of faces found.
+         * @param rects  {@link FaceModel#RECT_STRIDE} floats per face in {@link
+         *               android.hardware.Camera.Face#rect} coordinates.
+         * @param scores The score of each face, 1 to 100.
+         */
+        void onFacesDetected(int count, float[] rects, int[] scores);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.view.SurfaceHolder;
+
+/**
+ * The SurfaceFrameRenderer class draws the NV21 preview frames of a {@link CameraSource} that has
+ * no preview display of its own, such as a {@link SyntheticCameraSource}, onto a {@link
+ * android.view.SurfaceHolder}, rotated and mirrored as a camera would display them.
+ * <p/>
+ * Frames are converted into one reused {@link android.graphics.Bitmap} and drawn on the thread
+ * they are delivered on. The surface may be changed from any thread.
+ */
+public class SurfaceFrameRenderer implements CameraSource.FrameCallback {
+    /**
+     * Class tag for logging.
+     */
+    @SuppressWarnings("unused")
+    private static final String TAG = "SurfaceFrameRenderer";
+
+    // Surface
+    private SurfaceHolder mHolder;
+    private int mDisplayOrientation;
+    private boolean mMirror;
+
+    // Drawing
+    private final YuvConverter mConverter = new YuvConverter(1);
+    private final Matrix mMatrix = new Matrix();
+    private Bitmap mBitmap;
+    private int[] mPixels;
+
+
+    //
+    // Getters/Setters
+    //
+
+    /**
+     * Sets the surface frames are drawn on.
+     *
+     * @param holder The {@link android.view.SurfaceHolder} or null to stop drawing.
+     */
+    public synchronized void setSurface(SurfaceHolder holder) {
+        mHolder = holder;
+    }
+
+    /**
+     * Sets how frames are turned to be upright on the display.
+     *
+     * @param degrees The clockwise rotation of frames on the display: 0, 90, 180 or 270.
+     * @param mirror  Whether frames are mirrored horizontally, as for a front-facing camera.
+     */
+    public synchronized void setDisplayOrientation(int degrees, boolean mirror) {
+        mDisplayOrientation = degrees;
+        mMirror = mirror;
+    }
+
+
+    //
+    // CameraSource.FrameCallback implementation
+    //
+
+    @Override
+    public synchronized void onFrame(byte[] data, int width, int height, long timestampNanos) {
+        if (mHolder == null) {
+            return;
+        }
+        if (mBitmap == null || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+            mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mPixels = new int[width * height];
+        }
+        mConverter.convert(data, YuvConverter.FORMAT_NV21, width, height, mPixels);
+        mBitmap.setPixels(mPixels, 0, width, 0, 0, width, height);
+
+        final Canvas canvas = mHolder.lockCanvas();
+        if (canvas == null) {
+            return;
+        }
+        try {
+            final boolean sideways = mDisplayOrientation % 180 != 0;
+            final float scale = Math.min(
+                    (float) canvas.getWidth() / (sideways ? height : width),
+                    (float) canvas.getHeight() / (sideways ? width : height));
+            // Center the frame on the origin, mirror and rotate it, then center it on the canvas.
+            mMatrix.setTranslate(-width * 0.5f, -height * 0.5f);
+            if (mMirror) {
+                mMatrix.postScale(-1, 1);
+            }
+            mMatrix.postRotate(mDisplayOrientation);
+            mMatrix.postScale(scale, scale);
+            mMatrix.postTranslate(canvas.getWidth() * 0.5f, canvas.getHeight() * 0.5f);
+            canvas.drawColor(Color.BLACK);
+            canvas.drawBitmap(mBitmap, mMatrix, null);
+        } finally {
+            mHolder.unlockCanvasAndPost(canvas);
+        }
+    }
+}
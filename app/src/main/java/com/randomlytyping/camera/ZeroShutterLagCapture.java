@@ -0,0 +1,305 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ZeroShutterLagCapture class takes pictures from the camera preview instead of with {@link
+ * android.hardware.Camera#takePicture(android.hardware.Camera.ShutterCallback,
+ * android.hardware.Camera.PictureCallback, android.hardware.Camera.PictureCallback)}, avoiding its
+ * shutter lag.
+ * <p/>
+ * As a {@link FrameConsumer}, it copies the latest few NV21 preview frames into
+ * preallocated buffers, time-stamped on arrival, and hands every camera buffer straight back. On
+ * {@link #capture(long, int, CaptureCallback)}, the frame closest to the moment the shutter was
+ * pressed is encoded to JPEG on a background thread. Pictures are limited to the preview size.
+ */
+public class ZeroShutterLagCapture implements FrameConsumer {
+    /**
+     * Class tag for logging.
+     */
+    @SuppressWarnings("unused")
+    private static final String TAG = "ZeroShutterLagCapture";
+
+    /**
+     * Default number of frames kept: a little over 100 ms of preview at 30 fps.
+     */
+    public static final int DEFAULT_FRAME_COUNT = 4;
+
+    /**
+     * Default JPEG quality.
+     */
+    public static final int DEFAULT_JPEG_QUALITY = 90;
+
+    /**
+     * Name of the encode thread.
+     */
+    private static final String THREAD_NAME = "ZeroShutterLagEncoder";
+
+    /**
+     * Time the encode thread stays alive once it runs out of work.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 5;
+
+    /**
+     * Timestamp of a buffer that holds no frame or is being written.
+     */
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    // Shared encode thread, created on first use.
+    private static ThreadPoolExecutor sExecutor;
+
+    // Frames, guarded by mLock
+    private final Object mLock = new Object();
+    private final byte[][] mFrames;
+    private final long[] mTimestamps;
+    private int mWidth;
+    private int mHeight;
+    private int mNextFrame;
+    private byte[] mEncodingFrame;
+
+    // Delivery
+    private final Handler mMainHandler;
+
+    /**
+     * Incremented every time the frames are cleared, so that a capture of a frame from a previous
+     * camera is never delivered.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Keeps {@link #DEFAULT_FRAME_COUNT} frames.
+     */
+    public ZeroShutterLagCapture() {
+        this(DEFAULT_FRAME_COUNT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param frameCount The number of frames kept. Must be at least 2 so that a frame can be
+     *                   written while another one is encoded.
+     */
+    public ZeroShutterLagCapture(int frameCount) {
+        if (frameCount < 2) {
+            throw new IllegalArgumentException("Zero shutter lag needs at least two frames.");
+        }
+        mFrames = new byte[frameCount][];
+        mTimestamps = new long[frameCount];
+        clearTimestamps();
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+
+    //
+    // Capturing
+    //
+
+    /**
+     * Encodes the kept frame closest to a point in time. Must be called on the main thread.
+     *
+     * @param pressTime The time the shutter was pressed, in the {@link
+     *                  android.os.SystemClock#uptimeMillis()} time base (such as {@link
+     *                  android.view.MotionEvent#getEventTime()}).
+     * @param quality   The JPEG quality, 0 to 100.
+     * @param callback  The callback notified on the main thread with the JPEG data.
+     *
+     * @return True if a frame is being encoded; false if no frame was kept yet or the previous
+     * capture is still being encoded.
+     */
+    public boolean capture(final long pressTime, final int quality,
+                           final CaptureCallback callback) {
+        final byte[] frame;
+        final long timestamp;
+        final int width;
+        final int height;
+        synchronized (mLock) {
+            if (mEncodingFrame != null) {
+                return false;
+            }
+            int best = -1;
+            long bestDistance = Long.MAX_VALUE;
+            for (int i = 0; i < mFrames.length; i++) {
+                if (mTimestamps[i] != NO_TIMESTAMP) {
+                    final long distance = Math.abs(mTimestamps[i] - pressTime);
+                    if (distance < bestDistance) {
+                        best = i;
+                        bestDistance = distance;
+                    }
+                }
+            }
+            if (best < 0) {
+                return false;
+            }
+            frame = mFrames[best];
+            timestamp = mTimestamps[best];
+            width = mWidth;
+            height = mHeight;
+            mEncodingFrame = frame;
+        }
+
+        final int generation = mGeneration.get();
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final YuvImage image = new YuvImage(frame, ImageFormat.NV21, width, height, null);
+                final ByteArrayOutputStream output = new ByteArrayOutputStream(width * height / 4);
+                final boolean encoded = image.compressToJpeg(new Rect(0, 0, width, height),
+                        quality, output);
+                synchronized (mLock) {
+                    mEncodingFrame = null;
+                }
+                final byte[] jpeg = encoded ? output.toByteArray() : null;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration.get()) {
+                            callback.onCaptured(jpeg, timestamp - pressTime);
+                        }
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Forgets every kept frame and drops the capture being encoded, if any. Should be called when
+     * the camera changes.
+     */
+    public void clear() {
+        mGeneration.incrementAndGet();
+        synchronized (mLock) {
+            clearTimestamps();
+        }
+    }
+
+    private void clearTimestamps() {
+        for (int i = 0; i < mTimestamps.length; i++) {
+            mTimestamps[i] = NO_TIMESTAMP;
+        }
+    }
+
+    /**
+     * Returns the shared encode executor, creating it on first use.
+     */
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(
+                    1, 1,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, THREAD_NAME);
+                        }
+                    });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+
+    //
+    // FrameConsumer implementation
+    //
+
+    @Override
+    public void onPreviewFrame(byte[] data, int width, int height, FrameOwner owner) {
+        final long timestamp = SystemClock.uptimeMillis();
+        final byte[] frame;
+        final int index;
+        synchronized (mLock) {
+            // Reallocate when the preview size changes; a frame being encoded keeps its own array.
+            if (width != mWidth || height != mHeight || mFrames[0] == null
+                    || mFrames[0].length != data.length) {
+                for (int i = 0; i < mFrames.length; i++) {
+                    mFrames[i] = new byte[data.length];
+                }
+                clearTimestamps();
+                mWidth = width;
+                mHeight = height;
+            }
+
+            // Overwrite the oldest frame that is not being encoded.
+            int next = mNextFrame;
+            if (mFrames[next] == mEncodingFrame) {
+                next = (next + 1) % mFrames.length;
+            }
+            mNextFrame = (next + 1) % mFrames.length;
+            index = next;
+            frame = mFrames[index];
+            mTimestamps[index] = NO_TIMESTAMP;
+        }
+
+        // Copy outside the lock so that a capture never waits for it.
+        System.arraycopy(data, 0, frame, 0, data.length);
+        owner.release(data);
+
+        synchronized (mLock) {
+            if (mFrames[index] == frame) {
+                mTimestamps[index] = timestamp;
+            }
+        }
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for a callback to be invoked when a captured frame is encoded.
+     */
+    public interface CaptureCallback {
+
+        /**
+         * Called on the main thread when a captured frame is encoded.
+         *
+         * @param jpeg     The JPEG data or null if the frame could not be encoded.
+         * @param offsetMs Time from the shutter press to the arrival of the captured frame in
+         *                 milliseconds; negative if the frame arrived before the press.
+         */
+        void onCaptured(byte[] jpeg, long offsetMs);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera.benchmark;
+
+import com.randomlytyping.camera.JpegHeaderParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Benchmarks reading the size of a camera-sized JPEG with {@link JpegHeaderParser} against a
+ * bounds-only decode.
+ * <p/>
+ * {@code BitmapFactory} only exists as a stub off the device, so the bounds decode baseline is the
+ * closest the JVM has to {@code inJustDecodeBounds}: a fresh ImageIO JPEG reader that reads the
+ * header up to the frame header and stops. Like {@code BitmapFactory}, it sets up a decoder and a
+ * stream for every call. The on-device cost of {@code inJustDecodeBounds} has to be measured on a
+ * device; these numbers only show the gap on the JVM.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoundsDecodeBenchmark {
+    private static final int WIDTH = 3264;
+    private static final int HEIGHT = 2448;
+
+    private final JpegHeaderParser.Header mHeader = new JpegHeaderParser.Header();
+    private byte[] mJpeg;
+
+    @Setup
+    public void setUp() throws IOException {
+        // A real 8 MP JPEG, so that both readers skip the same tables before the frame header.
+        final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, (x * 255 / WIDTH) << 16 | (y * 255 / HEIGHT) << 8 | 128);
+            }
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.setUseCache(false);
+        if (!ImageIO.write(image, "jpeg", out)) {
+            throw new IllegalStateException("No JPEG writer");
+        }
+        mJpeg = out.toByteArray();
+        if (!JpegHeaderParser.parse(mJpeg, 0, mJpeg.length, mHeader)
+                || mHeader.getWidth() != WIDTH || boundsDecode() != WIDTH * HEIGHT) {
+            throw new IllegalStateException("Readers disagree about the fixture");
+        }
+    }
+
+    /**
+     * Reads the size with the header parser {@code bitmapFromRawBytes} uses.
+     */
+    @Benchmark
+    public int parseHeader() {
+        JpegHeaderParser.parse(mJpeg, 0, mJpeg.length, mHeader);
+        return mHeader.getWidth() * mHeader.getHeight();
+    }
+
+    /**
+     * Reads the size with a bounds-only decode.
+     */
+    @Benchmark
+    public int boundsDecode() throws IOException {
+        final ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(mJpeg));
+        final ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        try {
+            reader.setInput(in, true, true);
+            return reader.getWidth(0) * reader.getHeight(0);
+        } finally {
+            reader.dispose();
+            in.close();
+        }
+    }
+}
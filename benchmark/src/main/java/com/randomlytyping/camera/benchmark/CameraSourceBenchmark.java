@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera.benchmark;
+
+import com.randomlytyping.camera.CameraSource;
+import com.randomlytyping.camera.FrameRateMonitor;
+import com.randomlytyping.camera.JpegHeaderParser;
+import com.randomlytyping.camera.SyntheticCameraSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the camera lifecycle, preview frame delivery and picture taking against a {@link
+ * SyntheticCameraSource}, so that they run on any JVM. Every simulated latency is 0 and frames are
+ * unthrottled, so the numbers are the cost of the pipeline itself: threads, buffer hand-offs and
+ * callbacks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CameraSourceBenchmark {
+    /**
+     * Longest wait for a callback before the benchmark fails rather than hangs.
+     */
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /**
+     * A source that is opened and released by every operation.
+     */
+    @State(Scope.Thread)
+    public static class Closed {
+        final SyntheticCameraSource mSource = new SyntheticCameraSource();
+        final BlockingQueue<byte[]> mFrames =
+                new ArrayBlockingQueue<byte[]>(SyntheticCameraSource.DEFAULT_BUFFER_COUNT);
+
+        @Setup
+        public void setUp() {
+            mSource.setFrameRate(SyntheticCameraSource.UNTHROTTLED);
+            mSource.setFrameCallback(new QueueingFrameCallback(mFrames));
+        }
+
+        @TearDown
+        public void tearDown() {
+            mSource.release();
+        }
+    }
+
+    /**
+     * A source whose preview is running with two faces being detected. Frames are processed on
+     * the benchmark thread, as an analysis stage would.
+     */
+    @State(Scope.Thread)
+    public static class Running {
+        final SyntheticCameraSource mSource = new SyntheticCameraSource();
+        final BlockingQueue<byte[]> mFrames =
+                new ArrayBlockingQueue<byte[]>(SyntheticCameraSource.DEFAULT_BUFFER_COUNT);
+        final BlockingQueue<byte[]> mPictures = new ArrayBlockingQueue<byte[]>(1);
+        final FrameRateMonitor mMonitor = new FrameRateMonitor();
+        final JpegHeaderParser.Header mHeader = new JpegHeaderParser.Header();
+        final CameraSource.PictureCallback mPictureCallback = new CameraSource.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] jpeg) {
+                mPictures.offer(jpeg);
+            }
+        };
+        volatile int mFaceCount;
+
+        @Setup
+        public void setUp() {
+            mSource.setFrameRate(SyntheticCameraSource.UNTHROTTLED);
+            mSource.setFaceCount(2);
+            mSource.setFrameCallback(new QueueingFrameCallback(mFrames));
+            mSource.setFaceCallback(new CameraSource.FaceCallback() {
+                @Override
+                public void onFacesDetected(int count, float[] rects, int[] scores) {
+                    mFaceCount = count;
+                }
+            });
+            mSource.open(0);
+            startPreview();
+        }
+
+        void startPreview() {
+            mFrames.clear();
+            mSource.startPreview();
+            mSource.startFaceDetection();
+        }
+
+        @TearDown
+        public void tearDown() {
+            mSource.release();
+        }
+    }
+
+    /**
+     * Opens the camera, starts the preview, waits for the first frame and releases the camera.
+     */
+    @Benchmark
+    public byte lifecycle(Closed state) throws InterruptedException {
+        state.mFrames.clear();
+        state.mSource.open(0);
+        state.mSource.startPreview();
+        final byte[] frame = take(state.mFrames);
+        final byte luma = frame[0];
+        state.mSource.releaseFrame(frame);
+        state.mSource.release();
+        return luma;
+    }
+
+    /**
+     * Receives a frame on the benchmark thread, reports it to a {@link FrameRateMonitor} and
+     * hands it back. Reported as frames per second.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int frame(Running state) throws InterruptedException {
+        final byte[] frame = take(state.mFrames);
+        state.mMonitor.onFrame(System.nanoTime());
+        final int luma = frame[frame.length / 3];
+        state.mSource.releaseFrame(frame);
+        return luma + state.mFaceCount;
+    }
+
+    /**
+     * Takes a picture, reads its header and restarts the preview.
+     */
+    @Benchmark
+    public int takePicture(Running state) throws InterruptedException {
+        state.mSource.takePicture(state.mPictureCallback);
+        final byte[] jpeg = take(state.mPictures);
+        JpegHeaderParser.parse(jpeg, 0, jpeg.length, state.mHeader);
+        // Frames still queued belong to the stopped preview.
+        for (byte[] frame; (frame = state.mFrames.poll()) != null; ) {
+            state.mSource.releaseFrame(frame);
+        }
+        state.startPreview();
+        return state.mHeader.getWidth();
+    }
+
+    private static byte[] take(BlockingQueue<byte[]> queue) throws InterruptedException {
+        final byte[] data = queue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (data == null) {
+            throw new IllegalStateException("The synthetic camera stopped delivering.");
+        }
+        return data;
+    }
+
+    /**
+     * Queues frames for the benchmark thread to take.
+     */
+    private static final class QueueingFrameCallback implements CameraSource.FrameCallback {
+        private final BlockingQueue<byte[]> mQueue;
+
+        QueueingFrameCallback(BlockingQueue<byte[]> queue) {
+            mQueue = queue;
+        }
+
+        @Override
+        public void onFrame(byte[] data, int width, int height, long timestampNanos) {
+            mQueue.offer(data);
+        }
+    }
+}
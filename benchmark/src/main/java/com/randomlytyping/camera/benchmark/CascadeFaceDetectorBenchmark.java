@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera.benchmark;
+
+import com.randomlytyping.camera.CascadeFaceDetector;
+import com.randomlytyping.camera.FaceModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link CascadeFaceDetector} with the default cascade on the face scenes of {@link
+ * Fixtures#facePlane(String, int, int)}, at the default detection size of 160 pixels and twice
+ * that. The scenes are textured everywhere, so no window is skipped as featureless.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CascadeFaceDetectorBenchmark {
+    private static final int MAX_FACES = 5;
+
+    @Param({"160x120", "320x240"})
+    public String size;
+
+    @Param({"noFaces", "oneFace", "threeFaces"})
+    public String scene;
+
+    private CascadeFaceDetector mDetector;
+    private byte[] mPlane;
+    private int mWidth;
+    private int mHeight;
+    private final float[] mRects = new float[MAX_FACES * FaceModel.RECT_STRIDE];
+    private final int[] mScores = new int[MAX_FACES];
+
+    @Setup
+    public void setUp() {
+        final int[] planeSize = Fixtures.frameSize(size);
+        mWidth = planeSize[0];
+        mHeight = planeSize[1];
+        mPlane = Fixtures.facePlane(scene, mWidth, mHeight);
+        mDetector = new CascadeFaceDetector();
+    }
+
+    /**
+     * Finds the faces in the plane once.
+     */
+    @Benchmark
+    public int detect() {
+        return mDetector.detect(mPlane, mWidth, mHeight, 0, mRects, mScores, MAX_FACES);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera.benchmark;
+
+/**
+ * The Fixtures class holds the deterministic data the benchmarks run on, so that numbers from
+ * different commits are comparable.
+ */
+final class Fixtures {
+    /**
+     * Supported preview sizes of a typical back camera, as packed width/height pairs in the order
+     * the camera reports them.
+     */
+    static final int[] PREVIEW_SIZES = {
+            1920, 1080, 1440, 1080, 1280, 960, 1280, 768, 1280, 720, 1024, 768, 800, 600, 800, 480,
+            720, 480, 640, 480, 640, 360, 480, 360, 480, 320, 352, 288, 320, 240, 176, 144
+    };
+
+    /**
+     * Supported preview sizes of the Nexus 5 back camera.
+     */
+    static final int[] NEXUS_5_BACK_PREVIEW_SIZES = {
+            1920, 1080, 1280, 960, 1280, 720, 800, 480, 768, 432, 720, 480, 640, 480, 576, 432,
+            480, 320, 384, 288, 352, 288, 320, 240, 240, 160, 176, 144
+    };
+
+    /**
+     * Supported preview sizes of the Nexus 5 front camera.
+     */
+    static final int[] NEXUS_5_FRONT_PREVIEW_SIZES = {
+            1280, 720, 800, 480, 768, 432, 720, 480, 640, 480, 576, 432, 480, 320, 384, 288,
+            352, 288, 320, 240, 240, 160, 176, 144
+    };
+
+    /**
+     * Supported preview sizes of the Galaxy S4 back camera.
+     */
+    static final int[] GALAXY_S4_BACK_PREVIEW_SIZES = {
+            1920, 1080, 1440, 1080, 1280, 720, 1056, 864, 960, 720, 720, 480, 640, 480, 320, 240,
+            176, 144
+    };
+
+    /**
+     * Supported preview sizes of the Galaxy S4 front camera.
+     */
+    static final int[] GALAXY_S4_FRONT_PREVIEW_SIZES = {
+            1920, 1080, 1440, 1080, 1280, 720, 960, 720, 720, 480, 640, 480, 320, 240, 176, 144
+    };
+
+    /**
+     * Supported preview sizes of the Galaxy Nexus front camera, which only has 4:3 sizes.
+     */
+    static final int[] GALAXY_NEXUS_FRONT_PREVIEW_SIZES = {
+            640, 480, 352, 288, 320, 240, 176, 144
+    };
+
+    /**
+     * Returns the supported preview sizes of a camera by name, so that benchmarks can take the
+     * camera as a parameter.
+     *
+     * @param camera One of "typical", "nexus5Back", "nexus5Front", "galaxyS4Back",
+     *               "galaxyS4Front" or "galaxyNexusFront".
+     *
+     * @return A copy of the camera's packed width/height pairs.
+     */
+    static int[] previewSizes(String camera) {
+        final int[] sizes;
+        if ("typical".equals(camera)) {
+            sizes = PREVIEW_SIZES;
+        } else if ("nexus5Back".equals(camera)) {
+            sizes = NEXUS_5_BACK_PREVIEW_SIZES;
+        } else if ("nexus5Front".equals(camera)) {
+            sizes = NEXUS_5_FRONT_PREVIEW_SIZES;
+        } else if ("galaxyS4Back".equals(camera)) {
+            sizes = GALAXY_S4_BACK_PREVIEW_SIZES;
+        } else if ("galaxyS4Front".equals(camera)) {
+            sizes = GALAXY_S4_FRONT_PREVIEW_SIZES;
+        } else if ("galaxyNexusFront".equals(camera)) {
+            sizes = GALAXY_NEXUS_FRONT_PREVIEW_SIZES;
+        } else {
+            throw new IllegalArgumentException("Unknown camera: " + camera);
+        }
+        return sizes.clone();
+    }
+
+    /**
+     * Creates the header of a JPEG as written by a camera: SOI, a JFIF APP0 segment, an EXIF APP1
+     * segment with an orientation tag, a quantization table and the frame header.
+     */
+    static byte[] jpegHeader(int width, int height, int orientation) {
+        final byte[] data = new byte[2 + 18 + 36 + 69 + 19];
+        int p = 0;
+        // SOI
+        data[p++] = (byte) 0xff;
+        data[p++] = (byte) 0xd8;
+        // APP0 "JFIF"
+        data[p++] = (byte) 0xff;
+        data[p++] = (byte) 0xe0;
+        data[p++] = 0;
+        data[p++] = 16;
+        data[p++] = 'J';
+        data[p++] = 'F';
+        data[p++] = 'I';
+        data[p++] = 'F';
+        p += 10;
+        // APP1 "Exif", big-endian TIFF header and an IFD with a single orientation entry
+        data[p++] = (byte) 0xff;
+        data[p++] = (byte) 0xe1;
+        data[p++] = 0;
+        data[p++] = 34;
+        data[p++] = 'E';
+        data[p++] = 'x';
+        data[p++] = 'i';
+        data[p++] = 'f';
+        data[p++] = 0;
+        data[p++] = 0;
+        data[p++] = 'M';
+        data[p++] = 'M';
+        data[p++] = 0;
+        data[p++] = 42;
+        data[p++] = 0;
+        data[p++] = 0;
+        data[p++] = 0;
+        data[p++] = 8;
+        data[p++] = 0;
+        data[p++] = 1;
+        data[p++] = 0x01;
+        data[p++] = 0x12;
+        data[p++] = 0;
+        data[p++] = 3;
+        data[p++] = 0;
+        data[p++] = 0;
+        data[p++] = 0;
+        data[p++] = 1;
+        data[p++] = 0;
+        data[p++] = (byte) orientation;
+        p += 6;
+        // DQT with a single 64-entry table
+        data[p++] = (byte) 0xff;
+        data[p++] = (byte) 0xdb;
+        data[p++] = 0;
+        data[p++] = 67;
+        p += 65;
+        // SOF0 for three components
+        data[p++] = (byte) 0xff;
+        data[p++] = (byte) 0xc0;
+        data[p++] = 0;
+        data[p++] = 17;
+        data[p++] = 8;
+        data[p++] = (byte) (height >> 8);
+        data[p++] = (byte) height;
+        data[p++] = (byte) (width >> 8);
+        data[p++] = (byte) width;
+        data[p++] = 3;
+        return data;
+    }
+
+    /**
+     * Parses a frame size parameter.
+     *
+     * @param size A size such as "640x480".
+     *
+     * @return The width and height.
+     */
+    static int[] frameSize(String size) {
+        final int separator = size.indexOf('x');
+        return new int[]{
+                Integer.parseInt(size.substring(0, separator)),
+                Integer.parseInt(size.substring(separator + 1))
+        };
+    }
+
+    /**
+     * Creates an NV21 preview frame of a scene with detail everywhere: diagonal luma stripes over
+     * a gradient, with chroma that varies across the frame.
+     */
+    static byte[] nv21Frame(int width, int height) {
+        final byte[] frame = new byte[width * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int stripe = ((x + y) / 8 & 1) * 64;
+                frame[y * width + x] = (byte) (32 + stripe + x * 96 / width + y * 32 / height);
+            }
+        }
+        int p = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                frame[p++] = (byte) (96 + x * 64 / (width / 2));
+                frame[p++] = (byte) (96 + y * 64 / (height / 2));
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Creates a luma plane for face detection by name, so that benchmarks can take the scene as a
+     * parameter. Every scene is the luma of {@link #nv21Frame(int, int)} with faces drawn over it,
+     * sized relative to the height of the plane.
+     *
+     * @param scene One of "noFaces", "oneFace" or "threeFaces".
+     */
+    static byte[] facePlane(String scene, int width, int height) {
+        final byte[] plane = new byte[width * height];
+        System.arraycopy(nv21Frame(width, height), 0, plane, 0, plane.length);
+        if ("oneFace".equals(scene)) {
+            drawFace(plane, width, width * 3 / 8, height / 4, height * 2 / 5);
+        } else if ("threeFaces".equals(scene)) {
+            drawFace(plane, width, width / 10, height / 8, height * 2 / 5);
+            drawFace(plane, width, width / 2, height / 6, height / 3);
+            drawFace(plane, width, width * 5 / 8, height * 7 / 10, height / 5);
+        } else if (!"noFaces".equals(scene)) {
+            throw new IllegalArgumentException("Unknown scene " + scene);
+        }
+        return plane;
+    }
+
+    /**
+     * Draws a square face from the eyebrows to the chin: light skin with two dark eyes and a dark
+     * mouth, placed where the default {@code CascadeFaceDetector} cascade looks for them, framed
+     * by a plain margin that stands in for the hair and neck.
+     */
+    private static void drawFace(byte[] plane, int width, int left, int top, int size) {
+        final int margin = size / 4;
+        for (int y = top - margin; y < top + size + margin; y++) {
+            for (int x = left - margin; x < left + size + margin; x++) {
+                plane[y * width + x] = (byte) 100;
+            }
+        }
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                final int wx = x * 24 / size;
+                final int wy = y * 24 / size;
+                int luma = 180;
+                if (wy >= 7 && wy < 11 && (wx >= 4 && wx < 10 || wx >= 14 && wx < 20)) {
+                    luma = 50;
+                } else if (wy >= 17 && wy < 20 && wx >= 8 && wx < 16) {
+                    luma = 70;
+                }
+                plane[(top + y) * width + left + x] = (byte) luma;
+            }
+        }
+    }
+
+    private Fixtures() {
+    }
+}
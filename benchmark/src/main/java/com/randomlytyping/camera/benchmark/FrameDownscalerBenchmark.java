@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera.benchmark;
+
+import com.randomlytyping.camera.FrameDownscaler;
+import com.randomlytyping.camera.YuvConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks shrinking an NV21 preview frame to an analysis size with {@link FrameDownscaler}
+ * against converting the whole frame to ARGB with a single-threaded {@link YuvConverter} and
+ * scaling the pixels afterwards. The baseline scales by nearest neighbour, the cheapest scale
+ * there is, so it is a lower bound for any convert-then-scale pipeline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDownscalerBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String size;
+
+    @Param({"160", "320"})
+    public int maxSize;
+
+    private FrameDownscaler mDownscaler;
+    private YuvConverter mConverter;
+    private byte[] mFrame;
+    private int[] mArgb;
+    private int[] mScaledArgb;
+    private int mWidth;
+    private int mHeight;
+    private int mOutputWidth;
+    private int mOutputHeight;
+
+    @Setup
+    public void setUp() {
+        final int[] frameSize = Fixtures.frameSize(size);
+        mWidth = frameSize[0];
+        mHeight = frameSize[1];
+        mFrame = Fixtures.nv21Frame(mWidth, mHeight);
+        mDownscaler = new FrameDownscaler(maxSize, maxSize);
+
+        // Both pipelines produce frames of the same size.
+        mDownscaler.release(mDownscaler.downscale(mFrame, mWidth, mHeight));
+        mOutputWidth = mDownscaler.getOutputWidth();
+        mOutputHeight = mDownscaler.getOutputHeight();
+
+        mConverter = new YuvConverter(1);
+        mArgb = new int[mWidth * mHeight];
+        mScaledArgb = new int[mOutputWidth * mOutputHeight];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mConverter.shutdown();
+    }
+
+    /**
+     * Area-averages the NV21 frame straight into a smaller NV21 frame.
+     */
+    @Benchmark
+    public int downscale() {
+        final byte[] scaled = mDownscaler.downscale(mFrame, mWidth, mHeight);
+        final int sample = scaled[scaled.length / 2];
+        mDownscaler.release(scaled);
+        return sample;
+    }
+
+    /**
+     * Converts the whole frame to ARGB, then picks the nearest pixel for every output pixel.
+     */
+    @Benchmark
+    public int convertThenScale() {
+        mConverter.convert(mFrame, YuvConverter.FORMAT_NV21, mWidth, mHeight, mArgb);
+        int position = 0;
+        for (int y = 0; y < mOutputHeight; y++) {
+            final int rowStart = (y * mHeight / mOutputHeight) * mWidth;
+            for (int x = 0; x < mOutputWidth; x++) {
+                mScaledArgb[position++] = mArgb[rowStart + x * mWidth / mOutputWidth];
+            }
+        }
+        return mScaledArgb[mScaledArgb.length / 2];
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera.benchmark;
+
+import com.randomlytyping.camera.FrameRateMonitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks reporting a preview frame to the {@link FrameRateMonitor}, which runs for every frame
+ * of every preview.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameRateMonitorBenchmark {
+    private static final long FRAME_INTERVAL_NANOS = 33333333L;
+
+    private final FrameRateMonitor mMonitor = new FrameRateMonitor();
+    private long mTimestamp;
+    private int mFrame;
+
+    @Setup
+    public void setUp() {
+        mMonitor.setFpsRange(15000, 30000);
+    }
+
+    /**
+     * Frames at 30 fps with a little jitter and a dropped frame every 100 frames.
+     */
+    @Benchmark
+    public void onFrame() {
+        mFrame++;
+        mTimestamp += FRAME_INTERVAL_NANOS + (mFrame & 7) * 250000L;
+        if (mFrame % 100 == 0) {
+            mTimestamp += FRAME_INTERVAL_NANOS;
+        }
+        mMonitor.onFrame(mTimestamp);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera.benchmark;
+
+import com.randomlytyping.camera.LatencyHistogram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks recording latencies, which runs on the camera thread and must stay cheap enough to
+ * leave on, and reading percentiles back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatencyHistogramBenchmark {
+    private static final int VALUE_COUNT = 1024;
+
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+    private final long[] mValues = new long[VALUE_COUNT];
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        // Log-normal latencies around 8 ms, in microseconds.
+        final Random random = new Random(0);
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            mValues[i] = (long) Math.exp(random.nextGaussian() * 1.5 + 9);
+            mHistogram.record(mValues[i]);
+        }
+    }
+
+    @Benchmark
+    public void record() {
+        mHistogram.record(mValues[mIndex++ & (VALUE_COUNT - 1)]);
+    }
+
+    /**
+     * Recording from several threads at once, as the camera and main threads may.
+     */
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        // A racy index only changes which value is recorded.
+        mHistogram.record(mValues[mIndex++ & (VALUE_COUNT - 1)]);
+    }
+
+    @Benchmark
+    public long percentile99() {
+        return mHistogram.getValueAtPercentile(99);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera.benchmark;
+
+import com.randomlytyping.camera.PreviewSizeSelector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks preview size selection: ranking the supported sizes on the first layout pass, and
+ * the memoized lookup on the following ones, for the size lists of several real front and back
+ * cameras.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreviewSizeSelectorBenchmark {
+    private static final int CAMERA_ID = 0;
+    private static final int SURFACE_WIDTH = 1080;
+    private static final int SURFACE_HEIGHT = 1776;
+
+    @Param({"0", "90"})
+    public int orientation;
+
+    @Param({"typical", "nexus5Back", "nexus5Front", "galaxyS4Back", "galaxyS4Front",
+            "galaxyNexusFront"})
+    public String camera;
+
+    private final PreviewSizeSelector mSelector = new PreviewSizeSelector();
+    private int[] mSizes;
+
+    @Setup
+    public void setUp() {
+        mSizes = Fixtures.previewSizes(camera);
+        mSelector.select(CAMERA_ID, SURFACE_WIDTH, SURFACE_HEIGHT, orientation, mSizes);
+    }
+
+    @Benchmark
+    public int rank() {
+        return mSelector.rank(SURFACE_WIDTH, SURFACE_HEIGHT, orientation, mSizes);
+    }
+
+    @Benchmark
+    public int selectMemoized() {
+        return mSelector.select(CAMERA_ID, SURFACE_WIDTH, SURFACE_HEIGHT, orientation, mSizes);
+    }
+}
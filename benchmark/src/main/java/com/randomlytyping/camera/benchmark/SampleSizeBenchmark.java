@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera.benchmark;
+
+import com.randomlytyping.camera.CameraMath;
+import com.randomlytyping.camera.JpegHeaderParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the work {@code CameraUtils.bitmapFromRawBytes} does before decoding: reading the
+ * JPEG header and calculating the sample size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleSizeBenchmark {
+    private final JpegHeaderParser.Header mHeader = new JpegHeaderParser.Header();
+    private byte[] mJpeg;
+
+    // Read from fields so that the calculation is not constant-folded.
+    private int mActualWidth = 3264;
+    private int mActualHeight = 2448;
+    private int mWidth = 1080;
+    private int mHeight = 1920;
+
+    @Setup
+    public void setUp() {
+        mJpeg = Fixtures.jpegHeader(mActualWidth, mActualHeight, 6);
+        if (!JpegHeaderParser.parse(mJpeg, 0, mJpeg.length, mHeader)) {
+            throw new IllegalStateException("Fixture is not a JPEG");
+        }
+    }
+
+    @Benchmark
+    public int calculateSampleSize() {
+        return CameraMath.calculateSampleSize(mActualWidth, mActualHeight, mWidth, mHeight);
+    }
+
+    @Benchmark
+    public boolean parseHeader() {
+        return JpegHeaderParser.parse(mJpeg, 0, mJpeg.length, mHeader);
+    }
+
+    /**
+     * Both steps, as {@code bitmapFromRawBytes} runs them.
+     */
+    @Benchmark
+    public int parseAndCalculate() {
+        JpegHeaderParser.parse(mJpeg, 0, mJpeg.length, mHeader);
+        return CameraMath.calculateSampleSize(mHeader.getWidth(), mHeader.getHeight(),
+                mWidth, mHeight);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera.benchmark;
+
+import com.randomlytyping.camera.SensorTransform;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the coordinate transforms behind {@code CameraTransform}: mapping face rectangles
+ * and touches between sensor and view coordinates, and updating the transform on layout.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SensorTransformBenchmark {
+    /**
+     * Number of points mapped per invocation: the corners of five face rectangles plus their eyes
+     * and mouths.
+     */
+    private static final int POINT_COUNT = 5 * 5;
+
+    @Param({"0", "90", "180", "270"})
+    public int displayOrientation;
+
+    @Param({"false", "true"})
+    public boolean frontFacing;
+
+    private final SensorTransform mTransform = new SensorTransform();
+    private final float[] mSensorPoints = new float[POINT_COUNT * 2];
+    private final float[] mViewPoints = new float[POINT_COUNT * 2];
+    private final float[] mPoints = new float[POINT_COUNT * 2];
+    private int mWidth;
+
+    @Setup
+    public void setUp() {
+        mWidth = 1080;
+        mTransform.update(0, 0, mWidth, 1920, displayOrientation, frontFacing);
+        for (int i = 0; i < mSensorPoints.length; i++) {
+            mSensorPoints[i] = (i * 397) % 2000 - 1000;
+        }
+        mTransform.mapSensorToView(mSensorPoints, 0, mViewPoints, 0, POINT_COUNT);
+    }
+
+    @Benchmark
+    public float[] mapSensorToView() {
+        mTransform.mapSensorToView(mSensorPoints, 0, mPoints, 0, POINT_COUNT);
+        return mPoints;
+    }
+
+    @Benchmark
+    public float[] mapViewToSensor() {
+        System.arraycopy(mViewPoints, 0, mPoints, 0, mPoints.length);
+        mTransform.mapViewToSensor(mPoints);
+        return mPoints;
+    }
+
+    /**
+     * A layout pass that leaves the preview where it was, which should not recompute anything.
+     */
+    @Benchmark
+    public boolean updateUnchanged() {
+        return mTransform.update(0, 0, mWidth, 1920, displayOrientation, frontFacing);
+    }
+
+    /**
+     * A layout pass that resizes the preview, such as during an animation.
+     */
+    @Benchmark
+    public boolean updateChanged() {
+        mWidth = mWidth == 1080 ? 1079 : 1080;
+        return mTransform.update(0, 0, mWidth, 1920, displayOrientation, frontFacing);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera.benchmark;
+
+import com.randomlytyping.camera.SharpnessMeter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks scoring a square region in the middle of a preview frame with {@link SharpnessMeter},
+ * from a 48dp touch target up to the whole frame. A 48dp target is 48 pixels at mdpi and 144 at
+ * xxhdpi; preview frames are rarely larger than the screen, so it covers at most 144 frame pixels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharpnessMeterBenchmark {
+    @Param({"1280x720", "1920x1080"})
+    public String size;
+
+    /**
+     * Side of the region in frame pixels, or "full" for the whole frame.
+     */
+    @Param({"48", "96", "144", "288", "576", "full"})
+    public String roi;
+
+    private byte[] mFrame;
+    private int mWidth;
+    private int mLeft;
+    private int mTop;
+    private int mRight;
+    private int mBottom;
+
+    @Setup
+    public void setUp() {
+        final int[] frameSize = Fixtures.frameSize(size);
+        mWidth = frameSize[0];
+        final int height = frameSize[1];
+        mFrame = Fixtures.nv21Frame(mWidth, height);
+        if ("full".equals(roi)) {
+            mLeft = 0;
+            mTop = 0;
+            mRight = mWidth;
+            mBottom = height;
+        } else {
+            final int side = Math.min(Integer.parseInt(roi), height);
+            mLeft = (mWidth - side) / 2;
+            mTop = (height - side) / 2;
+            mRight = mLeft + side;
+            mBottom = mTop + side;
+        }
+    }
+
+    /**
+     * Scores the region once.
+     */
+    @Benchmark
+    public float tenengrad() {
+        return SharpnessMeter.tenengrad(mFrame, mWidth, mLeft, mTop, mRight, mBottom,
+                SharpnessMeter.DEFAULT_NOISE_THRESHOLD);
+    }
+}
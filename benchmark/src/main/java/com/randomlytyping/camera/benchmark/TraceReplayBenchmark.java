@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera.benchmark;
+
+import com.randomlytyping.camera.CameraSource;
+import com.randomlytyping.camera.FrameRateMonitor;
+import com.randomlytyping.camera.SyntheticCameraSource;
+import com.randomlytyping.camera.TraceRecorder;
+import com.randomlytyping.camera.TraceReplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks replaying a recorded camera session at maximum speed through a frame consumer, the
+ * way a recorded field session is replayed to measure a processing stage offline. The session is
+ * recorded once from a {@link SyntheticCameraSource}, so every run replays the same frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceReplayBenchmark {
+    private static final int FRAME_COUNT = 300;
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    private File mTrace;
+    private TraceReplayer mReplayer;
+    private final FrameRateMonitor mMonitor = new FrameRateMonitor();
+    private long mLumaSum;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        mTrace = File.createTempFile("session", ".trace");
+        record(mTrace);
+
+        mReplayer = new TraceReplayer(mTrace);
+        mReplayer.setFrameCallback(new CameraSource.FrameCallback() {
+            @Override
+            public void onFrame(byte[] data, int width, int height, long timestampNanos) {
+                mMonitor.onFrame(timestampNanos);
+                // Stands in for a processing stage: one pass over the Y plane.
+                long sum = 0;
+                for (int i = 0; i < width * height; i++) {
+                    sum += data[i] & 0xff;
+                }
+                mLumaSum += sum;
+                mReplayer.releaseFrame(data);
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mReplayer.close();
+        if (!mTrace.delete()) {
+            mTrace.deleteOnExit();
+        }
+    }
+
+    /**
+     * Replays the whole session. Reported per frame.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAME_COUNT)
+    public long replay() throws IOException, InterruptedException {
+        mReplayer.replay(false);
+        return mLumaSum;
+    }
+
+    /**
+     * Records {@link #FRAME_COUNT} frames with two faces from a synthetic camera, as fast as it
+     * draws them.
+     */
+    private static void record(File file) throws IOException, InterruptedException {
+        final TraceRecorder recorder = new TraceRecorder(file);
+        final SyntheticCameraSource source = new SyntheticCameraSource();
+        final CountDownLatch done = new CountDownLatch(FRAME_COUNT);
+        source.setFrameRate(SyntheticCameraSource.UNTHROTTLED);
+        source.setFaceCount(2);
+        source.setFrameCallback(new CameraSource.FrameCallback() {
+            @Override
+            public void onFrame(byte[] data, int width, int height, long timestampNanos) {
+                if (done.getCount() > 0) {
+                    recorder.recordFrame(data, width, height, timestampNanos);
+                    done.countDown();
+                }
+                source.releaseFrame(data);
+            }
+        });
+        source.setFaceCallback(new CameraSource.FaceCallback() {
+            @Override
+            public void onFacesDetected(int count, float[] rects, int[] scores) {
+                if (done.getCount() > 0) {
+                    recorder.recordFaces(count, rects, scores, System.nanoTime());
+                }
+            }
+        });
+        try {
+            source.open(0);
+            source.setPreviewSize(WIDTH, HEIGHT);
+            recorder.recordParameter("preview-size", WIDTH + "x" + HEIGHT, System.nanoTime());
+            source.startPreview();
+            source.startFaceDetection();
+            done.await();
+        } finally {
+            source.release();
+            recorder.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera.benchmark;
+
+import com.randomlytyping.camera.YuvConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks converting an NV21 preview frame to ARGB pixels with {@link YuvConverter}, across
+ * preview sizes and thread counts. Thread counts above the number of available processors only
+ * measure the cost of handing stripes over.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvConverterBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String size;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    private YuvConverter mConverter;
+    private byte[] mFrame;
+    private int[] mArgb;
+    private int mWidth;
+    private int mHeight;
+
+    @Setup
+    public void setUp() {
+        final int[] frameSize = Fixtures.frameSize(size);
+        mWidth = frameSize[0];
+        mHeight = frameSize[1];
+        mFrame = Fixtures.nv21Frame(mWidth, mHeight);
+        mArgb = new int[mWidth * mHeight];
+        mConverter = new YuvConverter(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mConverter.shutdown();
+    }
+
+    /**
+     * Converts a whole frame.
+     */
+    @Benchmark
+    public int convert() {
+        mConverter.convert(mFrame, YuvConverter.FORMAT_NV21, mWidth, mHeight, mArgb);
+        return mArgb[mArgb.length / 2];
+    }
+}
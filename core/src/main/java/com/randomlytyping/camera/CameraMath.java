@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The CameraMath class contains the static math behind {@code CameraUtils} that does not depend
+ * on the Android framework.
+ */
+public class CameraMath {
+    /**
+     * Calculates the largest power-of-2 sample size that keeps a decoded image at least as large as
+     * the requested width or height.
+     *
+     * @param actualWidth  The width of the encoded image.
+     * @param actualHeight The height of the encoded image.
+     * @param width        The requested width.
+     * @param height       The requested height.
+     *
+     * @return The sample size to pass to {@link android.graphics.BitmapFactory.Options#inSampleSize}.
+     */
+    public static int calculateSampleSize(int actualWidth, int actualHeight, int width, int height) {
+        // Calculate the sample size as power of 2 that will satisfy the requested width and height.
+        int inSampleSize = 1;
+        if (actualWidth > width || actualHeight > height) {
+            int shift = 0;
+            while ((actualWidth >> shift + 1) > width && (actualHeight >> shift + 1) > height) {
+                shift++;
+            }
+            if (shift > 0) {
+                inSampleSize <<= shift;
+            }
+        }
+        return inSampleSize;
+    }
+
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Private constructor for type safety.
+     */
+    private CameraMath() {
+    }
+}
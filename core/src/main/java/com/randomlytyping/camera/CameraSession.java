@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import java.util.concurrent.Executor;
+
+/**
+ * The CameraSession class opens and releases a {@link CameraSource} on a camera executor, so that
+ * the thread requesting it never waits for the camera, and delivers open results on a result
+ * executor.
+ * <p/>
+ * Every open or release request starts a new generation. Results of a request that was superseded
+ * by a later open or release before they were delivered are dropped, so a stale camera is never
+ * handed to the caller.
+ * <p/>
+ * Requests and {@link #getGeneration()} must all be made on the thread the result executor runs
+ * on, typically the main thread. The camera executor must run its tasks one at a time in order.
+ */
+public class CameraSession {
+    /**
+     * Camera ID that requests the first back-facing camera.
+     */
+    public static final int DEFAULT_CAMERA = -1;
+
+    // Threading
+    private final Executor mCameraExecutor;
+    private final Executor mResultExecutor;
+
+    // Camera (only accessed on the camera executor)
+    private final CameraSource mSource;
+
+    /**
+     * Incremented every time a camera is requested or released so that results of requests that
+     * were superseded before they completed are never delivered.
+     */
+    private int mGeneration;
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor.
+     *
+     * @param source         The {@link CameraSource} to open and release.
+     * @param cameraExecutor The executor running camera operations one at a time.
+     * @param resultExecutor The executor results are delivered on.
+     */
+    public CameraSession(CameraSource source, Executor cameraExecutor, Executor resultExecutor) {
+        mSource = source;
+        mCameraExecutor = cameraExecutor;
+        mResultExecutor = resultExecutor;
+    }
+
+
+    //
+    // Getters/Setters
+    //
+
+    /**
+     * @return The {@link CameraSource} the session opens.
+     */
+    public CameraSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return The generation of the latest open or release request, to be passed to {@link
+     * #postIfCurrent(int, Runnable)} by operations that must not report to a superseded request.
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+
+    //
+    // Camera operations
+    //
+
+    /**
+     * Opens a camera on the camera executor, releasing any camera previously opened by this
+     * session first. Returns without waiting for the camera.
+     *
+     * @param requestedCameraId The ID of the camera to open or {@link #DEFAULT_CAMERA} to open the
+     *                          first back-facing camera.
+     * @param callback          The callback notified on the result executor when the camera is
+     *                          open or failed to open, unless another request came first.
+     */
+    public void open(final int requestedCameraId, final OpenCallback callback) {
+        final int generation = ++mGeneration;
+        mCameraExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                releaseSource();
+                final int cameraId = requestedCameraId == DEFAULT_CAMERA
+                        ? mSource.findCameraId(false)
+                        : requestedCameraId;
+                try {
+                    if (cameraId == DEFAULT_CAMERA) {
+                        throw new RuntimeException("This device does not have a back-facing camera.");
+                    }
+                    mSource.open(cameraId);
+                } catch (final RuntimeException e) {
+                    postIfCurrent(generation, new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onCameraOpenFailed(cameraId, e);
+                        }
+                    });
+                    return;
+                }
+                postIfCurrent(generation, new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCameraOpened(mSource, cameraId);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Releases the open camera on the camera executor. Any pending open request is superseded and
+     * its callback will not be called. Returns without waiting for the camera.
+     */
+    public void release() {
+        mGeneration++;
+        mCameraExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                releaseSource();
+            }
+        });
+    }
+
+    /**
+     * Delivers a result on the result executor, dropping it if another open or release was
+     * requested after the operation that produced it. May be called from any thread.
+     *
+     * @param generation The generation of the request that produced the result.
+     * @param result     The result delivery to run on the result executor.
+     */
+    public void postIfCurrent(final int generation, final Runnable result) {
+        mResultExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration) {
+                    result.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases the open camera. Called on the camera executor; subclasses releasing more than the
+     * source must call through.
+     */
+    protected void releaseSource() {
+        if (mSource.isOpen()) {
+            mSource.release();
+            mSource.setFrameCallback(null);
+        }
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for callbacks to be invoked when a camera open request completes.
+     */
+    public interface OpenCallback {
+
+        /**
+         * Called on the result executor when the camera opened.
+         *
+         * @param source   The open {@link CameraSource}.
+         * @param cameraId The ID of the open camera.
+         */
+        void onCameraOpened(CameraSource source, int cameraId);
+
+        /**
+         * Called on the result executor when the camera could not be opened, e.g. because it is in
+         * use by another application.
+         *
+         * @param cameraId The ID of the camera that failed to open.
+         * @param error    The error thrown by {@link CameraSource#open(int)}.
+         */
+        void onCameraOpenFailed(int cameraId, RuntimeException error);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The CameraSource interface describes a camera without depending on the Android framework: its
+ * lifecycle, buffered NV21 preview frames, auto-focus, picture taking and face detection.
+ * <p/>
+ * It mirrors the {@code android.hardware.Camera} operations the app uses, so that the same
+ * pipeline can run against a real camera through {@code HardwareCameraSource} or, on any JVM,
+ * against the frames, pictures and faces generated by {@link SyntheticCameraSource}.
+ * <p/>
+ * Like a camera, a source is not thread-safe: calls to it must not overlap, such as by making them
+ * all on one thread or handing them off through a queue like {@code CameraController} does.
+ * Callbacks are delivered on a thread chosen by the implementation and must not block.
+ */
+public interface CameraSource {
+
+    //
+    // Lifecycle
+    //
+
+    /**
+     * Finds a camera facing a given direction.
+     *
+     * @param frontFacing True to find the first front-facing camera; false to find the first
+     *                    back-facing camera.
+     *
+     * @return The ID of the camera, or -1 if there is none.
+     */
+    int findCameraId(boolean frontFacing);
+
+    /**
+     * Opens the camera, blocking until it is ready.
+     *
+     * @param cameraId The ID of the camera to open.
+     *
+     * @throws RuntimeException If the camera could not be opened.
+     */
+    void open(int cameraId);
+
+    /**
+     * Stops the preview and releases the camera. Does nothing if it is not open.
+     */
+    void release();
+
+    /**
+     * @return Whether the camera is open.
+     */
+    boolean isOpen();
+
+    /**
+     * @return Whether the open camera faces the same direction as the screen.
+     */
+    boolean isFrontFacing();
+
+    /**
+     * @return The clockwise angle in degrees the sensor image must be rotated by to be upright in
+     * the natural orientation of the device.
+     */
+    int getSensorOrientation();
+
+
+    //
+    // Preview
+    //
+
+    /**
+     * @return The preview sizes the open camera supports, as packed width/height pairs as taken by
+     * {@link PreviewSizeSelector}.
+     */
+    int[] getSupportedPreviewSizes();
+
+    /**
+     * Sets the size of preview frames. Must be called while the preview is stopped.
+     *
+     * @param width  The width in pixels, one of the supported preview sizes.
+     * @param height The height in pixels, one of the supported preview sizes.
+     */
+    void setPreviewSize(int width, int height);
+
+    /**
+     * @return The width of preview frames in pixels.
+     */
+    int getPreviewWidth();
+
+    /**
+     * @return The height of preview frames in pixels.
+     */
+    int getPreviewHeight();
+
+    /**
+     * Reads the frame rate range the preview runs at.
+     *
+     * @param range Receives the minimum and maximum frame rates, scaled by 1000, at index 0 and 1.
+     *
+     * @return True if the range is known; false otherwise.
+     */
+    boolean getPreviewFpsRange(int[] range);
+
+    /**
+     * Sets the callback receiving preview frames. Must be called while the preview is stopped.
+     *
+     * @param callback The {@link FrameCallback} or null to drop every frame.
+     */
+    void setFrameCallback(FrameCallback callback);
+
+    /**
+     * Starts delivering preview frames to the frame callback.
+     */
+    void startPreview();
+
+    /**
+     * Stops delivering preview frames. Frames already delivered may still be released.
+     */
+    void stopPreview();
+
+    /**
+     * Hands a frame back so that it can be filled again. Frames from a previous preview size are
+     * ignored.
+     *
+     * @param frame A frame previously delivered to {@link FrameCallback#onFrame(byte[], int, int,
+     *              long)}.
+     */
+    void releaseFrame(byte[] frame);
+
+
+    //
+    // Focus and capture
+    //
+
+    /**
+     * Starts focusing. The preview must be running.
+     *
+     * @param callback The callback notified once focusing is done.
+     */
+    void autoFocus(AutoFocusCallback callback);
+
+    /**
+     * Cancels focusing in progress, if any. Its callback may not be called.
+     */
+    void cancelAutoFocus();
+
+    /**
+     * Takes a picture. The preview must be running and is stopped once the picture is taken, as
+     * with a real camera, so it must be started again to take another one.
+     *
+     * @param callback The callback receiving the JPEG.
+     */
+    void takePicture(PictureCallback callback);
+
+
+    //
+    // Face detection
+    //
+
+    /**
+     * @return The largest number of faces the camera can detect, or 0 if it cannot detect faces.
+     */
+    int getMaxNumDetectedFaces();
+
+    /**
+     * Sets the callback receiving detected faces.
+     *
+     * @param callback The {@link FaceCallback} or null.
+     */
+    void setFaceCallback(FaceCallback callback);
+
+    /**
+     * Starts detecting faces. The preview must be running.
+     */
+    void startFaceDetection();
+
+    /**
+     * Stops detecting faces.
+     */
+    void stopFaceDetection();
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for a callback to be invoked when a preview frame is available.
+     */
+    public interface FrameCallback {
+
+        /**
+         * Called when a new NV21 preview frame is available. The frame belongs to the source and
+         * must be handed back with {@link CameraSource#releaseFrame(byte[])} once the callback is
+         * done with it; frames are dropped while every buffer is held.
+         *
+         * @param data           The NV21 frame data.
+         * @param width          The width of the frame in pixels.
+         * @param height         The height of the frame in pixels.
+         * @param timestampNanos When the frame arrived, in {@link System#nanoTime()} time.
+         */
+        void onFrame(byte[] data, int width, int height, long timestampNanos);
+    }
+
+    /**
+     * Interface definition for a callback to be invoked when focusing is done.
+     */
+    public interface AutoFocusCallback {
+
+        /**
+         * @param success Whether the camera is in focus.
+         */
+        void onAutoFocus(boolean success);
+    }
+
+    /**
+     * Interface definition for a callback to be invoked when a picture is taken.
+     */
+    public interface PictureCallback {
+
+        /**
+         * @param jpeg The JPEG data, which the callback may keep.
+         */
+        void onPictureTaken(byte[] jpeg);
+    }
+
+    /**
+     * Interface definition for a callback to be invoked when faces are detected.
+     */
+    public interface FaceCallback {
+
+        /**
+         * Called for every detection while face detection is running. The arrays are reused by the
+         * next detection.
+         *
+         * @param count  The number of faces found.
+         * @param rects  Four floats per face (left, top, right, bottom) in sensor coordinates,
+         *               which range from (-1000, -1000) to (1000, 1000).
+         * @param scores The score of each face, 1 to 100.
+         */
+        void onFacesDetected(int count, float[] rects, int[] scores);
+    }
+}
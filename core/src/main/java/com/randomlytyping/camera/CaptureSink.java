@@ -0,0 +1,559 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CaptureSink class writes pictures taken with a {@link CameraSource} to storage on a
+ * dedicated writer thread.
+ * <p/>
+ * Captures wait in a bounded queue. Each one is written through a {@link
+ * java.nio.channels.FileChannel} to a temporary file next to its final name, then renamed, so a
+ * picture is either complete under its final name or not there at all. When the queue is full,
+ * {@link #submit(String, byte[])} refuses new captures and the {@link Listener} is told so that the
+ * UI can stop taking pictures until the writer catches up.
+ */
+public class CaptureSink {
+    /**
+     * Never sync; the OS writes pictures out whenever it likes. Fastest, but pictures taken just
+     * before a power loss may be lost or empty.
+     */
+    public static final int FSYNC_NONE = 0;
+
+    /**
+     * Sync every picture before renaming it.
+     */
+    public static final int FSYNC_PER_SHOT = 1;
+
+    /**
+     * Write pictures back to back while more are queued, then sync and rename them together, up to
+     * a batch size at a time.
+     */
+    public static final int FSYNC_BATCHED = 2;
+
+    /**
+     * Suffix of a picture that is still being written.
+     */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Name of the writer thread.
+     */
+    private static final String THREAD_NAME = "CaptureSink";
+
+    // Configuration
+    private final File mDirectory;
+    private final int mCapacity;
+    private final int mFsyncPolicy;
+    private final int mBatchSize;
+    private final Listener mListener;
+
+    // Queue, guarded by mLock
+    private final Object mLock = new Object();
+    private final ArrayDeque<Capture> mQueue;
+    private int mPendingCount;
+    private boolean mClosed;
+
+    // Writer
+    private final Thread mWriterThread;
+    private final ArrayList<Capture> mBatch;
+
+    // Totals, written by the writer thread only
+    private volatile int mWrittenCount;
+    private volatile int mFailedCount;
+    private volatile long mWrittenBytes;
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Starts the writer thread.
+     *
+     * @param directory   The directory pictures are written to. Created if needed.
+     * @param capacity    The number of captures that may be queued or being written.
+     * @param fsyncPolicy {@link #FSYNC_NONE}, {@link #FSYNC_PER_SHOT} or {@link #FSYNC_BATCHED}.
+     * @param batchSize   The largest number of pictures synced together with {@link
+     *                    #FSYNC_BATCHED}. Ignored otherwise.
+     * @param listener    Notified of written pictures, failures and backpressure. May be null.
+     */
+    public CaptureSink(File directory, int capacity, int fsyncPolicy, int batchSize,
+                       Listener listener) {
+        if (fsyncPolicy != FSYNC_NONE && fsyncPolicy != FSYNC_PER_SHOT
+                && fsyncPolicy != FSYNC_BATCHED) {
+            throw new IllegalArgumentException("Unknown fsync policy " + fsyncPolicy);
+        }
+        mDirectory = directory;
+        mCapacity = Math.max(capacity, 1);
+        mFsyncPolicy = fsyncPolicy;
+        mBatchSize = fsyncPolicy == FSYNC_BATCHED ? Math.max(batchSize, 1) : 1;
+        mListener = listener;
+        mQueue = new ArrayDeque<Capture>(mCapacity);
+        mBatch = new ArrayList<Capture>(mBatchSize);
+
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, THREAD_NAME);
+        mWriterThread.setPriority(Thread.NORM_PRIORITY - 1);
+        mWriterThread.start();
+    }
+
+
+    //
+    // Submitting
+    //
+
+    /**
+     * Queues a picture to be written. May be called from any thread, typically from a {@link
+     * CameraSource.PictureCallback}. The sink keeps a reference to {@code data} until
+     * the picture is written, so the array must not be reused.
+     *
+     * @param name The file name of the picture within the sink's directory.
+     * @param data The JPEG data.
+     *
+     * @return True if the picture was queued; false if the queue is full or the sink is closed.
+     */
+    public boolean submit(String name, byte[] data) {
+        final Capture capture = new Capture(name, data, System.nanoTime());
+        final boolean full;
+        synchronized (mLock) {
+            if (mClosed || mPendingCount >= mCapacity) {
+                return false;
+            }
+            mQueue.addLast(capture);
+            mPendingCount++;
+            full = mPendingCount == mCapacity;
+            mLock.notifyAll();
+        }
+        if (full && mListener != null) {
+            mListener.onBackpressureChanged(true);
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether {@link #submit(String, byte[])} would currently refuse a picture because too
+     * many are waiting to be written.
+     */
+    public boolean isFull() {
+        synchronized (mLock) {
+            return mPendingCount >= mCapacity;
+        }
+    }
+
+    /**
+     * @return The number of pictures queued or being written.
+     */
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPendingCount;
+        }
+    }
+
+    /**
+     * @return The directory pictures are written to.
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return The number of pictures written so far.
+     */
+    public int getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    /**
+     * @return The number of pictures that failed to be written so far.
+     */
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @return The number of bytes written so far.
+     */
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+
+    //
+    // Shutting down
+    //
+
+    /**
+     * Stops accepting pictures. Pictures already queued are still written, after which the writer
+     * thread exits. Does not block.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the writer thread to exit after {@link #close()}.
+     *
+     * @return True if the writer thread exited; false if the timeout elapsed first.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        mWriterThread.join(Math.max(unit.toMillis(timeout), 1));
+        return !mWriterThread.isAlive();
+    }
+
+
+    //
+    // Writer thread
+    //
+
+    /**
+     * Writer loop. Takes captures off the queue until the sink is closed and the queue is empty.
+     */
+    private void runWriter() {
+        deleteStaleTempFiles();
+        while (true) {
+            final Capture capture;
+            final boolean moreQueued;
+            synchronized (mLock) {
+                while (mQueue.isEmpty() && !mClosed) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Only close() stops the writer.
+                    }
+                }
+                capture = mQueue.pollFirst();
+                moreQueued = !mQueue.isEmpty();
+            }
+            if (capture == null) {
+                return;
+            }
+
+            capture.startTime = System.nanoTime();
+            if (writeTemp(capture)) {
+                mBatch.add(capture);
+            }
+            /*  Pictures are committed as soon as the queue runs dry, so batching only adds latency
+            while pictures arrive faster than they are written. */
+            if (!moreQueued || mBatch.size() >= mBatchSize) {
+                commitBatch();
+            }
+        }
+    }
+
+    /**
+     * Writes a capture to its temporary file. The file is left open if it still needs to be
+     * synced.
+     *
+     * @return True if the capture was written; false if it failed and was reported.
+     */
+    private boolean writeTemp(Capture capture) {
+        capture.tempFile = new File(mDirectory, capture.name + TEMP_SUFFIX);
+        FileOutputStream output = null;
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Could not create " + mDirectory);
+            }
+            output = new FileOutputStream(capture.tempFile);
+            final FileChannel channel = output.getChannel();
+            final ByteBuffer buffer = ByteBuffer.wrap(capture.data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            capture.writeTime = System.nanoTime();
+            capture.bytes = capture.data.length;
+            if (mFsyncPolicy == FSYNC_NONE) {
+                output.close();
+            } else {
+                capture.output = output;
+            }
+            return true;
+        } catch (IOException e) {
+            closeQuietly(output);
+            fail(capture, e);
+            return false;
+        } finally {
+            // The JPEG can be collected as soon as it is in the file.
+            capture.data = null;
+            if (capture.output == null) {
+                releasePending();
+            }
+        }
+    }
+
+    /**
+     * Syncs, closes and renames every capture in the current batch.
+     */
+    private void commitBatch() {
+        final int count = mBatch.size();
+        for (int i = 0; i < count; i++) {
+            final Capture capture = mBatch.get(i);
+            if (capture.output != null) {
+                try {
+                    // Flushes the data and the file length, which is all a reader needs.
+                    capture.output.getChannel().force(false);
+                    capture.output.close();
+                } catch (IOException e) {
+                    closeQuietly(capture.output);
+                    fail(capture, e);
+                }
+                capture.output = null;
+                releasePending();
+            }
+            capture.syncTime = System.nanoTime();
+        }
+
+        for (int i = 0; i < count; i++) {
+            final Capture capture = mBatch.get(i);
+            if (capture.failed) {
+                continue;
+            }
+            final File file = new File(mDirectory, capture.name);
+            if (!capture.tempFile.renameTo(file)) {
+                fail(capture, new IOException("Could not rename " + capture.tempFile + " to "
+                        + file));
+                continue;
+            }
+            final long doneTime = System.nanoTime();
+            mWrittenCount++;
+            mWrittenBytes += capture.bytes;
+            if (mListener != null) {
+                mListener.onCaptureWritten(file, new WriteStats(
+                        capture.bytes,
+                        capture.startTime - capture.submitTime,
+                        capture.writeTime - capture.startTime,
+                        capture.syncTime - capture.writeTime,
+                        doneTime - capture.submitTime));
+            }
+        }
+        mBatch.clear();
+    }
+
+    /**
+     * Counts a capture as no longer pending and reports when the queue stops being full.
+     */
+    private void releasePending() {
+        final boolean wasFull;
+        synchronized (mLock) {
+            wasFull = mPendingCount == mCapacity;
+            mPendingCount--;
+        }
+        if (wasFull && mListener != null) {
+            mListener.onBackpressureChanged(false);
+        }
+    }
+
+    /**
+     * Deletes the temporary file of a failed capture and reports the failure.
+     */
+    private void fail(Capture capture, IOException error) {
+        capture.failed = true;
+        //noinspection ResultOfMethodCallIgnored
+        capture.tempFile.delete();
+        mFailedCount++;
+        if (mListener != null) {
+            mListener.onCaptureFailed(capture.name, error);
+        }
+    }
+
+    /**
+     * Deletes temporary files left behind by a previous sink that did not finish writing.
+     */
+    private void deleteStaleTempFiles() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private static void closeQuietly(FileOutputStream output) {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                // Nothing more can be done.
+            }
+        }
+    }
+
+
+    //
+    // Capture
+    //
+
+    /**
+     * A picture on its way to storage. Only touched by the writer thread once queued.
+     */
+    private static class Capture {
+        final String name;
+        final long submitTime;
+        byte[] data;
+        int bytes;
+        File tempFile;
+        FileOutputStream output;
+        boolean failed;
+        long startTime;
+        long writeTime;
+        long syncTime;
+
+        Capture(String name, byte[] data, long submitTime) {
+            this.name = name;
+            this.data = data;
+            this.submitTime = submitTime;
+        }
+    }
+
+
+    //
+    // Write statistics
+    //
+
+    /**
+     * Timings of one written picture.
+     */
+    public static final class WriteStats {
+        private final int mBytes;
+        private final long mQueueNanos;
+        private final long mWriteNanos;
+        private final long mSyncNanos;
+        private final long mTotalNanos;
+
+        WriteStats(int bytes, long queueNanos, long writeNanos, long syncNanos, long totalNanos) {
+            mBytes = bytes;
+            mQueueNanos = queueNanos;
+            mWriteNanos = writeNanos;
+            mSyncNanos = syncNanos;
+            mTotalNanos = totalNanos;
+        }
+
+        /**
+         * @return The size of the picture in bytes.
+         */
+        public int getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * @return Time spent waiting in the queue.
+         */
+        public long getQueueNanos() {
+            return mQueueNanos;
+        }
+
+        /**
+         * @return Time spent writing the data.
+         */
+        public long getWriteNanos() {
+            return mWriteNanos;
+        }
+
+        /**
+         * @return Time from the end of the write until the picture was synced, including waiting
+         * for the rest of its batch. Zero-ish with {@link #FSYNC_NONE}.
+         */
+        public long getSyncNanos() {
+            return mSyncNanos;
+        }
+
+        /**
+         * @return Time from {@link #submit(String, byte[])} until the picture was under its final
+         * name.
+         */
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        /**
+         * @return Write throughput in bytes per second, counting the write and the sync.
+         */
+        public double getBytesPerSecond() {
+            final long nanos = mWriteNanos + mSyncNanos;
+            return nanos > 0 ? mBytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes, queued %.1f ms, write %.1f ms, sync %.1f ms, "
+                            + "total %.1f ms, %.1f MB/s",
+                    mBytes,
+                    mQueueNanos / 1e6,
+                    mWriteNanos / 1e6,
+                    mSyncNanos / 1e6,
+                    mTotalNanos / 1e6,
+                    getBytesPerSecond() / 1e6);
+        }
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for callbacks about written pictures. Called on the writer thread,
+     * except {@link #onBackpressureChanged(boolean)} with {@code true}, which is called on the
+     * thread that filled the queue.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a picture is synced (per the fsync policy) and under its final name.
+         *
+         * @param file  The picture.
+         * @param stats Timings of the write.
+         */
+        void onCaptureWritten(File file, WriteStats stats);
+
+        /**
+         * Called when a picture could not be written. Its temporary file is deleted.
+         *
+         * @param name  The file name the picture was submitted with.
+         * @param error The cause.
+         */
+        void onCaptureFailed(String name, IOException error);
+
+        /**
+         * Called when the queue becomes full or stops being full. Since the two cases are called on
+         * different threads, check {@link #isFull()} for the current state rather than relying on
+         * the order of calls.
+         *
+         * @param full Whether the queue is now full.
+         */
+        void onBackpressureChanged(boolean full);
+    }
+}
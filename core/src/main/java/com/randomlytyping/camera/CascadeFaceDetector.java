@@ -0,0 +1,557 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The CascadeFaceDetector class finds upright frontal faces in a luma plane on the CPU, for
+ * cameras whose {@code Camera.Parameters.getMaxNumDetectedFaces()} is 0.
+ * <p/>
+ * It is a Viola-Jones style detector: a window of {@link #WINDOW_SIZE} pixels, grown by a scale
+ * factor, slides over an integral image of the plane, and each window runs through a cascade of
+ * {@link Stage}s of rectangle {@link Feature}s, most windows being rejected by the first stage.
+ * Feature values are differences of mean luma divided by the standard deviation of the window, so
+ * detection does not depend on the brightness or contrast of the scene. Overlapping detections are
+ * grouped and groups with too few detections are dropped as false positives.
+ * <p/>
+ * The default cascade is a small hand-tuned one built from the contrasts of a face: eyes darker
+ * than the cheeks, forehead and nose bridge, and a mouth darker than the upper lip. Trained stages
+ * can be passed to {@link #CascadeFaceDetector(Stage[], int)} instead.
+ * <p/>
+ * Faces are reported in the coordinates of {@code Camera.Face.rect}, -1000 to 1000 across the
+ * frame. All storage is allocated up front or when the plane grows, never per detection. The
+ * detector is not thread-safe.
+ */
+public class CascadeFaceDetector {
+    /**
+     * Size of the detection window in pixels at the smallest scale, and of the coordinate space
+     * of features.
+     */
+    public static final int WINDOW_SIZE = 24;
+
+    /**
+     * Default factor between two successive window sizes.
+     */
+    public static final float DEFAULT_SCALE_FACTOR = 1.25f;
+
+    /**
+     * Default number of overlapping detections a face needs to be reported.
+     */
+    public static final int DEFAULT_MIN_NEIGHBORS = 3;
+
+    /**
+     * Highest face score, as for {@code Camera.Face.score}.
+     */
+    public static final int MAX_SCORE = 100;
+
+    /**
+     * Windows whose luma varies less than this are skipped as featureless.
+     */
+    private static final float MIN_STANDARD_DEVIATION = 8;
+
+    /**
+     * Largest number of detections kept before grouping.
+     */
+    private static final int MAX_CANDIDATES = 1024;
+
+    /**
+     * How far two detections may be apart, relative to their size, to be grouped.
+     */
+    private static final float GROUPING_TOLERANCE = 0.25f;
+
+    // Configuration
+    private final Stage[] mStages;
+    private final int mMinNeighbors;
+    private float mScaleFactor = DEFAULT_SCALE_FACTOR;
+
+    // Integral images of the upright plane, (width + 1) by (height + 1)
+    private int mUprightWidth;
+    private int mUprightHeight;
+    private int[] mIntegral;
+    private long[] mSquaredIntegral;
+
+    // Feature rects scaled to the current window size
+    private final int[] mScaledRects;
+    private final float[] mScaledWeights;
+
+    // Detections, then groups of them, in upright coordinates
+    private final int[] mCandidates = new int[MAX_CANDIDATES * 3];
+    private final int[] mGroupSums = new int[MAX_CANDIDATES * 3];
+    private final int[] mGroupCounts = new int[MAX_CANDIDATES];
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Uses the default cascade and {@link #DEFAULT_MIN_NEIGHBORS}.
+     */
+    public CascadeFaceDetector() {
+        this(createDefaultCascade(), DEFAULT_MIN_NEIGHBORS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param stages       The cascade, cheapest stage first.
+     * @param minNeighbors The number of overlapping detections a face needs to be reported.
+     */
+    public CascadeFaceDetector(Stage[] stages, int minNeighbors) {
+        mStages = stages;
+        mMinNeighbors = Math.max(minNeighbors, 1);
+        int rectCount = 0;
+        for (Stage stage : stages) {
+            for (Feature feature : stage.features) {
+                rectCount += feature.weights.length;
+            }
+        }
+        mScaledRects = new int[rectCount * 4];
+        mScaledWeights = new float[rectCount];
+    }
+
+    /**
+     * Sets the factor between two successive window sizes. Smaller factors find more faces at a
+     * higher cost.
+     *
+     * @param scaleFactor The factor, greater than 1.
+     */
+    public void setScaleFactor(float scaleFactor) {
+        mScaleFactor = Math.max(scaleFactor, 1.05f);
+    }
+
+
+    //
+    // Detection
+    //
+
+    /**
+     * Finds faces in a luma plane.
+     *
+     * @param luma     The luma plane, such as the Y plane of an NV21 frame.
+     * @param width    The width of the plane in pixels; also the distance between two rows.
+     * @param height   The height of the plane in pixels.
+     * @param rotation The clockwise rotation in degrees, 0, 90, 180 or 270, that makes the plane
+     *                 upright. Faces are only found upright.
+     * @param rects    Receives {@link FaceModel#RECT_STRIDE} floats per face: left, top, right and
+     *                 bottom in {@code Camera.Face.rect} coordinates.
+     * @param scores   Receives the score of each face, 1 to {@link #MAX_SCORE}.
+     * @param maxFaces The largest number of faces reported; the faces with the most overlapping
+     *                 detections are kept.
+     *
+     * @return The number of faces found.
+     */
+    public int detect(byte[] luma, int width, int height, int rotation,
+                      float[] rects, int[] scores, int maxFaces) {
+        buildIntegral(luma, width, height, rotation);
+        final int candidateCount = scan();
+        final int groupCount = group(candidateCount);
+
+        // Report the strongest groups, mapping them back to the plane.
+        int faceCount = 0;
+        while (faceCount < maxFaces) {
+            int best = -1;
+            for (int i = 0; i < groupCount; i++) {
+                if (mGroupCounts[i] >= mMinNeighbors
+                        && (best < 0 || mGroupCounts[i] > mGroupCounts[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            final int count = mGroupCounts[best];
+            final float x = (float) mGroupSums[best * 3] / count;
+            final float y = (float) mGroupSums[best * 3 + 1] / count;
+            final float size = (float) mGroupSums[best * 3 + 2] / count;
+            mapToCamera(x, y, x + size, y + size, width, height, rotation,
+                    rects, faceCount * FaceModel.RECT_STRIDE);
+            scores[faceCount] = Math.min(count * 10, MAX_SCORE);
+            mGroupCounts[best] = 0;
+            faceCount++;
+        }
+        return faceCount;
+    }
+
+    /**
+     * Builds the integral and squared integral images of the upright plane.
+     */
+    private void buildIntegral(byte[] luma, int width, int height, int rotation) {
+        final boolean sideways = rotation == 90 || rotation == 270;
+        final int uprightWidth = sideways ? height : width;
+        final int uprightHeight = sideways ? width : height;
+        final int size = (uprightWidth + 1) * (uprightHeight + 1);
+        if (mIntegral == null || mIntegral.length < size) {
+            mIntegral = new int[size];
+            mSquaredIntegral = new long[size];
+        }
+        mUprightWidth = uprightWidth;
+        mUprightHeight = uprightHeight;
+
+        final int stride = uprightWidth + 1;
+        final int[] integral = mIntegral;
+        final long[] squaredIntegral = mSquaredIntegral;
+        for (int x = 0; x < stride; x++) {
+            integral[x] = 0;
+            squaredIntegral[x] = 0;
+        }
+        for (int y = 0; y < uprightHeight; y++) {
+            // Walk the plane along the source pixels of the upright row.
+            final int start;
+            final int step;
+            switch (rotation) {
+                case 90:
+                    start = (height - 1) * width + y;
+                    step = -width;
+                    break;
+                case 180:
+                    start = (height - 1 - y) * width + width - 1;
+                    step = -1;
+                    break;
+                case 270:
+                    start = width - 1 - y;
+                    step = width;
+                    break;
+                default:
+                    start = y * width;
+                    step = 1;
+                    break;
+            }
+            final int row = (y + 1) * stride;
+            integral[row] = 0;
+            squaredIntegral[row] = 0;
+            int rowSum = 0;
+            long rowSquaredSum = 0;
+            int index = start;
+            for (int x = 0; x < uprightWidth; x++) {
+                final int value = luma[index] & 0xff;
+                index += step;
+                rowSum += value;
+                rowSquaredSum += value * value;
+                integral[row + x + 1] = integral[row - stride + x + 1] + rowSum;
+                squaredIntegral[row + x + 1] = squaredIntegral[row - stride + x + 1]
+                        + rowSquaredSum;
+            }
+        }
+    }
+
+    /**
+     * Runs the cascade over every window position and size.
+     *
+     * @return The number of detections stored in the candidate array.
+     */
+    private int scan() {
+        final int stride = mUprightWidth + 1;
+        final int[] integral = mIntegral;
+        final long[] squaredIntegral = mSquaredIntegral;
+        final int[] scaledRects = mScaledRects;
+        final float[] scaledWeights = mScaledWeights;
+        final int minSize = Math.min(mUprightWidth, mUprightHeight);
+
+        int candidateCount = 0;
+        for (float scale = 1; WINDOW_SIZE * scale <= minSize; scale *= mScaleFactor) {
+            final int windowSize = (int) (WINDOW_SIZE * scale);
+            final int windowArea = windowSize * windowSize;
+            final int step = Math.max((int) (scale * 2), 1);
+            scaleFeatures(scale, stride);
+
+            for (int y = 0; y + windowSize <= mUprightHeight; y += step) {
+                for (int x = 0; x + windowSize <= mUprightWidth; x += step) {
+                    final int topLeft = y * stride + x;
+                    final int bottomLeft = topLeft + windowSize * stride;
+
+                    // Skip flat windows before running any feature.
+                    final int sum = integral[bottomLeft + windowSize] - integral[bottomLeft]
+                            - integral[topLeft + windowSize] + integral[topLeft];
+                    final long squaredSum = squaredIntegral[bottomLeft + windowSize]
+                            - squaredIntegral[bottomLeft] - squaredIntegral[topLeft + windowSize]
+                            + squaredIntegral[topLeft];
+                    final float mean = (float) sum / windowArea;
+                    final float variance = (float) squaredSum / windowArea - mean * mean;
+                    if (variance < MIN_STANDARD_DEVIATION * MIN_STANDARD_DEVIATION) {
+                        continue;
+                    }
+                    final float deviation = (float) Math.sqrt(variance);
+
+                    if (evaluate(integral, topLeft, deviation, scaledRects, scaledWeights)) {
+                        if (candidateCount == MAX_CANDIDATES) {
+                            return candidateCount;
+                        }
+                        mCandidates[candidateCount * 3] = x;
+                        mCandidates[candidateCount * 3 + 1] = y;
+                        mCandidates[candidateCount * 3 + 2] = windowSize;
+                        candidateCount++;
+                    }
+                }
+            }
+        }
+        return candidateCount;
+    }
+
+    /**
+     * Scales the feature rects to a window size, storing each rect as the offsets of its top-left
+     * and bottom-left corners in the integral image, its width, and its weight divided by its
+     * area.
+     */
+    private void scaleFeatures(float scale, int stride) {
+        int rect = 0;
+        for (Stage stage : mStages) {
+            for (Feature feature : stage.features) {
+                for (int i = 0; i < feature.weights.length; i++) {
+                    final int left = Math.round(feature.rects[i * 4] * scale);
+                    final int top = Math.round(feature.rects[i * 4 + 1] * scale);
+                    final int width = Math.max(Math.round(feature.rects[i * 4 + 2] * scale), 1);
+                    final int height = Math.max(Math.round(feature.rects[i * 4 + 3] * scale), 1);
+                    mScaledRects[rect * 4] = top * stride + left;
+                    mScaledRects[rect * 4 + 1] = (top + height) * stride + left;
+                    mScaledRects[rect * 4 + 2] = width;
+                    mScaledWeights[rect] = feature.weights[i] / (width * height);
+                    rect++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the cascade on one window.
+     *
+     * @return True if every stage accepted the window.
+     */
+    private boolean evaluate(int[] integral, int topLeft, float deviation,
+                             int[] scaledRects, float[] scaledWeights) {
+        int rect = 0;
+        for (Stage stage : mStages) {
+            float stageSum = 0;
+            for (Feature feature : stage.features) {
+                // Weighted difference of mean luma, in standard deviations of the window.
+                float value = 0;
+                for (int i = 0; i < feature.weights.length; i++) {
+                    final int top = topLeft + scaledRects[rect * 4];
+                    final int bottom = topLeft + scaledRects[rect * 4 + 1];
+                    final int width = scaledRects[rect * 4 + 2];
+                    final int sum = integral[bottom + width] - integral[bottom]
+                            - integral[top + width] + integral[top];
+                    value += sum * scaledWeights[rect];
+                    rect++;
+                }
+                stageSum += value >= feature.threshold * deviation
+                        ? feature.passVote : feature.failVote;
+            }
+            if (stageSum < stage.threshold) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Groups detections of similar position and size, averaging each group.
+     *
+     * @return The number of groups.
+     */
+    private int group(int candidateCount) {
+        int groupCount = 0;
+        for (int i = 0; i < candidateCount; i++) {
+            final int x = mCandidates[i * 3];
+            final int y = mCandidates[i * 3 + 1];
+            final int size = mCandidates[i * 3 + 2];
+            int match = -1;
+            for (int j = 0; j < groupCount && match < 0; j++) {
+                final int count = mGroupCounts[j];
+                final float groupSize = (float) mGroupSums[j * 3 + 2] / count;
+                final float tolerance = groupSize * GROUPING_TOLERANCE;
+                if (Math.abs(x - (float) mGroupSums[j * 3] / count) <= tolerance
+                        && Math.abs(y - (float) mGroupSums[j * 3 + 1] / count) <= tolerance
+                        && Math.abs(size - groupSize) <= tolerance) {
+                    match = j;
+                }
+            }
+            if (match < 0) {
+                match = groupCount++;
+                mGroupSums[match * 3] = 0;
+                mGroupSums[match * 3 + 1] = 0;
+                mGroupSums[match * 3 + 2] = 0;
+                mGroupCounts[match] = 0;
+            }
+            mGroupSums[match * 3] += x;
+            mGroupSums[match * 3 + 1] += y;
+            mGroupSums[match * 3 + 2] += size;
+            mGroupCounts[match]++;
+        }
+
+        // Drop groups mostly covered by a stronger group, such as a detection of just the eyes.
+        for (int i = 0; i < groupCount; i++) {
+            final int count = mGroupCounts[i];
+            if (count == 0) {
+                continue;
+            }
+            final float left = (float) mGroupSums[i * 3] / count;
+            final float top = (float) mGroupSums[i * 3 + 1] / count;
+            final float size = (float) mGroupSums[i * 3 + 2] / count;
+            for (int j = 0; j < groupCount; j++) {
+                final int otherCount = mGroupCounts[j];
+                if (j == i || otherCount < count || (otherCount == count && j > i)) {
+                    continue;
+                }
+                final float otherLeft = (float) mGroupSums[j * 3] / otherCount;
+                final float otherTop = (float) mGroupSums[j * 3 + 1] / otherCount;
+                final float otherSize = (float) mGroupSums[j * 3 + 2] / otherCount;
+                final float overlapWidth = Math.min(left + size, otherLeft + otherSize)
+                        - Math.max(left, otherLeft);
+                final float overlapHeight = Math.min(top + size, otherTop + otherSize)
+                        - Math.max(top, otherTop);
+                final float smallerSize = Math.min(size, otherSize);
+                if (overlapWidth > 0 && overlapHeight > 0
+                        && overlapWidth * overlapHeight > smallerSize * smallerSize * 0.5f) {
+                    mGroupCounts[i] = 0;
+                    break;
+                }
+            }
+        }
+        return groupCount;
+    }
+
+    /**
+     * Maps a rect of the upright plane to {@code Camera.Face.rect} coordinates of the plane as
+     * passed in.
+     */
+    private static void mapToCamera(float left, float top, float right, float bottom,
+                                    int width, int height, int rotation,
+                                    float[] rects, int offset) {
+        final float planeLeft;
+        final float planeTop;
+        final float planeRight;
+        final float planeBottom;
+        switch (rotation) {
+            case 90:
+                planeLeft = top;
+                planeRight = bottom;
+                planeTop = height - right;
+                planeBottom = height - left;
+                break;
+            case 180:
+                planeLeft = width - right;
+                planeRight = width - left;
+                planeTop = height - bottom;
+                planeBottom = height - top;
+                break;
+            case 270:
+                planeLeft = width - bottom;
+                planeRight = width - top;
+                planeTop = left;
+                planeBottom = right;
+                break;
+            default:
+                planeLeft = left;
+                planeRight = right;
+                planeTop = top;
+                planeBottom = bottom;
+                break;
+        }
+        rects[offset] = planeLeft * 2000 / width - 1000;
+        rects[offset + 1] = planeTop * 2000 / height - 1000;
+        rects[offset + 2] = planeRight * 2000 / width - 1000;
+        rects[offset + 3] = planeBottom * 2000 / height - 1000;
+    }
+
+
+    //
+    // Cascade
+    //
+
+    /**
+     * Creates the default hand-tuned cascade. Rects are in a {@link #WINDOW_SIZE} square window
+     * framing a face from the eyebrows to the chin.
+     */
+    public static Stage[] createDefaultCascade() {
+        return new Stage[]{
+                // Eyes darker than the cheeks, and the nose bridge lighter than the eyes.
+                new Stage(2, new Feature[]{
+                        new Feature(new int[]{3, 7, 18, 4, 3, 12, 18, 4},
+                                new float[]{-1, 1}, 0.8f, 1, 0),
+                        new Feature(new int[]{10, 7, 4, 4, 4, 7, 6, 4, 14, 7, 6, 4},
+                                new float[]{1, -0.5f, -0.5f}, 0.5f, 1, 0)
+                }),
+                // Each eye darker than its cheek, the forehead lighter than the eyes and the mouth
+                // darker than the upper lip; one of them may fail.
+                new Stage(3, new Feature[]{
+                        new Feature(new int[]{4, 7, 6, 4, 4, 12, 6, 4},
+                                new float[]{-1, 1}, 0.5f, 1, 0),
+                        new Feature(new int[]{14, 7, 6, 4, 14, 12, 6, 4},
+                                new float[]{-1, 1}, 0.5f, 1, 0),
+                        new Feature(new int[]{4, 1, 16, 4, 4, 7, 16, 4},
+                                new float[]{1, -1}, 0.5f, 1, 0),
+                        new Feature(new int[]{8, 14, 8, 3, 8, 17, 8, 3},
+                                new float[]{1, -1}, 0.3f, 1, 0)
+                })
+        };
+    }
+
+    /**
+     * One stage of the cascade: a window passes if the votes of its features add up to at least
+     * the stage threshold.
+     */
+    public static final class Stage {
+        private final float threshold;
+        private final Feature[] features;
+
+        /**
+         * Constructor.
+         *
+         * @param threshold The smallest sum of votes that passes the stage.
+         * @param features  The features of the stage.
+         */
+        public Stage(float threshold, Feature[] features) {
+            this.threshold = threshold;
+            this.features = features;
+        }
+    }
+
+    /**
+     * A rectangle feature: the weighted sum of the mean luma of a few rects of the window,
+     * compared to a threshold in standard deviations of the window.
+     */
+    public static final class Feature {
+        private final int[] rects;
+        private final float[] weights;
+        private final float threshold;
+        private final float passVote;
+        private final float failVote;
+
+        /**
+         * Constructor.
+         *
+         * @param rects     Four ints per rect: left, top, width and height in a {@link
+         *                  #WINDOW_SIZE} square window.
+         * @param weights   The weight of each rect's mean luma.
+         * @param threshold The value, in standard deviations of the window, at or above which
+         *                  the feature passes.
+         * @param passVote  The vote added to the stage sum if the feature passes.
+         * @param failVote  The vote added to the stage sum if the feature fails.
+         */
+        public Feature(int[] rects, float[] weights, float threshold, float passVote,
+                       float failVote) {
+            if (rects.length != weights.length * 4) {
+                throw new IllegalArgumentException("A feature needs four ints per weight.");
+            }
+            this.rects = rects;
+            this.weights = weights;
+            this.threshold = threshold;
+            this.passVote = passVote;
+            this.failVote = failVote;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The FaceModel class hands detected faces from the thread that receives face detection callbacks
+ * to the thread that draws them without allocating.
+ * <p/>
+ * Faces are stored as primitive arrays (one array per field) in two fixed-capacity buffers. The
+ * writer copies each detection into the back buffer with {@link #publish(int, float[], float[],
+ * int[], long)}; the reader calls {@link #swap()} at draw time to take the latest published
+ * detection, then reads the front buffer through the getters. Publishing and swapping are atomic
+ * with respect to each other, and the front buffer is only ever touched by the reader.
+ * <p/>
+ * Coordinates use the layout of {@code CameraTransform.mapFaces()}.
+ */
+public class FaceModel {
+    /**
+     * Number of floats per face in a rect array: left, top, right and bottom.
+     */
+    public static final int RECT_STRIDE = 4;
+
+    /**
+     * Number of floats per face in a landmark array: left eye, right eye and mouth x/y pairs.
+     */
+    public static final int LANDMARK_STRIDE = 6;
+
+    /**
+     * Timestamp of a detection that never happened.
+     */
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    // Capacity
+    private final int mCapacity;
+
+    // Buffers
+    private Buffer mFront;
+    private Buffer mBack;
+    private boolean mBackPublished;
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum number of faces per detection, usually {@code
+     *                 Camera.Parameters.getMaxNumDetectedFaces()}. Extra faces are dropped.
+     */
+    public FaceModel(int capacity) {
+        mCapacity = Math.max(capacity, 1);
+        mFront = new Buffer(mCapacity);
+        mBack = new Buffer(mCapacity);
+    }
+
+
+    //
+    // Writer
+    //
+
+    /**
+     * Copies a detection into the back buffer and publishes it, replacing any detection that was
+     * published but not swapped in yet.
+     *
+     * @param count     The number of faces.
+     * @param rects     {@link #RECT_STRIDE} floats per face.
+     * @param landmarks {@link #LANDMARK_STRIDE} floats per face, NaN if there
+     *                  are no landmarks. May be null.
+     * @param scores    The confidence score of each face.
+     * @param timestamp The time of the detection in milliseconds.
+     */
+    public synchronized void publish(int count, float[] rects, float[] landmarks, int[] scores,
+                                     long timestamp) {
+        final Buffer back = mBack;
+        final int faceCount = Math.min(count, mCapacity);
+        back.count = faceCount;
+        back.timestamp = timestamp;
+        System.arraycopy(rects, 0, back.rects, 0, faceCount * RECT_STRIDE);
+        System.arraycopy(scores, 0, back.scores, 0, faceCount);
+        back.hasLandmarks = landmarks != null;
+        if (landmarks != null) {
+            System.arraycopy(landmarks, 0, back.landmarks, 0,
+                    faceCount * LANDMARK_STRIDE);
+        }
+        mBackPublished = true;
+    }
+
+    /**
+     * Publishes an empty detection.
+     *
+     * @param timestamp The time of the detection in milliseconds.
+     */
+    public synchronized void clear(long timestamp) {
+        mBack.count = 0;
+        mBack.timestamp = timestamp;
+        mBackPublished = true;
+    }
+
+
+    //
+    // Reader
+    //
+
+    /**
+     * Makes the latest published detection the front buffer. Must be called on the reader thread.
+     *
+     * @return True if a new detection was swapped in; false if nothing was published since the last
+     * swap.
+     */
+    public synchronized boolean swap() {
+        if (!mBackPublished) {
+            return false;
+        }
+        final Buffer front = mFront;
+        mFront = mBack;
+        mBack = front;
+        mBackPublished = false;
+        return true;
+    }
+
+    /**
+     * @return The number of faces in the front buffer.
+     */
+    public int getFaceCount() {
+        return mFront.count;
+    }
+
+    /**
+     * @return The time of the detection in the front buffer in milliseconds, or {@link
+     * #NO_TIMESTAMP} if nothing was swapped in yet.
+     */
+    public long getTimestamp() {
+        return mFront.timestamp;
+    }
+
+    public float getLeft(int face) {
+        return mFront.rects[face * RECT_STRIDE];
+    }
+
+    public float getTop(int face) {
+        return mFront.rects[face * RECT_STRIDE + 1];
+    }
+
+    public float getRight(int face) {
+        return mFront.rects[face * RECT_STRIDE + 2];
+    }
+
+    public float getBottom(int face) {
+        return mFront.rects[face * RECT_STRIDE + 3];
+    }
+
+    public int getScore(int face) {
+        return mFront.scores[face];
+    }
+
+    /**
+     * @return Whether a face in the front buffer has eye and mouth positions.
+     */
+    public boolean hasLandmarks(int face) {
+        return mFront.hasLandmarks
+                && !Float.isNaN(mFront.landmarks[face * LANDMARK_STRIDE]);
+    }
+
+    /**
+     * Returns a landmark coordinate of a face in the front buffer.
+     *
+     * @param face  The index of the face.
+     * @param index The index of the coordinate: left eye x/y, right eye x/y, then mouth x/y.
+     *
+     * @return The coordinate in view space.
+     */
+    public float getLandmark(int face, int index) {
+        return mFront.landmarks[face * LANDMARK_STRIDE + index];
+    }
+
+
+    //
+    // Buffer
+    //
+
+    /**
+     * One detection, stored as primitive arrays.
+     */
+    private static class Buffer {
+        final float[] rects;
+        final float[] landmarks;
+        final int[] scores;
+        int count;
+        boolean hasLandmarks;
+        long timestamp = NO_TIMESTAMP;
+
+        Buffer(int capacity) {
+            rects = new float[capacity * RECT_STRIDE];
+            landmarks = new float[capacity * LANDMARK_STRIDE];
+            scores = new int[capacity];
+        }
+    }
+}
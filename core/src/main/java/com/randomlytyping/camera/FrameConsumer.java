@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The FrameConsumer interface receives NV21 preview frames, whatever delivers them: a camera
+ * through {@code PreviewFrameRing}, any {@link CameraSource} through a {@link FrameDispatcher}, or
+ * a {@link TraceReplayer}. Consumers see frames the same way on a device and on a plain JVM.
+ */
+public interface FrameConsumer {
+
+    /**
+     * Called when a new NV21 preview frame is available. The frame belongs to its owner and must
+     * be handed back with {@link FrameOwner#release(byte[])} once the consumer is done with it;
+     * frames are dropped while every buffer is held.
+     *
+     * @param data   The NV21 frame data.
+     * @param width  The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param owner  The owner of the frame.
+     */
+    void onPreviewFrame(byte[] data, int width, int height, FrameOwner owner);
+}
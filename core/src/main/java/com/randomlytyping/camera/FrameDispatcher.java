@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The FrameDispatcher class is the frame callback of a {@link CameraSource} that hands its preview
+ * frames on to the rest of the pipeline, in order:
+ * <ol>
+ * <li>the {@link FrameRateMonitor}, with the frame's arrival time,</li>
+ * <li>the {@link TraceRecorder}, with the same timestamp,</li>
+ * <li>the display, which draws frames for sources that do not draw their own preview,</li>
+ * <li>the {@link FrameConsumer}, which owns the frame until it releases it.</li>
+ * </ol>
+ * Frames the consumer releases go back to the source. Without a consumer, a frame is released as
+ * soon as the display is done with it, so that the monitor keeps seeing every frame.
+ * <p/>
+ * Every stage may be changed from any thread while frames are being delivered.
+ */
+public class FrameDispatcher implements CameraSource.FrameCallback, FrameOwner {
+    // Source
+    private volatile CameraSource mSource;
+
+    // Stages
+    private volatile FrameRateMonitor mFrameRateMonitor;
+    private volatile TraceRecorder mTraceRecorder;
+    private volatile CameraSource.FrameCallback mDisplay;
+    private volatile FrameConsumer mConsumer;
+
+
+    //
+    // Getters/Setters
+    //
+
+    /**
+     * Sets the source the dispatcher receives frames from and releases them to. Frames still held
+     * from a previous source are ignored by the new one when released.
+     *
+     * @param source The {@link CameraSource} or null.
+     */
+    public void setSource(CameraSource source) {
+        mSource = source;
+    }
+
+    /**
+     * @return The {@link CameraSource} frames are released to, or null.
+     */
+    public CameraSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * Sets the monitor that every frame is reported to as it arrives.
+     *
+     * @param frameRateMonitor The {@link FrameRateMonitor} or null.
+     */
+    public void setFrameRateMonitor(FrameRateMonitor frameRateMonitor) {
+        mFrameRateMonitor = frameRateMonitor;
+    }
+
+    /**
+     * Sets the recorder that every frame and frame size is appended to.
+     *
+     * @param traceRecorder The {@link TraceRecorder} or null.
+     */
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        mTraceRecorder = traceRecorder;
+    }
+
+    /**
+     * Sets the callback that draws frames for a source that does not draw its own preview. It is
+     * called before the consumer and must not keep the frame.
+     *
+     * @param display The display callback or null.
+     */
+    public void setDisplay(CameraSource.FrameCallback display) {
+        mDisplay = display;
+    }
+
+    /**
+     * Sets the consumer that receives frames after the other stages.
+     *
+     * @param consumer The {@link FrameConsumer} or null to release every frame right away.
+     */
+    public void setConsumer(FrameConsumer consumer) {
+        mConsumer = consumer;
+    }
+
+
+    //
+    // Preview
+    //
+
+    /**
+     * Tells the stages that the preview (re)starts, which is not a gap between frames, and records
+     * the frame size. Must be called before the source's preview starts.
+     *
+     * @param width  The width of the frames in pixels.
+     * @param height The height of the frames in pixels.
+     */
+    public void onPreviewStarted(int width, int height) {
+        final FrameRateMonitor frameRateMonitor = mFrameRateMonitor;
+        if (frameRateMonitor != null) {
+            frameRateMonitor.restart();
+        }
+        final TraceRecorder traceRecorder = mTraceRecorder;
+        if (traceRecorder != null) {
+            traceRecorder.recordParameter("preview-size", width + "x" + height,
+                    System.nanoTime());
+        }
+    }
+
+
+    //
+    // CameraSource.FrameCallback implementation
+    //
+
+    @Override
+    public void onFrame(byte[] data, int width, int height, long timestampNanos) {
+        final FrameRateMonitor frameRateMonitor = mFrameRateMonitor;
+        if (frameRateMonitor != null) {
+            frameRateMonitor.onFrame(timestampNanos);
+        }
+        final TraceRecorder traceRecorder = mTraceRecorder;
+        if (traceRecorder != null) {
+            traceRecorder.recordFrame(data, width, height, timestampNanos);
+        }
+        final CameraSource.FrameCallback display = mDisplay;
+        if (display != null) {
+            display.onFrame(data, width, height, timestampNanos);
+        }
+        final FrameConsumer consumer = mConsumer;
+        if (consumer != null) {
+            consumer.onPreviewFrame(data, width, height, this);
+        } else {
+            release(data);
+        }
+    }
+
+
+    //
+    // FrameOwner implementation
+    //
+
+    @Override
+    public void release(byte[] frame) {
+        final CameraSource source = mSource;
+        if (source != null) {
+            source.releaseFrame(frame);
+        }
+    }
+}
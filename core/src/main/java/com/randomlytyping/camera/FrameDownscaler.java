@@ -0,0 +1,487 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import java.util.ArrayDeque;
+
+/**
+ * The FrameDownscaler class shrinks NV21 preview frames, optionally cropped to a region of
+ * interest, to a smaller analysis resolution.
+ * <p/>
+ * Every output sample is the exact area average of the source samples it covers. Samples that are
+ * only partly covered are weighted by how much of them is covered, so fractional ratios such as
+ * 1920 to 1280 are handled as well as integer ones, where this reduces to a plain box filter. The
+ * weights for each axis are worked out once per frame size and reused.
+ * <p/>
+ * Scaled frames are written to a small pool of buffers. As a {@link FrameConsumer} the
+ * downscaler hands every camera buffer straight back and passes the scaled frame on to its
+ * {@link Consumer}, so it can sit in front of any analysis stage. Frames arriving while every
+ * pooled buffer is held are dropped.
+ */
+public class FrameDownscaler implements FrameConsumer {
+    /**
+     * Default number of scaled frames that can be held at once.
+     */
+    public static final int DEFAULT_POOL_SIZE = 2;
+
+    // Configuration, guarded by this
+    private int mMaxWidth;
+    private int mMaxHeight;
+    private boolean mHasCrop;
+    private int mCropLeft;
+    private int mCropTop;
+    private int mCropWidth;
+    private int mCropHeight;
+    private Consumer mConsumer;
+
+    // Last output size, guarded by this
+    private int mOutputWidth;
+    private int mOutputHeight;
+
+    // Scratch, guarded by this
+    private Axis mLumaX;
+    private Axis mLumaY;
+    private Axis mChromaX;
+    private Axis mChromaY;
+    private long[] mAccumulator;
+
+    // Buffer pool, guarded by mPool
+    private final ArrayDeque<byte[]> mPool;
+    private final int mPoolSize;
+    private int mPoolBufferSize;
+    private int mAllocatedCount;
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Keeps up to {@link #DEFAULT_POOL_SIZE} scaled frames.
+     *
+     * @param maxWidth  The largest width of a scaled frame in pixels.
+     * @param maxHeight The largest height of a scaled frame in pixels.
+     */
+    public FrameDownscaler(int maxWidth, int maxHeight) {
+        this(maxWidth, maxHeight, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxWidth  The largest width of a scaled frame in pixels.
+     * @param maxHeight The largest height of a scaled frame in pixels.
+     * @param poolSize  The number of scaled frames that can be held at once.
+     */
+    public FrameDownscaler(int maxWidth, int maxHeight, int poolSize) {
+        setMaxSize(maxWidth, maxHeight);
+        mPoolSize = Math.max(poolSize, 1);
+        mPool = new ArrayDeque<byte[]>(mPoolSize);
+    }
+
+
+    //
+    // Getters/Setters
+    //
+
+    /**
+     * Sets the largest size of a scaled frame. Scaled frames keep the aspect ratio of the cropped
+     * source and are never larger than it.
+     *
+     * @param maxWidth  The largest width in pixels.
+     * @param maxHeight The largest height in pixels.
+     */
+    public synchronized void setMaxSize(int maxWidth, int maxHeight) {
+        if (maxWidth < 2 || maxHeight < 2) {
+            throw new IllegalArgumentException("Scaled frames must be at least 2x2.");
+        }
+        mMaxWidth = maxWidth;
+        mMaxHeight = maxHeight;
+    }
+
+    /**
+     * Restricts scaling to a region of interest, such as the sensor area of {@code
+     * Preview.getAreaAt()} mapped to frame coordinates. The region is clipped to the
+     * frame and aligned to even coordinates to match the chroma samples.
+     *
+     * @param left   The left edge of the region in frame pixels.
+     * @param top    The top edge of the region in frame pixels.
+     * @param width  The width of the region in pixels.
+     * @param height The height of the region in pixels.
+     */
+    public synchronized void setCrop(int left, int top, int width, int height) {
+        mHasCrop = true;
+        mCropLeft = left;
+        mCropTop = top;
+        mCropWidth = width;
+        mCropHeight = height;
+    }
+
+    /**
+     * Scales whole frames again.
+     */
+    public synchronized void clearCrop() {
+        mHasCrop = false;
+    }
+
+    /**
+     * Sets the consumer that receives scaled frames when the downscaler is used as a {@link
+     * FrameConsumer}.
+     *
+     * @param consumer The {@link Consumer} or null to drop every frame.
+     */
+    public synchronized void setConsumer(Consumer consumer) {
+        mConsumer = consumer;
+    }
+
+    /**
+     * @return The width of the last scaled frame.
+     */
+    public synchronized int getOutputWidth() {
+        return mOutputWidth;
+    }
+
+    /**
+     * @return The height of the last scaled frame.
+     */
+    public synchronized int getOutputHeight() {
+        return mOutputHeight;
+    }
+
+
+    //
+    // Scaling
+    //
+
+    /**
+     * Scales a frame into a pooled buffer.
+     *
+     * @param nv21   The NV21 frame data.
+     * @param width  The width of the frame in pixels. Must be even.
+     * @param height The height of the frame in pixels. Must be even.
+     *
+     * @return The scaled NV21 frame, sized {@link #getOutputWidth()} by {@link
+     * #getOutputHeight()}, which must be handed back with {@link #release(byte[])}; or null if
+     * every pooled buffer is held.
+     */
+    public synchronized byte[] downscale(byte[] nv21, int width, int height) {
+        // Even crop bounds keep luma and chroma aligned.
+        int left = 0;
+        int top = 0;
+        int cropWidth = width;
+        int cropHeight = height;
+        if (mHasCrop) {
+            left = Math.min(Math.max(mCropLeft, 0), width - 2) & ~1;
+            top = Math.min(Math.max(mCropTop, 0), height - 2) & ~1;
+            cropWidth = Math.max(Math.min(mCropLeft + mCropWidth, width) - left, 2) & ~1;
+            cropHeight = Math.max(Math.min(mCropTop + mCropHeight, height) - top, 2) & ~1;
+        }
+
+        // Fit the crop inside the maximum size, keeping its aspect ratio.
+        int outputWidth = cropWidth;
+        int outputHeight = cropHeight;
+        if (outputWidth > mMaxWidth || outputHeight > mMaxHeight) {
+            if ((long) cropWidth * mMaxHeight > (long) cropHeight * mMaxWidth) {
+                outputWidth = mMaxWidth;
+                outputHeight = (int) ((long) cropHeight * mMaxWidth / cropWidth);
+            } else {
+                outputHeight = mMaxHeight;
+                outputWidth = (int) ((long) cropWidth * mMaxHeight / cropHeight);
+            }
+        }
+        outputWidth = Math.max(outputWidth & ~1, 2);
+        outputHeight = Math.max(outputHeight & ~1, 2);
+
+        final byte[] output = acquire(outputWidth * outputHeight * 3 / 2);
+        if (output == null) {
+            return null;
+        }
+        mOutputWidth = outputWidth;
+        mOutputHeight = outputHeight;
+
+        mLumaX = Axis.obtain(mLumaX, cropWidth, outputWidth);
+        mLumaY = Axis.obtain(mLumaY, cropHeight, outputHeight);
+        mChromaX = Axis.obtain(mChromaX, cropWidth / 2, outputWidth / 2);
+        mChromaY = Axis.obtain(mChromaY, cropHeight / 2, outputHeight / 2);
+        if (mAccumulator == null || mAccumulator.length < outputWidth) {
+            mAccumulator = new long[outputWidth];
+        }
+
+        // Y plane, then the interleaved VU plane with V and U scaled separately.
+        scalePlane(nv21, top * width + left, width, 1,
+                output, 0, outputWidth,
+                mLumaX, mLumaY, mAccumulator);
+        final int chromaStart = width * height + (top / 2) * width + left;
+        final int outputChromaStart = outputWidth * outputHeight;
+        scalePlane(nv21, chromaStart, width, 2,
+                output, outputChromaStart, outputWidth,
+                mChromaX, mChromaY, mAccumulator);
+        scalePlane(nv21, chromaStart + 1, width, 2,
+                output, outputChromaStart + 1, outputWidth,
+                mChromaX, mChromaY, mAccumulator);
+        return output;
+    }
+
+    /**
+     * Scales a region of an NV21 frame into another NV21 frame. Allocates its weight tables on
+     * every call; use {@link #downscale(byte[], int, int)} for a stream of frames.
+     *
+     * @param src        The source NV21 frame.
+     * @param srcWidth   The width of the source frame in pixels.
+     * @param srcHeight  The height of the source frame in pixels.
+     * @param cropLeft   The even left edge of the region to scale.
+     * @param cropTop    The even top edge of the region to scale.
+     * @param cropWidth  The even width of the region to scale.
+     * @param cropHeight The even height of the region to scale.
+     * @param dst        Receives the scaled NV21 frame.
+     * @param dstWidth   The even width of the scaled frame, at most {@code cropWidth}.
+     * @param dstHeight  The even height of the scaled frame, at most {@code cropHeight}.
+     */
+    public static void scale(byte[] src, int srcWidth, int srcHeight,
+                             int cropLeft, int cropTop, int cropWidth, int cropHeight,
+                             byte[] dst, int dstWidth, int dstHeight) {
+        final Axis chromaX = Axis.obtain(null, cropWidth / 2, dstWidth / 2);
+        final Axis chromaY = Axis.obtain(null, cropHeight / 2, dstHeight / 2);
+        final long[] accumulator = new long[dstWidth];
+        scalePlane(src, cropTop * srcWidth + cropLeft, srcWidth, 1,
+                dst, 0, dstWidth,
+                Axis.obtain(null, cropWidth, dstWidth), Axis.obtain(null, cropHeight, dstHeight),
+                accumulator);
+        final int chromaStart = srcWidth * srcHeight + (cropTop / 2) * srcWidth + cropLeft;
+        final int dstChromaStart = dstWidth * dstHeight;
+        scalePlane(src, chromaStart, srcWidth, 2, dst, dstChromaStart, dstWidth,
+                chromaX, chromaY, accumulator);
+        scalePlane(src, chromaStart + 1, srcWidth, 2, dst, dstChromaStart + 1, dstWidth,
+                chromaX, chromaY, accumulator);
+    }
+
+    /**
+     * Area-averages one channel of a plane.
+     *
+     * @param step The distance between two samples of the channel in a row, in both source and
+     *             destination.
+     */
+    private static void scalePlane(byte[] src, int srcStart, int srcStride, int step,
+                                   byte[] dst, int dstStart, int dstStride,
+                                   Axis x, Axis y, long[] accumulator) {
+        final int outputWidth = x.outputLength;
+        final int outputHeight = y.outputLength;
+        final int[] xFirst = x.first;
+        final int[] xCount = x.count;
+        final int[] xWeights = x.weights;
+        final long divisor = (long) x.total * y.total;
+        final long half = divisor / 2;
+        // Multiplying by a 32.32 reciprocal is much cheaper than a division per sample.
+        final long reciprocal = ((1L << 32) + divisor - 1) / divisor;
+
+        int yWeightIndex = 0;
+        for (int outputRow = 0; outputRow < outputHeight; outputRow++) {
+            for (int i = 0; i < outputWidth; i++) {
+                accumulator[i] = 0;
+            }
+            final int firstRow = y.first[outputRow];
+            final int rowCount = y.count[outputRow];
+            for (int r = 0; r < rowCount; r++) {
+                final int rowWeight = y.weights[yWeightIndex++];
+                final int rowStart = srcStart + (firstRow + r) * srcStride;
+                int xWeightIndex = 0;
+                for (int outputColumn = 0; outputColumn < outputWidth; outputColumn++) {
+                    int position = rowStart + xFirst[outputColumn] * step;
+                    int sum = 0;
+                    for (int c = xCount[outputColumn]; c > 0; c--) {
+                        sum += xWeights[xWeightIndex++] * (src[position] & 0xff);
+                        position += step;
+                    }
+                    accumulator[outputColumn] += (long) rowWeight * sum;
+                }
+            }
+
+            int position = dstStart + outputRow * dstStride;
+            for (int outputColumn = 0; outputColumn < outputWidth; outputColumn++) {
+                final long value = ((accumulator[outputColumn] + half) * reciprocal) >>> 32;
+                dst[position] = (byte) Math.min(value, 255);
+                position += step;
+            }
+        }
+    }
+
+
+    //
+    // Buffer pool
+    //
+
+    /**
+     * Takes a buffer of a given size from the pool, allocating one if the pool is not full yet.
+     */
+    private byte[] acquire(int size) {
+        synchronized (mPool) {
+            if (size != mPoolBufferSize) {
+                // Buffers of the old size are dropped as they come back.
+                mPool.clear();
+                mAllocatedCount = 0;
+                mPoolBufferSize = size;
+            }
+            final byte[] buffer = mPool.pollFirst();
+            if (buffer != null) {
+                return buffer;
+            }
+            if (mAllocatedCount < mPoolSize) {
+                mAllocatedCount++;
+                return new byte[size];
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Hands a scaled frame back to the pool.
+     *
+     * @param frame A frame returned by {@link #downscale(byte[], int, int)} or passed to {@link
+     *              Consumer#onScaledFrame(byte[], int, int, FrameDownscaler)}.
+     */
+    public void release(byte[] frame) {
+        synchronized (mPool) {
+            if (frame.length == mPoolBufferSize && mPool.size() < mAllocatedCount) {
+                mPool.addLast(frame);
+            }
+        }
+    }
+
+
+    //
+    // FrameConsumer implementation
+    //
+
+    @Override
+    public void onPreviewFrame(byte[] data, int width, int height, FrameOwner owner) {
+        final Consumer consumer;
+        final byte[] scaled;
+        final int scaledWidth;
+        final int scaledHeight;
+        synchronized (this) {
+            consumer = mConsumer;
+            scaled = consumer != null ? downscale(data, width, height) : null;
+            scaledWidth = mOutputWidth;
+            scaledHeight = mOutputHeight;
+        }
+        // The camera gets its buffer back before the consumer even sees the scaled frame.
+        owner.release(data);
+        if (scaled != null) {
+            consumer.onScaledFrame(scaled, scaledWidth, scaledHeight, this);
+        }
+    }
+
+
+    //
+    // Axis
+    //
+
+    /**
+     * The source samples and weights that make up each output sample along one axis.
+     * <p/>
+     * With {@code g = gcd(source, output)}, every source sample is {@code output / g} units long
+     * and every output sample {@code source / g} units long. An output sample is the sum of the
+     * source samples it overlaps, each weighted by the number of units of overlap, divided by
+     * {@link #total}.
+     */
+    private static final class Axis {
+        final int sourceLength;
+        final int outputLength;
+        final int total;
+        final int[] first;
+        final int[] count;
+        final int[] weights;
+
+        private Axis(int sourceLength, int outputLength) {
+            if (outputLength < 1 || outputLength > sourceLength) {
+                throw new IllegalArgumentException("Cannot scale " + sourceLength + " to "
+                        + outputLength);
+            }
+            this.sourceLength = sourceLength;
+            this.outputLength = outputLength;
+            final int g = gcd(sourceLength, outputLength);
+            final int sourceUnits = outputLength / g;
+            final int outputUnits = sourceLength / g;
+            total = outputUnits;
+            first = new int[outputLength];
+            count = new int[outputLength];
+
+            int weightCount = 0;
+            for (int i = 0; i < outputLength; i++) {
+                final long start = (long) i * outputUnits;
+                final long end = start + outputUnits;
+                first[i] = (int) (start / sourceUnits);
+                count[i] = (int) ((end - 1) / sourceUnits) - first[i] + 1;
+                weightCount += count[i];
+            }
+            weights = new int[weightCount];
+            int w = 0;
+            for (int i = 0; i < outputLength; i++) {
+                final long start = (long) i * outputUnits;
+                final long end = start + outputUnits;
+                for (int p = first[i]; p < first[i] + count[i]; p++) {
+                    final long pixelStart = (long) p * sourceUnits;
+                    weights[w++] = (int) (Math.min(pixelStart + sourceUnits, end)
+                            - Math.max(pixelStart, start));
+                }
+            }
+        }
+
+        /**
+         * Returns {@code axis} if it already maps the given lengths, or a new axis otherwise.
+         */
+        static Axis obtain(Axis axis, int sourceLength, int outputLength) {
+            if (axis != null && axis.sourceLength == sourceLength
+                    && axis.outputLength == outputLength) {
+                return axis;
+            }
+            return new Axis(sourceLength, outputLength);
+        }
+
+        private static int gcd(int a, int b) {
+            while (b != 0) {
+                final int t = a % b;
+                a = b;
+                b = t;
+            }
+            return a;
+        }
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for a callback to be invoked when a scaled frame is available.
+     */
+    public interface Consumer {
+
+        /**
+         * Called on the camera thread with a scaled NV21 frame. The frame belongs to the
+         * downscaler's pool and must be handed back with {@link FrameDownscaler#release(byte[])}
+         * once the consumer is done with it; frames are dropped while every pooled buffer is held.
+         *
+         * @param nv21       The scaled NV21 frame.
+         * @param width      The width of the frame in pixels.
+         * @param height     The height of the frame in pixels.
+         * @param downscaler The downscaler that owns the frame.
+         */
+        void onScaledFrame(byte[] nv21, int width, int height, FrameDownscaler downscaler);
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The FrameOwner interface is implemented by whatever owns the buffers of the frames handed to a
+ * {@link FrameConsumer}, so that consumers can give frames back without knowing where they came
+ * from.
+ */
+public interface FrameOwner {
+
+    /**
+     * Hands a frame back so that it can be filled again. Releasing a frame that is not held, or
+     * that is from a previous frame size, does nothing.
+     *
+     * @param frame A frame previously delivered to {@link FrameConsumer#onPreviewFrame(byte[],
+     *              int, int, FrameOwner)}.
+     */
+    void release(byte[] frame);
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The FrameRateMonitor class measures how evenly camera preview frames arrive: the instantaneous
+ * and windowed frame rates, the jitter of the intervals between frames, and the gaps where frames
+ * were dropped.
+ * <p/>
+ * The last {@link #WINDOW_SIZE} intervals are kept in a fixed ring along with their running sum and
+ * sum of squares, so each frame costs a constant amount of work and memory. A gap is an interval
+ * longer than {@link #GAP_FACTOR} times the expected interval, which is the windowed mean interval
+ * kept within the preview FPS range the camera was configured with, as reported by {@code
+ * Camera.Parameters.getPreviewFpsRange()}. Without a range, the windowed mean alone is expected.
+ * <p/>
+ * Frames must be reported from a single thread. Results may be read from any thread, and the FPS
+ * range set from any thread; results read together may come from consecutive frames.
+ */
+public class FrameRateMonitor {
+    /**
+     * Number of intervals the windowed results are computed over, about two seconds at 30 fps.
+     */
+    public static final int WINDOW_SIZE = 60;
+
+    /**
+     * Multiple of the expected interval above which an interval is a gap.
+     */
+    public static final float GAP_FACTOR = 1.5f;
+
+    /**
+     * Fraction below the minimum of the FPS range the windowed frame rate may fall before it is
+     * considered below range, to allow for timestamp noise.
+     */
+    private static final float RANGE_TOLERANCE = 0.1f;
+
+    /**
+     * Timestamp of a frame that was not reported.
+     */
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    // Intervals in microseconds, touched only by the thread reporting frames
+    private final long[] mIntervals = new long[WINDOW_SIZE];
+    private int mIntervalCount;
+    private int mNextInterval;
+    private long mIntervalSum;
+    private long mIntervalSquareSum;
+    private long mLastTimestamp = NO_TIMESTAMP;
+    private volatile boolean mRestartRequested;
+    private volatile boolean mResetRequested;
+
+    // FPS range, scaled by 1000 as in Camera.Parameters
+    private volatile int mMinFps;
+    private volatile int mMaxFps;
+
+    // Results
+    private volatile float mInstantFps;
+    private volatile float mWindowFps;
+    private volatile float mJitterMillis;
+    private volatile long mFrameCount;
+    private volatile long mGapCount;
+    private volatile long mDroppedFrameCount;
+
+    // Listener
+    private volatile Listener mListener;
+
+
+    //
+    // Getters/Setters
+    //
+
+    /**
+     * Sets the preview FPS range the camera was configured with.
+     *
+     * @param minFps The minimum frame rate scaled by 1000, or 0 if unknown.
+     * @param maxFps The maximum frame rate scaled by 1000, or 0 if unknown.
+     */
+    public void setFpsRange(int minFps, int maxFps) {
+        mMinFps = Math.max(minFps, 0);
+        mMaxFps = Math.max(maxFps, mMinFps);
+    }
+
+    /**
+     * @return The minimum frame rate of the FPS range scaled by 1000, or 0 if unknown.
+     */
+    public int getMinFps() {
+        return mMinFps;
+    }
+
+    /**
+     * @return The maximum frame rate of the FPS range scaled by 1000, or 0 if unknown.
+     */
+    public int getMaxFps() {
+        return mMaxFps;
+    }
+
+    /**
+     * Sets the listener notified of gaps.
+     *
+     * @param listener The {@link Listener} or null.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Forgets the last frame, so that the time until the next one is not counted as a gap. Should
+     * be called whenever the preview (re)starts. May be called from any thread.
+     */
+    public void restart() {
+        mRestartRequested = true;
+    }
+
+    /**
+     * Forgets every frame and result. May be called from any thread.
+     */
+    public void reset() {
+        mResetRequested = true;
+        mInstantFps = 0;
+        mWindowFps = 0;
+        mJitterMillis = 0;
+        mFrameCount = 0;
+        mGapCount = 0;
+        mDroppedFrameCount = 0;
+    }
+
+
+    //
+    // Frames
+    //
+
+    /**
+     * Reports a frame. Must always be called from the same thread.
+     *
+     * @param timestampNanos The time the frame arrived, from {@link System#nanoTime()}.
+     */
+    public void onFrame(long timestampNanos) {
+        if (mResetRequested) {
+            mResetRequested = false;
+            mRestartRequested = true;
+            mIntervalCount = 0;
+            mNextInterval = 0;
+            mIntervalSum = 0;
+            mIntervalSquareSum = 0;
+        }
+        if (mRestartRequested) {
+            mRestartRequested = false;
+            mLastTimestamp = NO_TIMESTAMP;
+        }
+        mFrameCount++;
+        final long lastTimestamp = mLastTimestamp;
+        mLastTimestamp = timestampNanos;
+        if (lastTimestamp == NO_TIMESTAMP) {
+            return;
+        }
+        final long interval = Math.max((timestampNanos - lastTimestamp) / 1000, 1);
+
+        // Compare against what was expected before this interval skews the window.
+        final long expected = getExpectedInterval();
+        if (expected > 0 && interval > expected * GAP_FACTOR) {
+            mGapCount++;
+            mDroppedFrameCount += Math.max(Math.round((double) interval / expected) - 1, 1);
+            final Listener listener = mListener;
+            if (listener != null) {
+                listener.onFrameGap(interval * 1000, expected * 1000);
+            }
+        }
+
+        // Slide the window.
+        if (mIntervalCount == WINDOW_SIZE) {
+            final long evicted = mIntervals[mNextInterval];
+            mIntervalSum -= evicted;
+            mIntervalSquareSum -= evicted * evicted;
+        } else {
+            mIntervalCount++;
+        }
+        mIntervals[mNextInterval] = interval;
+        mNextInterval = (mNextInterval + 1) % WINDOW_SIZE;
+        mIntervalSum += interval;
+        mIntervalSquareSum += interval * interval;
+
+        final double mean = (double) mIntervalSum / mIntervalCount;
+        final double variance = Math.max(
+                (double) mIntervalSquareSum / mIntervalCount - mean * mean, 0);
+        mInstantFps = 1000000f / interval;
+        mWindowFps = (float) (1000000 / mean);
+        mJitterMillis = (float) (Math.sqrt(variance) / 1000);
+    }
+
+    /**
+     * @return The interval in microseconds the next frame is expected within, or 0 if there is
+     * nothing to expect yet.
+     */
+    private long getExpectedInterval() {
+        final int minFps = mMinFps;
+        final int maxFps = mMaxFps;
+        // Intervals in microseconds; the FPS are scaled by 1000.
+        final long longest = minFps > 0 ? 1000000000L / minFps : Long.MAX_VALUE;
+        final long shortest = maxFps > 0 ? 1000000000L / maxFps : 0;
+        if (mIntervalCount == 0) {
+            // Until the camera settles, only a frame later than the range allows is a gap.
+            return longest != Long.MAX_VALUE ? longest : 0;
+        }
+        final long mean = mIntervalSum / mIntervalCount;
+        return Math.min(Math.max(mean, shortest), longest);
+    }
+
+
+    //
+    // Results
+    //
+
+    /**
+     * @return The frame rate from the interval between the last two frames, or 0 if there were
+     * fewer than two.
+     */
+    public float getInstantFps() {
+        return mInstantFps;
+    }
+
+    /**
+     * @return The frame rate over the last {@link #WINDOW_SIZE} intervals, or 0 if there were
+     * fewer than two frames.
+     */
+    public float getWindowFps() {
+        return mWindowFps;
+    }
+
+    /**
+     * @return The standard deviation of the last {@link #WINDOW_SIZE} intervals in milliseconds.
+     */
+    public float getJitterMillis() {
+        return mJitterMillis;
+    }
+
+    /**
+     * @return The number of frames reported since the last reset.
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return The number of intervals longer than {@link #GAP_FACTOR} times the expected interval
+     * since the last reset.
+     */
+    public long getGapCount() {
+        return mGapCount;
+    }
+
+    /**
+     * @return An estimate of the number of frames missing from the gaps since the last reset.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * @return Whether the windowed frame rate is below the minimum of the FPS range. Always false
+     * if the range is unknown or the window is not full yet.
+     */
+    public boolean isBelowRange() {
+        final int minFps = mMinFps;
+        return minFps > 0 && mFrameCount > WINDOW_SIZE
+                && mWindowFps * 1000 < minFps * (1 - RANGE_TOLERANCE);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f fps (%.1f instant, range %.1f-%.1f), jitter %.1f ms, "
+                        + "%d gaps, ~%d dropped of %d frames",
+                mWindowFps, mInstantFps, mMinFps / 1000f, mMaxFps / 1000f, mJitterMillis,
+                mGapCount, mDroppedFrameCount, mFrameCount);
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for a callback to be invoked when frames arrive late.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the thread reporting frames for every gap.
+         *
+         * @param intervalNanos         The time since the previous frame in nanoseconds.
+         * @param expectedIntervalNanos The interval that was expected in nanoseconds.
+         */
+        void onFrameGap(long intervalNanos, long expectedIntervalNanos);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The JpegHeaderParser class reads the image dimensions and EXIF orientation of a JPEG straight
+ * from its bytes by walking the marker segments up to the start of the compressed data.
+ * <p/>
+ * This is much cheaper than a {@link android.graphics.BitmapFactory} bounds decode since no
+ * decoder is set up and the entropy-coded data is never touched. The class does not depend on the
+ * Android framework.
+ */
+public final class JpegHeaderParser {
+    /**
+     * EXIF orientation when the JPEG has no orientation tag.
+     */
+    public static final int ORIENTATION_UNDEFINED = 0;
+
+    // Markers
+    private static final int MARKER_PREFIX = 0xff;
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_EOI = 0xd9;
+    private static final int MARKER_SOS = 0xda;
+    private static final int MARKER_APP1 = 0xe1;
+    private static final int MARKER_TEM = 0x01;
+    private static final int MARKER_RST0 = 0xd0;
+    private static final int MARKER_RST7 = 0xd7;
+
+    // EXIF
+    private static final int EXIF_HEADER_LENGTH = 6;
+    private static final int TIFF_HEADER_LENGTH = 8;
+    private static final int IFD_ENTRY_LENGTH = 12;
+    private static final int TAG_ORIENTATION = 0x0112;
+
+
+    //
+    // Parsing
+    //
+
+    /**
+     * Reads the dimensions and EXIF orientation of a JPEG.
+     *
+     * @param data   The JPEG data.
+     * @param offset The offset of the JPEG in {@code data}.
+     * @param length The length of the JPEG.
+     * @param header Receives the dimensions and orientation.
+     *
+     * @return True if a frame header was found; false if the data is not a JPEG or is truncated
+     * before its frame header, in which case {@code header} is left in an undefined state.
+     */
+    public static boolean parse(byte[] data, int offset, int length, Header header) {
+        header.width = 0;
+        header.height = 0;
+        header.orientation = ORIENTATION_UNDEFINED;
+
+        final int end = offset + length;
+        if (length < 4 || u8(data, offset) != MARKER_PREFIX || u8(data, offset + 1) != MARKER_SOI) {
+            return false;
+        }
+        int position = offset + 2;
+        while (position + 1 < end) {
+            if (u8(data, position) != MARKER_PREFIX) {
+                return false;
+            }
+            // Any number of 0xff fill bytes may precede a marker.
+            int marker = u8(data, position + 1);
+            position += 2;
+            while (marker == MARKER_PREFIX && position < end) {
+                marker = u8(data, position++);
+            }
+
+            // Standalone markers have no length.
+            if (marker == MARKER_TEM || (marker >= MARKER_RST0 && marker <= MARKER_RST7)) {
+                continue;
+            }
+            if (marker == MARKER_SOS || marker == MARKER_EOI || position + 2 > end) {
+                return false;
+            }
+
+            final int segmentLength = u16(data, position, true);
+            final int segmentStart = position + 2;
+            final int segmentEnd = position + segmentLength;
+            if (segmentLength < 2 || segmentEnd > end) {
+                return false;
+            }
+
+            if (marker == MARKER_APP1 && header.orientation == ORIENTATION_UNDEFINED) {
+                header.orientation = parseExifOrientation(data, segmentStart, segmentEnd);
+            } else if (isStartOfFrame(marker)) {
+                // Precision, then height and width.
+                if (segmentStart + 5 > segmentEnd) {
+                    return false;
+                }
+                header.height = u16(data, segmentStart + 1, true);
+                header.width = u16(data, segmentStart + 3, true);
+                // EXIF data comes before the frame header, so the header is complete.
+                return header.width > 0 && header.height > 0;
+            }
+            position = segmentEnd;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the orientation tag from the first IFD of an EXIF APP1 segment.
+     *
+     * @return The EXIF orientation or {@link #ORIENTATION_UNDEFINED} if the segment has none.
+     */
+    private static int parseExifOrientation(byte[] data, int start, int end) {
+        // "Exif\0\0"
+        if (start + EXIF_HEADER_LENGTH + TIFF_HEADER_LENGTH > end
+                || data[start] != 'E' || data[start + 1] != 'x'
+                || data[start + 2] != 'i' || data[start + 3] != 'f'
+                || data[start + 4] != 0 || data[start + 5] != 0) {
+            return ORIENTATION_UNDEFINED;
+        }
+        final int tiff = start + EXIF_HEADER_LENGTH;
+        final boolean bigEndian;
+        if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+            bigEndian = true;
+        } else if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+            bigEndian = false;
+        } else {
+            return ORIENTATION_UNDEFINED;
+        }
+        if (u16(data, tiff + 2, bigEndian) != 42) {
+            return ORIENTATION_UNDEFINED;
+        }
+        final long ifdOffset = u32(data, tiff + 4, bigEndian);
+        if (ifdOffset < TIFF_HEADER_LENGTH || tiff + ifdOffset + 2 > end) {
+            return ORIENTATION_UNDEFINED;
+        }
+        final int ifd = tiff + (int) ifdOffset;
+        final int entryCount = u16(data, ifd, bigEndian);
+        for (int i = 0; i < entryCount; i++) {
+            final int entry = ifd + 2 + i * IFD_ENTRY_LENGTH;
+            if (entry + IFD_ENTRY_LENGTH > end) {
+                break;
+            }
+            if (u16(data, entry, bigEndian) == TAG_ORIENTATION) {
+                // A SHORT value is stored in the first two bytes of the value field.
+                final int orientation = u16(data, entry + 8, bigEndian);
+                return orientation >= 1 && orientation <= 8 ? orientation : ORIENTATION_UNDEFINED;
+            }
+        }
+        return ORIENTATION_UNDEFINED;
+    }
+
+    /**
+     * Checks whether a marker starts a frame (SOF0 to SOF15, except DHT, JPG and DAC).
+     */
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xc0 && marker <= 0xcf
+                && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+    }
+
+    private static int u8(byte[] data, int position) {
+        return data[position] & 0xff;
+    }
+
+    private static int u16(byte[] data, int position, boolean bigEndian) {
+        return bigEndian
+                ? (u8(data, position) << 8) | u8(data, position + 1)
+                : u8(data, position) | (u8(data, position + 1) << 8);
+    }
+
+    private static long u32(byte[] data, int position, boolean bigEndian) {
+        final long high = u16(data, bigEndian ? position : position + 2, bigEndian);
+        final long low = u16(data, bigEndian ? position + 2 : position, bigEndian);
+        return (high << 16) | low;
+    }
+
+
+    //
+    // Header
+    //
+
+    /**
+     * Dimensions and orientation read from a JPEG. Reusable across parses.
+     */
+    public static final class Header {
+        int width;
+        int height;
+        int orientation;
+
+        /**
+         * @return The width of the image as stored.
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return The height of the image as stored.
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return The EXIF orientation (1 to 8) or {@link #ORIENTATION_UNDEFINED}.
+         */
+        public int getOrientation() {
+            return orientation;
+        }
+
+        /**
+         * @return Whether the image is displayed rotated by 90 or 270 degrees, swapping its width
+         * and height.
+         */
+        public boolean isTransposed() {
+            // Orientations 5 to 8 transpose the image.
+            return orientation >= 5 && orientation <= 8;
+        }
+
+        /**
+         * @return The width of the image as displayed.
+         */
+        public int getDisplayWidth() {
+            return isTransposed() ? height : width;
+        }
+
+        /**
+         * @return The height of the image as displayed.
+         */
+        public int getDisplayHeight() {
+            return isTransposed() ? width : height;
+        }
+    }
+
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Private constructor for type safety.
+     */
+    private JpegHeaderParser() {
+    }
+}
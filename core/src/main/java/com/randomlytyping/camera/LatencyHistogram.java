@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The LatencyHistogram class counts latencies in a fixed set of log-linear buckets, so that
+ * percentiles can be read back with a bounded relative error and in constant memory, however many
+ * latencies are recorded.
+ * <p/>
+ * Values below {@link #SUB_BUCKET_COUNT} each have their own bucket. Above that, every power of two
+ * is split into {@link #SUB_BUCKET_COUNT} equal buckets, so a bucket is never wider than 1/16 of
+ * the values it holds. Values above {@link #MAX_VALUE} are counted as {@link #MAX_VALUE}.
+ * <p/>
+ * Recording is lock-free and allocates nothing, so it may run on any thread, including the camera
+ * thread. Reads may run concurrently with recording and see a recent, possibly partial, state.
+ */
+public class LatencyHistogram {
+    /**
+     * Number of bits of a value kept by its bucket.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /**
+     * Number of buckets each power of two is split into.
+     */
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Magnitude, as a power of two, of the largest value with its own bucket.
+     */
+    private static final int MAX_MAGNITUDE = 30;
+
+    /**
+     * Largest value counted. In microseconds, this is about 35 minutes.
+     */
+    public static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+
+    /**
+     * Number of buckets.
+     */
+    private static final int BUCKET_COUNT
+            = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    // Buckets
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    // Totals
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+
+    //
+    // Recording
+    //
+
+    /**
+     * Counts a value.
+     *
+     * @param value The value, such as a latency in microseconds. Negative values are counted as 0.
+     */
+    public void record(long value) {
+        value = Math.min(Math.max(value, 0), MAX_VALUE);
+        mCounts.incrementAndGet(getBucket(value));
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+        // Counted last, so that readers never see a count larger than the buckets hold.
+        mCount.incrementAndGet();
+    }
+
+    /**
+     * Forgets every value counted so far.
+     */
+    public void reset() {
+        mCount.set(0);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+
+    //
+    // Reading
+    //
+
+    /**
+     * @return The number of values counted.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return The largest value counted, exactly, or 0 if none was.
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @return The mean of the values counted, exactly, or 0 if none was.
+     */
+    public double getMean() {
+        final long count = mCount.get();
+        return count > 0 ? (double) mSum.get() / count : 0;
+    }
+
+    /**
+     * Returns the value below which a given percentage of the values counted fall.
+     *
+     * @param percentile The percentage, 0 to 100.
+     *
+     * @return The largest value of the bucket holding the percentile, which is at most 1/16 above
+     * the exact percentile, capped at the largest value counted; or 0 if no value was counted.
+     */
+    public long getValueAtPercentile(double percentile) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        percentile = Math.min(Math.max(percentile, 0), 100);
+        final long rank = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(getBucketMax(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+
+    //
+    // Buckets
+    //
+
+    /**
+     * @return The index of the bucket holding a value from 0 to {@link #MAX_VALUE}.
+     */
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = magnitude - SUB_BUCKET_BITS;
+        // The top bit is implied by the magnitude, so the next bits pick the bucket within it.
+        final int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @return The largest value held by a bucket.
+     */
+    private static long getBucketMax(int bucket) {
+        final int group = bucket >> SUB_BUCKET_BITS;
+        if (group == 0) {
+            return bucket;
+        }
+        final int shift = group - 1;
+        final long subBucket = (bucket & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The LatencyTracer class times the camera operations users wait on: opening the camera, the first
+ * preview frame after starting the preview, taking a picture and auto-focusing. Each latency is
+ * recorded into a {@link LatencyHistogram}, from which percentiles can be read at any time.
+ * <p/>
+ * An operation is timed by calling {@link #begin(int)} when it is requested and {@link #end(int)}
+ * when its result arrives, from any thread. Only one operation of each kind is timed at a time;
+ * beginning an operation again restarts its timer. Neither call allocates or locks, so tracing is
+ * cheap enough to leave on. The tracer is shared by the whole process so that latencies accumulate
+ * across activities.
+ */
+public class LatencyTracer {
+    /**
+     * Opening the camera, as in {@code Camera.open(int)}.
+     */
+    public static final int OPEN = 0;
+
+    /**
+     * Starting the preview, as in {@code Camera.startPreview()}, to the first preview frame.
+     */
+    public static final int FIRST_FRAME = 1;
+
+    /**
+     * Taking a picture, as in {@code Camera.takePicture(...)}, to the JPEG callback.
+     */
+    public static final int SHUTTER = 2;
+
+    /**
+     * Auto-focusing, as in {@code Camera.autoFocus(...)}, to its callback.
+     */
+    public static final int AUTO_FOCUS = 3;
+
+    /**
+     * Number of operations timed.
+     */
+    public static final int OPERATION_COUNT = 4;
+
+    /**
+     * Short names of the operations, for display.
+     */
+    private static final String[] NAMES = {"open", "first frame", "shutter", "focus"};
+
+    /**
+     * Start time of an operation that is not being timed.
+     */
+    private static final long NOT_STARTED = 0;
+
+    // Shared instance
+    private static LatencyTracer sInstance;
+
+    // Latencies in microseconds
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[OPERATION_COUNT];
+
+    // Start times in nanoseconds, or NOT_STARTED
+    private final AtomicLongArray mStartTimes = new AtomicLongArray(OPERATION_COUNT);
+
+    private volatile boolean mEnabled = true;
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * @return The tracer shared by the whole process.
+     */
+    public static synchronized LatencyTracer getInstance() {
+        if (sInstance == null) {
+            sInstance = new LatencyTracer();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Constructor. Use {@link #getInstance()} to time the camera operations of the app.
+     */
+    LatencyTracer() {
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+
+    //
+    // Tracing
+    //
+
+    /**
+     * Starts timing an operation.
+     *
+     * @param operation {@link #OPEN}, {@link #FIRST_FRAME}, {@link #SHUTTER} or {@link
+     *                  #AUTO_FOCUS}.
+     */
+    public void begin(int operation) {
+        if (mEnabled) {
+            // A start time is never NOT_STARTED, even if nanoTime() happens to return it.
+            mStartTimes.set(operation, System.nanoTime() | 1);
+        }
+    }
+
+    /**
+     * Stops timing an operation and records its latency. Does nothing if the operation is not
+     * being timed, so it may be called for every result, such as every preview frame.
+     *
+     * @param operation {@link #OPEN}, {@link #FIRST_FRAME}, {@link #SHUTTER} or {@link
+     *                  #AUTO_FOCUS}.
+     */
+    public void end(int operation) {
+        // Read first, so that the common case of nothing to time costs no atomic write.
+        if (mStartTimes.get(operation) == NOT_STARTED) {
+            return;
+        }
+        final long startTime = mStartTimes.getAndSet(operation, NOT_STARTED);
+        if (startTime != NOT_STARTED) {
+            mHistograms[operation].record(
+                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+        }
+    }
+
+    /**
+     * Stops timing an operation without recording it, such as when it failed or was cancelled.
+     *
+     * @param operation {@link #OPEN}, {@link #FIRST_FRAME}, {@link #SHUTTER} or {@link
+     *                  #AUTO_FOCUS}.
+     */
+    public void cancel(int operation) {
+        mStartTimes.set(operation, NOT_STARTED);
+    }
+
+    /**
+     * Turns tracing on or off. Latencies already recorded are kept.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            for (int i = 0; i < OPERATION_COUNT; i++) {
+                cancel(i);
+            }
+        }
+    }
+
+    /**
+     * @return Whether tracing is on.
+     */
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+
+    //
+    // Results
+    //
+
+    /**
+     * @return The latencies of an operation, in microseconds.
+     */
+    public LatencyHistogram getHistogram(int operation) {
+        return mHistograms[operation];
+    }
+
+    /**
+     * @return The latency of an operation at a percentile, in milliseconds, or 0 if it was never
+     * timed.
+     */
+    public float getPercentileMillis(int operation, double percentile) {
+        return mHistograms[operation].getValueAtPercentile(percentile) / 1000f;
+    }
+
+    /**
+     * @return The total number of latencies recorded, which changes whenever new results are
+     * available.
+     */
+    public long getRecordCount() {
+        long count = 0;
+        for (LatencyHistogram histogram : mHistograms) {
+            count += histogram.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return The short name of an operation, for display.
+     */
+    public static String getName(int operation) {
+        return NAMES[operation];
+    }
+
+    /**
+     * Formats the percentiles of an operation, such as "shutter p50 312 p95 540 p99 610 ms
+     * (n=42)".
+     */
+    public String format(int operation) {
+        final LatencyHistogram histogram = mHistograms[operation];
+        return String.format("%s p50 %.0f p95 %.0f p99 %.0f ms (n=%d)", NAMES[operation],
+                getPercentileMillis(operation, 50),
+                getPercentileMillis(operation, 95),
+                getPercentileMillis(operation, 99),
+                histogram.getCount());
+    }
+
+    /**
+     * Forgets every latency recorded so far.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+}
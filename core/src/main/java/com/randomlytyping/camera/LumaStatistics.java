@@ -0,0 +1,397 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The LumaStatistics class measures the brightness of camera preview frames from their Y plane: a
+ * 256-bin histogram, the mean, the fraction of clipped shadows and highlights, and the mean of each
+ * tile of a grid.
+ * <p/>
+ * Only every {@code sampleStep}-th pixel of every {@code sampleStep}-th row is read, and at most a
+ * fixed number of samples per frame, so the cost per frame stays bounded whatever the preview
+ * size. A pass over the whole frame may therefore span several frames, continuing each time from
+ * the row where the previous frame left off. Each finished pass is published as an immutable
+ * {@link Snapshot} through a volatile field, so any thread can read the latest statistics without
+ * locking.
+ */
+public class LumaStatistics implements FrameConsumer {
+    /**
+     * Default distance between two samples, horizontally and vertically.
+     */
+    public static final int DEFAULT_SAMPLE_STEP = 4;
+
+    /**
+     * Default largest number of samples read per frame; a 640x480 frame at the default sample step
+     * is covered in one frame, a 1920x1080 frame in about eight.
+     */
+    public static final int DEFAULT_MAX_SAMPLES_PER_FRAME = 20000;
+
+    /**
+     * Default number of tile columns and rows.
+     */
+    public static final int DEFAULT_TILE_COUNT = 4;
+
+    /**
+     * Samples at or below this level count as clipped shadows.
+     */
+    public static final int SHADOW_CLIP_LEVEL = 5;
+
+    /**
+     * Samples at or above this level count as clipped highlights.
+     */
+    public static final int HIGHLIGHT_CLIP_LEVEL = 250;
+
+    // Configuration
+    private final int mSampleStep;
+    private final int mMaxSamplesPerFrame;
+    private final int mTileColumns;
+    private final int mTileRows;
+
+    // Pass in progress, touched only by the thread processing frames
+    private int mWidth;
+    private int mHeight;
+    private int mNextRow;
+    private int mPassFrameCount;
+    private long mPassSampleCount;
+    private long mPassSum;
+    private final int[] mHistogram = new int[256];
+    private final long[] mTileSums;
+    private final int[] mTileCounts;
+    private int[] mColumnTiles;
+
+    // Latest finished pass
+    private volatile Snapshot mSnapshot;
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Uses the default sample step, budget and tile grid.
+     */
+    public LumaStatistics() {
+        this(DEFAULT_SAMPLE_STEP, DEFAULT_MAX_SAMPLES_PER_FRAME, DEFAULT_TILE_COUNT,
+                DEFAULT_TILE_COUNT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sampleStep         The distance between two samples, horizontally and vertically.
+     * @param maxSamplesPerFrame The largest number of samples read per frame. At least one row is
+     *                           read per frame whatever the budget.
+     * @param tileColumns        The number of tile columns.
+     * @param tileRows           The number of tile rows.
+     */
+    public LumaStatistics(int sampleStep, int maxSamplesPerFrame, int tileColumns, int tileRows) {
+        mSampleStep = Math.max(sampleStep, 1);
+        mMaxSamplesPerFrame = Math.max(maxSamplesPerFrame, 1);
+        mTileColumns = Math.max(tileColumns, 1);
+        mTileRows = Math.max(tileRows, 1);
+        mTileSums = new long[mTileColumns * mTileRows];
+        mTileCounts = new int[mTileColumns * mTileRows];
+    }
+
+
+    //
+    // Processing
+    //
+
+    /**
+     * Reads the next rows of a frame, up to the per-frame budget, and publishes a new {@link
+     * Snapshot} if that finishes a pass. Must always be called from the same thread.
+     *
+     * @param data   The frame data, starting with a {@code width} by {@code height} Y plane such as
+     *               that of an NV21 or YV12 frame whose width is a multiple of 16.
+     * @param width  The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     *
+     * @return True if a new snapshot was published.
+     */
+    public boolean process(byte[] data, int width, int height) {
+        if (width != mWidth || height != mHeight) {
+            startPass(width, height);
+        }
+
+        final int step = mSampleStep;
+        final int samplesPerRow = (width + step - 1) / step;
+        final int[] histogram = mHistogram;
+        final int[] columnTiles = mColumnTiles;
+        final long[] tileSums = mTileSums;
+        final int[] tileCounts = mTileCounts;
+
+        int budget = mMaxSamplesPerFrame;
+        int row = mNextRow;
+        long sum = 0;
+        long sampleCount = 0;
+        do {
+            final int tileRowStart = row * mTileRows / height * mTileColumns;
+            int position = row * width;
+            int tile = -1;
+            long tileSum = 0;
+            int tileCount = 0;
+            for (int column = 0; column < samplesPerRow; column++) {
+                final int value = data[position] & 0xff;
+                position += step;
+                histogram[value]++;
+                sum += value;
+
+                // Samples come in runs per tile, so only touch the tile arrays between runs.
+                final int sampleTile = tileRowStart + columnTiles[column];
+                if (sampleTile != tile) {
+                    if (tile >= 0) {
+                        tileSums[tile] += tileSum;
+                        tileCounts[tile] += tileCount;
+                    }
+                    tile = sampleTile;
+                    tileSum = 0;
+                    tileCount = 0;
+                }
+                tileSum += value;
+                tileCount++;
+            }
+            tileSums[tile] += tileSum;
+            tileCounts[tile] += tileCount;
+            sampleCount += samplesPerRow;
+            budget -= samplesPerRow;
+            row += step;
+        } while (row < height && budget >= samplesPerRow);
+
+        mPassSum += sum;
+        mPassSampleCount += sampleCount;
+        mPassFrameCount++;
+        if (row < height) {
+            mNextRow = row;
+            return false;
+        }
+
+        mSnapshot = new Snapshot(this);
+        startPass(width, height);
+        return true;
+    }
+
+    /**
+     * @return The statistics of the latest finished pass or null if no pass finished yet. May be
+     * called from any thread.
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Clears the pass in progress, sizing the tile lookup for a frame size.
+     */
+    private void startPass(int width, int height) {
+        if (width != mWidth || mColumnTiles == null) {
+            final int samplesPerRow = (width + mSampleStep - 1) / mSampleStep;
+            mColumnTiles = new int[samplesPerRow];
+            for (int i = 0; i < samplesPerRow; i++) {
+                mColumnTiles[i] = i * mSampleStep * mTileColumns / width;
+            }
+        }
+        mWidth = width;
+        mHeight = height;
+        mNextRow = 0;
+        mPassFrameCount = 0;
+        mPassSampleCount = 0;
+        mPassSum = 0;
+        for (int i = 0; i < mHistogram.length; i++) {
+            mHistogram[i] = 0;
+        }
+        for (int i = 0; i < mTileSums.length; i++) {
+            mTileSums[i] = 0;
+            mTileCounts[i] = 0;
+        }
+    }
+
+
+    //
+    // FrameConsumer implementation
+    //
+
+    @Override
+    public void onPreviewFrame(byte[] data, int width, int height, FrameOwner owner) {
+        process(data, width, height);
+        owner.release(data);
+    }
+
+
+    //
+    // Snapshot
+    //
+
+    /**
+     * Statistics of one pass over a frame. Immutable.
+     */
+    public static final class Snapshot {
+        private final int mWidth;
+        private final int mHeight;
+        private final int mFrameCount;
+        private final long mSampleCount;
+        private final float mMean;
+        private final float mShadowClipping;
+        private final float mHighlightClipping;
+        private final int[] mHistogram;
+        private final int mTileColumns;
+        private final int mTileRows;
+        private final float[] mTileMeans;
+
+        private Snapshot(LumaStatistics statistics) {
+            mWidth = statistics.mWidth;
+            mHeight = statistics.mHeight;
+            mFrameCount = statistics.mPassFrameCount;
+            mSampleCount = statistics.mPassSampleCount;
+            mHistogram = statistics.mHistogram.clone();
+            mMean = mSampleCount > 0 ? (float) statistics.mPassSum / mSampleCount : 0;
+
+            long shadows = 0;
+            for (int i = 0; i <= SHADOW_CLIP_LEVEL; i++) {
+                shadows += mHistogram[i];
+            }
+            long highlights = 0;
+            for (int i = HIGHLIGHT_CLIP_LEVEL; i < mHistogram.length; i++) {
+                highlights += mHistogram[i];
+            }
+            mShadowClipping = mSampleCount > 0 ? (float) shadows / mSampleCount : 0;
+            mHighlightClipping = mSampleCount > 0 ? (float) highlights / mSampleCount : 0;
+
+            mTileColumns = statistics.mTileColumns;
+            mTileRows = statistics.mTileRows;
+            mTileMeans = new float[mTileColumns * mTileRows];
+            for (int i = 0; i < mTileMeans.length; i++) {
+                final int count = statistics.mTileCounts[i];
+                mTileMeans[i] = count > 0 ? (float) statistics.mTileSums[i] / count : 0;
+            }
+        }
+
+        /**
+         * @return The width of the measured frames.
+         */
+        public int getWidth() {
+            return mWidth;
+        }
+
+        /**
+         * @return The height of the measured frames.
+         */
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * @return The number of frames the pass was spread over.
+         */
+        public int getFrameCount() {
+            return mFrameCount;
+        }
+
+        /**
+         * @return The number of samples read.
+         */
+        public long getSampleCount() {
+            return mSampleCount;
+        }
+
+        /**
+         * @return The mean luma, 0 to 255.
+         */
+        public float getMean() {
+            return mMean;
+        }
+
+        /**
+         * @return The fraction of samples at or below {@link #SHADOW_CLIP_LEVEL}.
+         */
+        public float getShadowClipping() {
+            return mShadowClipping;
+        }
+
+        /**
+         * @return The fraction of samples at or above {@link #HIGHLIGHT_CLIP_LEVEL}.
+         */
+        public float getHighlightClipping() {
+            return mHighlightClipping;
+        }
+
+        /**
+         * @return The number of samples with a luma of {@code level}.
+         */
+        public int getHistogramCount(int level) {
+            return mHistogram[level];
+        }
+
+        /**
+         * Copies the histogram.
+         *
+         * @param histogram Receives 256 counts, one per luma level.
+         */
+        public void getHistogram(int[] histogram) {
+            System.arraycopy(mHistogram, 0, histogram, 0, mHistogram.length);
+        }
+
+        /**
+         * Returns the luma level below which a fraction of the samples fall.
+         *
+         * @param fraction The fraction, 0 to 1; 0.5 gives the median.
+         */
+        public int getPercentile(float fraction) {
+            final long target = (long) Math.ceil(fraction * mSampleCount);
+            long count = 0;
+            for (int level = 0; level < mHistogram.length; level++) {
+                count += mHistogram[level];
+                if (count >= target && count > 0) {
+                    return level;
+                }
+            }
+            return mHistogram.length - 1;
+        }
+
+        /**
+         * @return The number of tile columns.
+         */
+        public int getTileColumns() {
+            return mTileColumns;
+        }
+
+        /**
+         * @return The number of tile rows.
+         */
+        public int getTileRows() {
+            return mTileRows;
+        }
+
+        /**
+         * @return The mean luma of a tile, 0 to 255.
+         */
+        public float getTileMean(int column, int row) {
+            return mTileMeans[row * mTileColumns + column];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("mean %.1f, median %d, shadows %.1f%%, highlights %.1f%%, "
+                            + "%d samples over %d frames",
+                    mMean,
+                    getPercentile(0.5f),
+                    mShadowClipping * 100,
+                    mHighlightClipping * 100,
+                    mSampleCount,
+                    mFrameCount);
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The MotionDetector class detects motion in camera preview frames by comparing the mean luma of
+ * each tile of a grid against a background model, without decoding frames.
+ * <p/>
+ * Each frame is read once, row by row, summing the Y plane into one accumulator per tile. The
+ * background of a tile is an exponentially decayed mean of its past means, alongside a decayed
+ * mean of how far it usually strays from that background. A tile is in motion when it strays
+ * further than a threshold set by the sensitivity plus a multiple of its usual deviation, after
+ * removing the change shared by every tile, such as auto-exposure adjusting. Tiles in motion are
+ * learned into the background more slowly, so that an object that stops moving eventually becomes
+ * background.
+ * <p/>
+ * Memory is proportional to the number of tiles, whatever the frame size. Frames must be
+ * processed from a single thread; the sensitivity and listener may be set from any thread.
+ */
+public class MotionDetector implements FrameConsumer {
+    /**
+     * Default number of tile columns.
+     */
+    public static final int DEFAULT_TILE_COLUMNS = 16;
+
+    /**
+     * Default number of tile rows.
+     */
+    public static final int DEFAULT_TILE_ROWS = 12;
+
+    /**
+     * Default sensitivity, 0 to 1.
+     */
+    public static final float DEFAULT_SENSITIVITY = 0.5f;
+
+    /**
+     * Default number of tiles in motion needed to report motion.
+     */
+    public static final int DEFAULT_MIN_TILES = 2;
+
+    /**
+     * Default weight of a new frame in the background of a still tile.
+     */
+    public static final float DEFAULT_LEARNING_RATE = 0.05f;
+
+    /**
+     * Change of mean luma a tile needs to be in motion at the lowest and highest sensitivity.
+     */
+    private static final float LEAST_SENSITIVE_DELTA = 40;
+    private static final float MOST_SENSITIVE_DELTA = 3;
+
+    /**
+     * Multiple of a tile's usual deviation added to its threshold, so that flickering or noisy
+     * tiles need a larger change.
+     */
+    private static final float DEVIATION_FACTOR = 2;
+
+    /**
+     * Fraction of the learning rate used for tiles in motion.
+     */
+    private static final float MOTION_LEARNING_FACTOR = 0.1f;
+
+    /**
+     * Number of frames learned before motion is reported.
+     */
+    private static final int WARM_UP_FRAMES = 10;
+
+    // Grid
+    private final int mTileColumns;
+    private final int mTileRows;
+
+    // Configuration
+    private volatile float mSensitivity = DEFAULT_SENSITIVITY;
+    private volatile int mMinTiles = DEFAULT_MIN_TILES;
+    private volatile float mLearningRate = DEFAULT_LEARNING_RATE;
+    private volatile Listener mListener;
+    private volatile boolean mResetRequested;
+
+    // Per-tile state, touched only by the thread processing frames
+    private final long[] mSums;
+    private final int[] mTileEdges;
+    private final float[] mMeans;
+    private final float[] mBackground;
+    private final float[] mDeviation;
+    private final boolean[] mMotion;
+    private int mWidth;
+    private int mHeight;
+    private long mFrameCount;
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Uses a {@link #DEFAULT_TILE_COLUMNS} by {@link #DEFAULT_TILE_ROWS} grid.
+     */
+    public MotionDetector() {
+        this(DEFAULT_TILE_COLUMNS, DEFAULT_TILE_ROWS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param tileColumns The number of tile columns.
+     * @param tileRows    The number of tile rows.
+     */
+    public MotionDetector(int tileColumns, int tileRows) {
+        mTileColumns = Math.max(tileColumns, 1);
+        mTileRows = Math.max(tileRows, 1);
+        final int tileCount = mTileColumns * mTileRows;
+        mSums = new long[tileCount];
+        mTileEdges = new int[mTileColumns + 1];
+        mMeans = new float[tileCount];
+        mBackground = new float[tileCount];
+        mDeviation = new float[tileCount];
+        mMotion = new boolean[tileCount];
+    }
+
+
+    //
+    // Getters/Setters
+    //
+
+    /**
+     * Sets how small a change counts as motion.
+     *
+     * @param sensitivity 0 to only detect large changes in brightness, up to 1 to detect changes
+     *                    barely above sensor noise.
+     */
+    public void setSensitivity(float sensitivity) {
+        mSensitivity = Math.min(Math.max(sensitivity, 0), 1);
+    }
+
+    /**
+     * @return The sensitivity, 0 to 1.
+     */
+    public float getSensitivity() {
+        return mSensitivity;
+    }
+
+    /**
+     * Sets the number of tiles in motion needed to report motion.
+     */
+    public void setMinTiles(int minTiles) {
+        mMinTiles = Math.max(minTiles, 1);
+    }
+
+    /**
+     * Sets how fast the background follows still tiles.
+     *
+     * @param learningRate The weight of a new frame in the background, greater than 0 and at most
+     *                     1.
+     */
+    public void setLearningRate(float learningRate) {
+        mLearningRate = Math.min(Math.max(learningRate, 0.001f), 1);
+    }
+
+    /**
+     * Sets the listener notified of motion.
+     *
+     * @param listener The {@link Listener} or null.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return The number of tile columns.
+     */
+    public int getTileColumns() {
+        return mTileColumns;
+    }
+
+    /**
+     * @return The number of tile rows.
+     */
+    public int getTileRows() {
+        return mTileRows;
+    }
+
+    /**
+     * Forgets the background, which is learned again from the next frames. Should be called when
+     * the camera or the scene changes. May be called from any thread.
+     */
+    public void reset() {
+        mResetRequested = true;
+    }
+
+
+    //
+    // Processing
+    //
+
+    /**
+     * Compares a frame against the background and learns it. Must always be called from the same
+     * thread.
+     *
+     * @param data   The frame data, starting with a {@code width} by {@code height} Y plane such as
+     *               that of an NV21 or YV12 frame whose width is a multiple of 16.
+     * @param width  The width of the frame in pixels, at least the number of tile columns.
+     * @param height The height of the frame in pixels, at least the number of tile rows.
+     *
+     * @return The motion found in the frame, or null if there was none.
+     */
+    public Event process(byte[] data, int width, int height) {
+        if (mResetRequested || width != mWidth || height != mHeight) {
+            mResetRequested = false;
+            mWidth = width;
+            mHeight = height;
+            mFrameCount = 0;
+            for (int column = 0; column <= mTileColumns; column++) {
+                mTileEdges[column] = column * width / mTileColumns;
+            }
+        }
+        sumTiles(data, width, height);
+        mFrameCount++;
+
+        // Tile means, and the change shared by every tile.
+        final int tileCount = mMeans.length;
+        final boolean learning = mFrameCount == 1;
+        float sharedDelta = 0;
+        for (int tile = 0; tile < tileCount; tile++) {
+            final int column = tile % mTileColumns;
+            final int row = tile / mTileColumns;
+            final long area = (long) (mTileEdges[column + 1] - mTileEdges[column])
+                    * (tileRowStart(row + 1, height) - tileRowStart(row, height));
+            mMeans[tile] = (float) mSums[tile] / Math.max(area, 1);
+            if (learning) {
+                mBackground[tile] = mMeans[tile];
+                mDeviation[tile] = 0;
+            }
+            sharedDelta += mMeans[tile] - mBackground[tile];
+        }
+        sharedDelta /= tileCount;
+
+        final float sensitivity = mSensitivity;
+        final float delta = LEAST_SENSITIVE_DELTA
+                + (MOST_SENSITIVE_DELTA - LEAST_SENSITIVE_DELTA) * sensitivity;
+        final float learningRate = mLearningRate;
+        final boolean warm = mFrameCount > WARM_UP_FRAMES;
+
+        int motionCount = 0;
+        int left = mTileColumns;
+        int top = mTileRows;
+        int right = -1;
+        int bottom = -1;
+        float strongest = 0;
+        for (int tile = 0; tile < tileCount; tile++) {
+            final float difference = Math.abs(mMeans[tile] - mBackground[tile] - sharedDelta);
+            final float threshold = delta + DEVIATION_FACTOR * mDeviation[tile];
+            final boolean motion = warm && difference > threshold;
+            mMotion[tile] = motion;
+
+            // Tiles in motion still drift into the background, only more slowly.
+            final float rate = motion ? learningRate * MOTION_LEARNING_FACTOR : learningRate;
+            mBackground[tile] += (mMeans[tile] - mBackground[tile]) * rate;
+            if (!motion) {
+                // Capped so that a tile partly covered by a moving object does not go deaf.
+                final float deviation = Math.min(difference, delta);
+                mDeviation[tile] += (deviation - mDeviation[tile]) * rate;
+            }
+
+            if (motion) {
+                final int column = tile % mTileColumns;
+                final int row = tile / mTileColumns;
+                motionCount++;
+                left = Math.min(left, column);
+                top = Math.min(top, row);
+                right = Math.max(right, column);
+                bottom = Math.max(bottom, row);
+                strongest = Math.max(strongest, difference);
+            }
+        }
+
+        if (motionCount < mMinTiles) {
+            return null;
+        }
+        final Event event = new Event(mFrameCount, motionCount, tileCount,
+                left, top, right + 1, bottom + 1, strongest);
+        final Listener listener = mListener;
+        if (listener != null) {
+            listener.onMotionDetected(event);
+        }
+        return event;
+    }
+
+    /**
+     * @return Whether a tile was in motion in the last frame processed.
+     */
+    public boolean isMotion(int column, int row) {
+        return mMotion[row * mTileColumns + column];
+    }
+
+    /**
+     * Sums the Y plane into one accumulator per tile in a single pass.
+     */
+    private void sumTiles(byte[] data, int width, int height) {
+        final long[] sums = mSums;
+        final int[] edges = mTileEdges;
+        final int columns = mTileColumns;
+        for (int tile = 0; tile < sums.length; tile++) {
+            sums[tile] = 0;
+        }
+
+        int row = 0;
+        int nextRowStart = tileRowStart(1, height);
+        for (int y = 0; y < height; y++) {
+            if (y == nextRowStart) {
+                row++;
+                nextRowStart = tileRowStart(row + 1, height);
+            }
+            final int tileStart = row * columns;
+            int position = y * width;
+            for (int column = 0; column < columns; column++) {
+                final int end = y * width + edges[column + 1];
+                // An int cannot overflow over one row of a tile.
+                int sum = 0;
+                while (position < end) {
+                    sum += data[position++] & 0xff;
+                }
+                sums[tileStart + column] += sum;
+            }
+        }
+    }
+
+    /**
+     * @return The first pixel row of a tile row.
+     */
+    private int tileRowStart(int row, int height) {
+        return row * height / mTileRows;
+    }
+
+
+    //
+    // FrameConsumer implementation
+    //
+
+    @Override
+    public void onPreviewFrame(byte[] data, int width, int height, FrameOwner owner) {
+        process(data, width, height);
+        owner.release(data);
+    }
+
+
+    //
+    // Event
+    //
+
+    /**
+     * Motion found in one frame. Immutable.
+     */
+    public static final class Event {
+        private final long mFrame;
+        private final int mTileCount;
+        private final int mTotalTileCount;
+        private final int mLeft;
+        private final int mTop;
+        private final int mRight;
+        private final int mBottom;
+        private final float mStrength;
+
+        private Event(long frame, int tileCount, int totalTileCount,
+                      int left, int top, int right, int bottom, float strength) {
+            mFrame = frame;
+            mTileCount = tileCount;
+            mTotalTileCount = totalTileCount;
+            mLeft = left;
+            mTop = top;
+            mRight = right;
+            mBottom = bottom;
+            mStrength = strength;
+        }
+
+        /**
+         * @return The number of the frame since the background was last reset, starting at 1.
+         */
+        public long getFrame() {
+            return mFrame;
+        }
+
+        /**
+         * @return The number of tiles in motion.
+         */
+        public int getTileCount() {
+            return mTileCount;
+        }
+
+        /**
+         * @return The fraction of the tiles in motion.
+         */
+        public float getFraction() {
+            return (float) mTileCount / mTotalTileCount;
+        }
+
+        /**
+         * @return The leftmost tile column in motion.
+         */
+        public int getLeft() {
+            return mLeft;
+        }
+
+        /**
+         * @return The topmost tile row in motion.
+         */
+        public int getTop() {
+            return mTop;
+        }
+
+        /**
+         * @return The tile column after the rightmost one in motion.
+         */
+        public int getRight() {
+            return mRight;
+        }
+
+        /**
+         * @return The tile row after the bottommost one in motion.
+         */
+        public int getBottom() {
+            return mBottom;
+        }
+
+        /**
+         * @return The largest change of mean luma of a tile in motion, 0 to 255.
+         */
+        public float getStrength() {
+            return mStrength;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d tiles in [%d, %d, %d, %d), strength %.1f, frame %d",
+                    mTileCount, mLeft, mTop, mRight, mBottom, mStrength, mFrame);
+        }
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for a callback to be invoked when motion is detected.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the thread processing frames for every frame with motion.
+         *
+         * @param event The motion found in the frame.
+         */
+        void onMotionDetected(MotionDetector.Event event);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The PreviewSizeSelector class picks the camera preview size that best fits a preview surface.
+ * <p/>
+ * Supported sizes are ranked in a single pass, in order of importance, by:
+ * <ol>
+ * <li>whether the size stays within the frame-processing budget (a maximum pixel count),</li>
+ * <li>whether the size fits inside the surface,</li>
+ * <li>whether the aspect ratio matches the surface within {@link #ASPECT_RATIO_TOLERANCE},</li>
+ * <li>pixel count: the largest size that fits, or the smallest size if nothing fits,</li>
+ * <li>aspect ratio error.</li>
+ * </ol>
+ * Results are memoized per camera ID, surface size and display orientation so that repeated
+ * layout passes skip the ranking entirely.
+ * <p/>
+ * Sizes are passed as packed {@code [width0, height0, width1, height1, ...]} arrays in the
+ * sensor's (landscape) orientation, so this class does not depend on the Android framework.
+ */
+public class PreviewSizeSelector {
+    /**
+     * Default frame-processing budget in pixels per preview frame.
+     */
+    public static final int DEFAULT_MAX_PIXELS = 1920 * 1080;
+
+    /**
+     * Maximum difference between the preview and surface aspect ratios for a size to be considered
+     * a match.
+     */
+    public static final float ASPECT_RATIO_TOLERANCE = 0.1f;
+
+    /**
+     * Returned when there is no size to select from.
+     */
+    public static final int NO_SIZE = -1;
+
+    /**
+     * Camera ID for sizes that should not be memoized.
+     */
+    public static final int NO_CAMERA_ID = -1;
+
+    // Budget
+    private final int mMaxPixels;
+
+    // Memoized selections, keyed by camera ID, surface size and orientation.
+    private final Map<Long, Integer> mSelections = new HashMap<Long, Integer>();
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Uses the {@link #DEFAULT_MAX_PIXELS} frame-processing budget.
+     */
+    public PreviewSizeSelector() {
+        this(DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxPixels The frame-processing budget: the number of pixels per preview frame above
+     *                  which a size is only selected if no other size is available.
+     */
+    public PreviewSizeSelector(int maxPixels) {
+        mMaxPixels = maxPixels;
+    }
+
+
+    //
+    // Selection
+    //
+
+    /**
+     * Returns a memoized selection without ranking any sizes.
+     *
+     * @param cameraId      The ID of the camera the sizes belong to.
+     * @param surfaceWidth  The width of the preview surface.
+     * @param surfaceHeight The height of the preview surface.
+     * @param orientation   The clockwise rotation of the preview on the display in degrees.
+     *
+     * @return The index of the memoized size or {@link #NO_SIZE} if nothing was memoized yet.
+     */
+    public synchronized int getSelection(int cameraId, int surfaceWidth, int surfaceHeight,
+                                         int orientation) {
+        if (cameraId == NO_CAMERA_ID) {
+            return NO_SIZE;
+        }
+        final Integer selection = mSelections.get(key(cameraId, surfaceWidth, surfaceHeight,
+                orientation));
+        return selection != null ? selection : NO_SIZE;
+    }
+
+    /**
+     * Selects the preview size that best fits a surface, memoizing the result.
+     *
+     * @param cameraId      The ID of the camera the sizes belong to or {@link #NO_CAMERA_ID} to
+     *                      skip memoization.
+     * @param surfaceWidth  The width of the preview surface.
+     * @param surfaceHeight The height of the preview surface.
+     * @param orientation   The clockwise rotation of the preview on the display in degrees.
+     * @param sizes         The supported preview sizes as packed width/height pairs.
+     *
+     * @return The index of the selected width/height pair in {@code sizes} or {@link #NO_SIZE} if
+     * there are no sizes.
+     */
+    public synchronized int select(int cameraId, int surfaceWidth, int surfaceHeight,
+                                   int orientation, int[] sizes) {
+        if (cameraId != NO_CAMERA_ID) {
+            final Long key = key(cameraId, surfaceWidth, surfaceHeight, orientation);
+            final Integer selection = mSelections.get(key);
+            if (selection != null) {
+                return selection;
+            }
+            final int index = rank(surfaceWidth, surfaceHeight, orientation, sizes);
+            mSelections.put(key, index);
+            return index;
+        }
+        return rank(surfaceWidth, surfaceHeight, orientation, sizes);
+    }
+
+    /**
+     * Forgets every memoized selection.
+     */
+    public synchronized void clear() {
+        mSelections.clear();
+    }
+
+    /**
+     * Ranks every size in a single pass and returns the best one.
+     *
+     * @param surfaceWidth  The width of the preview surface.
+     * @param surfaceHeight The height of the preview surface.
+     * @param orientation   The clockwise rotation of the preview on the display in degrees.
+     * @param sizes         The supported preview sizes as packed width/height pairs.
+     *
+     * @return The index of the best width/height pair or {@link #NO_SIZE} if there are no sizes.
+     */
+    public int rank(int surfaceWidth, int surfaceHeight, int orientation, int[] sizes) {
+        // Sizes are in sensor orientation so compare them against the surface rotated to match.
+        final int targetWidth;
+        final int targetHeight;
+        if (orientation % 180 != 0) {
+            targetWidth = surfaceHeight;
+            targetHeight = surfaceWidth;
+        } else {
+            targetWidth = surfaceWidth;
+            targetHeight = surfaceHeight;
+        }
+        final float targetAspectRatio = targetHeight > 0
+                ? (float) targetWidth / (float) targetHeight
+                : 1f;
+
+        int best = NO_SIZE;
+        int bestTier = -1;
+        int bestPixels = 0;
+        float bestError = Float.MAX_VALUE;
+        final int count = sizes.length / 2;
+        for (int i = 0; i < count; i++) {
+            final int width = sizes[2 * i];
+            final int height = sizes[2 * i + 1];
+            final int pixels = width * height;
+            final float error = Math.abs((float) width / (float) height - targetAspectRatio);
+            final boolean fits = width <= targetWidth && height <= targetHeight;
+
+            // Tier packs the three boolean criteria so that one comparison orders them.
+            int tier = 0;
+            if (pixels <= mMaxPixels) {
+                tier |= 4;
+            }
+            if (fits) {
+                tier |= 2;
+            }
+            if (error < ASPECT_RATIO_TOLERANCE) {
+                tier |= 1;
+            }
+
+            final boolean better;
+            if (tier != bestTier) {
+                better = tier > bestTier;
+            } else if (pixels != bestPixels) {
+                // Prefer the largest size that fits, or the one closest to fitting otherwise.
+                better = fits ? pixels > bestPixels : pixels < bestPixels;
+            } else {
+                better = error < bestError;
+            }
+            if (better) {
+                best = i;
+                bestTier = tier;
+                bestPixels = pixels;
+                bestError = error;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Packs a memoization key.
+     */
+    private static Long key(int cameraId, int surfaceWidth, int surfaceHeight, int orientation) {
+        return ((long) (cameraId & 0xff) << 56)
+                | ((long) ((orientation / 90) & 0x3) << 48)
+                | ((long) (surfaceWidth & 0xffffff) << 24)
+                | (surfaceHeight & 0xffffff);
+    }
+}
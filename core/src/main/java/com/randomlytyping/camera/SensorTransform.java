@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The SensorTransform class holds the math behind {@code CameraTransform}: the affine maps between
+ * camera sensor coordinates, which range from (-1000, -1000) to (1000, 1000), and view
+ * coordinates.
+ * <p/>
+ * Each map is kept as the six coefficients of a 2x3 affine matrix, composed the same way as the
+ * {@link android.graphics.Matrix} operations it replaces, so that the math runs on any JVM. The
+ * coefficients are only recomputed when an input changes. Not thread-safe.
+ */
+public class SensorTransform {
+    // Affine coefficients: x' = a * x + b * y + c and y' = d * x + e * y + f.
+    private final float[] mSensorToView = new float[6];
+    private final float[] mViewToSensor = new float[6];
+
+    // Transform inputs
+    private int mLeft;
+    private int mTop;
+    private int mWidth;
+    private int mHeight;
+    private int mDisplayOrientation;
+    private boolean mFrontFacing;
+    private boolean mUpdated;
+
+
+    //
+    // Transform setup
+    //
+
+    /**
+     * Updates the transform, recomputing its coefficients only if an input changed.
+     *
+     * @param left               The left edge of the view bounds.
+     * @param top                The top edge of the view bounds.
+     * @param width              The width of the view bounds.
+     * @param height             The height of the view bounds.
+     * @param displayOrientation The clockwise rotation of the preview on the display in degrees.
+     * @param frontFacing        Whether the camera is front-facing, in which case the preview is
+     *                           mirrored.
+     *
+     * @return True if the coefficients were recomputed; false if nothing changed.
+     */
+    public boolean update(int left, int top, int width, int height, int displayOrientation,
+                          boolean frontFacing) {
+        if (mUpdated
+                && mLeft == left
+                && mTop == top
+                && mWidth == width
+                && mHeight == height
+                && mDisplayOrientation == displayOrientation
+                && mFrontFacing == frontFacing) {
+            return false;
+        }
+        mLeft = left;
+        mTop = top;
+        mWidth = width;
+        mHeight = height;
+        mDisplayOrientation = displayOrientation;
+        mFrontFacing = frontFacing;
+        mUpdated = true;
+
+        // Sensor to view coordinates relative to the bounds.
+        setScale(mSensorToView, frontFacing ? -1 : 1, 1);
+        postRotate(mSensorToView, displayOrientation);
+        postScale(mSensorToView, width / 2000f, height / 2000f);
+        postTranslate(mSensorToView, width * 0.5f, height * 0.5f);
+
+        /*  The inverse starts from the bounds' own origin, since touch coordinates are relative to
+        the parent rather than the preview. */
+        setTranslate(mViewToSensor, -left, -top);
+        postScale(mViewToSensor, frontFacing ? -1 : 1, 1);
+        postScale(mViewToSensor, 2000f / width, 2000f / height);
+        postTranslate(mViewToSensor, -1000f, -1000f);
+        postRotate(mViewToSensor, -displayOrientation);
+        return true;
+    }
+
+    /**
+     * @return Whether the transform was set up with non-empty bounds.
+     */
+    public boolean isValid() {
+        return mUpdated && mWidth > 0 && mHeight > 0;
+    }
+
+
+    //
+    // Mapping
+    //
+
+    /**
+     * Maps view coordinates to sensor coordinates in place.
+     *
+     * @param points The points to map as x/y pairs.
+     */
+    public void mapViewToSensor(float[] points) {
+        map(mViewToSensor, points, 0, points, 0, points.length / 2);
+    }
+
+    /**
+     * Maps sensor coordinates to view coordinates in place.
+     *
+     * @param points The points to map as x/y pairs.
+     */
+    public void mapSensorToView(float[] points) {
+        map(mSensorToView, points, 0, points, 0, points.length / 2);
+    }
+
+    /**
+     * Maps sensor coordinates to view coordinates.
+     *
+     * @param src        The points to map as x/y pairs.
+     * @param srcIndex   The index of the first coordinate to map.
+     * @param dst        Receives the mapped points; may be {@code src}.
+     * @param dstIndex   The index of the first mapped coordinate.
+     * @param pointCount The number of points to map.
+     */
+    public void mapSensorToView(float[] src, int srcIndex, float[] dst, int dstIndex,
+                                int pointCount) {
+        map(mSensorToView, src, srcIndex, dst, dstIndex, pointCount);
+    }
+
+    private static void map(float[] m, float[] src, int srcIndex, float[] dst, int dstIndex,
+                            int pointCount) {
+        final float a = m[0];
+        final float b = m[1];
+        final float c = m[2];
+        final float d = m[3];
+        final float e = m[4];
+        final float f = m[5];
+        for (int i = 0; i < pointCount; i++) {
+            final float x = src[srcIndex++];
+            final float y = src[srcIndex++];
+            dst[dstIndex++] = a * x + b * y + c;
+            dst[dstIndex++] = d * x + e * y + f;
+        }
+    }
+
+
+    //
+    // Matrix composition
+    //
+
+    private static void setScale(float[] m, float sx, float sy) {
+        m[0] = sx;
+        m[1] = 0;
+        m[2] = 0;
+        m[3] = 0;
+        m[4] = sy;
+        m[5] = 0;
+    }
+
+    private static void setTranslate(float[] m, float dx, float dy) {
+        m[0] = 1;
+        m[1] = 0;
+        m[2] = dx;
+        m[3] = 0;
+        m[4] = 1;
+        m[5] = dy;
+    }
+
+    private static void postScale(float[] m, float sx, float sy) {
+        m[0] *= sx;
+        m[1] *= sx;
+        m[2] *= sx;
+        m[3] *= sy;
+        m[4] *= sy;
+        m[5] *= sy;
+    }
+
+    private static void postTranslate(float[] m, float dx, float dy) {
+        m[2] += dx;
+        m[5] += dy;
+    }
+
+    /**
+     * Post-concatenates a rotation about the origin, clockwise on screen for positive degrees.
+     * Quarter turns are exact.
+     */
+    private static void postRotate(float[] m, int degrees) {
+        final float cos;
+        final float sin;
+        switch (((degrees % 360) + 360) % 360) {
+            case 0:
+                return;
+            case 90:
+                cos = 0;
+                sin = 1;
+                break;
+            case 180:
+                cos = -1;
+                sin = 0;
+                break;
+            case 270:
+                cos = 0;
+                sin = -1;
+                break;
+            default:
+                final double radians = Math.toRadians(degrees);
+                cos = (float) Math.cos(radians);
+                sin = (float) Math.sin(radians);
+                break;
+        }
+        for (int column = 0; column < 3; column++) {
+            final float x = m[column];
+            final float y = m[column + 3];
+            m[column] = cos * x - sin * y;
+            m[column + 3] = sin * x + cos * y;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The SharpnessMeter class scores how well a region of the camera preview is in focus using the
+ * Tenengrad measure: the mean squared Sobel gradient magnitude of the luma, ignoring gradients
+ * weaker than a noise threshold. Sharper images have stronger edges and score higher.
+ * <p/>
+ * Scores only mean something relative to other scores of the same scene, so the meter tracks the
+ * best score seen after each focus and reports when the region drifts out of focus, for instance
+ * because the camera or the subject moved. This gives software focus feedback for a touched area
+ * on cameras without focus areas.
+ * <p/>
+ * Areas use the coordinates of {@code android.hardware.Camera.Area}, -1000 to 1000 across the
+ * field of view, as returned for touches by {@code Preview}.
+ */
+public class SharpnessMeter {
+    /**
+     * Default gradient magnitude below which a gradient counts as sensor noise.
+     */
+    public static final int DEFAULT_NOISE_THRESHOLD = 16;
+
+    /**
+     * Default fraction of the best score after focusing below which a refocus is needed.
+     */
+    public static final float DEFAULT_REFOCUS_RATIO = 0.6f;
+
+    /**
+     * Number of frames after focusing during which the best score is collected before drift is
+     * checked.
+     */
+    private static final int SETTLE_FRAMES = 5;
+
+    /**
+     * Weight of the newest score in the smoothed score.
+     */
+    private static final float SMOOTHING = 0.5f;
+
+    // Configuration, guarded by this
+    private int mNoiseThreshold = DEFAULT_NOISE_THRESHOLD;
+    private float mRefocusRatio = DEFAULT_REFOCUS_RATIO;
+    private Listener mListener;
+
+    // Area, guarded by this
+    private boolean mHasArea;
+    private int mAreaLeft;
+    private int mAreaTop;
+    private int mAreaRight;
+    private int mAreaBottom;
+
+    // Tracking, guarded by this
+    private float mScore;
+    private float mReferenceScore;
+    private int mSettleFrames;
+    private boolean mRefocusNeeded;
+
+
+    //
+    // Getters/Setters
+    //
+
+    /**
+     * Sets the gradient magnitude below which a gradient counts as sensor noise.
+     */
+    public synchronized void setNoiseThreshold(int noiseThreshold) {
+        mNoiseThreshold = Math.max(noiseThreshold, 0);
+    }
+
+    /**
+     * Sets the fraction of the best score after focusing below which a refocus is needed.
+     */
+    public synchronized void setRefocusRatio(float refocusRatio) {
+        mRefocusRatio = refocusRatio;
+    }
+
+    /**
+     * Sets the listener notified when the area drifts out of focus.
+     *
+     * @param listener The {@link Listener} or null.
+     */
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the area to score and starts tracking it as if it was just focused.
+     *
+     * @param left   The left edge of the area, -1000 to 1000.
+     * @param top    The top edge of the area, -1000 to 1000.
+     * @param right  The right edge of the area, -1000 to 1000.
+     * @param bottom The bottom edge of the area, -1000 to 1000.
+     */
+    public synchronized void setArea(int left, int top, int right, int bottom) {
+        mHasArea = true;
+        mAreaLeft = left;
+        mAreaTop = top;
+        mAreaRight = right;
+        mAreaBottom = bottom;
+        mScore = 0;
+        markFocused();
+    }
+
+    /**
+     * Stops scoring.
+     */
+    public synchronized void clearArea() {
+        mHasArea = false;
+        mScore = 0;
+        mRefocusNeeded = false;
+    }
+
+    /**
+     * Starts collecting a new best score, typically once auto-focus finishes.
+     */
+    public synchronized void markFocused() {
+        mReferenceScore = 0;
+        mSettleFrames = SETTLE_FRAMES;
+        mRefocusNeeded = false;
+    }
+
+    /**
+     * @return The smoothed score of the area, or 0 if there is no area.
+     */
+    public synchronized float getScore() {
+        return mScore;
+    }
+
+    /**
+     * @return The best score since the area was last focused.
+     */
+    public synchronized float getReferenceScore() {
+        return mReferenceScore;
+    }
+
+    /**
+     * @return Whether the area drifted out of focus since it was last focused.
+     */
+    public synchronized boolean isRefocusNeeded() {
+        return mRefocusNeeded;
+    }
+
+
+    //
+    // Scoring
+    //
+
+    /**
+     * Scores the area in a frame and checks whether it drifted out of focus. Does nothing if there
+     * is no area.
+     *
+     * @param data   The frame data, starting with a {@code width} by {@code height} Y plane.
+     * @param width  The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     */
+    public void process(byte[] data, int width, int height) {
+        final int left;
+        final int top;
+        final int right;
+        final int bottom;
+        final int noiseThreshold;
+        synchronized (this) {
+            if (!mHasArea) {
+                return;
+            }
+            left = (mAreaLeft + 1000) * width / 2000;
+            top = (mAreaTop + 1000) * height / 2000;
+            right = (mAreaRight + 1000) * width / 2000;
+            bottom = (mAreaBottom + 1000) * height / 2000;
+            noiseThreshold = mNoiseThreshold;
+        }
+
+        // Score outside the lock so that the UI thread never waits for it.
+        final float frameScore = tenengrad(data, width, left, top, right, bottom, noiseThreshold);
+
+        final float score;
+        final float referenceScore;
+        final Listener listener;
+        synchronized (this) {
+            if (!mHasArea) {
+                return;
+            }
+            mScore = mScore > 0 ? mScore + (frameScore - mScore) * SMOOTHING : frameScore;
+            mReferenceScore = Math.max(mReferenceScore, mScore);
+            if (mSettleFrames > 0) {
+                mSettleFrames--;
+                return;
+            }
+            if (mRefocusNeeded || mScore >= mReferenceScore * mRefocusRatio) {
+                return;
+            }
+            // Only reported once per focus.
+            mRefocusNeeded = true;
+            score = mScore;
+            referenceScore = mReferenceScore;
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onRefocusNeeded(score, referenceScore);
+        }
+    }
+
+    /**
+     * Computes the Tenengrad score of a region of a luma plane: the mean over the region of the
+     * squared Sobel gradient magnitudes that exceed a noise threshold.
+     *
+     * @param luma           The luma plane.
+     * @param stride         The distance between two rows of the plane; also its width.
+     * @param left           The left edge of the region in pixels.
+     * @param top            The top edge of the region in pixels.
+     * @param right          The right edge of the region in pixels, exclusive.
+     * @param bottom         The bottom edge of the region in pixels, exclusive.
+     * @param noiseThreshold The gradient magnitude below which a gradient is ignored.
+     *
+     * @return The score, or 0 if the region is smaller than 3x3 pixels.
+     */
+    public static float tenengrad(byte[] luma, int stride, int left, int top, int right,
+                                  int bottom, int noiseThreshold) {
+        // The plane is assumed to be at least as tall as the region asks for.
+        left = Math.max(left, 0);
+        top = Math.max(top, 0);
+        right = Math.min(right, stride);
+        if (right - left < 3 || bottom - top < 3) {
+            return 0;
+        }
+        final int threshold = noiseThreshold * noiseThreshold;
+
+        long sum = 0;
+        for (int y = top + 1; y < bottom - 1; y++) {
+            final int above = (y - 1) * stride;
+            final int row = y * stride;
+            final int below = (y + 1) * stride;
+
+            // Slide a 3x3 window along the row, loading one new column per pixel.
+            int a0 = luma[above + left] & 0xff;
+            int r0 = luma[row + left] & 0xff;
+            int b0 = luma[below + left] & 0xff;
+            int a1 = luma[above + left + 1] & 0xff;
+            int r1 = luma[row + left + 1] & 0xff;
+            int b1 = luma[below + left + 1] & 0xff;
+            for (int x = left + 2; x < right; x++) {
+                final int a2 = luma[above + x] & 0xff;
+                final int r2 = luma[row + x] & 0xff;
+                final int b2 = luma[below + x] & 0xff;
+
+                final int gx = (a2 + 2 * r2 + b2) - (a0 + 2 * r0 + b0);
+                final int gy = (b0 + 2 * b1 + b2) - (a0 + 2 * a1 + a2);
+                final int magnitude = gx * gx + gy * gy;
+                if (magnitude > threshold) {
+                    sum += magnitude;
+                }
+
+                a0 = a1;
+                r0 = r1;
+                b0 = b1;
+                a1 = a2;
+                r1 = r2;
+                b1 = b2;
+            }
+        }
+        return (float) sum / ((right - left - 2) * (bottom - top - 2));
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for a callback to be invoked when the scored area drifts out of focus.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the thread processing frames when the score of the area falls below the
+         * refocus ratio of its best score since it was last focused. Called once per focus.
+         *
+         * @param score          The current smoothed score.
+         * @param referenceScore The best score since the area was last focused.
+         */
+        void onRefocusNeeded(float score, float referenceScore);
+    }
+}
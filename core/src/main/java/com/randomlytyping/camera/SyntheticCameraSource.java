@@ -0,0 +1,666 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SyntheticCameraSource class is a {@link CameraSource} that runs on any JVM, so that the
+ * preview pipeline can be exercised and benchmarked without a device.
+ * <p/>
+ * Camera {@code 0} faces back and camera {@code 1} faces front, with the sensor orientations of a
+ * typical phone. Preview frames show a fixed gradient, a square sweeping across it and a
+ * configurable number of bright face-sized boxes, which are also what face detection reports.
+ * Pictures are minimal JPEGs that {@link JpegHeaderParser} reads with the picture size and the
+ * EXIF orientation of the sensor. Opening, the first frame, the shutter and auto-focus each take a
+ * configurable latency.
+ * <p/>
+ * Frames, pictures, focus and faces are delivered on a dedicated thread. Frames are drawn into a
+ * fixed set of {@link #DEFAULT_BUFFER_COUNT} buffers: at a fixed frame rate, a frame is dropped
+ * when no buffer has been released, as a camera does; with a frame rate of {@link
+ * #UNTHROTTLED}, frames are delivered as fast as buffers are released, which measures the
+ * throughput of whatever consumes them.
+ */
+public class SyntheticCameraSource implements CameraSource {
+    /**
+     * Number of cameras: a back-facing one and a front-facing one.
+     */
+    public static final int CAMERA_COUNT = 2;
+
+    /**
+     * Frame rate that delivers a new frame as soon as a buffer is free.
+     */
+    public static final int UNTHROTTLED = 0;
+
+    /**
+     * Default frame rate.
+     */
+    public static final int DEFAULT_FRAME_RATE = 30;
+
+    /**
+     * Default number of preview buffers, as in {@code PreviewFrameRing}.
+     */
+    public static final int DEFAULT_BUFFER_COUNT = 3;
+
+    /**
+     * Largest number of faces drawn and detected.
+     */
+    public static final int MAX_FACES = 5;
+
+    /**
+     * Supported preview sizes as packed width/height pairs. The first one is also the picture
+     * size.
+     */
+    private static final int[] PREVIEW_SIZES = {1280, 720, 640, 480, 320, 240};
+
+    /**
+     * Name of the thread callbacks are delivered on.
+     */
+    private static final String THREAD_NAME = "SyntheticCamera";
+
+    /**
+     * Luma of the sweeping square and of faces.
+     */
+    private static final byte SQUARE_LUMA = (byte) 235;
+    private static final byte FACE_LUMA = (byte) 200;
+
+    /**
+     * Score reported for every face.
+     */
+    private static final int FACE_SCORE = 90;
+
+    /**
+     * Length of the compressed data that follows the JPEG headers, as a fraction of the pixel
+     * count, so that pictures cost about as much to allocate and copy as real ones.
+     */
+    private static final int JPEG_BYTES_PER_PIXEL_DIVISOR = 10;
+
+    // Configuration
+    private volatile int mFrameRate = DEFAULT_FRAME_RATE;
+    private volatile int mFaceCount;
+    private volatile long mOpenLatencyMillis;
+    private volatile long mFirstFrameLatencyMillis;
+    private volatile long mShutterLatencyMillis;
+    private volatile long mAutoFocusLatencyMillis;
+
+    // Camera, only changed by the thread that opened it
+    private volatile ScheduledExecutorService mExecutor;
+    private int mCameraId = -1;
+    private int mWidth = 640;
+    private int mHeight = 480;
+    private byte[] mBackground;
+
+    // Callbacks
+    private volatile FrameCallback mFrameCallback;
+    private volatile FaceCallback mFaceCallback;
+    private volatile boolean mFaceDetectionRunning;
+
+    // Preview buffers and state, guarded by mLock
+    private final Object mLock = new Object();
+    private final byte[][] mBuffers = new byte[DEFAULT_BUFFER_COUNT][];
+    private final ArrayDeque<byte[]> mFreeBuffers = new ArrayDeque<byte[]>(DEFAULT_BUFFER_COUNT);
+    private FrameTask mFrameTask;
+    private Future<?> mFrameFuture;
+    private boolean mStalled;
+    private Future<?> mAutoFocusFuture;
+
+    // Drawing, touched only by the callback thread
+    private final float[] mFaceRects = new float[MAX_FACES * 4];
+    private final int[] mFaceScores = new int[MAX_FACES];
+    private int mFrameNumber;
+
+    // Statistics
+    private volatile long mFrameCount;
+    private volatile long mDroppedFrameCount;
+
+
+    //
+    // Configuration
+    //
+
+    /**
+     * Sets the rate preview frames are delivered at from the next time the preview starts.
+     *
+     * @param frameRate The frame rate in frames per second or {@link #UNTHROTTLED}.
+     */
+    public void setFrameRate(int frameRate) {
+        mFrameRate = Math.max(frameRate, UNTHROTTLED);
+    }
+
+    /**
+     * Sets the number of faces drawn into frames and reported by face detection.
+     *
+     * @param faceCount The number of faces, 0 to {@link #MAX_FACES}.
+     */
+    public void setFaceCount(int faceCount) {
+        mFaceCount = Math.min(Math.max(faceCount, 0), MAX_FACES);
+    }
+
+    /**
+     * Sets how long {@link #open(int)} blocks.
+     */
+    public void setOpenLatency(long millis) {
+        mOpenLatencyMillis = Math.max(millis, 0);
+    }
+
+    /**
+     * Sets the time between starting the preview and the first frame.
+     */
+    public void setFirstFrameLatency(long millis) {
+        mFirstFrameLatencyMillis = Math.max(millis, 0);
+    }
+
+    /**
+     * Sets the time between taking a picture and receiving its JPEG.
+     */
+    public void setShutterLatency(long millis) {
+        mShutterLatencyMillis = Math.max(millis, 0);
+    }
+
+    /**
+     * Sets the time auto-focus takes.
+     */
+    public void setAutoFocusLatency(long millis) {
+        mAutoFocusLatencyMillis = Math.max(millis, 0);
+    }
+
+    /**
+     * @return The number of frames delivered since the camera was opened.
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return The number of frames dropped at a fixed frame rate because every buffer was held,
+     * since the camera was opened.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+
+    //
+    // CameraSource implementation: lifecycle
+    //
+
+    @Override
+    public int findCameraId(boolean frontFacing) {
+        return frontFacing ? 1 : 0;
+    }
+
+    @Override
+    public void open(int cameraId) {
+        if (cameraId < 0 || cameraId >= CAMERA_COUNT) {
+            throw new RuntimeException(String.format("There is no camera %d.", cameraId));
+        }
+        if (mExecutor != null) {
+            throw new RuntimeException("The camera is already open.");
+        }
+        sleep(mOpenLatencyMillis);
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, THREAD_NAME);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.setRemoveOnCancelPolicy(true);
+        mExecutor = executor;
+        mCameraId = cameraId;
+        mFrameCount = 0;
+        mDroppedFrameCount = 0;
+    }
+
+    @Override
+    public void release() {
+        if (mExecutor == null) {
+            return;
+        }
+        stopPreview();
+        mExecutor.shutdownNow();
+        mExecutor = null;
+        mCameraId = -1;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mExecutor != null;
+    }
+
+    @Override
+    public boolean isFrontFacing() {
+        return mCameraId == 1;
+    }
+
+    @Override
+    public int getSensorOrientation() {
+        return isFrontFacing() ? 270 : 90;
+    }
+
+
+    //
+    // CameraSource implementation: preview
+    //
+
+    @Override
+    public int[] getSupportedPreviewSizes() {
+        return PREVIEW_SIZES.clone();
+    }
+
+    @Override
+    public void setPreviewSize(int width, int height) {
+        for (int i = 0; i < PREVIEW_SIZES.length; i += 2) {
+            if (PREVIEW_SIZES[i] == width && PREVIEW_SIZES[i + 1] == height) {
+                if (width != mWidth || height != mHeight) {
+                    mWidth = width;
+                    mHeight = height;
+                    mBackground = null;
+                }
+                return;
+            }
+        }
+        throw new IllegalArgumentException(
+                String.format("Unsupported preview size %dx%d.", width, height));
+    }
+
+    @Override
+    public int getPreviewWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getPreviewHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public boolean getPreviewFpsRange(int[] range) {
+        final int frameRate = mFrameRate;
+        if (frameRate == UNTHROTTLED) {
+            return false;
+        }
+        range[0] = frameRate * 1000;
+        range[1] = frameRate * 1000;
+        return true;
+    }
+
+    @Override
+    public void setFrameCallback(FrameCallback callback) {
+        mFrameCallback = callback;
+    }
+
+    @Override
+    public void startPreview() {
+        checkOpen();
+        final int frameSize = mWidth * mHeight * 3 / 2;
+        if (mBackground == null) {
+            mBackground = createBackground(mWidth, mHeight);
+        }
+        synchronized (mLock) {
+            if (mFrameTask != null) {
+                return;
+            }
+            mFreeBuffers.clear();
+            for (int i = 0; i < mBuffers.length; i++) {
+                if (mBuffers[i] == null || mBuffers[i].length != frameSize) {
+                    mBuffers[i] = new byte[frameSize];
+                }
+                mFreeBuffers.add(mBuffers[i]);
+            }
+            mStalled = false;
+            mFrameTask = new FrameTask(mWidth, mHeight, mBackground, mFrameRate == UNTHROTTLED);
+            final long delayNanos = TimeUnit.MILLISECONDS.toNanos(mFirstFrameLatencyMillis);
+            if (mFrameRate == UNTHROTTLED) {
+                mFrameFuture = mExecutor.schedule(mFrameTask, delayNanos, TimeUnit.NANOSECONDS);
+            } else {
+                mFrameFuture = mExecutor.scheduleAtFixedRate(mFrameTask, delayNanos,
+                        TimeUnit.SECONDS.toNanos(1) / mFrameRate, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    @Override
+    public void stopPreview() {
+        mFaceDetectionRunning = false;
+        synchronized (mLock) {
+            if (mFrameTask == null) {
+                return;
+            }
+            mFrameTask = null;
+            mFrameFuture.cancel(false);
+            mFrameFuture = null;
+        }
+    }
+
+    @Override
+    public void releaseFrame(byte[] frame) {
+        synchronized (mLock) {
+            if (!owns(frame) || mFreeBuffers.contains(frame)) {
+                return;
+            }
+            mFreeBuffers.add(frame);
+            if (mStalled && mFrameTask != null) {
+                mStalled = false;
+                mFrameFuture = mExecutor.submit(mFrameTask);
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the lock.
+     */
+    private boolean owns(byte[] frame) {
+        for (byte[] buffer : mBuffers) {
+            if (buffer == frame) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    //
+    // CameraSource implementation: focus and capture
+    //
+
+    @Override
+    public void autoFocus(final AutoFocusCallback callback) {
+        checkPreviewRunning();
+        final Future<?> autoFocusFuture = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                callback.onAutoFocus(true);
+            }
+        }, mAutoFocusLatencyMillis, TimeUnit.MILLISECONDS);
+        synchronized (mLock) {
+            mAutoFocusFuture = autoFocusFuture;
+        }
+    }
+
+    @Override
+    public void cancelAutoFocus() {
+        synchronized (mLock) {
+            if (mAutoFocusFuture != null) {
+                mAutoFocusFuture.cancel(false);
+                mAutoFocusFuture = null;
+            }
+        }
+    }
+
+    @Override
+    public void takePicture(final PictureCallback callback) {
+        checkPreviewRunning();
+        stopPreview();
+        final int orientation = getExifOrientation(getSensorOrientation());
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                callback.onPictureTaken(
+                        createJpeg(PREVIEW_SIZES[0], PREVIEW_SIZES[1], orientation));
+            }
+        }, mShutterLatencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    //
+    // CameraSource implementation: face detection
+    //
+
+    @Override
+    public int getMaxNumDetectedFaces() {
+        return MAX_FACES;
+    }
+
+    @Override
+    public void setFaceCallback(FaceCallback callback) {
+        mFaceCallback = callback;
+    }
+
+    @Override
+    public void startFaceDetection() {
+        checkPreviewRunning();
+        mFaceDetectionRunning = true;
+    }
+
+    @Override
+    public void stopFaceDetection() {
+        mFaceDetectionRunning = false;
+    }
+
+
+    //
+    // Frames
+    //
+
+    /**
+     * Draws and delivers frames for one run of the preview. Stops once the preview stops or
+     * restarts, even if already queued.
+     */
+    private final class FrameTask implements Runnable {
+        private final int mFrameWidth;
+        private final int mFrameHeight;
+        private final byte[] mFrameBackground;
+        private final boolean mUnthrottled;
+
+        FrameTask(int width, int height, byte[] background, boolean unthrottled) {
+            mFrameWidth = width;
+            mFrameHeight = height;
+            mFrameBackground = background;
+            mUnthrottled = unthrottled;
+        }
+
+        @Override
+        public void run() {
+            final byte[] frame;
+            synchronized (mLock) {
+                if (mFrameTask != this) {
+                    return;
+                }
+                frame = mFreeBuffers.poll();
+                if (frame == null) {
+                    // Unthrottled frames resume as soon as a buffer is released.
+                    if (mUnthrottled) {
+                        mStalled = true;
+                    } else {
+                        mDroppedFrameCount++;
+                    }
+                    return;
+                }
+            }
+
+            final int faceCount = mFaceCount;
+            drawFrame(frame, mFrameWidth, mFrameHeight, mFrameBackground, mFrameNumber++,
+                    faceCount, mFaceRects);
+            mFrameCount++;
+            final FrameCallback frameCallback = mFrameCallback;
+            if (frameCallback != null) {
+                frameCallback.onFrame(frame, mFrameWidth, mFrameHeight, System.nanoTime());
+            } else {
+                releaseFrame(frame);
+            }
+
+            final FaceCallback faceCallback = mFaceCallback;
+            if (mFaceDetectionRunning && faceCallback != null) {
+                for (int i = 0; i < faceCount; i++) {
+                    mFaceScores[i] = FACE_SCORE;
+                }
+                faceCallback.onFacesDetected(faceCount, mFaceRects, mFaceScores);
+            }
+
+            if (mUnthrottled) {
+                synchronized (mLock) {
+                    if (mFrameTask == this && !mStalled) {
+                        mFrameFuture = mExecutor.submit(this);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the unchanging part of every frame: a diagonal luma gradient with neutral chroma.
+     */
+    private static byte[] createBackground(int width, int height) {
+        final byte[] background = new byte[width * height * 3 / 2];
+        final int span = width + height;
+        for (int y = 0; y < height; y++) {
+            final int row = y * width;
+            for (int x = 0; x < width; x++) {
+                background[row + x] = (byte) (16 + (x + y) * 200 / span);
+            }
+        }
+        Arrays.fill(background, width * height, background.length, (byte) 128);
+        return background;
+    }
+
+    /**
+     * Draws a frame: the background, a square sweeping from left to right and faces swaying in a
+     * row across the top half.
+     *
+     * @param faceRects Receives the faces in sensor coordinates.
+     */
+    private static void drawFrame(byte[] frame, int width, int height, byte[] background,
+                                  int frameNumber, int faceCount, float[] faceRects) {
+        System.arraycopy(background, 0, frame, 0, background.length);
+
+        final int squareSize = height / 4;
+        final int squareLeft = (frameNumber * 8) % (width - squareSize);
+        final int squareTop = height * 5 / 8;
+        fillLuma(frame, width, squareLeft, squareTop, squareSize, SQUARE_LUMA);
+
+        if (faceCount > 0) {
+            final int faceSize = height / 5;
+            final int phase = frameNumber % 40;
+            final int sway = (phase < 20 ? phase : 40 - phase) - 10;
+            final int faceTop = height / 4 - faceSize / 2;
+            for (int i = 0; i < faceCount; i++) {
+                final int faceLeft = (i + 1) * width / (faceCount + 1) - faceSize / 2 + sway;
+                fillLuma(frame, width, faceLeft, faceTop, faceSize, FACE_LUMA);
+                final int offset = i * 4;
+                faceRects[offset] = faceLeft * 2000f / width - 1000;
+                faceRects[offset + 1] = faceTop * 2000f / height - 1000;
+                faceRects[offset + 2] = (faceLeft + faceSize) * 2000f / width - 1000;
+                faceRects[offset + 3] = (faceTop + faceSize) * 2000f / height - 1000;
+            }
+        }
+    }
+
+    private static void fillLuma(byte[] frame, int width, int left, int top, int size,
+                                 byte luma) {
+        for (int y = top; y < top + size; y++) {
+            Arrays.fill(frame, y * width + left, y * width + left + size, luma);
+        }
+    }
+
+
+    //
+    // Pictures
+    //
+
+    /**
+     * Creates a JPEG as a camera writes it, down to the frame and scan headers, followed by filler
+     * standing in for the compressed image. It cannot be decoded.
+     *
+     * @param width       The width of the picture in pixels.
+     * @param height      The height of the picture in pixels.
+     * @param orientation The EXIF orientation.
+     *
+     * @return The JPEG data.
+     */
+    public static byte[] createJpeg(int width, int height, int orientation) {
+        final byte[] header = {
+                // SOI
+                (byte) 0xff, (byte) 0xd8,
+                // APP1 "Exif", big-endian TIFF header and an IFD with a single orientation entry
+                (byte) 0xff, (byte) 0xe1, 0, 34, 'E', 'x', 'i', 'f', 0, 0,
+                'M', 'M', 0, 42, 0, 0, 0, 8,
+                0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+                0, 0, 0, 0,
+                // SOF0 for a single component
+                (byte) 0xff, (byte) 0xc0, 0, 11, 8,
+                (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width,
+                1, 1, 0x11, 0,
+                // SOS
+                (byte) 0xff, (byte) 0xda, 0, 8, 1, 1, 0, 0, 63, 0
+        };
+        final int dataLength = width * height / JPEG_BYTES_PER_PIXEL_DIVISOR;
+        final byte[] jpeg = new byte[header.length + dataLength + 2];
+        System.arraycopy(header, 0, jpeg, 0, header.length);
+        // The zero filler never forms a marker. EOI
+        jpeg[jpeg.length - 2] = (byte) 0xff;
+        jpeg[jpeg.length - 1] = (byte) 0xd9;
+        return jpeg;
+    }
+
+    /**
+     * @return The EXIF orientation of a picture whose sensor image must be rotated clockwise by
+     * {@code degrees} to be upright.
+     */
+    private static int getExifOrientation(int degrees) {
+        switch (degrees) {
+            case 90:
+                return 6;
+            case 180:
+                return 3;
+            case 270:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+
+
+    //
+    // Helpers
+    //
+
+    private void checkOpen() {
+        if (mExecutor == null) {
+            throw new IllegalStateException("The camera is not open.");
+        }
+    }
+
+    private void checkPreviewRunning() {
+        checkOpen();
+        synchronized (mLock) {
+            if (mFrameTask == null) {
+                throw new IllegalStateException("The preview is not running.");
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while opening the camera.", e);
+        }
+    }
+}
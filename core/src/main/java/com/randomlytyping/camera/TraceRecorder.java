@@ -0,0 +1,325 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The TraceRecorder class appends a camera session to a trace file: preview frames, detected faces
+ * and parameter changes, each with its timestamp, so that {@link TraceReplayer} can feed the
+ * session back through the same consumers later, on a device or on any JVM.
+ * <p/>
+ * The file is written through memory-mapped regions of {@link #REGION_SIZE} bytes, so recording a
+ * frame is a copy into the page cache without a system call. After every record, the header is
+ * updated with the length of the complete records, so a trace cut short by a crash stays readable
+ * up to its last complete record. Recording stops, dropping further records, once the trace
+ * reaches its size limit.
+ * <p/>
+ * The trace is a 16-byte header, {@link #MAGIC}, {@link #VERSION} and the committed length, then
+ * records made of an int type, an int payload length, a long timestamp in nanoseconds and the
+ * payload, all big-endian:
+ * <ul>
+ * <li>{@link #RECORD_FRAME}: width, height and the NV21 data.</li>
+ * <li>{@link #RECORD_FACES}: the face count, four float coordinates per face in sensor
+ * coordinates, then an int score per face.</li>
+ * <li>{@link #RECORD_PARAMETER}: a key and a value, each a short length and UTF-8 bytes.</li>
+ * </ul>
+ * Records may be written from any thread.
+ */
+public class TraceRecorder {
+    /**
+     * "CAMT", the first four bytes of every trace.
+     */
+    public static final int MAGIC = 0x43414d54;
+
+    /**
+     * Version of the trace format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Record types.
+     */
+    public static final int RECORD_FRAME = 1;
+    public static final int RECORD_FACES = 2;
+    public static final int RECORD_PARAMETER = 3;
+
+    /**
+     * Length of the file header and of a record header in bytes.
+     */
+    static final int FILE_HEADER_LENGTH = 16;
+    static final int RECORD_HEADER_LENGTH = 16;
+
+    /**
+     * Offset of the committed length in the file header.
+     */
+    static final int COMMITTED_LENGTH_OFFSET = 8;
+
+    /**
+     * Size of the regions mapped for writing. A record larger than a region gets a region of its
+     * own.
+     */
+    public static final int REGION_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Default size limit of a trace, about ten seconds of 1080p preview at 30 fps.
+     */
+    public static final long DEFAULT_MAX_LENGTH = 1L << 30;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // File
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mHeader;
+    private final long mMaxLength;
+
+    // Writing, guarded by this
+    private MappedByteBuffer mRegion;
+    private long mRegionStart;
+    private long mLength = FILE_HEADER_LENGTH;
+    private long mRecordCount;
+    private long mDroppedRecordCount;
+    private IOException mError;
+    private boolean mClosed;
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Limits the trace to {@link #DEFAULT_MAX_LENGTH} bytes.
+     *
+     * @param file The trace file, replaced if it exists.
+     *
+     * @throws IOException If the file cannot be created.
+     */
+    public TraceRecorder(File file) throws IOException {
+        this(file, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param file      The trace file, replaced if it exists.
+     * @param maxLength The size limit of the trace in bytes.
+     *
+     * @throws IOException If the file cannot be created.
+     */
+    public TraceRecorder(File file, long maxLength) throws IOException {
+        mMaxLength = Math.max(maxLength, FILE_HEADER_LENGTH);
+        mFile = new RandomAccessFile(file, "rw");
+        boolean created = false;
+        try {
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+            mHeader = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_LENGTH);
+            mHeader.putInt(0, MAGIC);
+            mHeader.putInt(4, VERSION);
+            mHeader.putLong(COMMITTED_LENGTH_OFFSET, FILE_HEADER_LENGTH);
+            created = true;
+        } finally {
+            if (!created) {
+                mFile.close();
+            }
+        }
+    }
+
+
+    //
+    // Getters
+    //
+
+    /**
+     * @return The number of records written.
+     */
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return The number of records dropped because the trace reached its size limit or failed
+     * to grow.
+     */
+    public synchronized long getDroppedRecordCount() {
+        return mDroppedRecordCount;
+    }
+
+    /**
+     * @return The length of the trace in bytes.
+     */
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+
+    //
+    // Recording
+    //
+
+    /**
+     * Appends a preview frame.
+     *
+     * @param data           The NV21 frame data.
+     * @param width          The width of the frame in pixels.
+     * @param height         The height of the frame in pixels.
+     * @param timestampNanos When the frame arrived, in {@link System#nanoTime()} time.
+     *
+     * @return True if the frame was recorded; false if it was dropped.
+     */
+    public synchronized boolean recordFrame(byte[] data, int width, int height,
+                                            long timestampNanos) {
+        final int length = Math.min(data.length, width * height * 3 / 2);
+        final MappedByteBuffer region = beginRecord(RECORD_FRAME, 8 + length, timestampNanos);
+        if (region == null) {
+            return false;
+        }
+        region.putInt(width);
+        region.putInt(height);
+        region.put(data, 0, length);
+        return commitRecord(region);
+    }
+
+    /**
+     * Appends detected faces.
+     *
+     * @param count          The number of faces.
+     * @param rects          Four floats per face in sensor coordinates.
+     * @param scores         The score of each face.
+     * @param timestampNanos When the faces were detected, in {@link System#nanoTime()} time.
+     *
+     * @return True if the faces were recorded; false if they were dropped.
+     */
+    public synchronized boolean recordFaces(int count, float[] rects, int[] scores,
+                                            long timestampNanos) {
+        final MappedByteBuffer region = beginRecord(RECORD_FACES, 4 + count * 20, timestampNanos);
+        if (region == null) {
+            return false;
+        }
+        region.putInt(count);
+        for (int i = 0; i < count * 4; i++) {
+            region.putFloat(rects[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            region.putInt(scores[i]);
+        }
+        return commitRecord(region);
+    }
+
+    /**
+     * Appends a camera parameter change, such as a new preview size or exposure compensation.
+     *
+     * @param key            The name of the parameter.
+     * @param value          Its new value.
+     * @param timestampNanos When it changed, in {@link System#nanoTime()} time.
+     *
+     * @return True if the change was recorded; false if it was dropped.
+     */
+    public synchronized boolean recordParameter(String key, String value, long timestampNanos) {
+        final byte[] keyBytes = key.getBytes(UTF_8);
+        final byte[] valueBytes = value.getBytes(UTF_8);
+        final MappedByteBuffer region = beginRecord(RECORD_PARAMETER,
+                4 + keyBytes.length + valueBytes.length, timestampNanos);
+        if (region == null) {
+            return false;
+        }
+        region.putShort((short) keyBytes.length);
+        region.put(keyBytes);
+        region.putShort((short) valueBytes.length);
+        region.put(valueBytes);
+        return commitRecord(region);
+    }
+
+    /**
+     * Positions a mapped region at the end of the trace and writes a record header into it.
+     *
+     * @return The region to write the payload into, or null if the record is dropped.
+     */
+    private MappedByteBuffer beginRecord(int type, int payloadLength, long timestampNanos) {
+        final long recordLength = RECORD_HEADER_LENGTH + payloadLength;
+        if (mClosed || mError != null || mLength + recordLength > mMaxLength) {
+            mDroppedRecordCount++;
+            return null;
+        }
+        if (mRegion == null || mLength + recordLength > mRegionStart + mRegion.capacity()) {
+            try {
+                final long size = Math.max(REGION_SIZE, recordLength);
+                mRegion = mChannel.map(FileChannel.MapMode.READ_WRITE, mLength, size);
+                mRegionStart = mLength;
+            } catch (IOException e) {
+                mError = e;
+                mRegion = null;
+                mDroppedRecordCount++;
+                return null;
+            }
+        }
+        final MappedByteBuffer region = mRegion;
+        region.position((int) (mLength - mRegionStart));
+        region.putInt(type);
+        region.putInt(payloadLength);
+        region.putLong(timestampNanos);
+        return region;
+    }
+
+    /**
+     * Publishes the record just written by moving the committed length past it.
+     */
+    private boolean commitRecord(MappedByteBuffer region) {
+        mLength = mRegionStart + region.position();
+        mHeader.putLong(COMMITTED_LENGTH_OFFSET, mLength);
+        mRecordCount++;
+        return true;
+    }
+
+
+    //
+    // Closing
+    //
+
+    /**
+     * Flushes the trace to storage, trims the space mapped past its last record and closes the
+     * file. Further records are dropped.
+     *
+     * @throws IOException If the trace could not be written, including an error that stopped
+     *                     recording earlier.
+     */
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mRegion != null) {
+                mRegion.force();
+                mRegion = null;
+            }
+            mHeader.force();
+            mChannel.truncate(mLength);
+        } finally {
+            mFile.close();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+}
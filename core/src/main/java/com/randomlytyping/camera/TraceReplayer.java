@@ -0,0 +1,354 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TraceReplayer class feeds a trace written by {@link TraceRecorder} back through the
+ * callbacks of a {@link CameraSource}: frames to a {@link CameraSource.FrameCallback}, faces to a
+ * {@link CameraSource.FaceCallback} and parameter changes to a {@link ParameterListener}, so that
+ * a session recorded on a device can be reproduced offline.
+ * <p/>
+ * A trace is replayed either at its original speed or as fast as the frame callback releases
+ * frames. Either way, timestamps keep their recorded spacing, shifted to start when the replay
+ * starts, so that a {@link FrameRateMonitor} sees the original pacing. As with a camera, frames
+ * are copied into a fixed set of {@link #DEFAULT_BUFFER_COUNT} buffers and must be handed back
+ * with {@link #releaseFrame(byte[])}. At original speed, a frame is dropped when no buffer is
+ * free; at maximum speed, the replay waits for one, so every frame is delivered.
+ * <p/>
+ * The trace is read through read-only memory-mapped windows. Callbacks are invoked on the thread
+ * calling {@link #replay(boolean)}; frames may be released from any thread.
+ */
+public class TraceReplayer {
+    /**
+     * Number of frame buffers, as in {@code PreviewFrameRing}.
+     */
+    public static final int DEFAULT_BUFFER_COUNT = 3;
+
+    // File
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mLength;
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+
+    // Callbacks
+    private CameraSource.FrameCallback mFrameCallback;
+    private CameraSource.FaceCallback mFaceCallback;
+    private ParameterListener mParameterListener;
+
+    // Frame buffers, guarded by mLock
+    private final Object mLock = new Object();
+    private final byte[][] mBuffers = new byte[DEFAULT_BUFFER_COUNT][];
+    private final ArrayDeque<byte[]> mFreeBuffers = new ArrayDeque<byte[]>(DEFAULT_BUFFER_COUNT);
+
+    // Faces
+    private float[] mFaceRects = new float[0];
+    private int[] mFaceScores = new int[0];
+
+    // Statistics
+    private long mFrameCount;
+    private long mDroppedFrameCount;
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Opens a trace and checks its header.
+     *
+     * @param file The trace file.
+     *
+     * @throws IOException If the file cannot be read or is not a trace.
+     */
+    public TraceReplayer(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        boolean opened = false;
+        try {
+            mChannel = mFile.getChannel();
+            final long size = mChannel.size();
+            if (size < TraceRecorder.FILE_HEADER_LENGTH) {
+                throw new IOException(String.format("%s is too short to be a trace.", file));
+            }
+            final MappedByteBuffer header = mChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    TraceRecorder.FILE_HEADER_LENGTH);
+            if (header.getInt(0) != TraceRecorder.MAGIC) {
+                throw new IOException(String.format("%s is not a trace.", file));
+            }
+            final int version = header.getInt(4);
+            if (version != TraceRecorder.VERSION) {
+                throw new IOException(
+                        String.format("%s has unsupported trace version %d.", file, version));
+            }
+            // Only complete records count, even if the recorder did not get to trim the file.
+            mLength = Math.min(header.getLong(TraceRecorder.COMMITTED_LENGTH_OFFSET), size);
+            opened = true;
+        } finally {
+            if (!opened) {
+                mFile.close();
+            }
+        }
+    }
+
+
+    //
+    // Getters/Setters
+    //
+
+    /**
+     * Sets the callback receiving frames. Without one, frames are skipped.
+     *
+     * @param callback The {@link CameraSource.FrameCallback} or null.
+     */
+    public void setFrameCallback(CameraSource.FrameCallback callback) {
+        mFrameCallback = callback;
+    }
+
+    /**
+     * Sets the callback receiving faces.
+     *
+     * @param callback The {@link CameraSource.FaceCallback} or null.
+     */
+    public void setFaceCallback(CameraSource.FaceCallback callback) {
+        mFaceCallback = callback;
+    }
+
+    /**
+     * Sets the listener receiving parameter changes.
+     *
+     * @param listener The {@link ParameterListener} or null.
+     */
+    public void setParameterListener(ParameterListener listener) {
+        mParameterListener = listener;
+    }
+
+    /**
+     * @return The number of frames delivered by the last replay.
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return The number of frames the last replay at original speed dropped because every
+     * buffer was held.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+
+    //
+    // Replay
+    //
+
+    /**
+     * Replays the whole trace on the calling thread. Records of unknown types are skipped, and a
+     * record cut short ends the replay.
+     *
+     * @param originalSpeed True to wait between records as long as when they were recorded; false
+     *                      to replay as fast as frames are released.
+     *
+     * @throws IOException          If the trace cannot be read.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void replay(boolean originalSpeed) throws IOException, InterruptedException {
+        mFrameCount = 0;
+        mDroppedFrameCount = 0;
+        final long start = System.nanoTime();
+        long firstTimestamp = 0;
+        long position = TraceRecorder.FILE_HEADER_LENGTH;
+        while (position + TraceRecorder.RECORD_HEADER_LENGTH <= mLength) {
+            MappedByteBuffer window = map(position, TraceRecorder.RECORD_HEADER_LENGTH);
+            final int type = window.getInt();
+            final int payloadLength = window.getInt();
+            final long timestamp = window.getLong();
+            final long payloadStart = position + TraceRecorder.RECORD_HEADER_LENGTH;
+            if (payloadLength < 0 || payloadStart + payloadLength > mLength) {
+                break;
+            }
+            if (position == TraceRecorder.FILE_HEADER_LENGTH) {
+                firstTimestamp = timestamp;
+            }
+            final long replayTimestamp = start + (timestamp - firstTimestamp);
+            if (originalSpeed) {
+                final long wait = replayTimestamp - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+
+            window = map(payloadStart, payloadLength);
+            switch (type) {
+                case TraceRecorder.RECORD_FRAME:
+                    replayFrame(window, payloadLength, replayTimestamp, originalSpeed);
+                    break;
+                case TraceRecorder.RECORD_FACES:
+                    replayFaces(window);
+                    break;
+                case TraceRecorder.RECORD_PARAMETER:
+                    replayParameter(window, replayTimestamp);
+                    break;
+                default:
+                    break;
+            }
+            position = payloadStart + payloadLength;
+        }
+    }
+
+    private void replayFrame(MappedByteBuffer window, int payloadLength, long timestamp,
+                             boolean originalSpeed) throws InterruptedException {
+        final CameraSource.FrameCallback callback = mFrameCallback;
+        if (callback == null) {
+            return;
+        }
+        final int width = window.getInt();
+        final int height = window.getInt();
+        final int length = payloadLength - 8;
+        final byte[] frame;
+        synchronized (mLock) {
+            if (mBuffers[0] == null || mBuffers[0].length != length) {
+                // Frames of the previous size are no longer taken back.
+                mFreeBuffers.clear();
+                for (int i = 0; i < mBuffers.length; i++) {
+                    mBuffers[i] = new byte[length];
+                    mFreeBuffers.add(mBuffers[i]);
+                }
+            }
+            if (!originalSpeed) {
+                while (mFreeBuffers.isEmpty()) {
+                    mLock.wait();
+                }
+            }
+            frame = mFreeBuffers.poll();
+        }
+        if (frame == null) {
+            mDroppedFrameCount++;
+            return;
+        }
+        window.get(frame, 0, length);
+        mFrameCount++;
+        callback.onFrame(frame, width, height, timestamp);
+    }
+
+    private void replayFaces(MappedByteBuffer window) {
+        final CameraSource.FaceCallback callback = mFaceCallback;
+        if (callback == null) {
+            return;
+        }
+        final int count = window.getInt();
+        if (mFaceScores.length < count) {
+            mFaceRects = new float[count * 4];
+            mFaceScores = new int[count];
+        }
+        for (int i = 0; i < count * 4; i++) {
+            mFaceRects[i] = window.getFloat();
+        }
+        for (int i = 0; i < count; i++) {
+            mFaceScores[i] = window.getInt();
+        }
+        callback.onFacesDetected(count, mFaceRects, mFaceScores);
+    }
+
+    private void replayParameter(MappedByteBuffer window, long timestamp) {
+        final ParameterListener listener = mParameterListener;
+        if (listener == null) {
+            return;
+        }
+        final String key = readString(window);
+        final String value = readString(window);
+        listener.onParameterChanged(key, value, timestamp);
+    }
+
+    private static String readString(MappedByteBuffer window) {
+        final byte[] bytes = new byte[window.getShort() & 0xffff];
+        window.get(bytes);
+        return new String(bytes, TraceRecorder.UTF_8);
+    }
+
+    /**
+     * Returns a window covering part of the trace, positioned at its start, mapping a new one if
+     * the current window does not cover it.
+     */
+    private MappedByteBuffer map(long position, int length) throws IOException {
+        if (mWindow == null || position < mWindowStart
+                || position + length > mWindowStart + mWindow.capacity()) {
+            final long size = Math.min(Math.max(TraceRecorder.REGION_SIZE, length),
+                    mLength - position);
+            mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            mWindowStart = position;
+        }
+        mWindow.position((int) (position - mWindowStart));
+        return mWindow;
+    }
+
+    /**
+     * Hands a frame back so that it can be filled again. May be called from any thread.
+     *
+     * @param frame A frame previously delivered to the frame callback.
+     */
+    public void releaseFrame(byte[] frame) {
+        synchronized (mLock) {
+            for (byte[] buffer : mBuffers) {
+                if (buffer == frame) {
+                    if (!mFreeBuffers.contains(frame)) {
+                        mFreeBuffers.add(frame);
+                        mLock.notifyAll();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the trace.
+     *
+     * @throws IOException If the file cannot be closed.
+     */
+    public void close() throws IOException {
+        mWindow = null;
+        mFile.close();
+    }
+
+
+    //
+    // Interface definitions
+    //
+
+    /**
+     * Interface definition for a callback to be invoked when a recorded parameter change is
+     * replayed.
+     */
+    public interface ParameterListener {
+
+        /**
+         * @param key            The name of the parameter.
+         * @param value          Its new value.
+         * @param timestampNanos When it changed, shifted to the replay.
+         */
+        void onParameterChanged(String key, String value, long timestampNanos);
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+/**
+ * The YuvConverter class converts NV21 and YV12 camera preview frames to ARGB_8888 pixels, as used
+ * by {@code android.graphics.Bitmap#setPixels(int[], int, int, int, int, int, int)}.
+ * <p/>
+ * Colors are converted with BT.601 video-range coefficients in 16.16 fixed point, read from
+ * tables built once, so the inner loop has no multiplications or floating point. Pixels are
+ * written to a caller-provided array. A converter with more than one thread splits each frame into
+ * stripes of rows that the calling thread and worker threads take in turn, and {@link
+ * #convert(byte[], int, int, int, int[])} returns once every stripe is done.
+ * <p/>
+ * Frames are handed to the workers through fields guarded by a lock rather than a task queue, so
+ * converting a frame allocates nothing. Workers are started by the first frame and wait for the
+ * next one until {@link #shutdown()}.
+ */
+public class YuvConverter {
+    /**
+     * NV21 format: a full-resolution Y plane followed by interleaved V and U samples at half
+     * resolution. Same value as {@code android.graphics.ImageFormat#NV21}.
+     */
+    public static final int FORMAT_NV21 = 0x11;
+
+    /**
+     * YV12 format: a full-resolution Y plane followed by V and U planes at half resolution, with
+     * rows aligned to 16 bytes. Same value as {@code android.graphics.ImageFormat#YV12}.
+     */
+    public static final int FORMAT_YV12 = 0x32315659;
+
+    /**
+     * Number of stripes each thread converts, so that a thread that falls behind can be made up
+     * for by the others.
+     */
+    private static final int STRIPES_PER_THREAD = 2;
+
+    /**
+     * Name prefix of the worker threads.
+     */
+    private static final String THREAD_NAME = "YuvConverter-";
+
+    // Fixed point
+    private static final int SHIFT = 16;
+    private static final int CLAMP_OFFSET = 384;
+
+    // Conversion tables, indexed by sample value
+    private static final int[] Y_TABLE = new int[256];
+    private static final int[] RV_TABLE = new int[256];
+    private static final int[] GU_TABLE = new int[256];
+    private static final int[] GV_TABLE = new int[256];
+    private static final int[] BU_TABLE = new int[256];
+
+    /**
+     * Clamps a shifted color value to 0..255; indexed by the value plus {@link #CLAMP_OFFSET}.
+     */
+    private static final int[] CLAMP_TABLE = new int[CLAMP_OFFSET * 2 + 256];
+
+    static {
+        final double one = 1 << SHIFT;
+        for (int i = 0; i < 256; i++) {
+            // Rounding is folded into the luma term since it is part of every channel.
+            Y_TABLE[i] = (int) Math.round(1.164 * (i - 16) * one) + (1 << (SHIFT - 1));
+            RV_TABLE[i] = (int) Math.round(1.596 * (i - 128) * one);
+            GU_TABLE[i] = (int) Math.round(-0.391 * (i - 128) * one);
+            GV_TABLE[i] = (int) Math.round(-0.813 * (i - 128) * one);
+            BU_TABLE[i] = (int) Math.round(2.018 * (i - 128) * one);
+        }
+        for (int i = 0; i < CLAMP_TABLE.length; i++) {
+            CLAMP_TABLE[i] = Math.min(Math.max(i - CLAMP_OFFSET, 0), 255);
+        }
+    }
+
+    // Workers
+    private final int mThreadCount;
+    private final int mMaxStripeCount;
+    private Thread[] mWorkers;
+
+    // Current frame, guarded by mLock
+    private final Object mLock = new Object();
+    private long mFrame;
+    private byte[] mYuv;
+    private int mFormat;
+    private int mWidth;
+    private int mHeight;
+    private int[] mArgb;
+    private int mStripeCount;
+    private int mNextStripe;
+    private int mRemainingStripes;
+    private RuntimeException mStripeError;
+    private volatile boolean mShutdown;
+
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Constructor. Converts on the calling thread only.
+     */
+    public YuvConverter() {
+        this(1);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param threadCount The number of threads converting each frame, including the calling
+     *                    thread. {@code Runtime.getRuntime().availableProcessors()} is a good
+     *                    choice for a frame consumer that does little else.
+     */
+    public YuvConverter(int threadCount) {
+        mThreadCount = Math.max(threadCount, 1);
+        mMaxStripeCount = mThreadCount > 1 ? mThreadCount * STRIPES_PER_THREAD : 1;
+    }
+
+
+    //
+    // Conversion
+    //
+
+    /**
+     * Converts a frame. Blocks until the whole frame is converted.
+     *
+     * @param yuv    The frame data.
+     * @param format {@link #FORMAT_NV21} or {@link #FORMAT_YV12}.
+     * @param width  The width of the frame in pixels. Must be even.
+     * @param height The height of the frame in pixels. Must be even.
+     * @param argb   Receives {@code width * height} pixels, row by row.
+     */
+    public synchronized void convert(byte[] yuv, int format, int width, int height, int[] argb) {
+        checkArguments(yuv, format, width, height, argb);
+
+        // Stripes hold whole chroma rows, so they start on even rows.
+        final int stripeCount = mShutdown ? 1 : Math.min(mMaxStripeCount, height / 2);
+        if (stripeCount <= 1) {
+            convertRows(yuv, format, width, height, argb, 0, height);
+            return;
+        }
+
+        synchronized (mLock) {
+            if (mWorkers == null) {
+                startWorkers();
+            }
+            mYuv = yuv;
+            mFormat = format;
+            mWidth = width;
+            mHeight = height;
+            mArgb = argb;
+            mStripeCount = stripeCount;
+            mNextStripe = 0;
+            mRemainingStripes = stripeCount;
+            mStripeError = null;
+            mFrame++;
+            mLock.notifyAll();
+        }
+
+        // Convert stripes here too instead of sitting idle.
+        runStripes();
+
+        boolean interrupted = false;
+        final RuntimeException error;
+        synchronized (mLock) {
+            while (mRemainingStripes > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    // The frame must be finished before the caller reuses its buffers.
+                    interrupted = true;
+                }
+            }
+            mYuv = null;
+            mArgb = null;
+            error = mStripeError;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * @return The number of threads converting each frame, including the calling thread.
+     */
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Stops the worker threads once they finish their current stripes. Frames converted afterwards
+     * are converted on the calling thread alone.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the size in bytes of a frame.
+     *
+     * @param format {@link #FORMAT_NV21} or {@link #FORMAT_YV12}.
+     * @param width  The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     */
+    public static int getFrameSize(int format, int width, int height) {
+        if (format == FORMAT_YV12) {
+            final int yStride = getYv12YStride(width);
+            return yStride * height + getYv12UvStride(yStride) * height;
+        }
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * Converts a range of rows of a frame on the calling thread.
+     *
+     * @param yuv      The frame data.
+     * @param format   {@link #FORMAT_NV21} or {@link #FORMAT_YV12}.
+     * @param width    The width of the frame in pixels.
+     * @param height   The height of the frame in pixels.
+     * @param argb     Receives the pixels, row by row.
+     * @param startRow The first row to convert.
+     * @param endRow   The row after the last row to convert.
+     */
+    public static void convertRows(byte[] yuv, int format, int width, int height, int[] argb,
+                                   int startRow, int endRow) {
+        // Where each plane starts and how far apart its samples are.
+        final int yStride;
+        final int vStart;
+        final int uStart;
+        final int uvStride;
+        final int uvStep;
+        if (format == FORMAT_YV12) {
+            yStride = getYv12YStride(width);
+            uvStride = getYv12UvStride(yStride);
+            vStart = yStride * height;
+            uStart = vStart + uvStride * (height / 2);
+            uvStep = 1;
+        } else {
+            yStride = width;
+            uvStride = width;
+            vStart = width * height;
+            uStart = vStart + 1;
+            uvStep = 2;
+        }
+
+        final int[] yTable = Y_TABLE;
+        final int[] clamp = CLAMP_TABLE;
+        for (int row = startRow; row < endRow; row++) {
+            int yIndex = row * yStride;
+            int out = row * width;
+            final int uvRow = (row >> 1) * uvStride;
+            int vIndex = vStart + uvRow;
+            int uIndex = uStart + uvRow;
+            for (int column = 0; column < width; column += 2) {
+                final int v = yuv[vIndex] & 0xff;
+                final int u = yuv[uIndex] & 0xff;
+                vIndex += uvStep;
+                uIndex += uvStep;
+                final int r = RV_TABLE[v];
+                final int g = GU_TABLE[u] + GV_TABLE[v];
+                final int b = BU_TABLE[u];
+
+                // Both pixels of the pair share their chroma.
+                int y = yTable[yuv[yIndex++] & 0xff];
+                argb[out++] = 0xff000000
+                        | clamp[((y + r) >> SHIFT) + CLAMP_OFFSET] << 16
+                        | clamp[((y + g) >> SHIFT) + CLAMP_OFFSET] << 8
+                        | clamp[((y + b) >> SHIFT) + CLAMP_OFFSET];
+                y = yTable[yuv[yIndex++] & 0xff];
+                argb[out++] = 0xff000000
+                        | clamp[((y + r) >> SHIFT) + CLAMP_OFFSET] << 16
+                        | clamp[((y + g) >> SHIFT) + CLAMP_OFFSET] << 8
+                        | clamp[((y + b) >> SHIFT) + CLAMP_OFFSET];
+            }
+        }
+    }
+
+    private static void checkArguments(byte[] yuv, int format, int width, int height,
+                                       int[] argb) {
+        if (format != FORMAT_NV21 && format != FORMAT_YV12) {
+            throw new IllegalArgumentException("Unsupported format " + format);
+        }
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("Frame size must be even: " + width + "x" + height);
+        }
+        if (yuv.length < getFrameSize(format, width, height)) {
+            throw new IllegalArgumentException("Frame data is too small for " + width + "x"
+                    + height);
+        }
+        if (argb.length < width * height) {
+            throw new IllegalArgumentException("Pixel array is too small for " + width + "x"
+                    + height);
+        }
+    }
+
+    /**
+     * Row stride of the Y plane of a YV12 frame, per {@code android.graphics.ImageFormat#YV12}.
+     */
+    private static int getYv12YStride(int width) {
+        return (width + 15) & ~15;
+    }
+
+    /**
+     * Row stride of the U and V planes of a YV12 frame, per {@code
+     * android.graphics.ImageFormat#YV12}.
+     */
+    private static int getYv12UvStride(int yStride) {
+        return ((yStride / 2) + 15) & ~15;
+    }
+
+    /**
+     * Starts the worker threads. Must be called while holding the lock.
+     */
+    private void startWorkers() {
+        mWorkers = new Thread[mThreadCount - 1];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, THREAD_NAME + i);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Worker loop. Waits for each new frame and converts stripes of it until none are left.
+     */
+    private void runWorker() {
+        long frame = 0;
+        while (true) {
+            synchronized (mLock) {
+                while (mFrame == frame && !mShutdown) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Only shutdown() stops the workers.
+                    }
+                }
+                if (mShutdown) {
+                    return;
+                }
+                frame = mFrame;
+            }
+            runStripes();
+        }
+    }
+
+    /**
+     * Converts stripes of the current frame until every stripe has been taken.
+     */
+    private void runStripes() {
+        while (true) {
+            final byte[] yuv;
+            final int format;
+            final int width;
+            final int height;
+            final int[] argb;
+            final int startRow;
+            final int endRow;
+            synchronized (mLock) {
+                if (mNextStripe >= mStripeCount) {
+                    return;
+                }
+                final int stripe = mNextStripe++;
+                final int rowPairs = mHeight / 2;
+                yuv = mYuv;
+                format = mFormat;
+                width = mWidth;
+                height = mHeight;
+                argb = mArgb;
+                startRow = rowPairs * stripe / mStripeCount * 2;
+                endRow = rowPairs * (stripe + 1) / mStripeCount * 2;
+            }
+
+            RuntimeException error = null;
+            try {
+                convertRows(yuv, format, width, height, argb, startRow, endRow);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            finishStripe(error);
+        }
+    }
+
+    /**
+     * Marks a stripe as done, waking the converting thread after the last one.
+     */
+    private void finishStripe(RuntimeException error) {
+        synchronized (mLock) {
+            if (error != null && mStripeError == null) {
+                mStripeError = error;
+            }
+            if (--mRemainingStripes == 0) {
+                mLock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CameraSessionTest {
+    private static final long OPEN_LATENCY_MS = 300;
+
+    private SyntheticCameraSource mSource;
+    private ExecutorService mCameraExecutor;
+    private final BlockingQueue<Runnable> mMainQueue = new LinkedBlockingQueue<Runnable>();
+    private final List<String> mResults = new ArrayList<String>();
+    private RuntimeException mError;
+    private CameraSession mSession;
+
+    @Before
+    public void setUp() {
+        mSource = new SyntheticCameraSource();
+        mSource.setOpenLatency(OPEN_LATENCY_MS);
+        mCameraExecutor = Executors.newSingleThreadExecutor();
+        // The test thread plays the main thread, running results queued for it.
+        mSession = new CameraSession(mSource, mCameraExecutor, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mMainQueue.add(command);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mCameraExecutor.shutdown();
+        mCameraExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        mSource.release();
+    }
+
+    @Test
+    public void openAndReleaseReturnWithoutWaitingForTheCamera() throws Exception {
+        long start = System.nanoTime();
+        mSession.open(0, mCallback);
+        assertTrue(elapsedMillis(start) < OPEN_LATENCY_MS / 2);
+
+        start = System.nanoTime();
+        mSession.release();
+        assertTrue(elapsedMillis(start) < OPEN_LATENCY_MS / 2);
+
+        drainCameraExecutor();
+        assertFalse(mSource.isOpen());
+    }
+
+    @Test
+    public void openResultIsDeliveredOnTheResultExecutor() throws Exception {
+        mSession.open(CameraSession.DEFAULT_CAMERA, mCallback);
+        drainCameraExecutor();
+        assertTrue(mResults.isEmpty());
+
+        runMainQueue();
+        assertEquals("opened 0", mResults.get(0));
+        assertEquals(1, mResults.size());
+    }
+
+    @Test
+    public void supersededOpenResultsAreDropped() throws Exception {
+        mSession.open(0, mCallback);
+        mSession.open(1, mCallback);
+        drainCameraExecutor();
+        runMainQueue();
+
+        // Both cameras were opened in turn, but only the latest request is answered.
+        assertEquals(1, mResults.size());
+        assertEquals("opened 1", mResults.get(0));
+        assertTrue(mSource.isFrontFacing());
+    }
+
+    @Test
+    public void releaseDropsPendingOpenResult() throws Exception {
+        mSession.open(0, mCallback);
+        mSession.release();
+        drainCameraExecutor();
+        runMainQueue();
+
+        assertTrue(mResults.isEmpty());
+        assertFalse(mSource.isOpen());
+    }
+
+    @Test
+    public void resultsQueuedBeforeALaterRequestAreDropped() throws Exception {
+        mSession.open(0, mCallback);
+        drainCameraExecutor();
+        // The result is already queued for the main thread when the camera is switched.
+        assertEquals(1, mMainQueue.size());
+        mSession.open(1, mCallback);
+        drainCameraExecutor();
+        runMainQueue();
+
+        assertEquals(1, mResults.size());
+        assertEquals("opened 1", mResults.get(0));
+    }
+
+    @Test
+    public void failedOpenIsReported() throws Exception {
+        mSession.open(SyntheticCameraSource.CAMERA_COUNT, mCallback);
+        drainCameraExecutor();
+        runMainQueue();
+
+        assertEquals("failed " + SyntheticCameraSource.CAMERA_COUNT, mResults.get(0));
+        assertNotNull(mError);
+    }
+
+    @Test
+    public void postIfCurrentDropsResultsOfEarlierGenerations() throws Exception {
+        final int generation = mSession.getGeneration();
+        final Runnable result = new Runnable() {
+            @Override
+            public void run() {
+                mResults.add("result");
+            }
+        };
+        mSession.postIfCurrent(generation, result);
+        runMainQueue();
+        mSession.release();
+        mSession.postIfCurrent(generation, result);
+        runMainQueue();
+
+        assertEquals(1, mResults.size());
+        assertSame(mSource, mSession.getSource());
+    }
+
+    private final CameraSession.OpenCallback mCallback = new CameraSession.OpenCallback() {
+        @Override
+        public void onCameraOpened(CameraSource source, int cameraId) {
+            assertSame(mSource, source);
+            mResults.add("opened " + cameraId);
+        }
+
+        @Override
+        public void onCameraOpenFailed(int cameraId, RuntimeException error) {
+            mError = error;
+            mResults.add("failed " + cameraId);
+        }
+    };
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Waits for every operation queued on the camera executor so far.
+     */
+    private void drainCameraExecutor() throws Exception {
+        mCameraExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    private void runMainQueue() {
+        Runnable result;
+        while ((result = mMainQueue.poll()) != null) {
+            result.run();
+        }
+    }
+}
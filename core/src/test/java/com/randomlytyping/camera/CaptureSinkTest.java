@@ -0,0 +1,280 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureSinkTest {
+    private static final int PICTURE_BYTES = 256 * 1024;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private CaptureSink mSink;
+    private final List<String> mWritten = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Boolean> mBackpressure =
+            Collections.synchronizedList(new ArrayList<Boolean>());
+
+    /**
+     * Released to let the writer go on after the first picture is written.
+     */
+    private final CountDownLatch mResume = new CountDownLatch(1);
+    private final CountDownLatch mFirstWritten = new CountDownLatch(1);
+    private volatile boolean mBlockFirst;
+
+    /**
+     * Names of other pictures that were still temporary files when a picture was reported.
+     */
+    private final List<String> mTempFilesAtWrite =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() {
+        // The sink creates its directory.
+        mDirectory = new File(mFolder.getRoot(), "captures");
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mResume.countDown();
+        if (mSink != null) {
+            mSink.close();
+            assertTrue(mSink.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void picturesAreWrittenUnderTheirNames() throws Exception {
+        mSink = new CaptureSink(mDirectory, 4, CaptureSink.FSYNC_PER_SHOT, 1, mListener);
+        assertTrue(mSink.submit("a.jpg", picture(1)));
+        assertTrue(mSink.submit("b.jpg", picture(2)));
+        closeAndWait();
+
+        assertPicture("a.jpg", 1);
+        assertPicture("b.jpg", 2);
+        assertEquals(2, mSink.getWrittenCount());
+        assertEquals(0, mSink.getFailedCount());
+        assertEquals(2L * PICTURE_BYTES, mSink.getWrittenBytes());
+        assertEquals(0, tempFiles().length);
+    }
+
+    @Test
+    public void fullQueueRefusesPicturesUntilTheWriterCatchesUp() throws Exception {
+        mBlockFirst = true;
+        mSink = new CaptureSink(mDirectory, 2, CaptureSink.FSYNC_NONE, 1, mListener);
+        assertTrue(mSink.submit("0.jpg", picture(0)));
+        assertTrue(mFirstWritten.await(10, TimeUnit.SECONDS));
+
+        // The writer is held after the first picture, so the next ones pile up.
+        assertTrue(mSink.submit("1.jpg", picture(1)));
+        assertFalse(mSink.isFull());
+        assertTrue(mSink.submit("2.jpg", picture(2)));
+        assertTrue(mSink.isFull());
+        assertFalse(mSink.submit("3.jpg", picture(3)));
+        assertEquals(2, mSink.getPendingCount());
+
+        mResume.countDown();
+        closeAndWait();
+
+        assertEquals(3, mSink.getWrittenCount());
+        assertFalse(new File(mDirectory, "3.jpg").exists());
+        assertEquals(0, mSink.getPendingCount());
+        assertEquals(2, mBackpressure.size());
+        assertTrue(mBackpressure.get(0));
+        assertFalse(mBackpressure.get(1));
+    }
+
+    @Test
+    public void batchedPicturesAreRenamedTogether() throws Exception {
+        mBlockFirst = true;
+        mSink = new CaptureSink(mDirectory, 8, CaptureSink.FSYNC_BATCHED, 3, mListener);
+        assertTrue(mSink.submit("0.jpg", picture(0)));
+        assertTrue(mFirstWritten.await(10, TimeUnit.SECONDS));
+        assertTrue(mSink.submit("1.jpg", picture(1)));
+        assertTrue(mSink.submit("2.jpg", picture(2)));
+        assertTrue(mSink.submit("3.jpg", picture(3)));
+        mResume.countDown();
+        closeAndWait();
+
+        // When the first of the batch was reported, the rest were written but not yet renamed.
+        assertEquals(4, mWritten.size());
+        assertTrue(mTempFilesAtWrite.contains("1.jpg: 2.jpg.tmp, 3.jpg.tmp"));
+        for (int i = 0; i < 4; i++) {
+            assertPicture(i + ".jpg", i);
+        }
+    }
+
+    @Test
+    public void perShotPicturesAreRenamedOneAtATime() throws Exception {
+        mBlockFirst = true;
+        mSink = new CaptureSink(mDirectory, 8, CaptureSink.FSYNC_PER_SHOT, 3, mListener);
+        assertTrue(mSink.submit("0.jpg", picture(0)));
+        assertTrue(mFirstWritten.await(10, TimeUnit.SECONDS));
+        assertTrue(mSink.submit("1.jpg", picture(1)));
+        assertTrue(mSink.submit("2.jpg", picture(2)));
+        mResume.countDown();
+        closeAndWait();
+
+        // The batch size is ignored: nothing else was written when a picture was reported.
+        assertTrue(mTempFilesAtWrite.contains("1.jpg: "));
+        assertTrue(mTempFilesAtWrite.contains("2.jpg: "));
+    }
+
+    @Test
+    public void partiallyWrittenPicturesAreNeverVisibleUnderTheirNames() throws Exception {
+        final int count = 24;
+        final AtomicBoolean done = new AtomicBoolean();
+        final List<String> partial = Collections.synchronizedList(new ArrayList<String>());
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Any file under a final name must have its full length.
+                while (!done.get()) {
+                    final File[] files = mDirectory.listFiles();
+                    if (files == null) {
+                        continue;
+                    }
+                    for (File file : files) {
+                        if (!file.getName().endsWith(CaptureSink.TEMP_SUFFIX)
+                                && file.length() != PICTURE_BYTES) {
+                            partial.add(file.getName() + " " + file.length());
+                        }
+                    }
+                }
+            }
+        });
+        mSink = new CaptureSink(mDirectory, count, CaptureSink.FSYNC_NONE, 1, mListener);
+        reader.start();
+        for (int i = 0; i < count; i++) {
+            assertTrue(mSink.submit(i + ".jpg", picture(i)));
+        }
+        closeAndWait();
+        done.set(true);
+        reader.join();
+
+        assertEquals(partial.toString(), 0, partial.size());
+        assertEquals(count, mSink.getWrittenCount());
+    }
+
+    @Test
+    public void staleTempFilesAreDeleted() throws Exception {
+        assertTrue(mDirectory.mkdirs());
+        final File stale = new File(mDirectory, "old.jpg" + CaptureSink.TEMP_SUFFIX);
+        assertTrue(stale.createNewFile());
+        mSink = new CaptureSink(mDirectory, 1, CaptureSink.FSYNC_NONE, 1, mListener);
+        closeAndWait();
+
+        assertFalse(stale.exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFsyncPolicyIsRejected() {
+        new CaptureSink(mDirectory, 1, 42, 1, mListener);
+    }
+
+
+    //
+    // Helpers
+    //
+
+    private final CaptureSink.Listener mListener = new CaptureSink.Listener() {
+        @Override
+        public void onCaptureWritten(File file, CaptureSink.WriteStats stats) {
+            assertEquals(PICTURE_BYTES, stats.getBytes());
+            final StringBuilder temp = new StringBuilder(file.getName()).append(": ");
+            final File[] others = tempFiles();
+            for (int i = 0; i < others.length; i++) {
+                temp.append(i > 0 ? ", " : "").append(others[i].getName());
+            }
+            mTempFilesAtWrite.add(temp.toString());
+            mWritten.add(file.getName());
+            if (mBlockFirst && mFirstWritten.getCount() > 0) {
+                mFirstWritten.countDown();
+                try {
+                    mResume.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(String name, IOException error) {
+            throw new AssertionError(name + ": " + error);
+        }
+
+        @Override
+        public void onBackpressureChanged(boolean full) {
+            mBackpressure.add(full);
+        }
+    };
+
+    private void closeAndWait() throws InterruptedException {
+        mSink.close();
+        assertTrue(mSink.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private File[] tempFiles() {
+        final File[] files = mDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(CaptureSink.TEMP_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static byte[] picture(int seed) {
+        final byte[] data = new byte[PICTURE_BYTES];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    private void assertPicture(String name, int seed) throws IOException {
+        final File file = new File(mDirectory, name);
+        final byte[] expected = picture(seed);
+        final byte[] actual = Files.readAllBytes(file.toPath());
+        assertTrue(name, Arrays.equals(expected, actual));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the default cascade on a 160x120 fixture: a flat background with one 48 pixel face drawn
+ * with the contrasts the cascade looks for.
+ */
+public class CascadeFaceDetectorTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final int FACE_LEFT = 56;
+    private static final int FACE_TOP = 36;
+    private static final int FACE_SIZE = 48;
+    private static final int MAX_FACES = 4;
+
+    /**
+     * The face in {@code Camera.Face.rect} coordinates.
+     */
+    private static final float[] FACE_RECT = {
+            FACE_LEFT * 2000f / WIDTH - 1000,
+            FACE_TOP * 2000f / HEIGHT - 1000,
+            (FACE_LEFT + FACE_SIZE) * 2000f / WIDTH - 1000,
+            (FACE_TOP + FACE_SIZE) * 2000f / HEIGHT - 1000
+    };
+
+    private CascadeFaceDetector mDetector;
+    private final float[] mRects = new float[MAX_FACES * FaceModel.RECT_STRIDE];
+    private final int[] mScores = new int[MAX_FACES];
+
+    @Before
+    public void setUp() {
+        mDetector = new CascadeFaceDetector();
+    }
+
+    @Test
+    public void faceIsFoundWhereItWasDrawn() {
+        final byte[] plane = new byte[WIDTH * HEIGHT];
+        fill(plane, WIDTH, HEIGHT);
+        drawFace(plane, WIDTH, FACE_LEFT, FACE_TOP, FACE_SIZE);
+
+        assertEquals(1, mDetector.detect(plane, WIDTH, HEIGHT, 0, mRects, mScores, MAX_FACES));
+
+        // The hand-tuned cascade settles on the eyes and mouth, inside the drawn face.
+        assertTrue(mRects[0] >= FACE_RECT[0] && mRects[1] >= FACE_RECT[1]
+                && mRects[2] <= FACE_RECT[2] && mRects[3] <= FACE_RECT[3]);
+        assertEquals((FACE_RECT[0] + FACE_RECT[2]) / 2, (mRects[0] + mRects[2]) / 2, 50);
+        assertEquals((FACE_RECT[1] + FACE_RECT[3]) / 2, (mRects[1] + mRects[3]) / 2, 50);
+        assertTrue(mRects[2] - mRects[0] >= (FACE_RECT[2] - FACE_RECT[0]) / 2);
+        assertTrue(mScores[0] >= CascadeFaceDetector.DEFAULT_MIN_NEIGHBORS * 10);
+    }
+
+    @Test
+    public void sidewaysFaceIsFoundInTheUprightPlane() {
+        final byte[] upright = new byte[WIDTH * HEIGHT];
+        fill(upright, WIDTH, HEIGHT);
+        drawFace(upright, WIDTH, FACE_LEFT, FACE_TOP, FACE_SIZE);
+        assertEquals(1, mDetector.detect(upright, WIDTH, HEIGHT, 0, mRects, mScores, MAX_FACES));
+        final float[] uprightRect = {mRects[0], mRects[1], mRects[2], mRects[3]};
+
+        // The camera delivers the plane rotated, so the face lies on its side.
+        final byte[] plane = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                plane[(WIDTH - 1 - x) * HEIGHT + y] = upright[y * WIDTH + x];
+            }
+        }
+        assertEquals(1, mDetector.detect(plane, HEIGHT, WIDTH, 90, mRects, mScores, MAX_FACES));
+
+        // The face rect is reported in the coordinates of the plane as passed in.
+        final float[] expected = {
+                uprightRect[1], -uprightRect[2], uprightRect[3], -uprightRect[0]
+        };
+        assertArrayEquals(expected, new float[]{mRects[0], mRects[1], mRects[2], mRects[3]}, 1);
+    }
+
+    @Test
+    public void texturedSceneWithoutAFaceHasNoFaces() {
+        final byte[] plane = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                plane[y * WIDTH + x] = (byte) (40 + ((x + y) / 8 & 1) * 64 + x / 2);
+            }
+        }
+
+        assertEquals(0, mDetector.detect(plane, WIDTH, HEIGHT, 0, mRects, mScores, MAX_FACES));
+    }
+
+    @Test
+    public void faceCountIsCappedAtMaxFaces() {
+        final byte[] plane = new byte[WIDTH * HEIGHT];
+        fill(plane, WIDTH, HEIGHT);
+        drawFace(plane, WIDTH, 8, 8, FACE_SIZE);
+        drawFace(plane, WIDTH, 96, 56, FACE_SIZE);
+
+        assertEquals(2, mDetector.detect(plane, WIDTH, HEIGHT, 0, mRects, mScores, MAX_FACES));
+        assertEquals(1, mDetector.detect(plane, WIDTH, HEIGHT, 0, mRects, mScores, 1));
+    }
+
+
+    //
+    // Helpers
+    //
+
+    private static void fill(byte[] plane, int width, int height) {
+        for (int i = 0; i < width * height; i++) {
+            plane[i] = (byte) 90;
+        }
+    }
+
+    /**
+     * Draws a face framed like the cascade window, from the eyebrows to the chin: light skin with
+     * dark eyes on either side of a light nose bridge, and a dark mouth.
+     */
+    private static void drawFace(byte[] plane, int width, int left, int top, int size) {
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                // Position in the 24 pixel cascade window.
+                final int wx = x * CascadeFaceDetector.WINDOW_SIZE / size;
+                final int wy = y * CascadeFaceDetector.WINDOW_SIZE / size;
+                int luma = 180;
+                if (wy >= 7 && wy < 11 && (wx >= 4 && wx < 10 || wx >= 14 && wx < 20)) {
+                    luma = 50;
+                } else if (wy >= 17 && wy < 20 && wx >= 8 && wx < 16) {
+                    luma = 70;
+                }
+                plane[(top + y) * width + left + x] = (byte) luma;
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyTracerTest {
+    private LatencyTracer mTracer;
+
+    @Before
+    public void setUp() {
+        mTracer = new LatencyTracer();
+    }
+
+    @Test
+    public void endRecordsTheTimeSinceBegin() throws InterruptedException {
+        mTracer.begin(LatencyTracer.SHUTTER);
+        Thread.sleep(20);
+        mTracer.end(LatencyTracer.SHUTTER);
+
+        assertEquals(1, mTracer.getHistogram(LatencyTracer.SHUTTER).getCount());
+        assertEquals(1, mTracer.getRecordCount());
+        // Within the histogram's 1/16 precision, and not much longer than the sleep.
+        final float p50 = mTracer.getPercentileMillis(LatencyTracer.SHUTTER, 50);
+        assertTrue("p50 was " + p50, p50 >= 20 * 15 / 16f && p50 < 1000);
+    }
+
+    @Test
+    public void endWithoutBeginRecordsNothing() {
+        mTracer.end(LatencyTracer.FIRST_FRAME);
+
+        assertEquals(0, mTracer.getRecordCount());
+    }
+
+    @Test
+    public void onlyTheFirstEndIsRecorded() {
+        // The first frame timer is ended by every frame.
+        mTracer.begin(LatencyTracer.FIRST_FRAME);
+        mTracer.end(LatencyTracer.FIRST_FRAME);
+        mTracer.end(LatencyTracer.FIRST_FRAME);
+
+        assertEquals(1, mTracer.getHistogram(LatencyTracer.FIRST_FRAME).getCount());
+    }
+
+    @Test
+    public void cancelledOperationsAreNotRecorded() {
+        mTracer.begin(LatencyTracer.OPEN);
+        mTracer.cancel(LatencyTracer.OPEN);
+        mTracer.end(LatencyTracer.OPEN);
+
+        assertEquals(0, mTracer.getRecordCount());
+    }
+
+    @Test
+    public void disablingCancelsAndStopsTiming() {
+        mTracer.begin(LatencyTracer.AUTO_FOCUS);
+        mTracer.setEnabled(false);
+        mTracer.end(LatencyTracer.AUTO_FOCUS);
+        mTracer.begin(LatencyTracer.AUTO_FOCUS);
+        mTracer.end(LatencyTracer.AUTO_FOCUS);
+
+        assertEquals(0, mTracer.getRecordCount());
+    }
+
+    @Test
+    public void operationsAreTimedIndependently() {
+        mTracer.begin(LatencyTracer.OPEN);
+        mTracer.begin(LatencyTracer.SHUTTER);
+        mTracer.end(LatencyTracer.SHUTTER);
+
+        assertEquals(0, mTracer.getHistogram(LatencyTracer.OPEN).getCount());
+        assertEquals(1, mTracer.getHistogram(LatencyTracer.SHUTTER).getCount());
+    }
+}
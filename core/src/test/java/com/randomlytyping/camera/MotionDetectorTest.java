@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays recorded frame sequences through a {@link MotionDetector}. Frames are 160x120 with the
+ * default 16x12 grid, so every tile is 10x10 pixels.
+ */
+public class MotionDetectorTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final int TILE_SIZE = 10;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MotionDetector mDetector;
+    private final List<MotionDetector.Event> mEvents = new ArrayList<MotionDetector.Event>();
+    private final Random mRandom = new Random(42);
+
+    @Before
+    public void setUp() {
+        mDetector = new MotionDetector();
+        mDetector.setListener(new MotionDetector.Listener() {
+            @Override
+            public void onMotionDetected(MotionDetector.Event event) {
+                mEvents.add(event);
+            }
+        });
+    }
+
+    @Test
+    public void staticSceneHasNoMotion() throws Exception {
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        for (int i = 0; i < 60; i++) {
+            frames.add(scene(0, -1, -1));
+        }
+        replay(frames);
+
+        assertTrue(mEvents.toString(), mEvents.isEmpty());
+        for (int row = 0; row < mDetector.getTileRows(); row++) {
+            for (int column = 0; column < mDetector.getTileColumns(); column++) {
+                assertFalse(mDetector.isMotion(column, row));
+            }
+        }
+    }
+
+    @Test
+    public void exposureChangeIsNotMotion() throws Exception {
+        // The whole frame brightens as auto-exposure adjusts.
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        for (int i = 0; i < 60; i++) {
+            frames.add(scene(i, -1, -1));
+        }
+        replay(frames);
+
+        assertTrue(mEvents.toString(), mEvents.isEmpty());
+    }
+
+    @Test
+    public void shiftedTilesAreReportedWhereTheyMoved() throws Exception {
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        for (int i = 0; i < 20; i++) {
+            frames.add(scene(0, -1, -1));
+        }
+        // A bright 2x2 tile block appears at column 4, row 3, then shifts right by two tiles.
+        frames.add(scene(0, 4, 3));
+        frames.add(scene(0, 6, 3));
+        for (int i = 0; i < 10; i++) {
+            frames.add(scene(0, -1, -1));
+        }
+        replay(frames);
+
+        assertEquals(mEvents.toString(), 2, mEvents.size());
+        assertEvent(mEvents.get(0), 21, 4, 3);
+        assertEvent(mEvents.get(1), 22, 6, 3);
+    }
+
+    @Test
+    public void motionIsOnlyReportedAfterWarmUp() throws Exception {
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        frames.add(scene(0, -1, -1));
+        frames.add(scene(0, 4, 3));
+        replay(frames);
+
+        assertTrue(mEvents.isEmpty());
+    }
+
+
+    //
+    // Helpers
+    //
+
+    private static void assertEvent(MotionDetector.Event event, int frame, int left, int top) {
+        assertEquals(frame, event.getFrame());
+        assertEquals(4, event.getTileCount());
+        assertEquals(left, event.getLeft());
+        assertEquals(top, event.getTop());
+        assertEquals(left + 2, event.getRight());
+        assertEquals(top + 2, event.getBottom());
+        assertTrue(event.getStrength() > 100);
+    }
+
+    /**
+     * Records frames into a trace and replays it as fast as possible through the detector.
+     */
+    private void replay(List<byte[]> frames) throws Exception {
+        final File file = mFolder.newFile("motion.trace");
+        final TraceRecorder recorder = new TraceRecorder(file);
+        long timestamp = 0;
+        for (byte[] frame : frames) {
+            assertTrue(recorder.recordFrame(frame, WIDTH, HEIGHT, timestamp));
+            timestamp += 33000000;
+        }
+        recorder.close();
+
+        final TraceReplayer replayer = new TraceReplayer(file);
+        try {
+            replayer.setFrameCallback(new CameraSource.FrameCallback() {
+                @Override
+                public void onFrame(byte[] data, int width, int height, long timestampNanos) {
+                    mDetector.process(data, width, height);
+                    replayer.releaseFrame(data);
+                }
+            });
+            replayer.replay(false);
+            assertEquals(frames.size(), replayer.getFrameCount());
+        } finally {
+            replayer.close();
+        }
+    }
+
+    /**
+     * Draws an NV21 frame: a gradient with sensor noise, brightened by {@code exposure}, with a
+     * bright 2x2 tile block whose top left tile is at {@code blockColumn}, {@code blockRow}, if
+     * not negative.
+     */
+    private byte[] scene(int exposure, int blockColumn, int blockRow) {
+        final byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int luma = 40 + x / 2 + y / 2 + exposure + mRandom.nextInt(5) - 2;
+                if (blockColumn >= 0
+                        && x >= blockColumn * TILE_SIZE && x < (blockColumn + 2) * TILE_SIZE
+                        && y >= blockRow * TILE_SIZE && y < (blockRow + 2) * TILE_SIZE) {
+                    luma = 250;
+                }
+                frame[y * WIDTH + x] = (byte) Math.min(Math.max(luma, 0), 255);
+            }
+        }
+        for (int i = WIDTH * HEIGHT; i < frame.length; i++) {
+            frame[i] = (byte) 128;
+        }
+        return frame;
+    }
+}
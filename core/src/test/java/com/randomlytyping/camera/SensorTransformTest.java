@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class SensorTransformTest {
+    private static final int ITERATIONS = 100000;
+
+    private SensorTransform mTransform;
+
+    @Before
+    public void setUp() {
+        mTransform = new SensorTransform();
+        mTransform.update(0, 0, 1280, 720, 90, true);
+    }
+
+    @Test
+    public void sensorCornersMapToTheView() {
+        mTransform.update(0, 0, 1280, 720, 0, false);
+        final float[] points = {-1000, -1000, 1000, 1000, 0, 0};
+        mTransform.mapSensorToView(points);
+
+        assertArrayEquals(new float[]{0, 0, 1280, 720, 640, 360}, points, 0.01f);
+    }
+
+    @Test
+    public void viewToSensorInvertsSensorToView() {
+        for (int orientation = 0; orientation < 360; orientation += 90) {
+            mTransform.update(0, 0, 1280, 720, orientation, false);
+            final float[] points = {-1000, -500, 250, 1000, 0, 0};
+            final float[] expected = points.clone();
+            mTransform.mapSensorToView(points);
+            mTransform.mapViewToSensor(points);
+
+            assertArrayEquals(expected, points, 0.1f);
+        }
+    }
+
+    @Test
+    public void viewToSensorIsRelativeToTheBounds() {
+        mTransform.update(100, 50, 1280, 720, 0, false);
+        final float[] points = {100, 50, 1380, 770};
+        mTransform.mapViewToSensor(points);
+
+        assertArrayEquals(new float[]{-1000, -1000, 1000, 1000}, points, 0.01f);
+    }
+
+    @Test
+    public void updateOnlyRecomputesWhenAnInputChanges() {
+        assertFalse(mTransform.update(0, 0, 1280, 720, 90, true));
+        assertTrue(mTransform.update(0, 0, 1280, 720, 90, false));
+        assertTrue(mTransform.isValid());
+        mTransform.update(0, 0, 0, 720, 90, false);
+        assertFalse(mTransform.isValid());
+    }
+
+    @Test
+    public void mappingAndUnchangedUpdatesDoNotAllocate() {
+        final com.sun.management.ThreadMXBean threads = threadMXBean();
+        assumeTrue(threads != null && threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final long threadId = Thread.currentThread().getId();
+        final float[] points = new float[2 * 16];
+        final float[] faces = new float[4 * 5];
+
+        // Warm up until the loop is compiled, then subtract what reading the counter allocates.
+        for (int i = 0; i < 5; i++) {
+            runMappings(points, faces);
+        }
+        final long baselineStart = threads.getThreadAllocatedBytes(threadId);
+        final long baseline = threads.getThreadAllocatedBytes(threadId) - baselineStart;
+
+        final long start = threads.getThreadAllocatedBytes(threadId);
+        runMappings(points, faces);
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - start - baseline;
+
+        assertEquals("bytes allocated by " + ITERATIONS + " iterations", 0, allocated);
+    }
+
+    private void runMappings(float[] points, float[] faces) {
+        for (int i = 0; i < ITERATIONS; i++) {
+            points[0] = i;
+            mTransform.update(0, 0, 1280, 720, 90, true);
+            mTransform.mapViewToSensor(points);
+            mTransform.mapSensorToView(points);
+            mTransform.mapSensorToView(faces, 0, faces, 0, faces.length / 2);
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads
+                : null;
+    }
+}
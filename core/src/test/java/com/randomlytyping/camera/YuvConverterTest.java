@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Randomly Typing LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.randomlytyping.camera;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+public class YuvConverterTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    private YuvConverter mConverter;
+
+    @After
+    public void tearDown() {
+        if (mConverter != null) {
+            mConverter.shutdown();
+        }
+    }
+
+    @Test
+    public void videoRangeExtremesAreBlackAndWhite() {
+        mConverter = new YuvConverter();
+        final byte[] frame = new byte[YuvConverter.getFrameSize(YuvConverter.FORMAT_NV21, 2, 2)];
+        frame[0] = 16;
+        frame[1] = (byte) 235;
+        frame[2] = 16;
+        frame[3] = (byte) 235;
+        frame[4] = (byte) 128;
+        frame[5] = (byte) 128;
+        final int[] argb = new int[4];
+        mConverter.convert(frame, YuvConverter.FORMAT_NV21, 2, 2, argb);
+
+        assertArrayEquals(new int[]{0xff000000, 0xffffffff, 0xff000000, 0xffffffff}, argb);
+    }
+
+    @Test
+    public void stripesMatchASingleThread() {
+        for (int format : new int[]{YuvConverter.FORMAT_NV21, YuvConverter.FORMAT_YV12}) {
+            final byte[] frame = randomFrame(format);
+            final int[] expected = new int[WIDTH * HEIGHT];
+            YuvConverter.convertRows(frame, format, WIDTH, HEIGHT, expected, 0, HEIGHT);
+
+            for (int threads = 2; threads <= 4; threads++) {
+                mConverter = new YuvConverter(threads);
+                final int[] argb = new int[WIDTH * HEIGHT];
+                // Several frames, so that workers pick up frames after the first one too.
+                for (int i = 0; i < 10; i++) {
+                    mConverter.convert(frame, format, WIDTH, HEIGHT, argb);
+                    assertArrayEquals(expected, argb);
+                }
+                mConverter.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void framesAfterShutdownAreConvertedOnTheCallingThread() {
+        final byte[] frame = randomFrame(YuvConverter.FORMAT_NV21);
+        final int[] expected = new int[WIDTH * HEIGHT];
+        YuvConverter.convertRows(frame, YuvConverter.FORMAT_NV21, WIDTH, HEIGHT, expected, 0,
+                HEIGHT);
+        mConverter = new YuvConverter(3);
+        mConverter.convert(frame, YuvConverter.FORMAT_NV21, WIDTH, HEIGHT, new int[WIDTH * HEIGHT]);
+        mConverter.shutdown();
+
+        final int[] argb = new int[WIDTH * HEIGHT];
+        mConverter.convert(frame, YuvConverter.FORMAT_NV21, WIDTH, HEIGHT, argb);
+        assertArrayEquals(expected, argb);
+    }
+
+    @Test
+    public void convertingWithWorkersDoesNotAllocate() {
+        final com.sun.management.ThreadMXBean threads = threadMXBean();
+        assumeTrue(threads != null && threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final long threadId = Thread.currentThread().getId();
+        final byte[] frame = randomFrame(YuvConverter.FORMAT_NV21);
+        final int[] argb = new int[WIDTH * HEIGHT];
+        mConverter = new YuvConverter(3);
+
+        // The first frame starts the workers; later ones only hand stripes over.
+        for (int i = 0; i < 200; i++) {
+            mConverter.convert(frame, YuvConverter.FORMAT_NV21, WIDTH, HEIGHT, argb);
+        }
+        final long baselineStart = threads.getThreadAllocatedBytes(threadId);
+        final long baseline = threads.getThreadAllocatedBytes(threadId) - baselineStart;
+        final long start = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 200; i++) {
+            mConverter.convert(frame, YuvConverter.FORMAT_NV21, WIDTH, HEIGHT, argb);
+        }
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - start - baseline;
+
+        assertEquals("bytes allocated by 200 frames", 0, allocated);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oddSizesAreRejected() {
+        mConverter = new YuvConverter();
+        mConverter.convert(new byte[1024], YuvConverter.FORMAT_NV21, 15, 10, new int[1024]);
+    }
+
+    private static byte[] randomFrame(int format) {
+        final byte[] frame = new byte[YuvConverter.getFrameSize(format, WIDTH, HEIGHT)];
+        new Random(7).nextBytes(frame);
+        return frame;
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads
+                : null;
+    }
+}